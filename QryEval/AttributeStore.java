@@ -0,0 +1,296 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ *  AttributeStore provides columnar access to the document attributes
+ *  that are used as static quality features:  spamScore and PageRank
+ *  (as floats), and the url depth and is-Wikipedia flag, which are
+ *  computed from rawUrl.  Reading a column is one array access instead
+ *  of loading a stored Document and parsing a string.
+ *  <p>
+ *  Each column is a file in a directory, indexed by internal docid.
+ *  The files are built from the stored fields the first time that the
+ *  store is opened, and memory-mapped after that.  The spamScore
+ *  column's stamp (see IndexIdentity) records the version of the index
+ *  that the store was built from; a store that was built from another
+ *  version is rebuilt.  A missing numeric attribute is stored as NaN.
+ *  </p>
+ */
+public class AttributeStore {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String SPAM_SCORE_FILE = "spamScore.col";
+  private static final String PAGE_RANK_FILE = "PageRank.col";
+  private static final String URL_DEPTH_FILE = "urlDepth.col";
+  private static final String IS_WIKIPEDIA_FILE = "isWikipedia.col";
+
+  private static final Set<String> STORED_FIELDS =
+    new HashSet<String> (Arrays.asList ("spamScore", "PageRank", "rawUrl"));
+
+  private FloatBuffer spamScores;
+  private FloatBuffer pageRanks;
+  private IntBuffer urlDepths;
+  private ByteBuffer isWikipedia;
+  private String path;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Map the column files of an attribute store.
+   *  @param directory The directory that contains the column files.
+   *  @throws IOException Error mapping the files.
+   */
+  private AttributeStore (File directory) throws IOException {
+    this.spamScores = map (new File (directory, SPAM_SCORE_FILE)).asFloatBuffer ();
+    this.pageRanks = map (new File (directory, PAGE_RANK_FILE)).asFloatBuffer ();
+    this.urlDepths = map (new File (directory, URL_DEPTH_FILE)).asIntBuffer ();
+    this.isWikipedia = map (new File (directory, IS_WIKIPEDIA_FILE));
+    this.path = directory.getPath ();
+  }
+
+  /**
+   *  Build the column files from the stored fields of an index.
+   *  @param reader The Lucene index.
+   *  @param directory The directory to write the column files to.
+   *  @throws IOException Error accessing the index or writing the files.
+   */
+  private static void build (IndexReader reader, File directory)
+    throws IOException {
+
+    int maxDoc = reader.maxDoc ();
+    float[] spamScores = new float[maxDoc];
+    float[] pageRanks = new float[maxDoc];
+    int[] urlDepths = new int[maxDoc];
+    byte[] isWikipedia = new byte[maxDoc];
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      Document d = reader.document (docid, STORED_FIELDS);
+
+      spamScores[docid] = parseFloat (d.get ("spamScore"));
+      pageRanks[docid] = parseFloat (d.get ("PageRank"));
+
+      String rawUrl = d.get ("rawUrl");
+
+      if (rawUrl != null) {
+        urlDepths[docid] = getUrlDepth (rawUrl);
+        isWikipedia[docid] = (byte) (rawUrl.contains ("wikipedia.org") ? 1 : 0);
+      }
+    }
+
+    DataOutputStream out;
+
+    out = openOutput (new File (directory, SPAM_SCORE_FILE));
+    for (float v : spamScores)
+      out.writeFloat (v);
+    closeOutput (out, new File (directory, SPAM_SCORE_FILE));
+
+    out = openOutput (new File (directory, PAGE_RANK_FILE));
+    for (float v : pageRanks)
+      out.writeFloat (v);
+    closeOutput (out, new File (directory, PAGE_RANK_FILE));
+
+    out = openOutput (new File (directory, URL_DEPTH_FILE));
+    for (int v : urlDepths)
+      out.writeInt (v);
+    closeOutput (out, new File (directory, URL_DEPTH_FILE));
+
+    out = openOutput (new File (directory, IS_WIKIPEDIA_FILE));
+    out.write (isWikipedia);
+    closeOutput (out, new File (directory, IS_WIKIPEDIA_FILE));
+  }
+
+  /**
+   *  Finish writing a column file, and move it into place.
+   *  @param out The output stream, which writes a temporary file.
+   *  @param file The column file.
+   *  @throws IOException Error writing the file.
+   */
+  private static void closeOutput (DataOutputStream out, File file)
+    throws IOException {
+
+    out.close ();
+
+    if (! new File (file.getPath () + ".tmp").renameTo (file)) {
+      throw new IOException ("Can't create " + file);
+    }
+  }
+
+  /**
+   *  Get the PageRank of a document.  Like reading the stored field,
+   *  this fails if the document doesn't have one.
+   *  @param docid The internal docid.
+   *  @return The PageRank.
+   *  @throws IllegalArgumentException The document doesn't have one.
+   */
+  public float getPageRank (int docid) {
+    return getValue (this.pageRanks, docid, "PageRank");
+  }
+
+  /**
+   *  Get the directory that the store was opened from.
+   *  @return The directory.
+   */
+  public String getPath () {
+    return this.path;
+  }
+
+  /**
+   *  Get the spam score of a document.  Like reading the stored field,
+   *  this fails if the document doesn't have one.
+   *  @param docid The internal docid.
+   *  @return The spam score.
+   *  @throws IllegalArgumentException The document doesn't have one.
+   */
+  public float getSpamScore (int docid) {
+    return getValue (this.spamScores, docid, "spamScore");
+  }
+
+  /**
+   *  Get a numeric attribute from a column.  Missing values are stored
+   *  as NaN, which must not reach the feature normalization.
+   *  @param column The column.
+   *  @param docid The internal docid.
+   *  @param name The attribute name, for the error message.
+   *  @return The value.
+   *  @throws IllegalArgumentException The document doesn't have one.
+   */
+  private static float getValue (FloatBuffer column, int docid, String name) {
+
+    float value = column.get (docid);
+
+    if (Float.isNaN (value)) {
+      throw new IllegalArgumentException (
+        "Document " + docid + " doesn't have a " + name + " attribute.");
+    }
+
+    return value;
+  }
+
+  /**
+   *  Get the depth of a document's url, which is the number of '/'
+   *  characters that it contains after "http://" is removed.
+   *  @param docid The internal docid.
+   *  @return The url depth.
+   */
+  public int getUrlDepth (int docid) {
+    return this.urlDepths.get (docid);
+  }
+
+  /**
+   *  Compute the depth of a url.
+   *  @param rawUrl The url.
+   *  @return The number of '/' characters, not counting "http://".
+   */
+  static int getUrlDepth (String rawUrl) {
+
+    String url = rawUrl.replace ("http://", "");
+    int depth = 0;
+
+    for (int i = 0; i < url.length (); i++) {
+      if (url.charAt (i) == '/')
+        depth ++;
+    }
+
+    return depth;
+  }
+
+  /**
+   *  Returns true if a document's url is in wikipedia.org.
+   *  @param docid The internal docid.
+   *  @return True if the document is from Wikipedia.
+   */
+  public boolean isWikipedia (int docid) {
+    return this.isWikipedia.get (docid) != 0;
+  }
+
+  /**
+   *  Check that a column file exists and has the expected length.
+   *  @param file The column file.
+   *  @param length The expected length in bytes.
+   *  @return True if the file is usable.
+   */
+  private static boolean isValid (File file, long length) {
+    return file.exists () && (file.length () == length);
+  }
+
+  /**
+   *  Map a column file.
+   *  @param file The column file.
+   *  @return A read-only view of the file.
+   *  @throws IOException Error mapping the file.
+   */
+  private static ByteBuffer map (File file) throws IOException {
+
+    RandomAccessFile raf = new RandomAccessFile (file, "r");
+
+    try {
+      FileChannel channel = raf.getChannel ();
+      return channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+    } finally {
+      raf.close ();
+    }
+  }
+
+  /**
+   *  Open the attribute store of an index, building it first if the
+   *  directory doesn't contain a store for this index.
+   *  @param reader The Lucene index.
+   *  @param path The directory that contains (or will contain) the store.
+   *  @return The attribute store.
+   *  @throws IOException Error accessing the index or the store.
+   */
+  public static AttributeStore open (IndexReader reader, String path)
+    throws IOException {
+
+    File directory = new File (path);
+    File stamped = new File (directory, SPAM_SCORE_FILE);
+    String identity = IndexIdentity.of (reader);
+    long maxDoc = reader.maxDoc ();
+
+    if (! (IndexIdentity.isStamped (stamped, identity) &&
+           isValid (new File (directory, SPAM_SCORE_FILE), 4 * maxDoc) &&
+           isValid (new File (directory, PAGE_RANK_FILE), 4 * maxDoc) &&
+           isValid (new File (directory, URL_DEPTH_FILE), 4 * maxDoc) &&
+           isValid (new File (directory, IS_WIKIPEDIA_FILE), maxDoc))) {
+
+      if (! directory.isDirectory () && ! directory.mkdirs ()) {
+        throw new IOException ("Can't create directory " + path);
+      }
+
+      IndexIdentity.unstamp (stamped);
+      build (reader, directory);
+      IndexIdentity.stamp (stamped, identity);
+    }
+
+    return new AttributeStore (directory);
+  }
+
+  /**
+   *  Open a temporary file for writing a column file.
+   *  @param file The column file.
+   *  @return The output stream.
+   *  @throws IOException Error opening the file.
+   */
+  private static DataOutputStream openOutput (File file) throws IOException {
+    return new DataOutputStream (new BufferedOutputStream (
+      new FileOutputStream (file.getPath () + ".tmp"), 1 << 16));
+  }
+
+  /**
+   *  Parse a numeric attribute.
+   *  @param value The attribute value, or null.
+   *  @return The value, or NaN if it is missing.
+   */
+  private static float parseFloat (String value) {
+    return (value == null) ? Float.NaN : Float.parseFloat (value);
+  }
+}
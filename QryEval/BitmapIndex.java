@@ -0,0 +1,167 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ *  BitmapIndex provides read-only access to a bitmap index, which is
+ *  written by IdxBitmap.  Each term's postings are a DocSet (a sorted
+ *  array of docids for rare terms, roaring-style containers for
+ *  frequent terms) followed by the term frequencies in docid order;
+ *  there are no positions.  BooleanEvaluator uses it to evaluate the
+ *  Boolean retrieval models.
+ *  <p>
+ *  The index has two files.  BITMAPS_FILE has a header (the version;
+ *  the identity of the TermDictionary that it was built with, see
+ *  TermDictionary.getIdentity; numDocs and maxDoc; the fields) and
+ *  then, for each term id of the
+ *  index's TermDictionary, the offset (long) and length (int) of its
+ *  data in POSTINGS_FILE, in ints.  A term's data is the length of its
+ *  serialized DocSet, the DocSet, and its tfs.  Terms that aren't in
+ *  an indexed field have length 0.
+ *  </p>
+ */
+public class BitmapIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  public static final int VERSION = 2;
+  public static final String BITMAPS_FILE = "bitmaps";
+  public static final String POSTINGS_FILE = "bitmaps.postings";
+
+  private String dictionaryIdentity;
+  private int numDocs;
+  private int maxDoc;
+  private Set<String> fields = new HashSet<String> ();
+  private long[] offsets;
+  private int[] lengths;
+  private IdxNative.MappedFile postings;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open a bitmap index.
+   *  @param path The directory that contains the index.
+   *  @throws IOException Error accessing the index.
+   */
+  public BitmapIndex (String path) throws IOException {
+
+    File directory = new File (path);
+    DataInputStream in = new DataInputStream (new BufferedInputStream (
+      new FileInputStream (new File (directory, BITMAPS_FILE)), 1 << 16));
+
+    try {
+      int version = in.readInt ();
+
+      if (version != VERSION) {
+        throw new IOException ("Unsupported bitmap index version " + version +
+                               " in " + path);
+      }
+
+      this.dictionaryIdentity = IndexIdentity.read (in);
+      this.numDocs = in.readInt ();
+      this.maxDoc = in.readInt ();
+
+      int fieldCount = in.readInt ();
+
+      for (int i = 0; i < fieldCount; i++)
+        this.fields.add (in.readUTF ());
+
+      int numTerms = in.readInt ();
+
+      this.offsets = new long[numTerms];
+      this.lengths = new int[numTerms];
+
+      for (int t = 0; t < numTerms; t++) {
+        this.offsets[t] = in.readLong ();
+        this.lengths[t] = in.readInt ();
+      }
+    } finally {
+      in.close ();
+    }
+
+    this.postings = new IdxNative.MappedFile (new File (directory, POSTINGS_FILE));
+  }
+
+  /**
+   *  @return The identity of the TermDictionary whose term ids the
+   *    index uses (see TermDictionary.getIdentity).
+   */
+  public String getDictionaryIdentity () {
+    return this.dictionaryIdentity;
+  }
+
+  /**
+   *  Get the docids of a term.
+   *  @param termId The term's id in the index's TermDictionary.
+   *  @return The docids, or an empty set if the term has no postings.
+   *  @throws IOException Error accessing the index.
+   */
+  public DocSet getDocSet (int termId) throws IOException {
+
+    IntBuffer buffer = this.getData (termId);
+
+    if (buffer == null)
+      return DocSet.fromSorted (new int[0], 0);
+
+    return DocSet.read (buffer, 1);
+  }
+
+  /**
+   *  @return The maxDoc of the Lucene index that the index was built from.
+   */
+  public int getMaxDoc () {
+    return this.maxDoc;
+  }
+
+  /**
+   *  @return The numDocs of the Lucene index that the index was built from.
+   */
+  public int getNumDocs () {
+    return this.numDocs;
+  }
+
+  /**
+   *  Get the term frequencies of a term, as a read-only view of the
+   *  mapped postings file.  The n'th tf is the tf of the n'th docid of
+   *  the term's DocSet (see DocSet.Cursor).
+   *  @param termId The term's id in the index's TermDictionary.
+   *  @return The tfs, or null if the term has no postings.
+   *  @throws IOException Error accessing the index.
+   */
+  public IntBuffer getTfs (int termId) throws IOException {
+
+    IntBuffer buffer = this.getData (termId);
+
+    if (buffer == null)
+      return null;
+
+    buffer.position (1 + buffer.get (0));
+    return buffer.slice ();
+  }
+
+  /**
+   *  @param termId A term id.
+   *  @return A view of the term's data, or null if it has no postings.
+   *  @throws IOException Error accessing the index.
+   */
+  private IntBuffer getData (int termId) throws IOException {
+
+    if ((termId < 0) || (termId >= this.lengths.length) ||
+        (this.lengths[termId] == 0))
+      return null;
+
+    return this.postings.region (4L * this.offsets[termId],
+                                 4L * this.lengths[termId]).asIntBuffer ();
+  }
+
+  /**
+   *  @param fieldName A field name.
+   *  @return True if the field's terms are in the index.
+   */
+  public boolean hasField (String fieldName) {
+    return this.fields.contains (fieldName);
+  }
+}
@@ -0,0 +1,428 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.IntBuffer;
+import java.util.*;
+
+import org.apache.lucene.index.IndexReader;
+
+/**
+ *  BooleanEvaluator evaluates queries for the unranked and ranked
+ *  Boolean retrieval models on a bitmap index (see BitmapIndex and
+ *  IdxBitmap), instead of merging positional inverted lists a
+ *  document at a time.
+ *  <p>
+ *  The documents that match a query are found with set operations:
+ *  #AND intersects its arguments' DocSets, smallest first, and #OR
+ *  unites them, so dense lists are combined a container at a time.
+ *  The unranked Boolean model needs nothing else.  For the ranked
+ *  Boolean model, the matching documents are then scored in docid
+ *  order:  a term's score is its tf, #AND takes the minimum and #OR
+ *  the maximum of its arguments' scores, exactly as the query
+ *  operators do.  Only the top k results are kept, by score and
+ *  external docid; when an unranked query matches many documents,
+ *  they are found by probing the DocSet in external docid order, so
+ *  that most matches are never looked at.
+ *  </p>
+ *  <p>
+ *  Queries with other operators (e.g., #NEAR/n or #SYN) or terms in
+ *  fields that aren't in the bitmap index aren't supported;
+ *  evaluate returns null for them, so that the caller can evaluate
+ *  them normally.
+ *  </p>
+ */
+public class BooleanEvaluator {
+
+  //  --------------- Constants and variables ---------------------
+
+  private BitmapIndex bitmaps;
+  private IndexReader reader;
+  private int topK;
+
+  /**
+   *  The docids in the order that ScoreList sorts documents with equal
+   *  scores (by external docid ordinal, then docid), or null if it
+   *  isn't needed yet.
+   */
+  private int[] ordinalOrder = null;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create an evaluator.
+   *  @param bitmaps The bitmap index.
+   *  @param index The index that the bitmap index was built from.
+   *  @param topK The number of results, or 0 to return every document
+   *    that matches.
+   *  @throws IllegalArgumentException The bitmap index wasn't built
+   *    from this version of the index and its term dictionary.
+   *  @throws IOException Error accessing the term dictionary.
+   */
+  public BooleanEvaluator (BitmapIndex bitmaps, IndexContext index, int topK)
+    throws IllegalArgumentException, IOException {
+
+    String identity = index.getTermDictionary ().getIdentity ();
+
+    if (! bitmaps.getDictionaryIdentity ().equals (identity)) {
+      throw new IllegalArgumentException (
+        "The bitmap index was not built from this index");
+    }
+
+    this.bitmaps = bitmaps;
+    this.reader = index.getReader ();
+    this.topK = topK;
+  }
+
+  /**
+   *  Evaluate a query.
+   *  @param q The query, which is parsed but not initialized.
+   *  @param model The retrieval model.
+   *  @param index The index.
+   *  @return The sorted results, or null if the query or the model
+   *    isn't supported, or the index isn't the one that the evaluator
+   *    was created for (e.g., it was refreshed).
+   *  @throws IOException Error accessing the index.
+   */
+  public ScoreList evaluate (Qry q, RetrievalModel model, IndexContext index)
+    throws IOException {
+
+    boolean ranked = (model instanceof RetrievalModelRankedBoolean);
+
+    if ((! ranked && ! (model instanceof RetrievalModelUnrankedBoolean)) ||
+        (index.getReader () != this.reader) || ! this.isSupported (q))
+      return null;
+
+    Node root = this.getNode (q, index);
+    int n = root.docs.size ();
+    int maxDoc = index.getReader ().maxDoc ();
+
+    //  Every unranked Boolean result has the same score, so the top k
+    //  are the first k matches in external docid order.  When there
+    //  are many matches, it is faster to look for them in that order
+    //  than to select them.
+
+    if (! ranked && (this.topK > 0) && (this.topK < n) &&
+        ((long) this.topK * maxDoc < (long) n * n))
+      return this.getFirstResults (root.docs, index);
+
+    int[] docids = root.docs.toArray ();
+    int[] scores = null;
+
+    if (ranked) {
+      scores = new int[n];
+
+      for (int i = 0; i < n; i++)
+        scores[i] = root.getScore (docids[i]);
+    }
+
+    return this.getTopResults (docids, scores, index);
+  }
+
+  /**
+   *  Get the first k matching documents in external docid order, as
+   *  unranked Boolean results.
+   *  @param docs The matching documents; there are more than k.
+   *  @param index The index.
+   *  @return The sorted results.
+   *  @throws IOException Error accessing the index.
+   */
+  private ScoreList getFirstResults (DocSet docs, IndexContext index)
+    throws IOException {
+
+    int[] order = this.getOrdinalOrder (index);
+    ScoreList r = new ScoreList (index);
+
+    for (int i = 0, found = 0; found < this.topK; i++) {
+      if (docs.contains (order[i])) {
+        r.add (order[i], 1.0);
+        found ++;
+      }
+    }
+
+    return r;
+  }
+
+  /**
+   *  Get the docids in the order that ScoreList sorts documents with
+   *  equal scores.  The order is computed the first time that it is
+   *  needed, with a counting sort of the ordinals (which are -1 for
+   *  documents without an external id).
+   *  @param index The index.
+   *  @return The docids.
+   *  @throws IOException Error accessing the index.
+   */
+  private synchronized int[] getOrdinalOrder (IndexContext index)
+    throws IOException {
+
+    if (this.ordinalOrder != null)
+      return this.ordinalOrder;
+
+    int maxDoc = index.getReader ().maxDoc ();
+    int[] ordinals = new int[maxDoc];
+    int maxOrdinal = -1;
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      ordinals[docid] = index.getExternalDocidOrdinal (docid);
+      maxOrdinal = Math.max (maxOrdinal, ordinals[docid]);
+    }
+
+    int[] starts = new int[maxOrdinal + 3];
+    int[] order = new int[maxDoc];
+
+    for (int docid = 0; docid < maxDoc; docid++)
+      starts[ordinals[docid] + 2] ++;
+
+    for (int i = 1; i < starts.length; i++)
+      starts[i] += starts[i - 1];
+
+    for (int docid = 0; docid < maxDoc; docid++)
+      order[starts[ordinals[docid] + 1] ++] = docid;
+
+    this.ordinalOrder = order;
+    return order;
+  }
+
+  /**
+   *  Build the evaluation tree of a supported query, and find the
+   *  documents that each node matches.
+   *  @param q A supported query.
+   *  @param index The index.
+   *  @return The query's node.
+   *  @throws IOException Error accessing the index.
+   */
+  private Node getNode (Qry q, IndexContext index) throws IOException {
+
+    Node node = new Node ();
+
+    if (q instanceof QrySopScore) {
+      QryIopTerm term = (QryIopTerm) q.args.get (0);
+      int termId = term.getTermId ();
+
+      if (termId == QryIopTerm.UNKNOWN_TERMID)
+        termId = index.getTermId (term.getField (), term.getTerm ());
+
+      node.termId = termId;
+      node.docs = this.bitmaps.getDocSet (termId);
+      return node;
+    }
+
+    node.and = (q instanceof QrySopAnd);
+    node.args = new Node[q.args.size ()];
+
+    for (int i = 0; i < node.args.length; i++)
+      node.args[i] = this.getNode (q.args.get (i), index);
+
+    //  Intersections start with the smallest set, so that they stay
+    //  small.
+
+    Node[] sorted = node.args.clone ();
+
+    if (node.and) {
+      Arrays.sort (sorted, new Comparator<Node> () {
+          public int compare (Node a, Node b) {
+            return Integer.compare (a.docs.size (), b.docs.size ());
+          }
+        });
+    }
+
+    node.docs = sorted[0].docs;
+
+    for (int i = 1; i < sorted.length; i++) {
+      if (node.and)
+        node.docs = DocSet.and (node.docs, sorted[i].docs);
+      else
+        node.docs = DocSet.or (node.docs, sorted[i].docs);
+    }
+
+    return node;
+  }
+
+  /**
+   *  Select the top k results by score, external docid and docid,
+   *  which is how ScoreList sorts them.  A heap holds the best k
+   *  results seen so far, worst first.
+   *  @param docids The matching docids.
+   *  @param scores Their scores, or null if every score is 1.
+   *  @param index The index.
+   *  @return The sorted results.
+   *  @throws IOException Error accessing the index.
+   */
+  private ScoreList getTopResults (int[] docids, int[] scores,
+                                   IndexContext index)
+    throws IOException {
+
+    int n = docids.length;
+    int k = ((this.topK > 0) && (this.topK < n)) ? this.topK : n;
+    int[] heapDocids = new int[k];
+    int[] heapScores = new int[k];
+    int[] heapOrdinals = new int[k];
+    int size = 0;
+
+    for (int i = 0; i < n; i++) {
+      int docid = docids[i];
+      int score = (scores == null) ? 1 : scores[i];
+
+      if ((size == k) && (score < heapScores[0]))
+        continue;
+
+      int ordinal = index.getExternalDocidOrdinal (docid);
+      int p;
+
+      if (size < k) {
+
+        //  Sift the new result up from the bottom of the heap.
+
+        for (p = size++; p > 0; p = (p - 1) / 2) {
+          int parent = (p - 1) / 2;
+
+          if (! isWorse (score, ordinal, docid, heapScores[parent],
+                         heapOrdinals[parent], heapDocids[parent]))
+            break;
+
+          heapDocids[p] = heapDocids[parent];
+          heapScores[p] = heapScores[parent];
+          heapOrdinals[p] = heapOrdinals[parent];
+        }
+      } else {
+        if (! isWorse (heapScores[0], heapOrdinals[0], heapDocids[0],
+                       score, ordinal, docid))
+          continue;
+
+        //  Replace the worst result, and sift down from the top.
+
+        for (p = 0; 2 * p + 1 < size; ) {
+          int child = 2 * p + 1;
+
+          if ((child + 1 < size) &&
+              isWorse (heapScores[child + 1], heapOrdinals[child + 1],
+                       heapDocids[child + 1], heapScores[child],
+                       heapOrdinals[child], heapDocids[child]))
+            child ++;
+
+          if (! isWorse (heapScores[child], heapOrdinals[child],
+                         heapDocids[child], score, ordinal, docid))
+            break;
+
+          heapDocids[p] = heapDocids[child];
+          heapScores[p] = heapScores[child];
+          heapOrdinals[p] = heapOrdinals[child];
+          p = child;
+        }
+      }
+
+      heapDocids[p] = docid;
+      heapScores[p] = score;
+      heapOrdinals[p] = ordinal;
+    }
+
+    //  ScoreList.sort is stable, so results are added in docid order.
+
+    long[] selected = new long[size];
+
+    for (int i = 0; i < size; i++)
+      selected[i] = (((long) heapDocids[i]) << 32) | heapScores[i];
+
+    Arrays.sort (selected);
+
+    ScoreList r = new ScoreList (index);
+
+    for (int i = 0; i < size; i++)
+      r.add ((int) (selected[i] >>> 32), (int) selected[i]);
+
+    r.sort ();
+    return r;
+  }
+
+  /**
+   *  @param score1 The score of a result.
+   *  @param ordinal1 Its external docid ordinal.
+   *  @param docid1 Its docid.
+   *  @param score2 The score of another result.
+   *  @param ordinal2 Its external docid ordinal.
+   *  @param docid2 Its docid.
+   *  @return True if the first result sorts after the second result.
+   */
+  private static boolean isWorse (int score1, int ordinal1, int docid1,
+                                  int score2, int ordinal2, int docid2) {
+    if (score1 != score2)
+      return score1 < score2;
+
+    if (ordinal1 != ordinal2)
+      return ordinal1 > ordinal2;
+
+    return docid1 > docid2;
+  }
+
+  /**
+   *  @param q A query.
+   *  @return True if the query only has #AND and #OR operators and
+   *    terms in fields of the bitmap index.
+   */
+  private boolean isSupported (Qry q) {
+
+    if ((q instanceof QrySopAnd) || (q instanceof QrySopOr)) {
+      if (q.args.size () == 0)
+        return false;
+
+      for (Qry q_i : q.args)
+        if (! this.isSupported (q_i))
+          return false;
+
+      return true;
+    }
+
+    return (q instanceof QrySopScore) &&
+      (q.args.get (0) instanceof QryIopTerm) &&
+      this.bitmaps.hasField (((QryIopTerm) q.args.get (0)).getField ());
+  }
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  A node of the evaluation tree:  a term, or an #AND or #OR of
+   *  other nodes.
+   */
+  private class Node {
+
+    DocSet docs;
+    boolean and;
+    Node[] args;
+    int termId;
+    DocSet.Cursor cursor;
+    IntBuffer tfs;
+
+    /**
+     *  Get the ranked Boolean score of a document that the node
+     *  matches, or 0 if it doesn't match.  Documents must be scored
+     *  in docid order.
+     *  @param docid The document.
+     *  @return The score.
+     *  @throws IOException Error accessing the index.
+     */
+    int getScore (int docid) throws IOException {
+
+      if (this.args == null) {
+        if (this.cursor == null) {
+          this.cursor = this.docs.cursor ();
+          this.tfs = bitmaps.getTfs (this.termId);
+        }
+
+        int rank = this.cursor.find (docid);
+
+        return (rank < 0) ? 0 : this.tfs.get (rank);
+      }
+
+      int score = this.and ? Integer.MAX_VALUE : 0;
+
+      for (Node arg : this.args) {
+        if (this.and)
+          score = Math.min (score, arg.getScore (docid));
+        else
+          score = Math.max (score, arg.getScore (docid));
+      }
+
+      return score;
+    }
+  }
+}
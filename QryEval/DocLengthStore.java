@@ -2,31 +2,132 @@
  *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
  */
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.MultiDocValues;
 import org.apache.lucene.index.MultiFields;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * <p>
+ * Fields are identified by a dense field ordinal, and each field's lengths
+ * are a dense array indexed by internal docid, so a lookup is a single array
+ * load. A field's lengths are loaded the first time that they are needed:
+ * from a native index if the field was exported to one, from a
+ * memory-mapped sidecar file if a sidecar directory is set (the file is
+ * created from the Lucene norms if it doesn't exist yet, or if its stamp
+ * shows that it was built from another version of the index; see
+ * IndexIdentity), otherwise from the Lucene norms into an int[].
+ * </p>
+ * <p>
+ * When an index is refreshed (see Idx.refresh), the new store copies the
+ * lengths of the segments that the new reader shares with the old one from
+ * the old store, and only reads the norms of new segments.
+ * </p>
  */
 public class DocLengthStore  {
 
   private IndexReader reader;
-  private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private IdxNative nativeIndex;
+  private File sidecarDirectory = null;
+  private String[] fieldNames;
+  private Map<String, Integer> fieldOrdinals = new HashMap<String, Integer>();
+
+  // The loaded fields.  A field's lengths are in heapLengths or
+  // mappedLengths.  Both arrays are replaced (never modified) when a field
+  // is loaded, so that readers don't need to synchronize.
+
+  private volatile int[][] heapLengths;
+  private volatile IntBuffer[] mappedLengths;
 
   /**
    * @param reader IndexReader object created in {@link Idx}.
    * @throws IOException Error accessing the Lucene index.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
+    this(reader, (IdxNative) null);
+  }
+
+  /**
+   * Fields that were exported to a native index are served from its
+   * memory-mapped lengths; other fields are read from Lucene norms.
+   *
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param nativeIndex A native index exported from reader, or null.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public DocLengthStore(IndexReader reader, IdxNative nativeIndex) throws IOException {
     this.reader = reader;
-    for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+    this.nativeIndex = nativeIndex;
+    this.fieldNames = MultiFields.getIndexedFields(reader).toArray(new String[0]);
+    Arrays.sort(this.fieldNames);
+    for (int i = 0; i < this.fieldNames.length; i++) {
+      this.fieldOrdinals.put(this.fieldNames[i], i);
+    }
+    this.heapLengths = new int[this.fieldNames.length][];
+    this.mappedLengths = new IntBuffer[this.fieldNames.length];
+  }
+
+  /**
+   * Create a store for a refreshed reader. The fields that the previous
+   * store has loaded are loaded now, segment by segment: a segment that
+   * the previous reader also has (the same segment core) is copied from
+   * the previous store, and other segments are read from their norms. The
+   * previous store's native index isn't used, because it describes the
+   * previous reader, but its sidecar directory is.
+   *
+   * @param reader The refreshed IndexReader.
+   * @param previous The store of the reader that reader was refreshed from,
+   * which must still be open.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public DocLengthStore(IndexReader reader, DocLengthStore previous) throws IOException {
+    this(reader, (IdxNative) null);
+    this.sidecarDirectory = previous.sidecarDirectory;
+
+    Map<Object, LeafReaderContext> previousLeaves = new HashMap<Object, LeafReaderContext>();
+    for (LeafReaderContext leaf : previous.reader.leaves()) {
+      previousLeaves.put(leaf.reader().getCoreCacheKey(), leaf);
+    }
+
+    int[][] h = this.heapLengths.clone();
+    for (int i = 0; i < previous.fieldNames.length; i++) {
+      Integer ordinal = this.fieldOrdinals.get(previous.fieldNames[i]);
+      if ((ordinal == null) ||
+          ((previous.heapLengths[i] == null) && (previous.mappedLengths[i] == null))) {
+        continue;
+      }
+
+      int[] lengths = new int[reader.maxDoc()];
+      for (LeafReaderContext leaf : reader.leaves()) {
+        LeafReaderContext old = previousLeaves.get(leaf.reader().getCoreCacheKey());
+        int maxDoc = leaf.reader().maxDoc();
+        if (old != null) {
+          for (int docid = 0; docid < maxDoc; docid++) {
+            lengths[leaf.docBase + docid] = (int) previous.getDocLength(i, old.docBase + docid);
+          }
+        } else {
+          NumericDocValues norms = leaf.reader().getNormValues(previous.fieldNames[i]);
+          for (int docid = 0; (norms != null) && (docid < maxDoc); docid++) {
+            lengths[leaf.docBase + docid] = (int) norms.get(docid);
+          }
+        }
+      }
+      h[ordinal] = lengths;
     }
+    this.heapLengths = h;
   }
 
   /**
@@ -39,6 +140,158 @@ public class DocLengthStore  {
    * @throws IOException Error accessing the Lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    return getDocLength(getFieldOrdinal(fieldname), docid);
+  }
+
+  /**
+   * Returns the length of the specified field in the specified document.
+   *
+   * @param fieldOrdinal The ordinal of the field (see getFieldOrdinal).
+   * @param docid The internal docid in the lucene index.
+   * @return long The length of the field.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public long getDocLength(int fieldOrdinal, int docid) throws IOException {
+    int[] lengths = this.heapLengths[fieldOrdinal];
+    if (lengths != null) {
+      return lengths[docid];
+    }
+    IntBuffer mapped = this.mappedLengths[fieldOrdinal];
+    if (mapped != null) {
+      return mapped.get(docid);
+    }
+    load(fieldOrdinal);
+    return getDocLength(fieldOrdinal, docid);
+  }
+
+  /**
+   * Returns the ordinal of a field, which can be used instead of its name
+   * to access lengths.
+   *
+   * @param fieldname Name of the field.
+   * @return int The field ordinal.
+   * @throws IllegalArgumentException The field isn't indexed.
+   */
+  public int getFieldOrdinal(String fieldname) throws IllegalArgumentException {
+    Integer ordinal = this.fieldOrdinals.get(fieldname);
+    if (ordinal == null) {
+      throw new IllegalArgumentException("Field " + fieldname + " isn't indexed.");
+    }
+    return ordinal;
+  }
+
+  /**
+   * Load the lengths of a field, if another thread hasn't already.
+   *
+   * @param fieldOrdinal The ordinal of the field.
+   * @throws IOException Error accessing the index or the sidecar file.
+   */
+  private synchronized void load(int fieldOrdinal) throws IOException {
+    if ((this.heapLengths[fieldOrdinal] != null) ||
+        (this.mappedLengths[fieldOrdinal] != null)) {
+      return;
+    }
+
+    String field = this.fieldNames[fieldOrdinal];
+    IntBuffer mapped = null;
+
+    if ((this.nativeIndex != null) && this.nativeIndex.hasField(field)) {
+      mapped = this.nativeIndex.getFieldLengths(field);
+    } else if (this.sidecarDirectory != null) {
+      File file = new File(this.sidecarDirectory, field + IdxNative.LENGTHS_SUFFIX);
+      String identity = IndexIdentity.of(this.reader);
+      if (!IndexIdentity.isStamped(file, identity)) {
+        IndexIdentity.unstamp(file);
+        writeSidecar(file, readNorms(field));
+        IndexIdentity.stamp(file, identity);
+      }
+      mapped = mapFile(file);
+    }
+
+    if (mapped != null) {
+      IntBuffer[] m = this.mappedLengths.clone();
+      m[fieldOrdinal] = mapped;
+      this.mappedLengths = m;
+    } else {
+      int[][] h = this.heapLengths.clone();
+      h[fieldOrdinal] = readNorms(field);
+      this.heapLengths = h;
+    }
+  }
+
+  /**
+   * Map a sidecar file of lengths.
+   *
+   * @param file The sidecar file.
+   * @return IntBuffer A read-only view of the file.
+   * @throws IOException Error mapping the file.
+   */
+  private static IntBuffer mapFile(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asIntBuffer();
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Copy the lengths of a field from the Lucene norms.
+   *
+   * @param field Name of the field.
+   * @return int[] The field length of every document.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  private int[] readNorms(String field) throws IOException {
+    NumericDocValues norms = MultiDocValues.getNormValues(this.reader, field);
+    if (norms == null) {
+      throw new IllegalArgumentException("Field " + field + " doesn't have lengths.");
+    }
+    int[] lengths = new int[this.reader.maxDoc()];
+    for (int docid = 0; docid < lengths.length; docid++) {
+      lengths[docid] = (int) norms.get(docid);
+    }
+    return lengths;
+  }
+
+  /**
+   * Set a directory of sidecar files that field lengths are mapped from.
+   * Missing files are created from the Lucene norms, so later runs (and
+   * other processes) can share them.
+   *
+   * @param path The sidecar directory.
+   * @throws IOException The directory can't be created.
+   */
+  public void setSidecarDirectory(String path) throws IOException {
+    File directory = new File(path);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Can't create directory " + path);
+    }
+    this.sidecarDirectory = directory;
+  }
+
+  /**
+   * Write a sidecar file of lengths.  The file is written under a temporary
+   * name and then renamed, so other processes never see a partial file.
+   *
+   * @param file The sidecar file.
+   * @param lengths The field length of every document.
+   * @throws IOException Error writing the file.
+   */
+  private static void writeSidecar(File file, int[] lengths) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(tmp), 1 << 16));
+    try {
+      for (int length : lengths) {
+        out.writeInt(length);
+      }
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file)) {
+      throw new IOException("Can't rename " + tmp + " to " + file);
+    }
   }
 }
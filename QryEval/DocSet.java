@@ -0,0 +1,831 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ *  An immutable set of docids, stored the way roaring bitmaps store
+ *  them.  A small set is a sorted int array.  A larger set is split
+ *  into containers of 65536 docids that share the high 16 bits of the
+ *  docid; a container with at most ARRAY_MAX docids is a sorted array
+ *  of their low 16 bits, and a denser container is a 65536-bit bitmap.
+ *  <p>
+ *  Intersections and unions work a container at a time, so the cost
+ *  of combining dense sets is a few thousand word operations per
+ *  container instead of one comparison per docid.  BooleanEvaluator
+ *  uses them to evaluate the Boolean retrieval models.
+ *  </p>
+ *  <p>
+ *  A serialized set (see write) is a sequence of ints:  ARRAY, the
+ *  size, and the docids; or CONTAINERS, the number of containers, and
+ *  for each container its key (the high 16 bits), its cardinality,
+ *  and either its low 16 bits packed two per int or its bitmap as
+ *  2048 ints.
+ *  </p>
+ */
+public class DocSet {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The largest set (or container) that is stored as a sorted array.
+   */
+  public static final int ARRAY_MAX = 4096;
+
+  private static final int ARRAY = 0;
+  private static final int CONTAINERS = 1;
+  private static final int BITMAP_WORDS = 1024;
+
+  private static final DocSet EMPTY = new DocSet (new int[0], 0);
+
+  private int size;
+
+  /**
+   *  The docids of a small set, or null if the set has containers.
+   */
+  private int[] docids;
+
+  private int numContainers;
+  private int[] keys;
+  private int[] counts;
+  private char[][] arrays;
+  private long[][] bitmaps;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create a small set.
+   *  @param docids The sorted docids.
+   *  @param size The number of docids.
+   */
+  private DocSet (int[] docids, int size) {
+    this.docids = docids;
+    this.size = size;
+  }
+
+  /**
+   *  Create an empty set of containers.
+   *  @param capacity The expected number of containers.
+   */
+  private DocSet (int capacity) {
+    capacity = Math.max (capacity, 1);
+    this.keys = new int[capacity];
+    this.counts = new int[capacity];
+    this.arrays = new char[capacity][];
+    this.bitmaps = new long[capacity][];
+  }
+
+  /**
+   *  Append a container to a set of containers.  Empty containers
+   *  aren't stored.
+   *  @param key The high 16 bits of the container's docids.
+   *  @param count The container's cardinality.
+   *  @param array The container's low 16 bits, or null.
+   *  @param bitmap The container's bitmap, or null.
+   */
+  private void addContainer (int key, int count, char[] array, long[] bitmap) {
+
+    if (count == 0)
+      return;
+
+    if (this.numContainers == this.keys.length) {
+      int capacity = 2 * this.numContainers;
+
+      this.keys = Arrays.copyOf (this.keys, capacity);
+      this.counts = Arrays.copyOf (this.counts, capacity);
+      this.arrays = Arrays.copyOf (this.arrays, capacity);
+      this.bitmaps = Arrays.copyOf (this.bitmaps, capacity);
+    }
+
+    this.keys[this.numContainers] = key;
+    this.counts[this.numContainers] = count;
+    this.arrays[this.numContainers] = array;
+    this.bitmaps[this.numContainers] = bitmap;
+    this.numContainers ++;
+    this.size += count;
+  }
+
+  /**
+   *  Intersect two sets.
+   *  @param a A set.
+   *  @param b A set.
+   *  @return The docids that are in both sets.
+   */
+  public static DocSet and (DocSet a, DocSet b) {
+
+    if ((a.size == 0) || (b.size == 0))
+      return EMPTY;
+
+    if ((a.docids != null) && (b.docids != null))
+      return (a.size <= b.size) ? andArrays (a, b) : andArrays (b, a);
+
+    if (a.docids != null)
+      return a.filter (b);
+
+    if (b.docids != null)
+      return b.filter (a);
+
+    DocSet result = new DocSet (Math.min (a.numContainers, b.numContainers));
+
+    for (int i = 0, j = 0; (i < a.numContainers) && (j < b.numContainers); ) {
+      if (a.keys[i] < b.keys[j]) {
+        i ++;
+      } else if (a.keys[i] > b.keys[j]) {
+        j ++;
+      } else {
+        andContainers (a, i, b, j, result);
+        i ++;
+        j ++;
+      }
+    }
+
+    return result.compact ();
+  }
+
+  /**
+   *  Intersect two small sets.  When one set is much smaller, its
+   *  docids are found in the other set by binary search.
+   *  @param a The smaller set.
+   *  @param b The larger set.
+   *  @return The intersection.
+   */
+  private static DocSet andArrays (DocSet a, DocSet b) {
+
+    int[] result = new int[a.size];
+    int n = 0;
+
+    if (16 * a.size < b.size) {
+      for (int i = 0, low = 0; (i < a.size) && (low < b.size); i++) {
+        int j = Arrays.binarySearch (b.docids, low, b.size, a.docids[i]);
+
+        if (j >= 0) {
+          result[n++] = a.docids[i];
+          low = j + 1;
+        } else {
+          low = -j - 1;
+        }
+      }
+    } else {
+      for (int i = 0, j = 0; (i < a.size) && (j < b.size); ) {
+        if (a.docids[i] < b.docids[j]) {
+          i ++;
+        } else if (a.docids[i] > b.docids[j]) {
+          j ++;
+        } else {
+          result[n++] = a.docids[i];
+          i ++;
+          j ++;
+        }
+      }
+    }
+
+    return new DocSet (result, n);
+  }
+
+  /**
+   *  Intersect a container of one set with a container of another
+   *  set, and append the result to a set.
+   *  @param a A set.
+   *  @param i A container of a.
+   *  @param b A set.
+   *  @param j A container of b, with the same key.
+   *  @param result The set to append the intersection to.
+   */
+  private static void andContainers (DocSet a, int i, DocSet b, int j,
+                                     DocSet result) {
+
+    int key = a.keys[i];
+
+    if ((a.bitmaps[i] != null) && (b.bitmaps[j] != null)) {
+      long[] bitmap = new long[BITMAP_WORDS];
+      int count = 0;
+
+      for (int w = 0; w < BITMAP_WORDS; w++) {
+        bitmap[w] = a.bitmaps[i][w] & b.bitmaps[j][w];
+        count += Long.bitCount (bitmap[w]);
+      }
+
+      if (count > ARRAY_MAX)
+        result.addContainer (key, count, null, bitmap);
+      else
+        result.addContainer (key, count, toArray (bitmap, count), null);
+    } else if (a.bitmaps[i] != null) {
+      filterContainer (b.arrays[j], b.counts[j], a.bitmaps[i], key, result);
+    } else if (b.bitmaps[j] != null) {
+      filterContainer (a.arrays[i], a.counts[i], b.bitmaps[j], key, result);
+    } else {
+      char[] x = a.arrays[i];
+      char[] y = b.arrays[j];
+      char[] array = new char[Math.min (a.counts[i], b.counts[j])];
+      int count = 0;
+
+      for (int p = 0, q = 0; (p < a.counts[i]) && (q < b.counts[j]); ) {
+        if (x[p] < y[q]) {
+          p ++;
+        } else if (x[p] > y[q]) {
+          q ++;
+        } else {
+          array[count++] = x[p];
+          p ++;
+          q ++;
+        }
+      }
+
+      result.addContainer (key, count, array, null);
+    }
+  }
+
+  /**
+   *  Intersect an array container with a bitmap container, and append
+   *  the result to a set.
+   *  @param array The array container's low 16 bits.
+   *  @param count The array container's cardinality.
+   *  @param bitmap The bitmap container.
+   *  @param key The containers' key.
+   *  @param result The set to append the intersection to.
+   */
+  private static void filterContainer (char[] array, int count, long[] bitmap,
+                                       int key, DocSet result) {
+
+    char[] filtered = new char[count];
+    int n = 0;
+
+    for (int p = 0; p < count; p++)
+      if ((bitmap[array[p] >>> 6] & (1L << array[p])) != 0)
+        filtered[n++] = array[p];
+
+    result.addContainer (key, n, filtered, null);
+  }
+
+  /**
+   *  Intersect a small set with a set of containers.
+   *  @param other A set.
+   *  @return The docids of this small set that are also in other.
+   */
+  private DocSet filter (DocSet other) {
+
+    int[] result = new int[this.size];
+    int n = 0;
+
+    for (int i = 0; i < this.size; i++)
+      if (other.contains (this.docids[i]))
+        result[n++] = this.docids[i];
+
+    return new DocSet (result, n);
+  }
+
+  /**
+   *  Unite two sets.
+   *  @param a A set.
+   *  @param b A set.
+   *  @return The docids that are in either set.
+   */
+  public static DocSet or (DocSet a, DocSet b) {
+
+    if (a.size == 0)
+      return b;
+
+    if (b.size == 0)
+      return a;
+
+    if ((a.docids != null) && (b.docids != null)) {
+      int[] result = new int[a.size + b.size];
+      int n = 0;
+      int i = 0;
+      int j = 0;
+
+      while ((i < a.size) && (j < b.size)) {
+        if (a.docids[i] < b.docids[j]) {
+          result[n++] = a.docids[i++];
+        } else if (a.docids[i] > b.docids[j]) {
+          result[n++] = b.docids[j++];
+        } else {
+          result[n++] = a.docids[i++];
+          j ++;
+        }
+      }
+
+      while (i < a.size)
+        result[n++] = a.docids[i++];
+
+      while (j < b.size)
+        result[n++] = b.docids[j++];
+
+      return fromSorted (result, n);
+    }
+
+    a = a.toContainers ();
+    b = b.toContainers ();
+
+    DocSet result = new DocSet (a.numContainers + b.numContainers);
+    int i = 0;
+    int j = 0;
+
+    while ((i < a.numContainers) || (j < b.numContainers)) {
+      if ((j == b.numContainers) ||
+          ((i < a.numContainers) && (a.keys[i] < b.keys[j]))) {
+        result.addContainer (a.keys[i], a.counts[i], a.arrays[i], a.bitmaps[i]);
+        i ++;
+      } else if ((i == a.numContainers) || (a.keys[i] > b.keys[j])) {
+        result.addContainer (b.keys[j], b.counts[j], b.arrays[j], b.bitmaps[j]);
+        j ++;
+      } else {
+        orContainers (a, i, b, j, result);
+        i ++;
+        j ++;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   *  Unite a container of one set with a container of another set, and
+   *  append the result to a set.  Sets are immutable, so containers
+   *  are copied before they are changed.
+   *  @param a A set.
+   *  @param i A container of a.
+   *  @param b A set.
+   *  @param j A container of b, with the same key.
+   *  @param result The set to append the union to.
+   */
+  private static void orContainers (DocSet a, int i, DocSet b, int j,
+                                    DocSet result) {
+
+    int key = a.keys[i];
+
+    if ((a.bitmaps[i] == null) && (b.bitmaps[j] == null) &&
+        (a.counts[i] + b.counts[j] <= ARRAY_MAX)) {
+      char[] x = a.arrays[i];
+      char[] y = b.arrays[j];
+      char[] array = new char[a.counts[i] + b.counts[j]];
+      int count = 0;
+      int p = 0;
+      int q = 0;
+
+      while ((p < a.counts[i]) && (q < b.counts[j])) {
+        if (x[p] < y[q]) {
+          array[count++] = x[p++];
+        } else if (x[p] > y[q]) {
+          array[count++] = y[q++];
+        } else {
+          array[count++] = x[p++];
+          q ++;
+        }
+      }
+
+      while (p < a.counts[i])
+        array[count++] = x[p++];
+
+      while (q < b.counts[j])
+        array[count++] = y[q++];
+
+      result.addContainer (key, count, array, null);
+      return;
+    }
+
+    long[] bitmap = new long[BITMAP_WORDS];
+
+    a.orInto (i, bitmap);
+    b.orInto (j, bitmap);
+
+    int count = 0;
+
+    for (int w = 0; w < BITMAP_WORDS; w++)
+      count += Long.bitCount (bitmap[w]);
+
+    if (count > ARRAY_MAX)
+      result.addContainer (key, count, null, bitmap);
+    else
+      result.addContainer (key, count, toArray (bitmap, count), null);
+  }
+
+  /**
+   *  Add the docids of a container to a bitmap.
+   *  @param c A container.
+   *  @param bitmap The bitmap.
+   */
+  private void orInto (int c, long[] bitmap) {
+
+    if (this.bitmaps[c] != null) {
+      for (int w = 0; w < BITMAP_WORDS; w++)
+        bitmap[w] |= this.bitmaps[c][w];
+    } else {
+      for (int p = 0; p < this.counts[c]; p++)
+        bitmap[this.arrays[c][p] >>> 6] |= 1L << this.arrays[c][p];
+    }
+  }
+
+  /**
+   *  Create a set from sorted docids.  The set is small if there are
+   *  at most ARRAY_MAX docids.
+   *  @param docids The docids, in ascending order, without duplicates.
+   *  @param n The number of docids.
+   *  @return The set.
+   */
+  public static DocSet fromSorted (int[] docids, int n) {
+
+    if (n <= ARRAY_MAX)
+      return new DocSet (Arrays.copyOf (docids, n), n);
+
+    return toContainers (docids, n);
+  }
+
+  /**
+   *  Create a set of containers from sorted docids.
+   *  @param docids The docids, in ascending order, without duplicates.
+   *  @param n The number of docids.
+   *  @return The set.
+   */
+  private static DocSet toContainers (int[] docids, int n) {
+
+    DocSet result = new DocSet ((n == 0) ? 1 : (docids[n - 1] >>> 16) + 1);
+
+    for (int start = 0; start < n; ) {
+      int key = docids[start] >>> 16;
+      int end = start + 1;
+
+      while ((end < n) && ((docids[end] >>> 16) == key))
+        end ++;
+
+      int count = end - start;
+
+      if (count > ARRAY_MAX) {
+        long[] bitmap = new long[BITMAP_WORDS];
+
+        for (int p = start; p < end; p++)
+          bitmap[(docids[p] >>> 6) & (BITMAP_WORDS - 1)] |= 1L << docids[p];
+
+        result.addContainer (key, count, null, bitmap);
+      } else {
+        char[] array = new char[count];
+
+        for (int p = start; p < end; p++)
+          array[p - start] = (char) docids[p];
+
+        result.addContainer (key, count, array, null);
+      }
+
+      start = end;
+    }
+
+    return result;
+  }
+
+  /**
+   *  @return This set as a set of containers.
+   */
+  private DocSet toContainers () {
+    return (this.docids == null) ? this : toContainers (this.docids, this.size);
+  }
+
+  /**
+   *  @return This set, or an equal small set if it is small enough.
+   */
+  private DocSet compact () {
+    return ((this.docids == null) && (this.size <= ARRAY_MAX)) ?
+      new DocSet (this.toArray (), this.size) : this;
+  }
+
+  /**
+   *  @param bitmap A bitmap container.
+   *  @param count Its cardinality.
+   *  @return Its low 16 bits, in ascending order.
+   */
+  private static char[] toArray (long[] bitmap, int count) {
+
+    char[] array = new char[count];
+    int n = 0;
+
+    for (int w = 0; w < BITMAP_WORDS; w++) {
+      for (long word = bitmap[w]; word != 0; word &= word - 1)
+        array[n++] = (char) ((w << 6) + Long.numberOfTrailingZeros (word));
+    }
+
+    return array;
+  }
+
+  /**
+   *  @param docid A docid.
+   *  @return True if the docid is in the set.
+   */
+  public boolean contains (int docid) {
+
+    if (this.docids != null)
+      return Arrays.binarySearch (this.docids, 0, this.size, docid) >= 0;
+
+    int c = Arrays.binarySearch (this.keys, 0, this.numContainers, docid >>> 16);
+
+    if (c < 0)
+      return false;
+
+    if (this.bitmaps[c] != null)
+      return (this.bitmaps[c][(docid >>> 6) & (BITMAP_WORDS - 1)] &
+              (1L << docid)) != 0;
+
+    return Arrays.binarySearch (this.arrays[c], 0, this.counts[c],
+                                (char) docid) >= 0;
+  }
+
+  /**
+   *  @return The number of docids in the set.
+   */
+  public int size () {
+    return this.size;
+  }
+
+  /**
+   *  @return The docids, in ascending order.
+   */
+  public int[] toArray () {
+
+    if (this.docids != null)
+      return Arrays.copyOf (this.docids, this.size);
+
+    int[] result = new int[this.size];
+    int n = 0;
+
+    for (int c = 0; c < this.numContainers; c++) {
+      int base = this.keys[c] << 16;
+
+      if (this.bitmaps[c] != null) {
+        long[] bitmap = this.bitmaps[c];
+
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+          for (long word = bitmap[w]; word != 0; word &= word - 1)
+            result[n++] = base + (w << 6) + Long.numberOfTrailingZeros (word);
+        }
+      } else {
+        for (int p = 0; p < this.counts[c]; p++)
+          result[n++] = base + this.arrays[c][p];
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   *  @return The number of containers that are bitmaps.
+   */
+  public int getNumBitmaps () {
+
+    int n = 0;
+
+    for (int c = 0; c < this.numContainers; c++)
+      if (this.bitmaps[c] != null)
+        n ++;
+
+    return n;
+  }
+
+  /**
+   *  @return The number of containers, or 0 for a small set.
+   */
+  public int getNumContainers () {
+    return this.numContainers;
+  }
+
+  /**
+   *  @return A cursor that finds docids in ascending order.
+   */
+  public Cursor cursor () {
+    return new Cursor ();
+  }
+
+  /**
+   *  @return The length of the serialized set, in ints.
+   */
+  public int getSerializedLength () {
+
+    if (this.docids != null)
+      return 2 + this.size;
+
+    int length = 2;
+
+    for (int c = 0; c < this.numContainers; c++)
+      length += 2 + ((this.bitmaps[c] != null) ?
+                     2 * BITMAP_WORDS : (this.counts[c] + 1) / 2);
+
+    return length;
+  }
+
+  /**
+   *  Write the set.
+   *  @param out The output.
+   *  @throws IOException Error writing the set.
+   */
+  public void write (DataOutput out) throws IOException {
+
+    if (this.docids != null) {
+      out.writeInt (ARRAY);
+      out.writeInt (this.size);
+
+      for (int i = 0; i < this.size; i++)
+        out.writeInt (this.docids[i]);
+
+      return;
+    }
+
+    out.writeInt (CONTAINERS);
+    out.writeInt (this.numContainers);
+
+    for (int c = 0; c < this.numContainers; c++) {
+      out.writeInt (this.keys[c]);
+      out.writeInt (this.counts[c]);
+
+      if (this.bitmaps[c] != null) {
+        for (int w = 0; w < BITMAP_WORDS; w++)
+          out.writeLong (this.bitmaps[c][w]);
+      } else {
+        char[] array = this.arrays[c];
+
+        for (int p = 0; p < this.counts[c]; p += 2) {
+          int high = (p + 1 < this.counts[c]) ? array[p + 1] : 0;
+          out.writeInt ((high << 16) | array[p]);
+        }
+      }
+    }
+  }
+
+  /**
+   *  Read a set that write wrote.
+   *  @param buffer The buffer.
+   *  @param position The position of the set in the buffer, in ints.
+   *  @return The set.
+   */
+  public static DocSet read (IntBuffer buffer, int position) {
+
+    int kind = buffer.get (position);
+    int n = buffer.get (position + 1);
+    IntBuffer in = buffer.duplicate ();
+
+    in.position (position + 2);
+
+    if (kind == ARRAY) {
+      int[] docids = new int[n];
+
+      in.get (docids);
+      return new DocSet (docids, n);
+    }
+
+    DocSet result = new DocSet (n);
+    int[] words = new int[2 * BITMAP_WORDS];
+
+    for (int c = 0; c < n; c++) {
+      int key = in.get ();
+      int count = in.get ();
+
+      if (count > ARRAY_MAX) {
+        long[] bitmap = new long[BITMAP_WORDS];
+
+        in.get (words);
+
+        for (int w = 0; w < BITMAP_WORDS; w++)
+          bitmap[w] = (((long) words[2 * w]) << 32) |
+                      (words[2 * w + 1] & 0xFFFFFFFFL);
+
+        result.addContainer (key, count, null, bitmap);
+      } else {
+        char[] array = new char[count];
+
+        for (int p = 0; p < count; p += 2) {
+          int packed = in.get ();
+
+          array[p] = (char) packed;
+
+          if (p + 1 < count)
+            array[p + 1] = (char) (packed >>> 16);
+        }
+
+        result.addContainer (key, count, array, null);
+      }
+    }
+
+    return result;
+  }
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  A cursor finds docids in a set in ascending order, and reports
+   *  their ranks (their positions in the set), so that data stored in
+   *  docid order can be found.  Each call to find must be for a docid
+   *  at least as large as the previous call's.
+   */
+  public class Cursor {
+
+    private int position = 0;
+    private int container = 0;
+    private int containerRank = 0;
+    private int word = 0;
+    private int wordRank = 0;
+
+    /**
+     *  Find the end of a short range, starting at the current position,
+     *  that must contain a value if the array does.  Successive docids
+     *  are usually close together, so the range grows exponentially.
+     *  @param array A sorted array.
+     *  @param size The number of values in the array.
+     *  @param value The value.
+     *  @return The end of the range.
+     */
+    private int gallop (int[] array, int size, int value) {
+
+      int step = 1;
+
+      while ((this.position + step < size) &&
+             (array[this.position + step - 1] < value))
+        step *= 2;
+
+      return Math.min (this.position + step, size);
+    }
+
+    /**
+     *  Find the end of a short range, starting at the current position,
+     *  that must contain a value if the array does.
+     *  @param array A sorted array container.
+     *  @param size The number of values in the array.
+     *  @param value The value.
+     *  @return The end of the range.
+     */
+    private int gallop (char[] array, int size, char value) {
+
+      int step = 1;
+
+      while ((this.position + step < size) &&
+             (array[this.position + step - 1] < value))
+        step *= 2;
+
+      return Math.min (this.position + step, size);
+    }
+
+    /**
+     *  Find a docid.
+     *  @param docid The docid.
+     *  @return The docid's rank in the set, or -1 if it isn't in the set.
+     */
+    public int find (int docid) {
+
+      DocSet s = DocSet.this;
+
+      if (s.docids != null) {
+        if (this.position >= s.size)
+          return -1;
+
+        int p = Arrays.binarySearch (s.docids, this.position,
+                                     this.gallop (s.docids, s.size, docid),
+                                     docid);
+
+        this.position = (p >= 0) ? p : -p - 1;
+        return (p >= 0) ? p : -1;
+      }
+
+      //  Move to the docid's container.
+
+      int key = docid >>> 16;
+
+      while ((this.container < s.numContainers) &&
+             (s.keys[this.container] < key)) {
+        this.containerRank += s.counts[this.container];
+        this.container ++;
+        this.position = 0;
+        this.word = 0;
+        this.wordRank = 0;
+      }
+
+      if ((this.container == s.numContainers) ||
+          (s.keys[this.container] != key))
+        return -1;
+
+      int c = this.container;
+
+      if (s.bitmaps[c] == null) {
+        int p = Arrays.binarySearch (s.arrays[c], this.position,
+                                     this.gallop (s.arrays[c], s.counts[c],
+                                                  (char) docid),
+                                     (char) docid);
+
+        this.position = (p >= 0) ? p : -p - 1;
+        return (p >= 0) ? this.containerRank + p : -1;
+      }
+
+      //  Count the bits before the docid's word.
+
+      long[] bitmap = s.bitmaps[c];
+      int w = (docid >>> 6) & (BITMAP_WORDS - 1);
+
+      for (; this.word < w; this.word++)
+        this.wordRank += Long.bitCount (bitmap[this.word]);
+
+      long bit = 1L << docid;
+
+      if ((bitmap[w] & bit) == 0)
+        return -1;
+
+      return this.containerRank + this.wordRank +
+        Long.bitCount (bitmap[w] & (bit - 1));
+    }
+  }
+}
@@ -0,0 +1,294 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  DocidTable maps between internal and external document ids without
+ *  reading stored documents.  It is built once from the external id
+ *  field's term dictionary, or loaded from a sidecar file that a
+ *  previous run saved.
+ *  <p>
+ *  Each document also has an external id ordinal: its rank when the
+ *  external ids are sorted.  Comparing ordinals gives the same order
+ *  as comparing the external id strings, so score lists can break ties
+ *  without string comparisons.
+ *  </p>
+ */
+public class DocidTable {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int VERSION = 2;
+
+  /**
+   *  The internalIds value of an external id that matches several
+   *  documents.
+   */
+  private static final int AMBIGUOUS = -2;
+
+  private String indexIdentity;
+  private String[] externalIds;
+  private int[] ordinals;
+  private HashMap<String,Integer> internalIds;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Build a docid table from the external id field of an index.
+   *  @param reader The Lucene index.
+   *  @param field The external id field.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public DocidTable (IndexReader reader, String field) throws IOException {
+
+    int maxDoc = reader.maxDoc ();
+
+    this.indexIdentity = IndexIdentity.of (reader);
+    this.externalIds = new String[maxDoc];
+    this.ordinals = new int[maxDoc];
+    this.internalIds = new HashMap<String,Integer> (2 * maxDoc);
+    Arrays.fill (this.ordinals, -1);
+
+    Terms terms = MultiFields.getTerms (reader, field);
+
+    if (terms == null)
+      return;
+
+    //  Terms are enumerated in sorted order, so the term number is the
+    //  ordinal.  Lucene sorts by UTF-8 bytes, which only differs from
+    //  String order for ids that contain supplementary characters.
+
+    TermsEnum termsEnum = terms.iterator ();
+    PostingsEnum postings = null;
+    BytesRef termBytes;
+    String previous = null;
+    boolean stringOrder = true;
+    int ord = 0;
+
+    while ((termBytes = termsEnum.next ()) != null) {
+      String externalId = termBytes.utf8ToString ();
+      int docid = -1;
+      int n = 0;
+
+      postings = termsEnum.postings (postings, PostingsEnum.NONE);
+
+      while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+        docid = postings.docID ();
+        this.externalIds[docid] = externalId;
+        this.ordinals[docid] = ord;
+        n ++;
+      }
+
+      this.internalIds.put (externalId, (n == 1) ? docid : AMBIGUOUS);
+
+      if ((previous != null) && (previous.compareTo (externalId) >= 0))
+        stringOrder = false;
+
+      previous = externalId;
+      ord ++;
+    }
+
+    if (! stringOrder)
+      this.sortOrdinals ();
+  }
+
+  /**
+   *  Load a docid table that was saved by save.
+   *  @param file The sidecar file.
+   *  @throws IOException Error reading the file.
+   */
+  private DocidTable (File file) throws IOException {
+
+    DataInputStream in = new DataInputStream (new BufferedInputStream (
+      new FileInputStream (file), 1 << 16));
+
+    try {
+      int version = in.readInt ();
+
+      if (version != VERSION) {
+        throw new IOException ("Unsupported docid table version " + version +
+                               " in " + file);
+      }
+
+      this.indexIdentity = IndexIdentity.read (in);
+
+      int maxDoc = in.readInt ();
+
+      this.externalIds = new String[maxDoc];
+      this.ordinals = new int[maxDoc];
+      this.internalIds = new HashMap<String,Integer> (2 * maxDoc);
+
+      for (int docid = 0; docid < maxDoc; docid++) {
+        this.ordinals[docid] = in.readInt ();
+
+        if (this.ordinals[docid] < 0)
+          continue;
+
+        String externalId = in.readUTF ();
+
+        this.externalIds[docid] = externalId;
+
+        Integer other = this.internalIds.put (externalId, docid);
+
+        if (other != null)
+          this.internalIds.put (externalId, AMBIGUOUS);
+      }
+    } finally {
+      in.close ();
+    }
+  }
+
+  /**
+   *  Get the external document id of a document.
+   *  @param docid The internal document id.
+   *  @return The external document id, or null if the document doesn't
+   *    have one.
+   */
+  public String getExternalDocid (int docid) {
+    return this.externalIds[docid];
+  }
+
+  /**
+   *  Get the rank of a document's external id in sorted order.
+   *  @param docid The internal document id.
+   *  @return The external id ordinal, or -1 if the document doesn't
+   *    have an external id.
+   */
+  public int getExternalDocidOrdinal (int docid) {
+    return this.ordinals[docid];
+  }
+
+  /**
+   *  Get the internal document id of a document.
+   *  @param externalId The external document id.
+   *  @return The internal document id.
+   *  @throws Exception The external id matches no document, or several.
+   */
+  public int getInternalDocid (String externalId) throws Exception {
+
+    Integer docid = this.internalIds.get (externalId);
+
+    if (docid == null) {
+      throw new Exception ("External id " + externalId + " not found.");
+    } else if (docid == AMBIGUOUS) {
+      throw new Exception ("Multiple matches for external id " + externalId);
+    }
+
+    return docid;
+  }
+
+  /**
+   *  Get the number of entries in the table.
+   *  @return One more than the largest internal docid.
+   */
+  public int getMaxDoc () {
+    return this.externalIds.length;
+  }
+
+  /**
+   *  Returns true if a sidecar file holds the docid table of a version
+   *  of an index, without reading the whole table.
+   *  @param file The sidecar file.
+   *  @param identity The identity of the index (see IndexIdentity).
+   *  @return True if the file can be loaded.
+   *  @throws IOException Error reading the file.
+   */
+  private static boolean isCurrent (File file, String identity)
+    throws IOException {
+
+    if (! file.exists ())
+      return false;
+
+    DataInputStream in = new DataInputStream (new BufferedInputStream (
+      new FileInputStream (file)));
+
+    try {
+      return (in.readInt () == VERSION) &&
+             identity.equals (IndexIdentity.read (in));
+    } catch (EOFException e) {
+      return false;
+    } finally {
+      in.close ();
+    }
+  }
+
+  /**
+   *  Load a docid table from a sidecar file if it exists and was built
+   *  from this version of the index (see IndexIdentity); otherwise
+   *  build it from the index and save it there.
+   *  @param reader The Lucene index.
+   *  @param field The external id field.
+   *  @param path The sidecar file, or null to build the table without
+   *    saving it.
+   *  @return The docid table.
+   *  @throws IOException Error accessing the index or the file.
+   */
+  public static DocidTable open (IndexReader reader, String field, String path)
+    throws IOException {
+
+    if (path != null) {
+      File file = new File (path);
+
+      if (isCurrent (file, IndexIdentity.of (reader)))
+        return new DocidTable (file);
+    }
+
+    DocidTable table = new DocidTable (reader, field);
+
+    if (path != null)
+      table.save (new File (path));
+
+    return table;
+  }
+
+  /**
+   *  Save the docid table to a sidecar file.
+   *  @param file The sidecar file.
+   *  @throws IOException Error writing the file.
+   */
+  public void save (File file) throws IOException {
+
+    DataOutputStream out = new DataOutputStream (new BufferedOutputStream (
+      new FileOutputStream (file), 1 << 16));
+
+    try {
+      out.writeInt (VERSION);
+      IndexIdentity.write (out, this.indexIdentity);
+      out.writeInt (this.externalIds.length);
+
+      for (int docid = 0; docid < this.externalIds.length; docid++) {
+        out.writeInt (this.ordinals[docid]);
+
+        if (this.ordinals[docid] >= 0)
+          out.writeUTF (this.externalIds[docid]);
+      }
+    } finally {
+      out.close ();
+    }
+  }
+
+  /**
+   *  Recompute the ordinals in String order.
+   */
+  private void sortOrdinals () {
+
+    String[] sorted = this.internalIds.keySet ().toArray (new String[0]);
+    HashMap<String,Integer> rank = new HashMap<String,Integer> (2 * sorted.length);
+
+    Arrays.sort (sorted);
+
+    for (int i = 0; i < sorted.length; i++)
+      rank.put (sorted[i], i);
+
+    for (int docid = 0; docid < this.externalIds.length; docid++) {
+      if (this.externalIds[docid] != null)
+        this.ordinals[docid] = rank.get (this.externalIds[docid]);
+    }
+  }
+}
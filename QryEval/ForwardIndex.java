@@ -0,0 +1,81 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+
+/**
+ *  ForwardIndex provides read-only access to the forward index of one
+ *  field of a native index.  For each document it stores the field's
+ *  term ids (ordinals in the native term dictionary) in increasing
+ *  order, their term frequencies, and optionally the index of the term
+ *  at each position.  It is built from the Lucene term vectors by
+ *  IdxExport, and is read by TermVector.
+ *  <p>
+ *  The forward index consists of two files.  All numbers are big-endian.
+ *  </p>
+ *  <pre>
+ *    FIELD.fwd      for each document:  numTerms (int),
+ *                   positionsLength (int, the last position + 1),
+ *                   termIds[numTerms], tfs[numTerms],
+ *                   positions[positionsLength] (all ints; only if
+ *                   positions are stored)
+ *    FIELD.fwdidx   the offset of each document in FIELD.fwd, and the
+ *                   length of FIELD.fwd (maxDoc+1 longs)
+ *  </pre>
+ *  <p>
+ *  positions[p] is 1 + the index in termIds of the term at position p,
+ *  or 0 if position p is a stopword, which is how TermVector represents
+ *  positions.
+ *  </p>
+ */
+public class ForwardIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  public static final String DATA_SUFFIX = ".fwd";
+  public static final String OFFSETS_SUFFIX = ".fwdidx";
+
+  private IdxNative.MappedFile data;
+  private LongBuffer offsets;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open the forward index of a field.
+   *  @param directory The directory of the native index.
+   *  @param fieldName The field name.
+   *  @throws IOException Error mapping the files.
+   */
+  public ForwardIndex (File directory, String fieldName) throws IOException {
+    this.data = new IdxNative.MappedFile (new File (directory, fieldName + DATA_SUFFIX));
+    this.offsets = new IdxNative.MappedFile (
+      new File (directory, fieldName + OFFSETS_SUFFIX)).all ().asLongBuffer ();
+  }
+
+  /**
+   *  Get the forward index record of a document.
+   *  @param docid The internal docid.
+   *  @return A view of the record:  numTerms, positionsLength,
+   *    termIds, tfs, positions.  If positions aren't stored, the
+   *    record ends after tfs.
+   *  @throws IOException Error accessing the file.
+   */
+  public IntBuffer getDocument (int docid) throws IOException {
+    long offset = this.offsets.get (docid);
+    long end = this.offsets.get (docid + 1);
+
+    return this.data.region (offset, end - offset).asIntBuffer ();
+  }
+
+  /**
+   *  Returns true if the forward index of a field exists.
+   *  @param directory The directory of the native index.
+   *  @param fieldName The field name.
+   *  @return True if the forward index files exist.
+   */
+  public static boolean exists (File directory, String fieldName) {
+    return new File (directory, fieldName + DATA_SUFFIX).exists () &&
+           new File (directory, fieldName + OFFSETS_SUFFIX).exists ();
+  }
+}
@@ -5,11 +5,10 @@ import java.io.*;
 import java.nio.file.Paths;
 import java.util.*;
 
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.util.BytesRef;
 
 /**
  *  Idx manages and provides access to Lucene indexes and auxiliary
@@ -21,23 +20,38 @@ import org.apache.lucene.util.BytesRef;
  *  <i>current</i> index.  All requests are satisfied from the current
  *  index.  setCurrentIndex changes the current index.
  *  </p>
+ *  <p>
+ *  Each open index is described by an immutable IndexContext, and the
+ *  static methods of Idx are a facade over the current index's
+ *  context.  Code that evaluates queries concurrently, or against
+ *  several indexes at once, should get a context (getContext) and use
+ *  it instead of Idx.
+ *  </p>
+ *  <p>
+ *  An open index can be refreshed while it is in use (refresh), e.g.,
+ *  after documents are added to it.  Code that may run while another
+ *  thread refreshes the index should use acquireContext and
+ *  releaseContext instead of getContext, so that the old version of
+ *  the index stays open until it is done.
+ *  </p>
  */
 public class Idx {
 
   //  --------------- Constants and variables ---------------------
 
   /**
-   *  The Lucene index that is considered the current index.
+   *  The Lucene index that is considered the current index.  This is
+   *  the reader of the current context.
    */
   public static IndexReader INDEXREADER=null;
 
-  private static DocLengthStore DOCLENGTHSTORE=null;
+  /**
+   *  The context of the current index.
+   */
+  private static volatile IndexContext CONTEXT=null;
 
-  private static HashMap<String,IndexReader> openIndexReaders =
-    new HashMap<String,IndexReader> ();
-  private static HashMap<String,DocLengthStore> openDocLengthStores =
-    new HashMap<String,DocLengthStore> ();
-  private static String externalIdField = new String ("externalId");
+  private static HashMap<String,IndexContext> openContexts =
+    new HashMap<String,IndexContext> ();
 
   //  --------------- Methods ---------------------------------------
 
@@ -50,9 +64,71 @@ public class Idx {
    */
   public static String getAttribute (String attributeName, int docid)
     throws IOException {
+    return Idx.CONTEXT.getAttribute (attributeName, docid);
+  }
+
+  /**
+   *  Get the columnar attribute store of the current index.
+   *  @return the attribute store, or null if one wasn't opened.
+   */
+  public static AttributeStore getAttributeStore () {
+    return Idx.CONTEXT.getAttributeStore ();
+  }
+
+  /**
+   *  Get the context of the current index, and keep its version of
+   *  the index open until releaseContext is called, even if the index
+   *  is refreshed meanwhile.
+   *  @return the context
+   *  @throws AlreadyClosedException The current index was closed.
+   */
+  public static IndexContext acquireContext () {
+
+    //  A refresh closes the old reader only after the new context is
+    //  current, so a failed attempt finds the new context next time.
+    //  If the context didn't change, its reader was closed some other
+    //  way, and trying again would spin forever.
+
+    IndexContext context = Idx.CONTEXT;
+
+    while (! context.getReader ().tryIncRef ()) {
+      IndexContext current = Idx.CONTEXT;
+
+      if (current == context) {
+        throw new AlreadyClosedException (
+          "The current index was closed");
+      }
+
+      context = current;
+    }
+
+    return context;
+  }
+
+  /**
+   *  Get the context of the current index.
+   *  @return the context
+   */
+  public static IndexContext getContext () {
+    return Idx.CONTEXT;
+  }
+
+  /**
+   *  Get the context of an open index.
+   *  @param indexPath A directory that contains an open Lucene index.
+   *  @return the context
+   *  @throws IllegalArgumentException The specified index isn't open.
+   */
+  public static synchronized IndexContext getContext (String indexPath)
+    throws IllegalArgumentException {
+
+    IndexContext context = openContexts.get (indexPath);
 
-    Document d = Idx.INDEXREADER.document (docid);
-    return d.get (attributeName);
+    if (context == null) {
+      throw new IllegalArgumentException ("The index " + indexPath + " isn't open");
+    }
+
+    return context;
   }
 
   /**
@@ -63,7 +139,19 @@ public class Idx {
    */
   public static int getDocCount (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    return Idx.CONTEXT.getDocCount (fieldName);
+  }
+
+  /**
+   *  Get the document frequency (df) of a term in a field.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The number of documents that contain the term in the field.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getDocFreq (String fieldName, String term)
+    throws IOException {
+    return Idx.CONTEXT.getDocFreq (fieldName, term);
   }
 
   /**
@@ -74,9 +162,19 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
-    Document d = Idx.INDEXREADER.document(iid);
-    String eid = d.get(externalIdField);
-    return eid;
+    return Idx.CONTEXT.getExternalDocid(iid);
+  }
+
+  /**
+   *  Get the rank of a document's external id when the external ids
+   *  of the corpus are sorted.  Comparing ordinals is equivalent to
+   *  comparing external ids.
+   *  @param iid The internal document id of the document.
+   *  @return the external id ordinal
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getExternalDocidOrdinal(int iid) throws IOException {
+    return Idx.CONTEXT.getExternalDocidOrdinal(iid);
   }
 
   /**
@@ -88,7 +186,32 @@ public class Idx {
    */
   public static int getFieldLength (String fieldName, int docid)
     throws IOException {
-    return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
+    return Idx.CONTEXT.getFieldLength (fieldName, docid);
+  }
+
+  /**
+   *  Get the length of the specified field in the specified document.
+   *  This is faster than looking the field up by name.
+   *  @param fieldOrdinal The ordinal of the field (see getFieldOrdinal).
+   *  @param docid The internal docid in the Lucene index.
+   *  @return the length of the field, including stopword positions.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getFieldLength (int fieldOrdinal, int docid)
+    throws IOException {
+    return Idx.CONTEXT.getFieldLength (fieldOrdinal, docid);
+  }
+
+  /**
+   *  Get the ordinal of a field in the current index, which
+   *  getFieldLength accepts instead of the field name.
+   *  @param fieldName The field name.
+   *  @return the field ordinal
+   *  @throws IllegalArgumentException The field isn't indexed.
+   */
+  public static int getFieldOrdinal (String fieldName)
+    throws IllegalArgumentException {
+    return Idx.CONTEXT.getFieldOrdinal (fieldName);
   }
 
   /**
@@ -101,21 +224,78 @@ public class Idx {
    */
   public static int getInternalDocid(String externalId)
     throws Exception {
+    return Idx.CONTEXT.getInternalDocid(externalId);
+  }
 
-    BytesRef termBytes = new BytesRef (externalId);
-    Term term = new Term (externalIdField, termBytes);
-    int df = Idx.INDEXREADER.docFreq (term);
 
-    if (df == 0) {
-      throw new Exception ("External id " + externalId + " not found.");
-    } else if (df > 1) {
-      throw new Exception ("Multiple matches for external id " + externalId);
-    }
+  /**
+   *  Get the inverted list of a term.  If the current index has a
+   *  native index, the inverted list is a view of its mapped
+   *  postings; otherwise it is read from the Lucene index.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldName The field that the term occurs in.
+   *  @return The inverted list.
+   *  @throws IOException Error accessing the index.
+   */
+  public static InvList getInvList (String term, String fieldName)
+    throws IOException {
+    return Idx.CONTEXT.getInvList (term, fieldName, true);
+  }
+
+  /**
+   *  Get the inverted list of a term, optionally without positions.
+   *  Positions are always present in inverted lists from a native
+   *  index or the inverted list cache, because they cost nothing
+   *  extra there.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldName The field that the term occurs in.
+   *  @param withPositions False if the caller only needs docids and tfs.
+   *  @return The inverted list.
+   *  @throws IOException Error accessing the index.
+   */
+  public static InvList getInvList (String term, String fieldName,
+                                    boolean withPositions)
+    throws IOException {
+    return Idx.CONTEXT.getInvList (term, fieldName, withPositions);
+  }
+
+  /**
+   *  Get the inverted list cache of the current index.
+   *  @return The cache, or null if the current index doesn't have one.
+   */
+  public static InvListCache getInvListCache () {
+    return Idx.CONTEXT.getInvListCache ();
+  }
+
+  /**
+   *  Get the native index of the current index.
+   *  @return The native index, or null if the current index doesn't have one.
+   */
+  public static IdxNative getNativeIndex () {
+    return Idx.CONTEXT.getNativeIndex ();
+  }
+
+  /**
+   *  Get the term dictionary of the current index, building or
+   *  loading it if this is the first time that it is needed.
+   *  @return The term dictionary.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static TermDictionary getTermDictionary ()
+    throws IOException {
+    return Idx.CONTEXT.getTermDictionary ();
+  }
 
-    PostingsEnum iList =
-      MultiFields.getTermPositionsEnum (Idx.INDEXREADER, externalIdField, termBytes);
-    iList.nextDoc();
-    return (iList.docID());
+  /**
+   *  Get the term id of a term in the current index's term dictionary.
+   *  @param fieldName The field name.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return The term id, or -1 if the term doesn't occur in the field.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getTermId (String fieldName, String term)
+    throws IOException {
+    return Idx.CONTEXT.getTermId (fieldName, term);
   }
 
   /**
@@ -124,7 +304,7 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static long getNumDocs () throws IOException {
-    return Idx.INDEXREADER.numDocs();
+    return Idx.CONTEXT.getNumDocs();
   }
 
   /**
@@ -137,7 +317,19 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    return Idx.CONTEXT.getSumOfFieldLengths (fieldName);
+  }
+
+  /**
+   *  Get the average length of the specified field, over the documents
+   *  that contain the field.
+   *  @param fieldName The field name.
+   *  @return The average field length.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static double getAverageFieldLength (String fieldName)
+    throws IOException {
+    return Idx.CONTEXT.getAverageFieldLength (fieldName);
   }
 
 
@@ -152,10 +344,9 @@ public class Idx {
    */
   public static long getTotalTermFreq (String fieldName, String term)
     throws IOException {
-    return INDEXREADER.totalTermFreq (new Term (fieldName, new BytesRef (term)));
+    return Idx.CONTEXT.getTotalTermFreq (fieldName, term);
   }
 
-
   /**
    *  Open a Lucene index and the associated DocLengthStore.
    *  @param indexPath A directory that contains a Lucene index.
@@ -166,7 +357,6 @@ public class Idx {
     throws IllegalArgumentException, IOException {
 
     IndexReader indexReader;
-    DocLengthStore docLengthStore;
 
     //  Open the Lucene index
 
@@ -176,27 +366,222 @@ public class Idx {
     if (indexReader == null) {
       throw new IllegalArgumentException ("Unable to open the index.");
     }
-  
-    //  Lucene doesn't store field lengths the way that we want them,
-    //  so we have our own document length store.
 
-    docLengthStore = new DocLengthStore (indexReader);
-  
-    if (docLengthStore == null) {
-      throw new IllegalArgumentException ("Unable to open the document length store.");
+    //  The context has our own document length store, because Lucene
+    //  doesn't store field lengths the way that we want them, and
+    //  snapshots of the collection statistics.
+
+    IndexContext context = new IndexContext (indexReader);
+
+    //  The current index defaults to the first open index.
+
+    synchronized (Idx.class) {
+      openContexts.put (indexPath, context);
+
+      if (Idx.CONTEXT == null)
+        setCurrentContext (context);
     }
+  }
 
-    //  Keep track of the open indexes.
+  /**
+   *  Open the columnar attribute store of the current index, building
+   *  it from the stored fields if the directory doesn't have one yet.
+   *  @param path The directory of the attribute store.
+   *  @throws IOException Error accessing the index or the store.
+   */
+  public static synchronized void openAttributeStore (String path) throws IOException {
+    IndexContext context = Idx.CONTEXT;
+    replaceContext (context, context.withAttributeStore (
+      AttributeStore.open (context.getReader (), path)));
+  }
 
-    openIndexReaders.put (indexPath, indexReader);
-    openDocLengthStores.put (indexPath, docLengthStore);
+  /**
+   *  Open a native index that was exported from an open Lucene index.
+   *  While the Lucene index is the current index, inverted lists,
+   *  field lengths and statistics are served from the native index.
+   *  Stored fields and term vectors are still read from Lucene.
+   *  @param indexPath A directory that contains an open Lucene index.
+   *  @param nativePath A directory that contains a native index.
+   *  @throws IllegalArgumentException The native index doesn't match
+   *    the Lucene index.
+   *  @throws IOException Error accessing the native index.
+   */
+  public static synchronized void openNative (String indexPath, String nativePath)
+    throws IllegalArgumentException, IOException {
 
-    //  The current index defaults to the first open index.
+    IndexContext context = openContexts.get (indexPath);
 
-    if (Idx.INDEXREADER == null) {
-      Idx.INDEXREADER = indexReader;
-      Idx.DOCLENGTHSTORE = docLengthStore;
+    if (context == null) {
+      throw new IllegalArgumentException (
+        "A Lucene index must be open before its native index is opened");
+    }
+
+    IndexReader indexReader = context.getReader ();
+    IdxNative nativeIndex = new IdxNative (nativePath);
+
+    //  Matching maxDoc and numDocs isn't enough:  a rebuilt index can
+    //  have the same counts and different postings.
+
+    if (! nativeIndex.getIdentity ().equals (IndexIdentity.of (indexReader))) {
+      throw new IllegalArgumentException (
+        "The native index " + nativePath + " was not exported from " + indexPath);
+    }
+
+    replaceContext (context, context.withNativeIndex (nativeIndex));
+  }
+
+  /**
+   *  Open a phrase index that was built from an open Lucene index.
+   *  While the Lucene index is the current index, QryParser replaces
+   *  #NEAR/1 operators over the term pairs that the phrase index has
+   *  with direct reads of their inverted lists.
+   *  @param indexPath A directory that contains an open Lucene index.
+   *  @param phrasePath A directory that contains a phrase index.
+   *  @throws IllegalArgumentException The phrase index doesn't match
+   *    the Lucene index.
+   *  @throws IOException Error accessing the phrase index.
+   */
+  public static synchronized void openPhraseIndex (String indexPath, String phrasePath)
+    throws IllegalArgumentException, IOException {
+
+    IndexContext context = openContexts.get (indexPath);
+
+    if (context == null) {
+      throw new IllegalArgumentException (
+        "A Lucene index must be open before its phrase index is opened");
+    }
+
+    IndexReader indexReader = context.getReader ();
+    IdxNative phraseIndex = new IdxNative (phrasePath);
+
+    //  Phrase ids are only valid for the version of the index that the
+    //  phrase index was built from, not for any index of the same size.
+
+    if (! phraseIndex.getIdentity ().equals (IndexIdentity.of (indexReader))) {
+      throw new IllegalArgumentException (
+        "The phrase index " + phrasePath + " was not built from " + indexPath);
     }
+
+    replaceContext (context, context.withPhraseIndex (phraseIndex));
+  }
+
+  /**
+   *  Refresh an open index:  if the index has changed on disk since it
+   *  was opened or last refreshed, open the new version and make its
+   *  context replace the old one (see IndexContext.withReader).  The
+   *  old version is closed when the last context acquired from it is
+   *  released.
+   *  @param indexPath A directory that contains an open Lucene index.
+   *  @return True if the index changed.
+   *  @throws IllegalArgumentException The specified index isn't open.
+   *  @throws IOException Error accessing the index.
+   */
+  public static boolean refresh (String indexPath)
+    throws IllegalArgumentException, IOException {
+
+    IndexContext context;
+
+    synchronized (Idx.class) {
+      context = getContext (indexPath);
+
+      DirectoryReader reader = DirectoryReader.openIfChanged (
+        (DirectoryReader) context.getReader ());
+
+      if (reader == null)
+        return false;
+
+      try {
+        replaceContext (context, context.withReader (reader));
+      } catch (IOException ex) {
+        reader.close ();
+        throw ex;
+      }
+    }
+
+    //  Release the reference that Idx held.
+
+    context.getReader ().decRef ();
+    return true;
+  }
+
+  /**
+   *  Release a context that acquireContext returned.
+   *  @param context The context.
+   *  @throws IOException Error closing an old version of the index.
+   */
+  public static void releaseContext (IndexContext context)
+    throws IOException {
+    context.getReader ().decRef ();
+  }
+
+  /**
+   *  Replace an open index's context with a changed copy of it.
+   *  @param context The context of an open index.
+   *  @param changed The changed context.
+   */
+  private static synchronized void replaceContext (IndexContext context,
+                                                   IndexContext changed) {
+
+    for (Map.Entry<String,IndexContext> entry : openContexts.entrySet ()) {
+      if (entry.getValue () == context)
+        entry.setValue (changed);
+    }
+
+    if (Idx.CONTEXT == context)
+      setCurrentContext (changed);
+  }
+
+  /**
+   *  Make a context the current context.
+   *  @param context The context.
+   */
+  private static void setCurrentContext (IndexContext context) {
+    Idx.CONTEXT = context;
+    Idx.INDEXREADER = context.getReader ();
+  }
+
+  /**
+   *  Set a directory of sidecar files that the current index's field
+   *  lengths are memory-mapped from.  Missing files are created the
+   *  first time that a field's lengths are needed.
+   *  @param path The sidecar directory.
+   *  @throws IOException The directory can't be created.
+   */
+  public static synchronized void setDocLengthsPath (String path) throws IOException {
+    IndexContext context = Idx.CONTEXT;
+    replaceContext (context, context.withDocLengthsPath (path));
+  }
+
+  /**
+   *  Set the inverted list cache of the current index.  Inverted lists
+   *  from getInvList are shared across queries while a cache is set.
+   *  @param cache The cache, or null to stop caching.
+   */
+  public static synchronized void setInvListCache (InvListCache cache) {
+    IndexContext context = Idx.CONTEXT;
+    replaceContext (context, context.withInvListCache (cache));
+  }
+
+  /**
+   *  Set the sidecar file that the current index's docid table is
+   *  loaded from, or saved to if it doesn't exist yet.  This must be
+   *  called before the table is first used.
+   *  @param path The sidecar file.
+   */
+  public static synchronized void setDocidTablePath (String path) {
+    IndexContext context = Idx.CONTEXT;
+    replaceContext (context, context.withDocidTablePath (path));
+  }
+
+  /**
+   *  Set the file that the current index's term dictionary is mapped
+   *  from, or saved to if it doesn't exist yet.  This must be called
+   *  before the dictionary is first used.
+   *  @param path The dictionary file.
+   */
+  public static synchronized void setTermDictionaryPath (String path) {
+    IndexContext context = Idx.CONTEXT;
+    replaceContext (context, context.withTermDictionaryPath (path));
   }
 
   /**
@@ -204,18 +589,16 @@ public class Idx {
    *  @param indexPath A directory that contains an open Lucene index.
    *  @throws IllegalArgumentException The specified index isn't open.
    */
-  public static void setCurrentIndex (String indexPath)
+  public static synchronized void setCurrentIndex (String indexPath)
     throws IllegalArgumentException {
 
-    IndexReader indexReader = openIndexReaders.get (indexPath);
-    DocLengthStore docLengthStore = openDocLengthStores.get (indexPath);
+    IndexContext context = openContexts.get (indexPath);
 
-    if ((indexReader == null) || (docLengthStore == null)) {
+    if (context == null) {
       throw new IllegalArgumentException (
         "An index must be open before it can be the current index");
     }
 
-    Idx.INDEXREADER = indexReader;
-    Idx.DOCLENGTHSTORE = docLengthStore;
+    setCurrentContext (context);
   }
 }
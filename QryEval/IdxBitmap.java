@@ -0,0 +1,176 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  IdxBitmap builds a bitmap index from a Lucene index (see BitmapIndex
+ *  for the file format), which BooleanEvaluator uses to evaluate the
+ *  Boolean retrieval models with set operations (see the
+ *  index:bitmapPath parameter).  Run it to see a simple usage message.
+ */
+public class IdxBitmap {
+
+  //  --------------- Constants and variables ---------------------
+
+  static String usage =
+    "Usage:  java " + System.getProperty ("sun.java.command") +
+    " -index INDEX_PATH -output BITMAP_PATH [-fields FIELD,FIELD,...]\n\n" +
+    "Builds a bitmap index of the Lucene index in INDEX_PATH in BITMAP_PATH.\n" +
+    "By default all of the fields are indexed.\n";
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Build a bitmap index.
+   *  @param args The command line arguments.
+   *  @throws IOException Error accessing an index.
+   */
+  public static void main (String[] args) throws IOException {
+
+    String indexPath = null;
+    String outputPath = null;
+    String fieldList = null;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("-index".equals (args[i])) {
+        indexPath = args[i+1];
+      } else if ("-output".equals (args[i])) {
+        outputPath = args[i+1];
+      } else if ("-fields".equals (args[i])) {
+        fieldList = args[i+1];
+      } else {
+        System.err.println (usage);
+        System.exit (1);
+      }
+    }
+
+    if ((indexPath == null) || (outputPath == null)) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    Timer timer = new Timer ();
+    timer.start ();
+
+    Idx.open (indexPath);
+
+    IndexContext index = Idx.getContext ();
+    IndexReader reader = index.getReader ();
+    TermDictionary dictionary = index.getTermDictionary ();
+    List<String> fields = new ArrayList<String> ();
+
+    if (fieldList != null) {
+      fields.addAll (Arrays.asList (fieldList.split (",")));
+    } else {
+      for (String field : MultiFields.getFields (reader))
+        fields.add (field);
+    }
+
+    new File (outputPath).mkdirs ();
+
+    long[] offsets = new long[dictionary.getNumTerms ()];
+    int[] lengths = new int[dictionary.getNumTerms ()];
+    DataOutputStream out = new DataOutputStream (new BufferedOutputStream (
+      new FileOutputStream (new File (outputPath, BitmapIndex.POSTINGS_FILE)),
+      1 << 16));
+    long offset = 0;
+    long numPostings = 0;
+    int numArrays = 0;
+    int numSets = 0;
+    long numContainers = 0;
+    long numBitmaps = 0;
+    int[] docids = new int[1024];
+    int[] tfs = new int[1024];
+
+    for (String field : fields) {
+      Terms terms = MultiFields.getTerms (reader, field);
+
+      if (terms == null)
+        continue;
+
+      TermsEnum termsEnum = terms.iterator ();
+      PostingsEnum postings = null;
+      BytesRef termBytes;
+
+      while ((termBytes = termsEnum.next ()) != null) {
+        int termId = dictionary.getTermId (field, termBytes.utf8ToString ());
+
+        if (termId < 0)
+          continue;
+
+        int df = 0;
+
+        postings = termsEnum.postings (postings, PostingsEnum.FREQS);
+
+        while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          if (df == docids.length) {
+            docids = Arrays.copyOf (docids, 2 * df);
+            tfs = Arrays.copyOf (tfs, 2 * df);
+          }
+
+          docids[df] = postings.docID ();
+          tfs[df] = postings.freq ();
+          df ++;
+        }
+
+        DocSet set = DocSet.fromSorted (docids, df);
+        int setLength = set.getSerializedLength ();
+
+        out.writeInt (setLength);
+        set.write (out);
+
+        for (int i = 0; i < df; i++)
+          out.writeInt (tfs[i]);
+
+        offsets[termId] = offset;
+        lengths[termId] = 1 + setLength + df;
+        offset += lengths[termId];
+        numPostings += df;
+
+        if (set.getNumContainers () == 0) {
+          numArrays ++;
+        } else {
+          numSets ++;
+          numContainers += set.getNumContainers ();
+          numBitmaps += set.getNumBitmaps ();
+        }
+      }
+    }
+
+    out.close ();
+
+    out = new DataOutputStream (new BufferedOutputStream (
+      new FileOutputStream (new File (outputPath, BitmapIndex.BITMAPS_FILE)),
+      1 << 16));
+    out.writeInt (BitmapIndex.VERSION);
+    IndexIdentity.write (out, dictionary.getIdentity ());
+    out.writeInt (reader.numDocs ());
+    out.writeInt (reader.maxDoc ());
+    out.writeInt (fields.size ());
+
+    for (String field : fields)
+      out.writeUTF (field);
+
+    out.writeInt (offsets.length);
+
+    for (int t = 0; t < offsets.length; t++) {
+      out.writeLong (offsets[t]);
+      out.writeInt (lengths[t]);
+    }
+
+    out.close ();
+
+    timer.stop ();
+    System.out.println (numPostings + " postings:  " + numArrays +
+                        " terms with docid arrays, " + numSets +
+                        " terms with " + numContainers + " containers (" +
+                        numBitmaps + " bitmaps)");
+    System.out.println ("Time:  " + timer);
+  }
+}
@@ -0,0 +1,632 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.*;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ *  IdxBuild builds a Lucene index that QryEval can search from a
+ *  TREC-text or JSONL corpus.  Run it to see a simple usage message.
+ *  <p>
+ *  Documents are indexed the way that QryEval expects:  text is
+ *  analyzed by EnglishAnalyzerConfigurable, field lengths are recorded
+ *  by DocLenStoreSimilarity (which DocLengthStore depends on), the
+ *  text fields have term vectors with positions, and the external id,
+ *  raw url and numeric attributes are stored.
+ *  </p>
+ *  <p>
+ *  One thread parses the corpus into a bounded queue, and several
+ *  threads add documents to one IndexWriter.  Each indexing thread
+ *  fills its own in-memory segment, and the writer flushes segments
+ *  when their total size reaches the RAM buffer size.  Internal docids
+ *  therefore don't follow corpus order.
+ *  </p>
+ *  <p>
+ *  A TREC-text document is a &lt;DOC&gt; element that contains
+ *  &lt;DOCNO&gt;, and optionally &lt;TITLE&gt;, &lt;URL&gt;,
+ *  &lt;INLINK&gt; (repeatable), &lt;KEYWORDS&gt;, &lt;TEXT&gt; (or
+ *  &lt;BODY&gt;), &lt;SPAMSCORE&gt; and &lt;PAGERANK&gt; elements.  A
+ *  JSONL document is a line that has a flat JSON object with the keys
+ *  id (or docno, or externalId), title, url, inlink (a string or an
+ *  array of strings), keywords, body, spamScore and PageRank.
+ *  </p>
+ */
+public class IdxBuild {
+
+  //  --------------- Constants and variables ---------------------
+
+  static String usage =
+    "Usage:  java " + System.getProperty ("sun.java.command") +
+    " -corpus PATH -index INDEX_PATH [-format trectext|jsonl]\n" +
+    "    [-threads N] [-ramBufferMB MB] [-stemmer none|porter|kstem]\n" +
+    "    [-stopwords true|false] [-lowercase true|false] [-append true|false]\n\n" +
+    "Builds a Lucene index in INDEX_PATH from a corpus file, or from every\n" +
+    "file in a corpus directory.  Files may be gzipped.  The format is\n" +
+    "inferred from the file name (.jsonl or .json is JSONL) unless -format\n" +
+    "is given.  The defaults are 4 threads, a 256 MB RAM buffer, and the\n" +
+    "KStem stemmer with stopword removal and lower-casing, which is how\n" +
+    "QryParser processes queries.  With -append true the documents are\n" +
+    "added to an existing index, which QryEval can pick up without\n" +
+    "restarting (see index:refreshSeconds).\n";
+
+  private static final String EXTERNAL_ID_FIELD = "externalId";
+
+  /**
+   *  The text fields, which are indexed with term vectors.
+   */
+  private static final String[] TEXT_FIELDS =
+    { "body", "title", "url", "inlink", "keywords" };
+
+  /**
+   *  The numeric attributes, which are stored as strings, the way that
+   *  Idx.getAttribute reads them.
+   */
+  private static final String[] ATTRIBUTE_FIELDS = { "spamScore", "PageRank" };
+
+  /**
+   *  TREC-text elements, and the fields that they are indexed as.
+   */
+  private static final Map<String,String> TREC_FIELDS =
+    new HashMap<String,String> ();
+
+  private static final Pattern TREC_ELEMENT = Pattern.compile (
+    "<(DOCNO|TITLE|URL|INLINK|KEYWORDS|TEXT|BODY|SPAMSCORE|PAGERANK)>(.*?)</\\1>",
+    Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+
+  /**
+   *  Put on the queue once per indexing thread to stop it.
+   */
+  private static final Map<String,String> END_OF_CORPUS =
+    new HashMap<String,String> ();
+
+  private static final long REPORT_INTERVAL = 10000;
+
+  private static final FieldType TEXT_TYPE = new FieldType (TextField.TYPE_NOT_STORED);
+
+  static {
+    TREC_FIELDS.put ("DOCNO", EXTERNAL_ID_FIELD);
+    TREC_FIELDS.put ("TITLE", "title");
+    TREC_FIELDS.put ("URL", "url");
+    TREC_FIELDS.put ("INLINK", "inlink");
+    TREC_FIELDS.put ("KEYWORDS", "keywords");
+    TREC_FIELDS.put ("TEXT", "body");
+    TREC_FIELDS.put ("BODY", "body");
+    TREC_FIELDS.put ("SPAMSCORE", "spamScore");
+    TREC_FIELDS.put ("PAGERANK", "PageRank");
+
+    TEXT_TYPE.setStoreTermVectors (true);
+    TEXT_TYPE.setStoreTermVectorPositions (true);
+    TEXT_TYPE.freeze ();
+  }
+
+  private static AtomicLong docsIndexed = new AtomicLong ();
+  private static AtomicLong docsSkipped = new AtomicLong ();
+  private static long startTime;
+
+  //  --------------- Nested classes ---------------------------------
+
+  /**
+   *  Take documents from the queue and add them to the index, until
+   *  the end of the corpus.
+   */
+  private static class IndexingThread extends Thread {
+
+    private BlockingQueue<Map<String,String>> queue;
+    private IndexWriter writer;
+    private volatile Throwable error = null;
+
+    IndexingThread (BlockingQueue<Map<String,String>> queue,
+                    IndexWriter writer) {
+      this.queue = queue;
+      this.writer = writer;
+    }
+
+    public void run () {
+      try {
+        Map<String,String> record;
+
+        while ((record = this.queue.take ()) != END_OF_CORPUS) {
+          Document doc = toDocument (record);
+
+          if (doc == null) {
+            docsSkipped.incrementAndGet ();
+            continue;
+          }
+
+          this.writer.addDocument (doc);
+
+          long n = docsIndexed.incrementAndGet ();
+
+          if (n % REPORT_INTERVAL == 0)
+            report (n);
+        }
+      } catch (Throwable ex) {
+        this.error = ex;
+
+        //  Keep draining the queue, so that the reader doesn't block.
+
+        try {
+          while (this.queue.take () != END_OF_CORPUS)
+            ;
+        } catch (InterruptedException ie) {
+        }
+      }
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Add a value to a record, appending it to the field's previous
+   *  value, if any.
+   *  @param record The record.
+   *  @param field The field name.
+   *  @param value The value.
+   */
+  private static void addValue (Map<String,String> record, String field,
+                                String value) {
+    String previous = record.get (field);
+
+    record.put (field, (previous == null) ? value : previous + "\n" + value);
+  }
+
+  /**
+   *  Get the corpus files.
+   *  @param path A corpus file, or a directory of corpus files.
+   *  @return The files, in name order.
+   *  @throws IOException The path doesn't exist.
+   */
+  private static List<File> getCorpusFiles (String path) throws IOException {
+
+    File file = new File (path);
+    List<File> files = new ArrayList<File> ();
+
+    if (file.isDirectory ()) {
+      File[] children = file.listFiles ();
+
+      Arrays.sort (children);
+
+      for (File child : children)
+        if (child.isFile () && ! child.getName ().startsWith ("."))
+          files.add (child);
+    } else if (file.isFile ()) {
+      files.add (file);
+    } else {
+      throw new IOException ("Can't read the corpus " + path);
+    }
+
+    return files;
+  }
+
+  /**
+   *  Build an index.
+   *  @param args The command line arguments.
+   *  @throws Exception Error reading the corpus or writing the index.
+   */
+  public static void main (String[] args) throws Exception {
+
+    String corpusPath = null;
+    String indexPath = null;
+    String format = null;
+    int threads = 4;
+    double ramBufferMB = 256;
+    String stemmer = "kstem";
+    boolean stopwords = true;
+    boolean lowercase = true;
+    boolean append = false;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("-corpus".equals (args[i])) {
+        corpusPath = args[i+1];
+      } else if ("-index".equals (args[i])) {
+        indexPath = args[i+1];
+      } else if ("-format".equals (args[i])) {
+        format = args[i+1];
+      } else if ("-threads".equals (args[i])) {
+        threads = Integer.parseInt (args[i+1]);
+      } else if ("-ramBufferMB".equals (args[i])) {
+        ramBufferMB = Double.parseDouble (args[i+1]);
+      } else if ("-stemmer".equals (args[i])) {
+        stemmer = args[i+1];
+      } else if ("-stopwords".equals (args[i])) {
+        stopwords = Boolean.parseBoolean (args[i+1]);
+      } else if ("-lowercase".equals (args[i])) {
+        lowercase = Boolean.parseBoolean (args[i+1]);
+      } else if ("-append".equals (args[i])) {
+        append = Boolean.parseBoolean (args[i+1]);
+      } else {
+        System.err.println (usage);
+        System.exit (1);
+      }
+    }
+
+    if ((corpusPath == null) || (indexPath == null) || (threads < 1) ||
+        ((format != null) &&
+         ! Arrays.asList ("trectext", "jsonl").contains (format)) ||
+        ! Arrays.asList ("none", "porter", "kstem").contains (stemmer)) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    List<File> files = getCorpusFiles (corpusPath);
+
+    //  Configure the analyzer and the writer.
+
+    EnglishAnalyzerConfigurable analyzer = new EnglishAnalyzerConfigurable ();
+
+    analyzer.setLowercase (lowercase);
+    analyzer.setStopwordRemoval (stopwords);
+    analyzer.setStemmer (
+      EnglishAnalyzerConfigurable.StemmerType.valueOf (stemmer.toUpperCase ()));
+
+    IndexWriterConfig config = new IndexWriterConfig (analyzer);
+
+    config.setOpenMode (append ? IndexWriterConfig.OpenMode.CREATE_OR_APPEND :
+                        IndexWriterConfig.OpenMode.CREATE);
+    config.setSimilarity (new DocLenStoreSimilarity ());
+    config.setRAMBufferSizeMB (ramBufferMB);
+    config.setRAMPerThreadHardLimitMB (
+      (int) Math.min (1945, Math.max (16, ramBufferMB)));
+
+    IndexWriter writer =
+      new IndexWriter (FSDirectory.open (Paths.get (indexPath)), config);
+
+    //  Start the indexing threads, and feed them from this thread.
+
+    BlockingQueue<Map<String,String>> queue =
+      new ArrayBlockingQueue<Map<String,String>> (256 * threads);
+    IndexingThread[] workers = new IndexingThread[threads];
+
+    System.out.println ("Indexing " + corpusPath + " to " + indexPath +
+                        " with " + threads + " threads");
+
+    startTime = System.nanoTime ();
+
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new IndexingThread (queue, writer);
+      workers[i].start ();
+    }
+
+    boolean failed = true;
+
+    try {
+      for (File file : files) {
+        String name = file.getName ().toLowerCase ();
+        boolean jsonl = (format != null) ? format.equals ("jsonl") :
+          (name.contains (".jsonl") || name.contains (".json"));
+        BufferedReader in = openCorpusFile (file);
+
+        try {
+          if (jsonl)
+            readJsonLines (in, queue);
+          else
+            readTrecText (in, queue);
+        } finally {
+          in.close ();
+        }
+      }
+
+      failed = false;
+    } finally {
+      for (int i = 0; i < threads; i++)
+        queue.put (END_OF_CORPUS);
+
+      for (IndexingThread worker : workers)
+        worker.join ();
+
+      if (failed)
+        writer.rollback ();
+    }
+
+    for (IndexingThread worker : workers) {
+      if (worker.error != null) {
+        writer.rollback ();
+        throw new IOException ("Indexing failed", worker.error);
+      }
+    }
+
+    writer.close ();
+
+    report (docsIndexed.get ());
+
+    if (docsSkipped.get () > 0)
+      System.out.println ("Skipped " + docsSkipped.get () +
+                          " documents that have no external id");
+  }
+
+  /**
+   *  Open a corpus file, which may be gzipped.
+   *  @param file The file.
+   *  @return A reader.
+   *  @throws IOException Error opening the file.
+   */
+  private static BufferedReader openCorpusFile (File file) throws IOException {
+
+    InputStream in = new FileInputStream (file);
+
+    if (file.getName ().endsWith (".gz"))
+      in = new GZIPInputStream (in, 1 << 16);
+
+    return new BufferedReader (
+      new InputStreamReader (in, StandardCharsets.UTF_8), 1 << 16);
+  }
+
+  /**
+   *  Parse a flat JSON object.  Values may be strings, numbers,
+   *  booleans, null, or arrays of those (which are joined by newlines).
+   *  @param line The JSON text.
+   *  @return The keys and values, or null if the line isn't an object.
+   */
+  private static Map<String,String> parseJsonObject (String line) {
+
+    Map<String,String> record = new HashMap<String,String> ();
+    int[] pos = { skipWhitespace (line, 0) };
+
+    if ((pos[0] >= line.length ()) || (line.charAt (pos[0]) != '{'))
+      return null;
+
+    pos[0] = skipWhitespace (line, pos[0] + 1);
+
+    if ((pos[0] < line.length ()) && (line.charAt (pos[0]) == '}'))
+      return record;
+
+    while (pos[0] < line.length ()) {
+      String key = parseJsonValue (line, pos);
+
+      pos[0] = skipWhitespace (line, pos[0]);
+
+      if ((key == null) || (pos[0] >= line.length ()) ||
+          (line.charAt (pos[0]) != ':'))
+        return null;
+
+      pos[0] = skipWhitespace (line, pos[0] + 1);
+
+      StringBuilder value = new StringBuilder ();
+
+      if ((pos[0] < line.length ()) && (line.charAt (pos[0]) == '[')) {
+        pos[0] = skipWhitespace (line, pos[0] + 1);
+
+        while ((pos[0] < line.length ()) && (line.charAt (pos[0]) != ']')) {
+          String element = parseJsonValue (line, pos);
+
+          if (element == null)
+            return null;
+
+          if (value.length () > 0)
+            value.append ('\n');
+
+          value.append (element);
+          pos[0] = skipWhitespace (line, pos[0]);
+
+          if ((pos[0] < line.length ()) && (line.charAt (pos[0]) == ','))
+            pos[0] = skipWhitespace (line, pos[0] + 1);
+        }
+
+        pos[0] ++;
+      } else {
+        String element = parseJsonValue (line, pos);
+
+        if (element == null)
+          return null;
+
+        value.append (element);
+      }
+
+      record.put (key, value.toString ());
+      pos[0] = skipWhitespace (line, pos[0]);
+
+      if ((pos[0] < line.length ()) && (line.charAt (pos[0]) == ',')) {
+        pos[0] = skipWhitespace (line, pos[0] + 1);
+      } else if ((pos[0] < line.length ()) && (line.charAt (pos[0]) == '}')) {
+        return record;
+      } else {
+        return null;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   *  Parse a JSON string or scalar.
+   *  @param s The JSON text.
+   *  @param pos The position of the value, which is advanced past it.
+   *  @return The value, or null if there isn't a string or scalar at pos.
+   */
+  private static String parseJsonValue (String s, int[] pos) {
+
+    int i = pos[0];
+
+    if (i >= s.length ())
+      return null;
+
+    if (s.charAt (i) != '"') {
+      int start = i;
+
+      while ((i < s.length ()) && (",}] \t\r\n".indexOf (s.charAt (i)) < 0))
+        i++;
+
+      pos[0] = i;
+      return (i > start) ? s.substring (start, i) : null;
+    }
+
+    StringBuilder value = new StringBuilder ();
+
+    for (i++; i < s.length (); i++) {
+      char c = s.charAt (i);
+
+      if (c == '"') {
+        pos[0] = i + 1;
+        return value.toString ();
+      }
+
+      if ((c != '\\') || (i + 1 >= s.length ())) {
+        value.append (c);
+        continue;
+      }
+
+      c = s.charAt (++i);
+
+      switch (c) {
+        case 'b': value.append ('\b'); break;
+        case 'f': value.append ('\f'); break;
+        case 'n': value.append ('\n'); break;
+        case 'r': value.append ('\r'); break;
+        case 't': value.append ('\t'); break;
+        case 'u':
+          if (i + 4 >= s.length ())
+            return null;
+          value.append ((char) Integer.parseInt (s.substring (i + 1, i + 5), 16));
+          i += 4;
+          break;
+        default: value.append (c);
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   *  Read a JSONL corpus file.
+   *  @param in The corpus file.
+   *  @param queue The queue of documents to index.
+   *  @throws IOException Error reading the file.
+   *  @throws InterruptedException Interrupted while waiting for the queue.
+   */
+  private static void readJsonLines (BufferedReader in,
+                                     BlockingQueue<Map<String,String>> queue)
+    throws IOException, InterruptedException {
+
+    String line;
+
+    while ((line = in.readLine ()) != null) {
+      if (line.trim ().isEmpty ())
+        continue;
+
+      Map<String,String> record = parseJsonObject (line);
+
+      if (record == null) {
+        docsSkipped.incrementAndGet ();
+        continue;
+      }
+
+      for (String key : new String[] { "id", "docno" }) {
+        if (record.containsKey (key) && ! record.containsKey (EXTERNAL_ID_FIELD))
+          record.put (EXTERNAL_ID_FIELD, record.get (key));
+      }
+
+      queue.put (record);
+    }
+  }
+
+  /**
+   *  Read a TREC-text corpus file.
+   *  @param in The corpus file.
+   *  @param queue The queue of documents to index.
+   *  @throws IOException Error reading the file.
+   *  @throws InterruptedException Interrupted while waiting for the queue.
+   */
+  private static void readTrecText (BufferedReader in,
+                                    BlockingQueue<Map<String,String>> queue)
+    throws IOException, InterruptedException {
+
+    StringBuilder doc = null;
+    String line;
+
+    while ((line = in.readLine ()) != null) {
+      String trimmed = line.trim ();
+
+      if (trimmed.equalsIgnoreCase ("<DOC>")) {
+        doc = new StringBuilder ();
+      } else if (trimmed.equalsIgnoreCase ("</DOC>") && (doc != null)) {
+        Map<String,String> record = new HashMap<String,String> ();
+        Matcher m = TREC_ELEMENT.matcher (doc);
+
+        while (m.find ())
+          addValue (record, TREC_FIELDS.get (m.group (1).toUpperCase ()),
+                    m.group (2).trim ());
+
+        queue.put (record);
+        doc = null;
+      } else if (doc != null) {
+        doc.append (line).append ('\n');
+      }
+    }
+  }
+
+  /**
+   *  Report the indexing throughput so far.
+   *  @param n The number of documents indexed.
+   */
+  private static void report (long n) {
+
+    double seconds = (System.nanoTime () - startTime) / 1e9;
+
+    System.out.println (String.format (
+      "  %d documents, %.1f seconds, %.0f docs/sec",
+      n, seconds, (seconds > 0) ? n / seconds : 0.0));
+  }
+
+  /**
+   *  Convert a record to a Lucene document.
+   *  @param record The record's fields.
+   *  @return The document, or null if the record has no external id.
+   */
+  private static Document toDocument (Map<String,String> record) {
+
+    String externalId = record.get (EXTERNAL_ID_FIELD);
+
+    if ((externalId == null) || externalId.trim ().isEmpty ())
+      return null;
+
+    Document doc = new Document ();
+
+    doc.add (new StringField (EXTERNAL_ID_FIELD, externalId.trim (), Field.Store.YES));
+
+    for (String field : TEXT_FIELDS) {
+      String value = record.get (field);
+
+      if (value != null)
+        doc.add (new Field (field, value, TEXT_TYPE));
+    }
+
+    //  The url is also stored as is, for features that inspect it.
+
+    if (record.containsKey ("url"))
+      doc.add (new StoredField ("rawUrl", record.get ("url")));
+
+    for (String field : ATTRIBUTE_FIELDS) {
+      String value = record.get (field);
+
+      if (value != null)
+        doc.add (new StoredField (field, value.trim ()));
+    }
+
+    return doc;
+  }
+
+  /**
+   *  Skip whitespace.
+   *  @param s A string.
+   *  @param i A position in s.
+   *  @return The position of the first non-whitespace character at or
+   *    after i.
+   */
+  private static int skipWhitespace (String s, int i) {
+
+    while ((i < s.length ()) && Character.isWhitespace (s.charAt (i)))
+      i++;
+
+    return i;
+  }
+}
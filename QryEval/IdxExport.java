@@ -0,0 +1,302 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.file.Paths;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  IdxExport exports the inverted lists, field lengths and statistics
+ *  of a Lucene index to the QryEval native index format, which QryEval
+ *  can memory-map (see IdxNative and the index:nativePath parameter).
+ *  Run it to see a simple usage message.
+ */
+public class IdxExport {
+
+  //  --------------- Constants and variables ---------------------
+
+  static String usage =
+    "Usage:  java " + System.getProperty ("sun.java.command") +
+    " -index INDEX_PATH -output NATIVE_PATH [-fields FIELD,FIELD,...]\n" +
+    "    [-forward none|terms|positions]\n\n" +
+    "Exports the inverted lists, field lengths and statistics of the\n" +
+    "Lucene index in INDEX_PATH to a native index in NATIVE_PATH.  By\n" +
+    "default every field that is indexed with positions is exported.\n" +
+    "-forward also builds a forward index of each field from its term\n" +
+    "vectors, with or without positions.\n";
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Export one field.
+   *  @param reader The Lucene index.
+   *  @param writer The native index.
+   *  @param field The field to export.
+   *  @throws IOException Error accessing an index.
+   */
+  private static void exportField (IndexReader reader, IdxNativeWriter writer,
+                                   String field)
+    throws IOException {
+
+    writer.startField (field);
+
+    int[] docids = new int[1024];
+    int[] tfs = new int[1024];
+    int[] positions = new int[4096];
+    Terms terms = MultiFields.getTerms (reader, field);
+    PostingsEnum postings = null;
+    int numTerms = 0;
+
+    if (terms != null) {
+      TermsEnum termsEnum = terms.iterator ();
+      BytesRef termBytes;
+
+      while ((termBytes = termsEnum.next ()) != null) {
+        postings = termsEnum.postings (postings, PostingsEnum.POSITIONS);
+
+        int df = 0;
+        int ctf = 0;
+
+        while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          int tf = postings.freq ();
+
+          if (df == docids.length) {
+            docids = Arrays.copyOf (docids, 2 * df);
+            tfs = Arrays.copyOf (tfs, 2 * df);
+          }
+
+          if (ctf + tf > positions.length) {
+            positions = Arrays.copyOf (positions, Math.max (ctf + tf, 2 * ctf));
+          }
+
+          docids[df] = postings.docID ();
+          tfs[df] = tf;
+
+          for (int j = 0; j < tf; j++)
+            positions[ctf + j] = postings.nextPosition ();
+
+          df ++;
+          ctf += tf;
+        }
+
+        writer.addTerm (BytesRef.deepCopyOf (termBytes).bytes, df, docids, tfs,
+                        positions);
+        numTerms ++;
+      }
+    }
+
+    //  Field lengths come from the same norms that DocLengthStore uses.
+
+    DocLengthStore docLengthStore = new DocLengthStore (reader);
+    int[] lengths = new int[reader.maxDoc ()];
+
+    for (int d = 0; d < lengths.length; d++)
+      lengths[d] = (int) docLengthStore.getDocLength (field, d);
+
+    writer.finishField (reader.getDocCount (field),
+                        reader.getSumTotalTermFreq (field), lengths);
+
+    System.out.println ("  " + field + ":  " + numTerms + " terms");
+  }
+
+  /**
+   *  Build the forward index of one field from its Lucene term vectors.
+   *  Documents that don't have a term vector get an empty record.
+   *  @param reader The Lucene index.
+   *  @param nativeIndex The native index, which provides term ids.
+   *  @param outputPath The directory of the native index.
+   *  @param field The field to export.
+   *  @param withPositions True if positions are stored.
+   *  @throws IOException Error accessing an index.
+   */
+  private static void exportForward (IndexReader reader, IdxNative nativeIndex,
+                                     String outputPath, String field,
+                                     boolean withPositions)
+    throws IOException {
+
+    DataOutputStream data = new DataOutputStream (new BufferedOutputStream (
+      new FileOutputStream (new File (outputPath, field + ForwardIndex.DATA_SUFFIX)),
+      1 << 16));
+    DataOutputStream offsets = new DataOutputStream (new BufferedOutputStream (
+      new FileOutputStream (new File (outputPath, field + ForwardIndex.OFFSETS_SUFFIX)),
+      1 << 16));
+
+    int[] termIds = new int[256];
+    int[] tfs = new int[256];
+    int[] positions = new int[1024];
+    PostingsEnum postings = null;
+    long offset = 0;
+
+    for (int docid = 0; docid < reader.maxDoc (); docid++) {
+
+      offsets.writeLong (offset);
+
+      Terms vector = reader.getTermVector (docid, field);
+      int numTerms = 0;
+      int positionsLength = 0;
+      int lastPosition = 0;
+
+      if (vector != null) {
+        TermsEnum termsEnum = vector.iterator ();
+        BytesRef termBytes;
+
+        while ((termBytes = termsEnum.next ()) != null) {
+          int termId = nativeIndex.getTermOrdinal (
+            field, BytesRef.deepCopyOf (termBytes).bytes);
+
+          if (termId < 0) {
+            throw new IOException ("Term vector of document " + docid +
+                                   " has a term that isn't in field " + field);
+          }
+
+          if (numTerms == termIds.length) {
+            termIds = Arrays.copyOf (termIds, 2 * numTerms);
+            tfs = Arrays.copyOf (tfs, 2 * numTerms);
+          }
+
+          termIds[numTerms] = termId;
+          tfs[numTerms] = (int) termsEnum.totalTermFreq ();
+
+          //  Find the last position, and record the term (1 + its
+          //  index) at each of its positions, the way that TermVector
+          //  does.  The length is stored even if positions aren't.
+
+          postings = termsEnum.postings (postings, PostingsEnum.POSITIONS);
+          postings.nextDoc ();
+
+          for (int j = 0; j < postings.freq (); j++) {
+            int p = postings.nextPosition ();
+
+            lastPosition = Math.max (lastPosition, p);
+
+            if (withPositions) {
+              if (p >= positions.length)
+                positions = Arrays.copyOf (positions, Math.max (p + 1, 2 * positions.length));
+
+              for (int k = positionsLength; k < p; k++)
+                positions[k] = 0;
+
+              positions[p] = numTerms + 1;
+              positionsLength = Math.max (positionsLength, p + 1);
+            }
+          }
+
+          numTerms ++;
+        }
+      }
+
+      data.writeInt (numTerms);
+      data.writeInt ((numTerms > 0) ? lastPosition + 1 : 0);
+
+      for (int i = 0; i < numTerms; i++)
+        data.writeInt (termIds[i]);
+
+      for (int i = 0; i < numTerms; i++)
+        data.writeInt (tfs[i]);
+
+      for (int i = 0; i < positionsLength; i++)
+        data.writeInt (positions[i]);
+
+      offset += 4L * (2 + 2 * numTerms + positionsLength);
+    }
+
+    offsets.writeLong (offset);
+    data.close ();
+    offsets.close ();
+
+    System.out.println ("  " + field + ":  forward index");
+  }
+
+  /**
+   *  Get the fields that are indexed with positions.
+   *  @param reader The Lucene index.
+   *  @return The field names.
+   */
+  private static List<String> getPositionalFields (IndexReader reader) {
+
+    List<String> fields = new ArrayList<String> ();
+
+    for (FieldInfo info : MultiFields.getMergedFieldInfos (reader)) {
+      if (info.getIndexOptions ().compareTo (
+            IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0) {
+        fields.add (info.name);
+      }
+    }
+
+    return fields;
+  }
+
+  /**
+   *  Export a Lucene index to the native index format.
+   *  @param args The command line arguments.
+   *  @throws IOException Error accessing an index.
+   */
+  public static void main (String[] args) throws IOException {
+
+    String indexPath = null;
+    String outputPath = null;
+    String fieldList = null;
+    String forward = "none";
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("-index".equals (args[i])) {
+        indexPath = args[i+1];
+      } else if ("-output".equals (args[i])) {
+        outputPath = args[i+1];
+      } else if ("-fields".equals (args[i])) {
+        fieldList = args[i+1];
+      } else if ("-forward".equals (args[i])) {
+        forward = args[i+1];
+      } else {
+        System.err.println (usage);
+        System.exit (1);
+      }
+    }
+
+    if ((indexPath == null) || (outputPath == null) ||
+        ! Arrays.asList ("none", "terms", "positions").contains (forward)) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    Timer timer = new Timer ();
+    timer.start ();
+
+    IndexReader reader =
+      DirectoryReader.open (FSDirectory.open (Paths.get (indexPath)));
+    List<String> fields = (fieldList == null) ?
+      getPositionalFields (reader) : Arrays.asList (fieldList.split (","));
+
+    System.out.println ("Exporting " + indexPath + " to " + outputPath);
+
+    IdxNativeWriter writer =
+      new IdxNativeWriter (outputPath, reader.numDocs (), reader.maxDoc (),
+                           IndexIdentity.of (reader));
+
+    for (String field : fields)
+      exportField (reader, writer, field);
+
+    writer.close ();
+
+    //  Forward indexes use the term ids of the native term dictionary,
+    //  so they are built after the inverted lists are written.
+
+    if (! "none".equals (forward)) {
+      IdxNative nativeIndex = new IdxNative (outputPath);
+
+      for (String field : fields)
+        exportForward (reader, nativeIndex, outputPath, field,
+                       "positions".equals (forward));
+    }
+
+    reader.close ();
+
+    timer.stop ();
+    System.out.println ("Time:  " + timer);
+  }
+}
@@ -0,0 +1,275 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  IdxImpact builds an impact-ordered index from a Lucene index (see
+ *  ImpactIndex for the file format), which ImpactEvaluator uses to
+ *  evaluate BM25 queries score-at-a-time (see the index:impactPath
+ *  parameter).  Run it to see a simple usage message.
+ *  <p>
+ *  A posting's impact is its BM25 score, computed exactly as
+ *  QrySopScore computes it, and quantized to a number of levels:
+ *  impact = ceil (levels * score / maxScore), so every posting with a
+ *  positive score has an impact of at least 1.
+ *  </p>
+ */
+public class IdxImpact {
+
+  //  --------------- Constants and variables ---------------------
+
+  static String usage =
+    "Usage:  java " + System.getProperty ("sun.java.command") +
+    " -index INDEX_PATH -output IMPACT_PATH -k_1 K1 -b B\n" +
+    "    [-fields FIELD,FIELD,...] [-bits N]\n\n" +
+    "Builds an impact-ordered index of the Lucene index in INDEX_PATH in\n" +
+    "IMPACT_PATH.  Impacts are BM25 scores with parameters k_1 and b,\n" +
+    "quantized to N bits (default 8).  By default the body field is\n" +
+    "indexed.  QryEval must use the same k_1 and b.\n";
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Find the highest BM25 score of any posting in some fields.
+   *  @param index The index.
+   *  @param model The BM25 parameters.
+   *  @param fields The fields.
+   *  @return The highest score.
+   *  @throws IOException Error accessing the index.
+   */
+  private static double getMaxScore (IndexContext index,
+                                     RetrievalModelBM25 model,
+                                     List<String> fields)
+    throws IOException {
+
+    IndexReader reader = index.getReader ();
+    long N = index.getNumDocs ();
+    double maxScore = 0;
+
+    for (String field : fields) {
+      Terms terms = MultiFields.getTerms (reader, field);
+
+      if (terms == null)
+        continue;
+
+      int fieldOrdinal = index.getFieldOrdinal (field);
+      double avglen = index.getAverageFieldLength (field);
+      TermsEnum termsEnum = terms.iterator ();
+      PostingsEnum postings = null;
+
+      while (termsEnum.next () != null) {
+        double rsj = model.getRsjWeight (N, termsEnum.docFreq ());
+
+        if (rsj == 0)
+          continue;
+
+        postings = termsEnum.postings (postings, PostingsEnum.FREQS);
+
+        while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          int doclen = index.getFieldLength (fieldOrdinal, postings.docID ());
+
+          maxScore = Math.max (maxScore,
+            rsj * model.getTfWeight (postings.freq (), doclen, avglen));
+        }
+      }
+    }
+
+    return maxScore;
+  }
+
+  /**
+   *  Build an impact-ordered index.
+   *  @param args The command line arguments.
+   *  @throws IOException Error accessing an index.
+   */
+  public static void main (String[] args) throws IOException {
+
+    String indexPath = null;
+    String outputPath = null;
+    String fieldList = "body";
+    Double k_1 = null;
+    Double b = null;
+    int bits = 8;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("-index".equals (args[i])) {
+        indexPath = args[i+1];
+      } else if ("-output".equals (args[i])) {
+        outputPath = args[i+1];
+      } else if ("-fields".equals (args[i])) {
+        fieldList = args[i+1];
+      } else if ("-k_1".equals (args[i])) {
+        k_1 = Double.valueOf (args[i+1]);
+      } else if ("-b".equals (args[i])) {
+        b = Double.valueOf (args[i+1]);
+      } else if ("-bits".equals (args[i])) {
+        bits = Integer.parseInt (args[i+1]);
+      } else {
+        System.err.println (usage);
+        System.exit (1);
+      }
+    }
+
+    if ((indexPath == null) || (outputPath == null) ||
+        (k_1 == null) || (b == null) || (bits < 1) || (bits > 16)) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    Timer timer = new Timer ();
+    timer.start ();
+
+    Idx.open (indexPath);
+
+    IndexContext index = Idx.getContext ();
+    IndexReader reader = index.getReader ();
+    TermDictionary dictionary = index.getTermDictionary ();
+    RetrievalModelBM25 model = new RetrievalModelBM25 (k_1, b, 0);
+    List<String> fields = Arrays.asList (fieldList.split (","));
+    int levels = (1 << bits) - 1;
+    double maxScore = getMaxScore (index, model, fields);
+
+    if (maxScore == 0)
+      maxScore = 1;
+
+    new File (outputPath).mkdirs ();
+
+    long[] offsets = new long[dictionary.getNumTerms ()];
+    int[] lengths = new int[dictionary.getNumTerms ()];
+    DataOutputStream out = new DataOutputStream (new BufferedOutputStream (
+      new FileOutputStream (new File (outputPath, ImpactIndex.POSTINGS_FILE)),
+      1 << 16));
+    long offset = 0;
+    long numPostings = 0;
+    long numSegments = 0;
+
+    //  Postings are grouped by impact with a counting sort, which keeps
+    //  the docids of each impact in ascending order.
+
+    int[] docids = new int[1024];
+    int[] impacts = new int[1024];
+    int[] counts = new int[levels + 1];
+    int[] starts = new int[levels + 1];
+    int[] sorted = new int[1024];
+    long N = index.getNumDocs ();
+
+    for (String field : fields) {
+      Terms terms = MultiFields.getTerms (reader, field);
+
+      if (terms == null)
+        continue;
+
+      int fieldOrdinal = index.getFieldOrdinal (field);
+      double avglen = index.getAverageFieldLength (field);
+      TermsEnum termsEnum = terms.iterator ();
+      PostingsEnum postings = null;
+      BytesRef termBytes;
+
+      while ((termBytes = termsEnum.next ()) != null) {
+        int termId = dictionary.getTermId (field, termBytes.utf8ToString ());
+
+        if (termId < 0)
+          continue;
+
+        double rsj = model.getRsjWeight (N, termsEnum.docFreq ());
+        int df = 0;
+
+        Arrays.fill (counts, 0);
+        postings = termsEnum.postings (postings, PostingsEnum.FREQS);
+
+        while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          int doclen = index.getFieldLength (fieldOrdinal, postings.docID ());
+          double score =
+            rsj * model.getTfWeight (postings.freq (), doclen, avglen);
+          int impact =
+            (int) Math.min (levels, Math.ceil (levels * score / maxScore));
+
+          if (df == docids.length) {
+            docids = Arrays.copyOf (docids, 2 * df);
+            impacts = Arrays.copyOf (impacts, 2 * df);
+            sorted = new int[2 * df];
+          }
+
+          docids[df] = postings.docID ();
+          impacts[df] = impact;
+          counts[impact] ++;
+          df ++;
+        }
+
+        //  Higher impacts come first.
+
+        int segments = 0;
+
+        for (int impact = levels, start = 0; impact >= 0; impact--) {
+          starts[impact] = start;
+          start += counts[impact];
+
+          if (counts[impact] > 0)
+            segments ++;
+        }
+
+        for (int i = 0; i < df; i++)
+          sorted[starts[impacts[i]] ++] = docids[i];
+
+        out.writeInt (segments);
+
+        for (int impact = levels, i = 0; impact >= 0; impact--) {
+          int count = counts[impact];
+
+          if (count == 0)
+            continue;
+
+          out.writeInt (impact);
+          out.writeInt (count);
+
+          for (int j = 0; j < count; j++)
+            out.writeInt (sorted[i++]);
+        }
+
+        offsets[termId] = offset;
+        lengths[termId] = 1 + 2 * segments + df;
+        offset += lengths[termId];
+        numPostings += df;
+        numSegments += segments;
+      }
+    }
+
+    out.close ();
+
+    out = new DataOutputStream (new BufferedOutputStream (
+      new FileOutputStream (new File (outputPath, ImpactIndex.IMPACTS_FILE)),
+      1 << 16));
+    out.writeInt (ImpactIndex.VERSION);
+    IndexIdentity.write (out, dictionary.getIdentity ());
+    out.writeInt (reader.numDocs ());
+    out.writeInt (reader.maxDoc ());
+    out.writeDouble (k_1);
+    out.writeDouble (b);
+    out.writeInt (levels);
+    out.writeDouble (maxScore / levels);
+    out.writeInt (fields.size ());
+
+    for (String field : fields)
+      out.writeUTF (field);
+
+    out.writeInt (offsets.length);
+
+    for (int t = 0; t < offsets.length; t++) {
+      out.writeLong (offsets[t]);
+      out.writeInt (lengths[t]);
+    }
+
+    out.close ();
+
+    timer.stop ();
+    System.out.println (numPostings + " postings in " + numSegments +
+                        " impact segments, max score " + maxScore);
+    System.out.println ("Time:  " + timer);
+  }
+}
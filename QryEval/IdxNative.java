@@ -0,0 +1,508 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ *  IdxNative provides read-only access to an index in the QryEval
+ *  native format, which is written by IdxExport (see IdxNativeWriter
+ *  for a description of the files).  Every file is memory-mapped, so
+ *  term dictionary lookups, inverted lists and field lengths are
+ *  served directly from the operating system's page cache without
+ *  decoding or copying them onto the Java heap.
+ *  <p>
+ *  The native index only contains inverted lists, field lengths and
+ *  statistics.  Stored fields and term vectors are still read from
+ *  the Lucene index that it was exported from.
+ *  </p>
+ */
+public class IdxNative {
+
+  //  --------------- Constants and variables ---------------------
+
+  public static final String STATS_FILE = "stats";
+  public static final String LEX_SUFFIX = ".lex";
+  public static final String DICT_SUFFIX = ".dict";
+  public static final String POSTINGS_SUFFIX = ".postings";
+  public static final String LENGTHS_SUFFIX = ".lengths";
+
+  private int numDocs;
+  private int maxDoc;
+  private String identity;
+  private Map<String,NativeField> fields = new HashMap<String,NativeField> ();
+  private Map<String,ForwardIndex> forwardIndexes =
+    new HashMap<String,ForwardIndex> ();
+
+  /**
+   *  The mapped files of one field.
+   */
+  private static class NativeField {
+    int docCount;
+    long sumTotalTermFreq;
+    int numTerms;
+    ByteBuffer lex;
+    ByteBuffer dict;
+    MappedFile postings;
+    ByteBuffer lengths;
+  }
+
+  /**
+   *  A read-only memory-mapped file.  Files that are small enough to
+   *  fit in one mapping are mapped as one buffer.  Larger files (2GB or
+   *  more) are mapped as overlapping windows that start every CHUNK
+   *  bytes and are up to 2 * CHUNK bytes long, so every region that is
+   *  at most CHUNK bytes long is inside one window.  Everything is
+   *  mapped when the file is opened, and the channel is closed.
+   */
+  static class MappedFile {
+
+    static final long CHUNK = 1L << 30;
+
+    private ByteBuffer[] windows;
+    private long size;
+
+    MappedFile (File file) throws IOException {
+
+      RandomAccessFile f = new RandomAccessFile (file, "r");
+
+      //  A mapping remains valid after its channel is closed.
+
+      try {
+        FileChannel channel = f.getChannel ();
+        long size = channel.size ();
+
+        this.size = size;
+
+        if (size <= Integer.MAX_VALUE) {
+          this.windows = new ByteBuffer[] {
+            channel.map (FileChannel.MapMode.READ_ONLY, 0, size) };
+        } else {
+          this.windows = new ByteBuffer[(int) ((size + CHUNK - 1) / CHUNK)];
+
+          for (int i = 0; i < this.windows.length; i++) {
+            long start = i * CHUNK;
+            long length = Math.min (size - start, 2 * CHUNK - 1);
+
+            this.windows[i] =
+              channel.map (FileChannel.MapMode.READ_ONLY, start, length);
+          }
+        }
+      } finally {
+        f.close ();
+      }
+    }
+
+    /**
+     *  Get a view of the whole file.  The file must be smaller than 2GB.
+     *  @return A buffer that covers the file.
+     *  @throws IOException The file is too large.
+     */
+    ByteBuffer all () throws IOException {
+
+      if (this.windows.length > 1)
+        throw new IOException ("File is too large to map");
+
+      return this.windows[0].duplicate ();
+    }
+
+    /**
+     *  Get the window that contains an offset.  Every value that
+     *  starts at the offset and is at most CHUNK bytes long is inside
+     *  the window.
+     *  @param offset The offset, in bytes.
+     *  @return The index of the window.
+     */
+    private int window (long offset) {
+      return (this.windows.length == 1) ? 0 : (int) (offset / CHUNK);
+    }
+
+    /**
+     *  Read a byte.
+     *  @param offset The offset of the byte.
+     *  @return The byte.
+     */
+    byte get (long offset) {
+      int w = this.window (offset);
+      return this.windows[w].get ((int) (offset - w * CHUNK));
+    }
+
+    /**
+     *  Read an int.
+     *  @param offset The offset of the int.
+     *  @return The int.
+     */
+    int getInt (long offset) {
+      int w = this.window (offset);
+      return this.windows[w].getInt ((int) (offset - w * CHUNK));
+    }
+
+    /**
+     *  Read a long.
+     *  @param offset The offset of the long.
+     *  @return The long.
+     */
+    long getLong (long offset) {
+      int w = this.window (offset);
+      return this.windows[w].getLong ((int) (offset - w * CHUNK));
+    }
+
+    /**
+     *  Get the length of the file.
+     *  @return The length, in bytes.
+     */
+    long size () {
+      return this.size;
+    }
+
+    /**
+     *  Get a view of a region of the file.  A region in a file that is
+     *  2GB or larger must be at most 1GB long.
+     *  @param offset The offset of the region, in bytes.
+     *  @param length The length of the region, in bytes.
+     *  @return A buffer whose position 0 is the start of the region.
+     *  @throws IOException The region is outside the file or too large.
+     */
+    ByteBuffer region (long offset, long length) throws IOException {
+
+      int w = this.window (offset);
+      long start = w * CHUNK;
+
+      if ((offset < 0) || (length < 0) || (w >= this.windows.length) ||
+          (offset - start + length > this.windows[w].capacity ())) {
+        throw new IOException ("Can't map " + length + " bytes at offset " +
+                               offset);
+      }
+
+      ByteBuffer b = this.windows[w].duplicate ();
+      b.position ((int) (offset - start));
+      b.limit ((int) (offset - start + length));
+      return b.slice ();
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open a native index.
+   *  @param path The directory that contains the native index.
+   *  @throws IOException Error accessing the native index.
+   */
+  public IdxNative (String path) throws IOException {
+
+    File directory = new File (path);
+    DataInputStream in = new DataInputStream (new BufferedInputStream (
+      new FileInputStream (new File (directory, STATS_FILE))));
+
+    try {
+      int version = in.readInt ();
+
+      if (version != IdxNativeWriter.VERSION) {
+        throw new IOException ("Unsupported native index version " + version +
+                               " in " + path);
+      }
+
+      this.numDocs = in.readInt ();
+      this.maxDoc = in.readInt ();
+      this.identity = IndexIdentity.read (in);
+
+      int fieldCount = in.readInt ();
+
+      for (int i = 0; i < fieldCount; i++) {
+        String name = in.readUTF ();
+        NativeField f = new NativeField ();
+
+        f.docCount = in.readInt ();
+        f.sumTotalTermFreq = in.readLong ();
+        f.numTerms = in.readInt ();
+        f.lex = new MappedFile (new File (directory, name + LEX_SUFFIX)).all ();
+        f.dict = new MappedFile (new File (directory, name + DICT_SUFFIX)).all ();
+        f.postings = new MappedFile (new File (directory, name + POSTINGS_SUFFIX));
+        f.lengths = new MappedFile (new File (directory, name + LENGTHS_SUFFIX)).all ();
+        this.fields.put (name, f);
+
+        if (ForwardIndex.exists (directory, name))
+          this.forwardIndexes.put (name, new ForwardIndex (directory, name));
+      }
+    } finally {
+      in.close ();
+    }
+  }
+
+  /**
+   *  Get the mapped files of a field.  Statistics of fields that
+   *  weren't exported must come from the Lucene index, so asking the
+   *  native index for them is an error rather than a 0.
+   *  @param fieldName The field name.
+   *  @return The field.
+   *  @throws IllegalArgumentException The field isn't in the native index.
+   */
+  private NativeField getField (String fieldName) {
+
+    NativeField f = this.fields.get (fieldName);
+
+    if (f == null) {
+      throw new IllegalArgumentException (
+        "Field " + fieldName + " is not in the native index.");
+    }
+
+    return f;
+  }
+
+  /**
+   *  Compare a term in the dictionary to a term.
+   *  @param f The field.
+   *  @param ord The term ordinal.
+   *  @param term The UTF-8 bytes of a term.
+   *  @return A negative, zero, or positive value, like compareTo.
+   */
+  private static int compareTerm (NativeField f, int ord, byte[] term) {
+
+    int start = f.dict.getInt (ord * IdxNativeWriter.DICT_ENTRY_LENGTH);
+    int end = f.dict.getInt ((ord + 1) * IdxNativeWriter.DICT_ENTRY_LENGTH);
+    int n = Math.min (end - start, term.length);
+
+    for (int i = 0; i < n; i++) {
+      int diff = (f.lex.get (start + i) & 0xFF) - (term[i] & 0xFF);
+
+      if (diff != 0)
+        return diff;
+    }
+
+    return (end - start) - term.length;
+  }
+
+  /**
+   *  Get the ctf of the term with the specified ordinal.
+   *  @param fieldName The field name.
+   *  @param ord The term ordinal.
+   *  @return The collection term frequency.
+   */
+  public long getCtf (String fieldName, int ord) {
+    return this.getField (fieldName).dict.getLong (
+      ord * IdxNativeWriter.DICT_ENTRY_LENGTH + 8);
+  }
+
+  /**
+   *  Get the df of the term with the specified ordinal.
+   *  @param fieldName The field name.
+   *  @param ord The term ordinal.
+   *  @return The document frequency.
+   */
+  public int getDf (String fieldName, int ord) {
+    return this.getField (fieldName).dict.getInt (
+      ord * IdxNativeWriter.DICT_ENTRY_LENGTH + 4);
+  }
+
+  /**
+   *  Get the number of documents that contain the specified field.
+   *  @param fieldName The field name.
+   *  @return The number of documents that contain the field.
+   *  @throws IllegalArgumentException The field isn't in the native index.
+   */
+  public int getDocCount (String fieldName) {
+    return this.getField (fieldName).docCount;
+  }
+
+  /**
+   *  Get the length of every instance of the specified field, indexed
+   *  by internal docid.  The buffer is a view of the mapped file.
+   *  @param fieldName The field name.
+   *  @return The field lengths, or null if the field isn't in the index.
+   */
+  public IntBuffer getFieldLengths (String fieldName) {
+    NativeField f = this.fields.get (fieldName);
+    return (f == null) ? null : f.lengths.asIntBuffer ();
+  }
+
+  /**
+   *  Get the names of the fields in the native index.
+   *  @return The field names.
+   */
+  public Set<String> getFieldNames () {
+    return this.fields.keySet ();
+  }
+
+  /**
+   *  Get the forward index of the specified field.
+   *  @param fieldName The field name.
+   *  @return The forward index, or null if the field doesn't have one.
+   */
+  public ForwardIndex getForwardIndex (String fieldName) {
+    return this.forwardIndexes.get (fieldName);
+  }
+
+  /**
+   *  Get the inverted list of a term.  The inverted list is a
+   *  read-only view of the mapped postings file.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldName The field that the term occurs in.
+   *  @return The inverted list, which is empty if the term doesn't occur.
+   *  @throws IOException Error accessing the native index.
+   *  @throws IllegalArgumentException The field isn't in the native index.
+   */
+  public InvList getInvList (String termString, String fieldName)
+    throws IOException {
+
+    NativeField f = this.getField (fieldName);
+    int ord = this.getTermOrdinal (fieldName, termString);
+
+    if (ord < 0)
+      return new InvListMapped (fieldName, 0, 0, null);
+
+    int entry = ord * IdxNativeWriter.DICT_ENTRY_LENGTH;
+    int df = f.dict.getInt (entry + 4);
+    int ctf = (int) f.dict.getLong (entry + 8);
+    long offset = f.dict.getLong (entry + 16);
+    long end = f.dict.getLong (entry + 16 + IdxNativeWriter.DICT_ENTRY_LENGTH);
+
+    return new InvListMapped (fieldName, df, ctf,
+                              f.postings.region (offset, end - offset));
+  }
+
+  /**
+   *  Get the identity of the Lucene index that the native index was
+   *  built from (see IndexIdentity).
+   *  @return The identity.
+   */
+  public String getIdentity () {
+    return this.identity;
+  }
+
+  /**
+   *  Get the largest internal docid plus one.
+   *  @return The maximum docid.
+   */
+  public int getMaxDoc () {
+    return this.maxDoc;
+  }
+
+  /**
+   *  Get the number of (live) documents in the index.
+   *  @return The number of documents.
+   */
+  public int getNumDocs () {
+    return this.numDocs;
+  }
+
+  /**
+   *  Get the number of terms in the specified field.
+   *  @param fieldName The field name.
+   *  @return The number of terms.
+   *  @throws IllegalArgumentException The field isn't in the native index.
+   */
+  public int getNumTerms (String fieldName) {
+    return this.getField (fieldName).numTerms;
+  }
+
+  /**
+   *  Get the total length of the specified field in the corpus.
+   *  @param fieldName The field name.
+   *  @return The total number of term occurrences in the field.
+   *  @throws IllegalArgumentException The field isn't in the native index.
+   */
+  public long getSumOfFieldLengths (String fieldName) {
+    return this.getField (fieldName).sumTotalTermFreq;
+  }
+
+  /**
+   *  Get the term with the specified ordinal.
+   *  @param fieldName The field name.
+   *  @param ord The term ordinal.
+   *  @return The term string.
+   */
+  public String getTerm (String fieldName, int ord) {
+
+    NativeField f = this.getField (fieldName);
+    int start = f.dict.getInt (ord * IdxNativeWriter.DICT_ENTRY_LENGTH);
+    int end = f.dict.getInt ((ord + 1) * IdxNativeWriter.DICT_ENTRY_LENGTH);
+    byte[] bytes = new byte[end - start];
+
+    for (int i = 0; i < bytes.length; i++)
+      bytes[i] = f.lex.get (start + i);
+
+    return new String (bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Find the ordinal of a term in a field's term dictionary by binary
+   *  search.  Ordinals are dense, in term order.
+   *  @param fieldName The field name.
+   *  @param termString The term.
+   *  @return The term ordinal, or -1 if the term isn't in the field.
+   */
+  public int getTermOrdinal (String fieldName, String termString) {
+    return this.getTermOrdinal (fieldName,
+                                termString.getBytes (StandardCharsets.UTF_8));
+  }
+
+  /**
+   *  Find the ordinal of a term in a field's term dictionary by binary
+   *  search.
+   *  @param fieldName The field name.
+   *  @param term The UTF-8 bytes of the term.
+   *  @return The term ordinal, or -1 if the term isn't in the field.
+   */
+  public int getTermOrdinal (String fieldName, byte[] term) {
+
+    NativeField f = this.fields.get (fieldName);
+
+    if (f == null)
+      return -1;
+
+    int lo = 0;
+    int hi = f.numTerms - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int cmp = compareTerm (f, mid, term);
+
+      if (cmp < 0)
+        lo = mid + 1;
+      else if (cmp > 0)
+        hi = mid - 1;
+      else
+        return mid;
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of a term in a field.
+   *  @param fieldName The field name.
+   *  @param termString The term.
+   *  @return The ctf, or 0 if the term isn't in the field.
+   *  @throws IllegalArgumentException The field isn't in the native index.
+   */
+  public long getTotalTermFreq (String fieldName, String termString) {
+    this.getField (fieldName);
+    int ord = this.getTermOrdinal (fieldName, termString);
+    return (ord < 0) ? 0 : this.getCtf (fieldName, ord);
+  }
+
+  /**
+   *  Get the document frequency (df) of a term in a field.
+   *  @param fieldName The field name.
+   *  @param termString The term.
+   *  @return The df, or 0 if the term isn't in the field.
+   *  @throws IllegalArgumentException The field isn't in the native index.
+   */
+  public int getDocFreq (String fieldName, String termString) {
+    this.getField (fieldName);
+    int ord = this.getTermOrdinal (fieldName, termString);
+    return (ord < 0) ? 0 : this.getDf (fieldName, ord);
+  }
+
+  /**
+   *  Returns true if the native index contains the specified field.
+   *  @param fieldName The field name.
+   *  @return True if the field was exported.
+   */
+  public boolean hasField (String fieldName) {
+    return this.fields.containsKey (fieldName);
+  }
+}
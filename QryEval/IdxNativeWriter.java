@@ -0,0 +1,271 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ *  IdxNativeWriter writes an index in the QryEval native format that
+ *  IdxNative reads.  Fields are written one at a time, and the terms of
+ *  a field must be added in increasing (unsigned byte) order, which is
+ *  the order that Lucene's TermsEnum produces them in.
+ *  <p>
+ *  The index is a directory that contains the following files.  All
+ *  numbers are big-endian.
+ *  </p>
+ *  <pre>
+ *    stats            version, numDocs, maxDoc, the identity of the
+ *                     index (int length, UTF-8 bytes; see
+ *                     IndexIdentity), number of fields, and
+ *                     for each field: name, docCount, sumTotalTermFreq,
+ *                     number of terms
+ *    FIELD.lex        the UTF-8 bytes of the field's terms, concatenated
+ *    FIELD.dict       one 24-byte entry per term, in term order:
+ *                     lexOffset (int), df (int), ctf (long),
+ *                     postingsOffset (long), followed by a sentinel
+ *                     entry that marks the end of the last term
+ *    FIELD.postings   for each term:  docids[df], tfs[df],
+ *                     posOffsets[df], positions[ctf] (all ints)
+ *    FIELD.lengths    the length of the field in each document
+ *                     (maxDoc ints)
+ *  </pre>
+ *  <p>
+ *  The postings layout is the same as the packed InvList layout, so
+ *  that an inverted list can be used directly from a memory-mapped
+ *  file without copying.
+ *  </p>
+ */
+public class IdxNativeWriter implements Closeable {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The version of the native index format.
+   */
+  public static final int VERSION = 2;
+
+  /**
+   *  The size of a term dictionary entry, in bytes.
+   */
+  public static final int DICT_ENTRY_LENGTH = 24;
+
+  private File directory;
+  private int numDocs;
+  private int maxDoc;
+  private String identity;
+
+  private List<String> fieldNames = new ArrayList<String> ();
+  private List<int[]> fieldDocCounts = new ArrayList<int[]> ();
+  private List<long[]> fieldSumTotalTermFreqs = new ArrayList<long[]> ();
+  private List<int[]> fieldNumTerms = new ArrayList<int[]> ();
+
+  //  The field that is being written now.
+
+  private String field = null;
+  private DataOutputStream lexOut;
+  private DataOutputStream dictOut;
+  private DataOutputStream postingsOut;
+  private int lexOffset;
+  private long postingsOffset;
+  private int numTerms;
+  private byte[] lastTerm;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create a native index.  An existing index in the directory is
+   *  overwritten.
+   *  @param path The directory to write the index to.
+   *  @param numDocs The number of (live) documents in the index.
+   *  @param maxDoc One more than the largest internal docid.
+   *  @param identity The identity of the Lucene index that the native
+   *    index is built from (see IndexIdentity).
+   *  @throws IOException Error creating the directory.
+   */
+  public IdxNativeWriter (String path, int numDocs, int maxDoc,
+                          String identity)
+    throws IOException {
+
+    this.directory = new File (path);
+    this.numDocs = numDocs;
+    this.maxDoc = maxDoc;
+    this.identity = identity;
+
+    if (! this.directory.isDirectory () && ! this.directory.mkdirs ()) {
+      throw new IOException ("Can't create directory " + path);
+    }
+  }
+
+  /**
+   *  Add a term and its postings to the current field.
+   *  @param term The UTF-8 bytes of the term.
+   *  @param df The number of postings.
+   *  @param docids The internal docids of the postings, in increasing order.
+   *  @param tfs The term frequency of each posting.
+   *  @param positions The positions of all postings, concatenated.
+   *  @throws IOException Error writing the index.
+   *  @throws IllegalArgumentException The term is out of order.
+   */
+  public void addTerm (byte[] term, int df, int[] docids, int[] tfs,
+                       int[] positions)
+    throws IOException, IllegalArgumentException {
+
+    if ((this.lastTerm != null) && (compareBytes (this.lastTerm, term) >= 0)) {
+      throw new IllegalArgumentException (
+        "Terms must be added in increasing order: " +
+        new String (term, StandardCharsets.UTF_8));
+    }
+
+    long ctf = 0;
+
+    for (int i = 0; i < df; i++)
+      ctf += tfs[i];
+
+    this.dictOut.writeInt (this.lexOffset);
+    this.dictOut.writeInt (df);
+    this.dictOut.writeLong (ctf);
+    this.dictOut.writeLong (this.postingsOffset);
+
+    this.lexOut.write (term);
+    this.lexOffset += term.length;
+
+    for (int i = 0; i < df; i++)
+      this.postingsOut.writeInt (docids[i]);
+
+    for (int i = 0; i < df; i++)
+      this.postingsOut.writeInt (tfs[i]);
+
+    int offset = 0;
+
+    for (int i = 0; i < df; i++) {
+      this.postingsOut.writeInt (offset);
+      offset += tfs[i];
+    }
+
+    for (int i = 0; i < ctf; i++)
+      this.postingsOut.writeInt (positions[i]);
+
+    this.postingsOffset += 4L * (3L * df + ctf);
+    this.numTerms ++;
+    this.lastTerm = term;
+  }
+
+  /**
+   *  Finish writing the index.
+   *  @throws IOException Error writing the index.
+   */
+  public void close () throws IOException {
+
+    if (this.field != null) {
+      throw new IllegalStateException ("Field " + this.field + " was not finished.");
+    }
+
+    DataOutputStream out = new DataOutputStream (new BufferedOutputStream (
+      new FileOutputStream (new File (this.directory, IdxNative.STATS_FILE))));
+
+    out.writeInt (VERSION);
+    out.writeInt (this.numDocs);
+    out.writeInt (this.maxDoc);
+    IndexIdentity.write (out, this.identity);
+    out.writeInt (this.fieldNames.size ());
+
+    for (int i = 0; i < this.fieldNames.size (); i++) {
+      out.writeUTF (this.fieldNames.get (i));
+      out.writeInt (this.fieldDocCounts.get (i)[0]);
+      out.writeLong (this.fieldSumTotalTermFreqs.get (i)[0]);
+      out.writeInt (this.fieldNumTerms.get (i)[0]);
+    }
+
+    out.close ();
+  }
+
+  /**
+   *  Compare two byte arrays as unsigned bytes, which is the order
+   *  that Lucene sorts terms in.
+   *  @param a A byte array.
+   *  @param b A byte array.
+   *  @return A negative, zero, or positive value, like compareTo.
+   */
+  static int compareBytes (byte[] a, byte[] b) {
+
+    int n = Math.min (a.length, b.length);
+
+    for (int i = 0; i < n; i++) {
+      int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+
+      if (diff != 0)
+        return diff;
+    }
+
+    return a.length - b.length;
+  }
+
+  /**
+   *  Finish the current field.
+   *  @param docCount The number of documents that contain the field.
+   *  @param sumTotalTermFreq The total length of the field in the corpus.
+   *  @param lengths The length of the field in each document (maxDoc values).
+   *  @throws IOException Error writing the index.
+   */
+  public void finishField (int docCount, long sumTotalTermFreq, int[] lengths)
+    throws IOException {
+
+    //  The sentinel entry marks the end of the last term.
+
+    this.dictOut.writeInt (this.lexOffset);
+    this.dictOut.writeInt (0);
+    this.dictOut.writeLong (0);
+    this.dictOut.writeLong (this.postingsOffset);
+
+    this.lexOut.close ();
+    this.dictOut.close ();
+    this.postingsOut.close ();
+
+    DataOutputStream lengthsOut = this.openOutput (IdxNative.LENGTHS_SUFFIX);
+
+    for (int i = 0; i < this.maxDoc; i++)
+      lengthsOut.writeInt ((lengths == null) ? 0 : lengths[i]);
+
+    lengthsOut.close ();
+
+    this.fieldNames.add (this.field);
+    this.fieldDocCounts.add (new int[] { docCount });
+    this.fieldSumTotalTermFreqs.add (new long[] { sumTotalTermFreq });
+    this.fieldNumTerms.add (new int[] { this.numTerms });
+    this.field = null;
+  }
+
+  /**
+   *  Open an output file for the current field.
+   *  @param suffix The file name suffix.
+   *  @return The output stream.
+   *  @throws IOException Error opening the file.
+   */
+  private DataOutputStream openOutput (String suffix) throws IOException {
+    return new DataOutputStream (new BufferedOutputStream (
+      new FileOutputStream (new File (this.directory, this.field + suffix)),
+      1 << 16));
+  }
+
+  /**
+   *  Start writing a field.
+   *  @param fieldName The name of the field.
+   *  @throws IOException Error writing the index.
+   */
+  public void startField (String fieldName) throws IOException {
+
+    if (this.field != null) {
+      throw new IllegalStateException ("Field " + this.field + " was not finished.");
+    }
+
+    this.field = fieldName;
+    this.lexOut = this.openOutput (IdxNative.LEX_SUFFIX);
+    this.dictOut = this.openOutput (IdxNative.DICT_SUFFIX);
+    this.postingsOut = this.openOutput (IdxNative.POSTINGS_SUFFIX);
+    this.lexOffset = 0;
+    this.postingsOffset = 0;
+    this.numTerms = 0;
+    this.lastTerm = null;
+  }
+}
@@ -0,0 +1,260 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  IdxPhrase builds a phrase index:  the #NEAR/1 inverted lists of the
+ *  frequent adjacent term pairs of a Lucene index, which QryEval reads
+ *  directly instead of intersecting the terms' positional inverted
+ *  lists (see QryIopPhrase and the index:phrasePath parameter).  Run
+ *  it to see a simple usage message.
+ *  <p>
+ *  Adjacent pairs are counted from the documents' positional term
+ *  vectors.  A pair can only occur minCount times if each of its terms
+ *  does, so rarer terms aren't counted.  The inverted list of each
+ *  pair that occurs at least minCount times (at most maxPhrases pairs,
+ *  the most frequent ones) is computed by QryIopNear, so it is exactly
+ *  the list that #NEAR/1 produces.
+ *  </p>
+ *  <p>
+ *  The phrase index is written in the native index format (see
+ *  IdxNativeWriter); the "term" of a pair is its two terms, separated
+ *  by a space.
+ *  </p>
+ */
+public class IdxPhrase {
+
+  //  --------------- Constants and variables ---------------------
+
+  static String usage =
+    "Usage:  java " + System.getProperty ("sun.java.command") +
+    " -index INDEX_PATH -output PHRASE_PATH [-fields FIELD,FIELD,...]\n" +
+    "    [-minCount N] [-maxPhrases N]\n\n" +
+    "Builds a phrase index of the Lucene index in INDEX_PATH in PHRASE_PATH.\n" +
+    "Adjacent term pairs that occur at least minCount times (default 1000)\n" +
+    "in the fields (default body) are indexed, up to maxPhrases pairs\n" +
+    "(default no limit), most frequent first.\n";
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Count the adjacent pairs of frequent terms in a field.
+   *  @param index The index.
+   *  @param field The field.
+   *  @param minCount The minimum ctf of a term.
+   *  @return The number of occurrences of each pair, keyed by the two
+   *    term ids (first term id in the high 32 bits).
+   *  @throws IOException Error accessing the index.
+   */
+  private static Map<Long,int[]> countPairs (IndexContext index, String field,
+                                             int minCount)
+    throws IOException {
+
+    IndexReader reader = index.getReader ();
+    TermDictionary dictionary = index.getTermDictionary ();
+    Map<Long,int[]> counts = new HashMap<Long,int[]> ();
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+    int[] tokens = new int[1024];
+
+    for (int docid = 0; docid < reader.maxDoc (); docid++) {
+      if ((liveDocs != null) && ! liveDocs.get (docid))
+        continue;
+
+      Terms vector = reader.getTermVector (docid, field);
+
+      if (vector == null)
+        continue;
+
+      //  Rebuild the document's sequence of frequent terms; -1 marks
+      //  positions of other terms and stopwords.
+
+      int length = index.getFieldLength (field, docid);
+
+      if (tokens.length < length + 1)
+        tokens = new int[Math.max (length + 1, 2 * tokens.length)];
+
+      Arrays.fill (tokens, 0, length + 1, -1);
+
+      TermsEnum termsEnum = vector.iterator ();
+      PostingsEnum postings = null;
+      BytesRef termBytes;
+
+      while ((termBytes = termsEnum.next ()) != null) {
+        int termId = dictionary.getTermId (field, termBytes.utf8ToString ());
+
+        if ((termId < 0) || (dictionary.getCtf (termId) < minCount))
+          continue;
+
+        postings = termsEnum.postings (postings, PostingsEnum.POSITIONS);
+        postings.nextDoc ();
+
+        for (int j = 0; j < postings.freq (); j++) {
+          int position = postings.nextPosition ();
+
+          if (position < length)
+            tokens[position] = termId;
+        }
+      }
+
+      for (int p = 0; p + 1 < length; p++) {
+        if ((tokens[p] < 0) || (tokens[p + 1] < 0))
+          continue;
+
+        Long key = (((long) tokens[p]) << 32) | tokens[p + 1];
+        int[] count = counts.get (key);
+
+        if (count == null)
+          counts.put (key, new int[] { 1 });
+        else
+          count[0] ++;
+      }
+    }
+
+    return counts;
+  }
+
+  /**
+   *  Build a phrase index.
+   *  @param args The command line arguments.
+   *  @throws IOException Error accessing an index.
+   */
+  public static void main (String[] args) throws IOException {
+
+    String indexPath = null;
+    String outputPath = null;
+    String fieldList = "body";
+    int minCount = 1000;
+    int maxPhrases = Integer.MAX_VALUE;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("-index".equals (args[i])) {
+        indexPath = args[i+1];
+      } else if ("-output".equals (args[i])) {
+        outputPath = args[i+1];
+      } else if ("-fields".equals (args[i])) {
+        fieldList = args[i+1];
+      } else if ("-minCount".equals (args[i])) {
+        minCount = Integer.parseInt (args[i+1]);
+      } else if ("-maxPhrases".equals (args[i])) {
+        maxPhrases = Integer.parseInt (args[i+1]);
+      } else {
+        System.err.println (usage);
+        System.exit (1);
+      }
+    }
+
+    if ((indexPath == null) || (outputPath == null) ||
+        (minCount < 1) || (maxPhrases < 1)) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    Timer timer = new Timer ();
+    timer.start ();
+
+    Idx.open (indexPath);
+
+    IndexContext index = Idx.getContext ();
+    IndexReader reader = index.getReader ();
+    TermDictionary dictionary = index.getTermDictionary ();
+    DocLengthStore docLengthStore = new DocLengthStore (reader);
+    IdxNativeWriter writer =
+      new IdxNativeWriter (outputPath, reader.numDocs (), reader.maxDoc (),
+                           IndexIdentity.of (reader));
+
+    for (String field : fieldList.split (",")) {
+
+      //  Choose the most frequent pairs.
+
+      final Map<Long,int[]> counts = countPairs (index, field, minCount);
+      List<Long> keys = new ArrayList<Long> ();
+
+      for (Map.Entry<Long,int[]> entry : counts.entrySet ())
+        if (entry.getValue ()[0] >= minCount)
+          keys.add (entry.getKey ());
+
+      Collections.sort (keys, new Comparator<Long> () {
+          public int compare (Long a, Long b) {
+            return Integer.compare (counts.get (b)[0], counts.get (a)[0]);
+          }
+        });
+
+      if (keys.size () > maxPhrases)
+        keys = keys.subList (0, maxPhrases);
+
+      //  The native format needs terms in byte order.
+
+      SortedMap<String,String[]> phrases = new TreeMap<String,String[]> (
+        new Comparator<String> () {
+          public int compare (String a, String b) {
+            return IdxNativeWriter.compareBytes (
+              a.getBytes (StandardCharsets.UTF_8),
+              b.getBytes (StandardCharsets.UTF_8));
+          }
+        });
+
+      for (long key : keys) {
+        String left = dictionary.getTerm ((int) (key >>> 32));
+        String right = dictionary.getTerm ((int) key);
+
+        phrases.put (QryIopPhrase.getPhrase (left, right),
+                     new String[] { left, right });
+      }
+
+      //  Each pair's inverted list is computed by #NEAR/1 itself.
+
+      writer.startField (field);
+
+      long numPostings = 0;
+
+      for (Map.Entry<String,String[]> phrase : phrases.entrySet ()) {
+        QryIopNear near = new QryIopNear ();
+
+        near.distance = 1;
+        near.appendArg (new QryIopTerm (phrase.getValue ()[0], field));
+        near.appendArg (new QryIopTerm (phrase.getValue ()[1], field));
+        near.initialize (null, index);
+
+        InvList list = near.invertedList;
+        int[] docids = new int[list.df];
+        int[] tfs = new int[list.df];
+        int[] positions = new int[list.ctf];
+
+        for (int i = 0, k = 0; i < list.df; i++) {
+          docids[i] = list.getDocid (i);
+          tfs[i] = list.getTf (i);
+
+          for (int j = 0; j < tfs[i]; j++)
+            positions[k++] = list.getPosition (i, j);
+        }
+
+        writer.addTerm (phrase.getKey ().getBytes (StandardCharsets.UTF_8),
+                        list.df, docids, tfs, positions);
+        numPostings += list.df;
+      }
+
+      int[] lengths = new int[reader.maxDoc ()];
+
+      for (int d = 0; d < lengths.length; d++)
+        lengths[d] = (int) docLengthStore.getDocLength (field, d);
+
+      writer.finishField (reader.getDocCount (field),
+                          reader.getSumTotalTermFreq (field), lengths);
+
+      System.out.println ("  " + field + ":  " + phrases.size () +
+                          " phrases, " + numPostings + " postings");
+    }
+
+    writer.close ();
+
+    timer.stop ();
+    System.out.println ("Time:  " + timer);
+  }
+}
@@ -0,0 +1,394 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  IdxPrune writes a statically pruned copy of a Lucene index:  a
+ *  smaller index without the postings that are unlikely to affect the
+ *  top k results.  The pruned index is an ordinary Lucene index, so
+ *  QryEval can use it as its indexPath.  Run it to see a simple usage
+ *  message.
+ *  <p>
+ *  A posting's contribution is its BM25 score, with the k_1 and b of
+ *  the parameter file.  Two pruning methods are supported, and a
+ *  posting must survive each method that is enabled:
+ *  </p>
+ *  <ul>
+ *  <li>Term-centric (Carmel et al.):  a term's postings whose score is
+ *      less than epsilon times the term's k-th highest score are
+ *      removed.  Terms that occur in k or fewer documents keep every
+ *      posting.
+ *  <li>Document-centric (Buttcher and Clarke):  each document keeps
+ *      the highest-scoring fraction of its terms.
+ *  </ul>
+ *  <p>
+ *  Field lengths are unchanged.  Term and field statistics come from
+ *  the postings that remain, so scores on the pruned index are not
+ *  exactly the scores of the same postings in the full index.
+ *  </p>
+ *  <p>
+ *  After the pruned index is written, the parameter file's queries are
+ *  evaluated on both indexes with QryEval.processQuery, and the
+ *  overlap of their top k results, the speedup, and the index sizes
+ *  are reported.
+ *  </p>
+ */
+public class IdxPrune {
+
+  //  --------------- Constants and variables ---------------------
+
+  static String usage =
+    "Usage:  java " + System.getProperty ("sun.java.command") +
+    " -param PARAM_FILE -output PRUNED_PATH [-fields FIELD,FIELD,...]\n" +
+    "    [-termEpsilon E] [-termK K] [-docRatio R] [-reportK K]\n\n" +
+    "Writes a pruned copy of the index of the QryEval parameter file\n" +
+    "PARAM_FILE to PRUNED_PATH.  Postings of the fields (default body) are\n" +
+    "scored with BM25:k_1 and BM25:b.  -termEpsilon removes each term's\n" +
+    "postings that score less than E times its K-th highest score\n" +
+    "(default K 10).  -docRatio keeps the top R of each document's terms.\n" +
+    "The queries of queryFilePath are then evaluated on both indexes, and\n" +
+    "overlap@K (default trecEvalOutputLength) and speedup are reported.\n";
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Find each term's term-centric pruning threshold:  epsilon times
+   *  its k-th highest score, or 0 if it occurs in k or fewer documents.
+   *  @param index The index.
+   *  @param model The BM25 parameters.
+   *  @param fields The fields that are pruned.
+   *  @param epsilon The fraction of the k-th highest score.
+   *  @param k The rank of the score.
+   *  @return The thresholds, indexed by term id.
+   *  @throws IOException Error accessing the index.
+   */
+  private static double[] getTermThresholds (IndexContext index,
+                                             RetrievalModelBM25 model,
+                                             List<String> fields,
+                                             double epsilon, int k)
+    throws IOException {
+
+    TermDictionary dictionary = index.getTermDictionary ();
+    double[] thresholds = new double[dictionary.getNumTerms ()];
+    long N = index.getNumDocs ();
+
+    //  The top k scores are kept in ascending order; top[0] is the k-th.
+
+    double[] top = new double[k];
+
+    for (String field : fields) {
+      Terms terms = MultiFields.getTerms (index.getReader (), field);
+
+      if (terms == null)
+        continue;
+
+      int fieldOrdinal = index.getFieldOrdinal (field);
+      double avglen = index.getAverageFieldLength (field);
+      TermsEnum termsEnum = terms.iterator ();
+      PostingsEnum postings = null;
+      BytesRef termBytes;
+
+      while ((termBytes = termsEnum.next ()) != null) {
+        if (termsEnum.docFreq () <= k)
+          continue;
+
+        int termId = dictionary.getTermId (field, termBytes.utf8ToString ());
+        double rsj = model.getRsjWeight (N, termsEnum.docFreq ());
+
+        Arrays.fill (top, -1);
+        postings = termsEnum.postings (postings, PostingsEnum.FREQS);
+
+        while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          int doclen = index.getFieldLength (fieldOrdinal, postings.docID ());
+          double score =
+            rsj * model.getTfWeight (postings.freq (), doclen, avglen);
+
+          if (score <= top[0])
+            continue;
+
+          int i = 0;
+
+          while ((i + 1 < k) && (top[i + 1] < score)) {
+            top[i] = top[i + 1];
+            i ++;
+          }
+
+          top[i] = score;
+        }
+
+        if (termId >= 0)
+          thresholds[termId] = epsilon * top[0];
+      }
+    }
+
+    return thresholds;
+  }
+
+  /**
+   *  Choose the terms to remove from one document.
+   *  @param index The index.
+   *  @param model The BM25 parameters.
+   *  @param docid The document.
+   *  @param fields The fields that are pruned.
+   *  @param thresholds Term-centric thresholds by term id, or null.
+   *  @param docRatio The fraction of each field's terms that are kept.
+   *  @param counts Returns the number of postings, and the number kept.
+   *  @return The terms to remove, by field.
+   *  @throws IOException Error accessing the index.
+   */
+  private static Map<String,Set<String>> pruneDocument (
+    IndexContext index, RetrievalModelBM25 model, int docid,
+    List<String> fields, double[] thresholds, double docRatio, long[] counts)
+    throws IOException {
+
+    TermDictionary dictionary = index.getTermDictionary ();
+    Map<String,Set<String>> pruned = new HashMap<String,Set<String>> ();
+    long N = index.getNumDocs ();
+
+    for (String field : fields) {
+      Terms vector = index.getReader ().getTermVector (docid, field);
+
+      if (vector == null)
+        continue;
+
+      int doclen = index.getFieldLength (field, docid);
+      double avglen = index.getAverageFieldLength (field);
+      List<String> terms = new ArrayList<String> ();
+      final List<Double> scores = new ArrayList<Double> ();
+      Set<String> removed = new HashSet<String> ();
+      TermsEnum termsEnum = vector.iterator ();
+      PostingsEnum postings = null;
+      BytesRef termBytes;
+
+      while ((termBytes = termsEnum.next ()) != null) {
+        String term = termBytes.utf8ToString ();
+        int termId = dictionary.getTermId (field, term);
+
+        if (termId < 0)
+          continue;
+
+        postings = termsEnum.postings (postings, PostingsEnum.FREQS);
+        postings.nextDoc ();
+
+        double score = model.getRsjWeight (N, dictionary.getDf (termId)) *
+          model.getTfWeight (postings.freq (), doclen, avglen);
+
+        if ((thresholds != null) && (score < thresholds[termId]))
+          removed.add (term);
+
+        terms.add (term);
+        scores.add (score);
+      }
+
+      //  Document-centric pruning removes the lowest-scoring terms.
+
+      if (docRatio < 1) {
+        Integer[] ranks = new Integer[terms.size ()];
+
+        for (int i = 0; i < ranks.length; i++)
+          ranks[i] = i;
+
+        Arrays.sort (ranks, new Comparator<Integer> () {
+            public int compare (Integer a, Integer b) {
+              return Double.compare (scores.get (b), scores.get (a));
+            }
+          });
+
+        int keep = (int) Math.ceil (docRatio * ranks.length);
+
+        for (int i = keep; i < ranks.length; i++)
+          removed.add (terms.get (ranks[i]));
+      }
+
+      counts[0] += terms.size ();
+      counts[1] += terms.size () - removed.size ();
+
+      if (removed.size () > 0)
+        pruned.put (field, removed);
+    }
+
+    return pruned;
+  }
+
+  /**
+   *  Get the size of an index.
+   *  @param path The directory of the index.
+   *  @return The total size of its files, in bytes.
+   */
+  private static long getIndexSize (String path) {
+
+    long size = 0;
+
+    for (File f : new File (path).listFiles ())
+      if (f.isFile ())
+        size += f.length ();
+
+    return size;
+  }
+
+  /**
+   *  Prune an index.
+   *  @param args The command line arguments.
+   *  @throws Exception Error accessing an index, or evaluating a query.
+   */
+  public static void main (String[] args) throws Exception {
+
+    String paramPath = null;
+    String outputPath = null;
+    String fieldList = "body";
+    double termEpsilon = 0;
+    int termK = 10;
+    double docRatio = 1;
+    int reportK = 0;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("-param".equals (args[i])) {
+        paramPath = args[i+1];
+      } else if ("-output".equals (args[i])) {
+        outputPath = args[i+1];
+      } else if ("-fields".equals (args[i])) {
+        fieldList = args[i+1];
+      } else if ("-termEpsilon".equals (args[i])) {
+        termEpsilon = Double.parseDouble (args[i+1]);
+      } else if ("-termK".equals (args[i])) {
+        termK = Integer.parseInt (args[i+1]);
+      } else if ("-docRatio".equals (args[i])) {
+        docRatio = Double.parseDouble (args[i+1]);
+      } else if ("-reportK".equals (args[i])) {
+        reportK = Integer.parseInt (args[i+1]);
+      } else {
+        System.err.println (usage);
+        System.exit (1);
+      }
+    }
+
+    if ((paramPath == null) || (outputPath == null) || (termK < 1) ||
+        (termEpsilon < 0) || (docRatio <= 0) || (docRatio > 1)) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    Map<String,String> parameters = QryEval.readParameterFile (paramPath);
+
+    if (! (parameters.containsKey ("BM25:k_1") && parameters.containsKey ("BM25:b"))) {
+      throw new IllegalArgumentException (
+        "The parameter file must have BM25:k_1 and BM25:b");
+    }
+
+    String indexPath = parameters.get ("indexPath");
+    RetrievalModelBM25 bm25 = new RetrievalModelBM25 (
+      Double.parseDouble (parameters.get ("BM25:k_1")),
+      Double.parseDouble (parameters.get ("BM25:b")), 0);
+    List<String> fields = Arrays.asList (fieldList.split (","));
+
+    if (reportK < 1)
+      reportK = Integer.parseInt (parameters.get ("trecEvalOutputLength"));
+
+    Timer timer = new Timer ();
+    timer.start ();
+
+    Idx.open (indexPath);
+
+    IndexContext index = Idx.getContext ();
+    IndexReader reader = index.getReader ();
+    double[] thresholds = null;
+
+    if (termEpsilon > 0)
+      thresholds = getTermThresholds (index, bm25, fields, termEpsilon, termK);
+
+    //  Write the pruned index.
+
+    IndexRewriter writer = new IndexRewriter (reader, outputPath);
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+    long[] counts = new long[2];
+
+    for (int docid = 0; docid < reader.maxDoc (); docid++)
+      if ((liveDocs == null) || liveDocs.get (docid))
+        writer.addDocument (docid, pruneDocument (index, bm25, docid, fields,
+                                                  thresholds, docRatio, counts));
+
+    writer.close ();
+    timer.stop ();
+    System.out.println ("Pruned " + outputPath + ":  " + timer);
+
+    //  Replay the queries on both indexes.  The first pass on each
+    //  index warms it up; the second is timed.
+
+    Idx.open (outputPath);
+
+    RetrievalModel model = QryEval.initializeRetrievalModel (parameters);
+    List<String> queries = new ArrayList<String> ();
+    BufferedReader input =
+      new BufferedReader (new FileReader (parameters.get ("queryFilePath")));
+    String line;
+
+    while ((line = input.readLine ()) != null)
+      if (line.indexOf (':') >= 0)
+        queries.add (line.substring (line.indexOf (':') + 1));
+
+    input.close ();
+
+    String[] paths = { indexPath, outputPath };
+    List<List<String>> results = new ArrayList<List<String>> ();
+    long[] times = new long[paths.length];
+
+    for (int p = 0; p < paths.length; p++) {
+      Idx.setCurrentIndex (paths[p]);
+
+      for (int pass = 0; pass < 2; pass++) {
+        long start = System.nanoTime ();
+
+        for (String query : queries) {
+          ScoreList r = QryEval.processQuery (query, model);
+          List<String> top = new ArrayList<String> ();
+
+          if (r != null) {
+            r.sort ();
+
+            for (int i = 0; (i < r.size ()) && (i < reportK); i++)
+              top.add (Idx.getExternalDocid (r.getDocid (i)));
+          }
+
+          if (pass == 1)
+            results.add (top);
+        }
+
+        times[p] = System.nanoTime () - start;
+      }
+    }
+
+    double overlap = 0;
+
+    for (int q = 0; q < queries.size (); q++) {
+      List<String> full = results.get (q);
+      Set<String> prunedTop = new HashSet<String> (results.get (queries.size () + q));
+      int shared = 0;
+
+      for (String id : full)
+        if (prunedTop.contains (id))
+          shared ++;
+
+      overlap += (full.size () > 0) ? shared / (double) full.size () : 1;
+    }
+
+    System.out.println (String.format (
+      "Postings of %s:  %d of %d kept (%.1f%%)", fieldList, counts[1],
+      counts[0], (counts[0] > 0) ? 100.0 * counts[1] / counts[0] : 100.0));
+    System.out.println (String.format (
+      "Index size:  %d bytes -> %d bytes (%.1f%%)", getIndexSize (indexPath),
+      getIndexSize (outputPath),
+      100.0 * getIndexSize (outputPath) / getIndexSize (indexPath)));
+    System.out.println (String.format (
+      "%d queries:  overlap@%d %.3f, %.1f ms -> %.1f ms (speedup %.2f)",
+      queries.size (), reportK,
+      (queries.size () > 0) ? overlap / queries.size () : 1.0,
+      times[0] / 1e6, times[1] / 1e6, times[0] / (double) Math.max (1, times[1])));
+  }
+}
@@ -0,0 +1,498 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  IdxReorder rewrites a Lucene index with its documents reordered by
+ *  recursive graph bisection (BP), which gives documents that share
+ *  terms nearby docids.  Postings then have smaller d-gaps, so they
+ *  compress better (see InvListCompressed and IdxExport) and DAAT
+ *  iteration skips less far.  Run it to see a simple usage message.
+ *  <p>
+ *  The ordering is computed from the term vectors of the selected
+ *  fields.  Each step splits a range of documents in half and then
+ *  repeatedly swaps the pairs of documents whose moves most reduce the
+ *  estimated log-gap cost of the two halves; the halves are then
+ *  ordered recursively, in parallel.
+ *  </p>
+ *  <p>
+ *  Documents are rebuilt from their term vectors by IndexRewriter, so
+ *  field lengths, statistics and external ids are unchanged; only
+ *  internal docids change.  Deleted documents are dropped.
+ *  </p>
+ */
+public class IdxReorder {
+
+  //  --------------- Constants and variables ---------------------
+
+  static String usage =
+    "Usage:  java " + System.getProperty ("sun.java.command") +
+    " -index INDEX_PATH -output OUTPUT_PATH [-fields FIELD,FIELD,...]\n" +
+    "    [-iterations N] [-minDf N] [-leafSize N] [-threads N]\n\n" +
+    "Writes a copy of the Lucene index in INDEX_PATH to OUTPUT_PATH with its\n" +
+    "documents in graph bisection order, and reports the average d-gap of\n" +
+    "the postings before and after.  The ordering uses the terms of the\n" +
+    "fields (default body) whose df is at least minDf (default 2).  Each\n" +
+    "bisection does up to N iterations (default 20), and ranges of\n" +
+    "leafSize documents (default 16) are left as they are.  Export the new\n" +
+    "index with IdxExport to get a reordered native index.\n";
+
+  //  --------------- Nested classes ---------------------------------
+
+  /**
+   *  Order a range of documents by recursive graph bisection.
+   */
+  private static class BisectionTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     *  The term degree arrays of each thread.  A task only uses them
+     *  until it forks its halves, and it zeroes the entries that it
+     *  used before then, so a task never allocates or clears an array
+     *  of numTerms entries.
+     */
+    private static final ThreadLocal<int[][]> degrees =
+      new ThreadLocal<int[][]> ();
+
+    private int[][] docTerms;
+    private int[] order;
+    private int start;
+    private int end;
+    private int numTerms;
+    private int iterations;
+    private int leafSize;
+
+    /**
+     *  @param docTerms The term ids of each document, by old docid.
+     *  @param order The documents, which are reordered in place.
+     *  @param start The start of the range.
+     *  @param end The end of the range (exclusive).
+     *  @param numTerms The number of (compact) term ids.
+     *  @param iterations The maximum number of swap iterations.
+     *  @param leafSize Ranges this size or smaller aren't split.
+     */
+    BisectionTask (int[][] docTerms, int[] order, int start, int end,
+                   int numTerms, int iterations, int leafSize) {
+      this.docTerms = docTerms;
+      this.order = order;
+      this.start = start;
+      this.end = end;
+      this.numTerms = numTerms;
+      this.iterations = iterations;
+      this.leafSize = leafSize;
+    }
+
+    protected void compute () {
+
+      if (this.end - this.start <= this.leafSize)
+        return;
+
+      int mid = (this.start + this.end) >>> 1;
+      int[][] arrays = degrees.get ();
+
+      if (arrays == null) {
+        arrays = new int[][] { new int[this.numTerms], new int[this.numTerms] };
+        degrees.set (arrays);
+      }
+
+      int[] leftDegrees = arrays[0];
+      int[] rightDegrees = arrays[1];
+
+      for (int i = this.start; i < mid; i++)
+        for (int t : this.docTerms[this.order[i]])
+          leftDegrees[t] ++;
+
+      for (int i = mid; i < this.end; i++)
+        for (int t : this.docTerms[this.order[i]])
+          rightDegrees[t] ++;
+
+      double logLeft = log2 (mid - this.start);
+      double logRight = log2 (this.end - mid);
+
+      double[] leftGains = new double[mid - this.start];
+      double[] rightGains = new double[this.end - mid];
+
+      for (int iteration = 0; iteration < this.iterations; iteration++) {
+        Integer[] left = this.sortByGain (this.start, mid, leftDegrees,
+                                          rightDegrees, logLeft, logRight,
+                                          leftGains);
+        Integer[] right = this.sortByGain (mid, this.end, rightDegrees,
+                                           leftDegrees, logRight, logLeft,
+                                           rightGains);
+        int swaps = 0;
+
+        for (int k = 0; (k < left.length) && (k < right.length); k++) {
+          int l = left[k];
+          int r = right[k];
+
+          if (leftGains[l - this.start] + rightGains[r - mid] <= 0)
+            break;
+
+          for (int t : this.docTerms[this.order[l]]) {
+            leftDegrees[t] --;
+            rightDegrees[t] ++;
+          }
+
+          for (int t : this.docTerms[this.order[r]]) {
+            rightDegrees[t] --;
+            leftDegrees[t] ++;
+          }
+
+          int doc = this.order[l];
+
+          this.order[l] = this.order[r];
+          this.order[r] = doc;
+          swaps ++;
+        }
+
+        if (swaps == 0)
+          break;
+      }
+
+      //  The halves reuse the degree arrays, so zero the entries of the
+      //  terms in this range.  The gains aren't needed by the halves.
+
+      for (int i = this.start; i < this.end; i++) {
+        for (int t : this.docTerms[this.order[i]]) {
+          leftDegrees[t] = 0;
+          rightDegrees[t] = 0;
+        }
+      }
+
+      leftDegrees = null;
+      rightDegrees = null;
+      leftGains = null;
+      rightGains = null;
+
+      invokeAll (
+        new BisectionTask (this.docTerms, this.order, this.start, mid,
+                           this.numTerms, this.iterations, this.leafSize),
+        new BisectionTask (this.docTerms, this.order, mid, this.end,
+                           this.numTerms, this.iterations, this.leafSize));
+    }
+
+    /**
+     *  Compute the gain of moving each document in a range to the other
+     *  half, and sort the range's positions by decreasing gain.
+     *  @param from The start of the range.
+     *  @param to The end of the range (exclusive).
+     *  @param fromDegrees Term degrees in the range's half.
+     *  @param toDegrees Term degrees in the other half.
+     *  @param logFrom log2 of the size of the range's half.
+     *  @param logTo log2 of the size of the other half.
+     *  @param g Returns the gains, indexed by position - from.
+     *  @return The positions, sorted by decreasing gain.
+     */
+    private Integer[] sortByGain (int from, int to, int[] fromDegrees,
+                                  int[] toDegrees, double logFrom,
+                                  double logTo, final double[] g) {
+
+      Integer[] positions = new Integer[to - from];
+
+      for (int i = from; i < to; i++) {
+        double gain = 0;
+
+        for (int t : this.docTerms[this.order[i]]) {
+          int df = fromDegrees[t];
+          int dt = toDegrees[t];
+
+          gain += cost (df, logFrom) + cost (dt, logTo)
+                - cost (df - 1, logFrom) - cost (dt + 1, logTo);
+        }
+
+        g[i - from] = gain;
+        positions[i - from] = i;
+      }
+
+      final int base = from;
+
+      Arrays.sort (positions, new Comparator<Integer> () {
+          public int compare (Integer a, Integer b) {
+            return Double.compare (g[b - base], g[a - base]);
+          }
+        });
+
+      return positions;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  The estimated cost, in bits per posting, of a term's postings in
+   *  one half:  d log2 (n / (d + 1)), with log2 n precomputed.
+   *  @param d The term's degree in the half.
+   *  @param logN log2 of the size of the half.
+   *  @return The cost.
+   */
+  private static double cost (int d, double logN) {
+    return (d <= 0) ? 0 : d * (logN - log2 (d + 1));
+  }
+
+  /**
+   *  @param x A positive number.
+   *  @return log2 x.
+   */
+  private static double log2 (double x) {
+    return Math.log (x) / Math.log (2);
+  }
+
+  /**
+   *  Assign compact term ids to the terms that the ordering uses:  the
+   *  terms of the selected fields that occur in at least minDf
+   *  documents.  Other terms can't reduce the cost, and a term
+   *  dictionary of every field (e.g., externalId, which has a term per
+   *  document) would make the degree arrays much larger.
+   *  @param reader The index.
+   *  @param fields The fields whose terms are used.
+   *  @param minDf The minimum df of a term.
+   *  @return For each field, a map from terms to term ids.  The ids
+   *    are dense, starting at 0.
+   *  @throws IOException Error accessing the index.
+   */
+  private static Map<String,Map<String,Integer>> getTermIds (
+    IndexReader reader, List<String> fields, int minDf)
+    throws IOException {
+
+    Map<String,Map<String,Integer>> termIds =
+      new HashMap<String,Map<String,Integer>> ();
+    int numTerms = 0;
+
+    for (String field : fields) {
+      Map<String,Integer> ids = new HashMap<String,Integer> ();
+      Terms terms = MultiFields.getTerms (reader, field);
+
+      termIds.put (field, ids);
+
+      if (terms == null)
+        continue;
+
+      TermsEnum termsEnum = terms.iterator ();
+      BytesRef termBytes;
+
+      while ((termBytes = termsEnum.next ()) != null)
+        if (termsEnum.docFreq () >= minDf)
+          ids.put (termBytes.utf8ToString (), numTerms++);
+    }
+
+    return termIds;
+  }
+
+  /**
+   *  Export the forward data of the ordering:  the ids of the terms in
+   *  each document that the ordering uses.
+   *  @param reader The index.
+   *  @param fields The fields whose terms are used.
+   *  @param termIds The term ids of each field, from getTermIds.
+   *  @return The sorted term ids of each document, by docid.
+   *  @throws IOException Error accessing the index.
+   */
+  private static int[][] getDocTerms (IndexReader reader, List<String> fields,
+                                      Map<String,Map<String,Integer>> termIds)
+    throws IOException {
+
+    int[][] docTerms = new int[reader.maxDoc ()][];
+    int[] ids = new int[1024];
+
+    for (int docid = 0; docid < docTerms.length; docid++) {
+      int n = 0;
+
+      for (String field : fields) {
+        Terms vector = reader.getTermVector (docid, field);
+
+        if (vector == null)
+          continue;
+
+        Map<String,Integer> fieldIds = termIds.get (field);
+        TermsEnum termsEnum = vector.iterator ();
+        BytesRef termBytes;
+
+        while ((termBytes = termsEnum.next ()) != null) {
+          Integer id = fieldIds.get (termBytes.utf8ToString ());
+
+          if (id == null)
+            continue;
+
+          if (n == ids.length)
+            ids = Arrays.copyOf (ids, 2 * n);
+
+          ids[n++] = id;
+        }
+      }
+
+      docTerms[docid] = Arrays.copyOf (ids, n);
+      Arrays.sort (docTerms[docid]);
+    }
+
+    return docTerms;
+  }
+
+  /**
+   *  Reorder an index.
+   *  @param args The command line arguments.
+   *  @throws IOException Error accessing an index.
+   */
+  public static void main (String[] args) throws IOException {
+
+    String indexPath = null;
+    String outputPath = null;
+    String fieldList = "body";
+    int iterations = 20;
+    int minDf = 2;
+    int leafSize = 16;
+    int threads = Runtime.getRuntime ().availableProcessors ();
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("-index".equals (args[i])) {
+        indexPath = args[i+1];
+      } else if ("-output".equals (args[i])) {
+        outputPath = args[i+1];
+      } else if ("-fields".equals (args[i])) {
+        fieldList = args[i+1];
+      } else if ("-iterations".equals (args[i])) {
+        iterations = Integer.parseInt (args[i+1]);
+      } else if ("-minDf".equals (args[i])) {
+        minDf = Integer.parseInt (args[i+1]);
+      } else if ("-leafSize".equals (args[i])) {
+        leafSize = Integer.parseInt (args[i+1]);
+      } else if ("-threads".equals (args[i])) {
+        threads = Integer.parseInt (args[i+1]);
+      } else {
+        System.err.println (usage);
+        System.exit (1);
+      }
+    }
+
+    if ((indexPath == null) || (outputPath == null) ||
+        (leafSize < 1) || (threads < 1)) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    Timer timer = new Timer ();
+    timer.start ();
+
+    IndexReader reader =
+      DirectoryReader.open (FSDirectory.open (Paths.get (indexPath)));
+    List<String> fields = Arrays.asList (fieldList.split (","));
+
+    //  The rewriter checks that the documents can be rebuilt before any
+    //  work is done.
+
+    IndexRewriter writer = new IndexRewriter (reader, outputPath);
+
+    //  Order the live documents.
+
+    System.out.println ("Ordering " + indexPath);
+
+    Map<String,Map<String,Integer>> termIds =
+      getTermIds (reader, fields, minDf);
+    int numTerms = 0;
+
+    for (Map<String,Integer> ids : termIds.values ())
+      numTerms += ids.size ();
+
+    int[][] docTerms = getDocTerms (reader, fields, termIds);
+
+    termIds = null;
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+    int[] order = new int[reader.numDocs ()];
+    int n = 0;
+
+    for (int docid = 0; docid < reader.maxDoc (); docid++)
+      if ((liveDocs == null) || liveDocs.get (docid))
+        order[n++] = docid;
+
+    new ForkJoinPool (threads).invoke (
+      new BisectionTask (docTerms, order, 0, order.length,
+                         numTerms, iterations, leafSize));
+
+    docTerms = null;
+
+    //  Write the documents in the new order.
+
+    System.out.println ("Writing " + outputPath);
+
+    for (int docid : order)
+      writer.addDocument (docid, null);
+
+    writer.close ();
+
+    //  Compare the d-gaps of the two indexes.
+
+    IndexReader reordered =
+      DirectoryReader.open (FSDirectory.open (Paths.get (outputPath)));
+
+    System.out.println ("D-gaps of " + fieldList + " postings:");
+    reportGaps ("  before", reader, fields);
+    reportGaps ("  after ", reordered, fields);
+
+    reordered.close ();
+    reader.close ();
+
+    timer.stop ();
+    System.out.println ("Time:  " + timer);
+  }
+
+  /**
+   *  Report the average d-gap of the postings of some fields, and their
+   *  size as variable-byte-encoded docid gaps.
+   *  @param label The label of the report.
+   *  @param reader The index.
+   *  @param fields The fields.
+   *  @throws IOException Error accessing the index.
+   */
+  private static void reportGaps (String label, IndexReader reader,
+                                  List<String> fields)
+    throws IOException {
+
+    long postings = 0;
+    long sumOfGaps = 0;
+    double sumOfLogGaps = 0;
+    long bytes = 0;
+
+    for (String field : fields) {
+      Terms terms = MultiFields.getTerms (reader, field);
+
+      if (terms == null)
+        continue;
+
+      TermsEnum termsEnum = terms.iterator ();
+      PostingsEnum docs = null;
+
+      while (termsEnum.next () != null) {
+        docs = termsEnum.postings (docs, PostingsEnum.NONE);
+
+        int previous = -1;
+        int docid;
+
+        while ((docid = docs.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS) {
+          int gap = docid - previous;
+
+          postings ++;
+          sumOfGaps += gap;
+          sumOfLogGaps += log2 (gap);
+          bytes += (gap < (1 << 7)) ? 1 : (gap < (1 << 14)) ? 2 :
+                   (gap < (1 << 21)) ? 3 : (gap < (1 << 28)) ? 4 : 5;
+          previous = docid;
+        }
+      }
+    }
+
+    System.out.println (String.format (
+      "%s  %d postings, average d-gap %.2f, average log2 d-gap %.3f, %d vbyte bytes",
+      label, postings, (postings > 0) ? (double) sumOfGaps / postings : 0.0,
+      (postings > 0) ? sumOfLogGaps / postings : 0.0, bytes));
+  }
+}
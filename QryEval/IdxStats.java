@@ -0,0 +1,105 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  An immutable snapshot of the collection statistics of an index:
+ *  the number of documents, and for each field the number of documents
+ *  that contain it, its total length, and its average length.  The
+ *  snapshot is taken when the index is opened, so that scoring a
+ *  document doesn't require calls to the Lucene reader.
+ */
+public class IdxStats {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The statistics of one field.
+   */
+  private static class FieldStats {
+    final int docCount;
+    final long sumTotalTermFreq;
+    final double avgLength;
+
+    FieldStats (int docCount, long sumTotalTermFreq) {
+      this.docCount = docCount;
+      this.sumTotalTermFreq = sumTotalTermFreq;
+      this.avgLength = sumTotalTermFreq / (double) docCount;
+    }
+  }
+
+  private static final FieldStats EMPTY_FIELD = new FieldStats (0, 0);
+
+  private final int numDocs;
+  private final Map<String,FieldStats> fields;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Take a snapshot of the statistics of an index.
+   *  @param reader The Lucene index.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public IdxStats (IndexReader reader) throws IOException {
+
+    Map<String,FieldStats> fieldStats = new HashMap<String,FieldStats> ();
+
+    for (String field : MultiFields.getIndexedFields (reader)) {
+      fieldStats.put (field, new FieldStats (reader.getDocCount (field),
+                                             reader.getSumTotalTermFreq (field)));
+    }
+
+    this.numDocs = reader.numDocs ();
+    this.fields = Collections.unmodifiableMap (fieldStats);
+  }
+
+  /**
+   *  Get the average length of the specified field, over the documents
+   *  that contain it.
+   *  @param fieldName The field name.
+   *  @return The average field length.
+   */
+  public double getAverageFieldLength (String fieldName) {
+    return this.getField (fieldName).avgLength;
+  }
+
+  /**
+   *  Get the number of documents that contain the specified field.
+   *  @param fieldName The field name.
+   *  @return The number of documents that contain the field.
+   */
+  public int getDocCount (String fieldName) {
+    return this.getField (fieldName).docCount;
+  }
+
+  /**
+   *  Get the statistics of a field.
+   *  @param fieldName The field name.
+   *  @return The field statistics, which are zero if the field isn't indexed.
+   */
+  private FieldStats getField (String fieldName) {
+    FieldStats f = this.fields.get (fieldName);
+    return (f == null) ? EMPTY_FIELD : f;
+  }
+
+  /**
+   *  Get the total number of documents in the corpus.
+   *  @return The number of documents.
+   */
+  public int getNumDocs () {
+    return this.numDocs;
+  }
+
+  /**
+   *  Get the total length of the specified field in the corpus.
+   *  @param fieldName The field name.
+   *  @return The total number of term occurrences in the field.
+   */
+  public long getSumOfFieldLengths (String fieldName) {
+    return this.getField (fieldName).sumTotalTermFreq;
+  }
+}
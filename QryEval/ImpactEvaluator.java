@@ -0,0 +1,295 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.IntBuffer;
+import java.util.*;
+
+import org.apache.lucene.index.IndexReader;
+
+/**
+ *  ImpactEvaluator evaluates BM25 #SUM queries score-at-a-time on an
+ *  impact-ordered index (see ImpactIndex and IdxImpact), instead of
+ *  scoring every matching document document-at-a-time.
+ *  <p>
+ *  The impact segments of all of the query terms are processed in
+ *  order of decreasing impact, and each posting adds its impact to
+ *  the document's accumulator.  The postings that contribute most to
+ *  the scores come first, so evaluation can stop early (the anytime
+ *  stopping rule):  when a postings budget is set, no segment is
+ *  started after the budget is spent, and the results are the top k
+ *  documents by the partial scores.  With no budget every posting is
+ *  processed, and the results differ from document-at-a-time BM25
+ *  only by quantization.
+ *  </p>
+ *  <p>
+ *  Queries that aren't sums of terms in impact-indexed fields (e.g.,
+ *  queries with #NEAR/n or #WSUM) aren't supported;  evaluate returns
+ *  null for them, so that the caller can evaluate them normally.
+ *  </p>
+ *  <p>
+ *  Each thread that evaluates queries has its own accumulators, so
+ *  queries are evaluated concurrently.  The accumulators are maxDoc
+ *  ints per thread.
+ *  </p>
+ */
+public class ImpactEvaluator {
+
+  //  --------------- Constants and variables ---------------------
+
+  private ImpactIndex impacts;
+  private IndexReader reader;
+  private int topK;
+  private long postingsBudget;
+
+  /**
+   *  The accumulators of one thread.
+   */
+  private static class Accumulators {
+
+    /**
+     *  The accumulators, indexed by docid; -1 for documents that no
+     *  posting of the current query has matched.
+     */
+    private int[] scores;
+
+    /**
+     *  The documents whose accumulators the current query has touched.
+     */
+    private int[] touched = new int[1024];
+    private int numTouched = 0;
+
+    Accumulators (int maxDoc) {
+      this.scores = new int[maxDoc];
+      Arrays.fill (this.scores, -1);
+    }
+  }
+
+  private ThreadLocal<Accumulators> accumulators;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create an evaluator.
+   *  @param impacts The impact-ordered index.
+   *  @param index The index that the impact-ordered index was built from.
+   *  @param topK The number of results, or 0 to return every document
+   *    that matches.
+   *  @param postingsBudget The number of postings after which no more
+   *    segments are started, or 0 to process every posting.
+   *  @throws IllegalArgumentException The impact-ordered index wasn't
+   *    built from this version of the index and its term dictionary.
+   *  @throws IOException Error accessing the term dictionary.
+   */
+  public ImpactEvaluator (ImpactIndex impacts, IndexContext index,
+                          int topK, long postingsBudget)
+    throws IllegalArgumentException, IOException {
+
+    String identity = index.getTermDictionary ().getIdentity ();
+
+    if (! impacts.getDictionaryIdentity ().equals (identity)) {
+      throw new IllegalArgumentException (
+        "The impact index was not built from this index");
+    }
+
+    this.impacts = impacts;
+    this.reader = index.getReader ();
+    this.topK = topK;
+    this.postingsBudget = postingsBudget;
+
+    final int maxDoc = impacts.getMaxDoc ();
+
+    this.accumulators = new ThreadLocal<Accumulators> () {
+        @Override
+        protected Accumulators initialValue () {
+          return new Accumulators (maxDoc);
+        }
+      };
+  }
+
+  /**
+   *  Check that a BM25 model uses the k_1 and b that the impact-ordered
+   *  index was built with.
+   *  @param model The BM25 model.
+   *  @throws IllegalArgumentException The model's parameters don't match.
+   */
+  public void checkModel (RetrievalModelBM25 model)
+    throws IllegalArgumentException {
+
+    if ((model.getK1 () != this.impacts.getK1 ()) ||
+        (model.getB () != this.impacts.getB ())) {
+      throw new IllegalArgumentException (
+        "The impact index was built with k_1=" + this.impacts.getK1 () +
+        " and b=" + this.impacts.getB ());
+    }
+  }
+
+  /**
+   *  Evaluate a query.
+   *  @param q The query, which is parsed but not initialized.
+   *  @param model The BM25 model, which must use the k_1 and b that
+   *    the impact-ordered index was built with.
+   *  @param index The index.
+   *  @return The sorted results, or null if the query isn't supported
+   *    or the index isn't the one that the evaluator was created for
+   *    (e.g., it was refreshed).
+   *  @throws IOException Error accessing the index.
+   *  @throws IllegalArgumentException The model's parameters don't match.
+   */
+  public ScoreList evaluate (Qry q, RetrievalModelBM25 model,
+                             IndexContext index)
+    throws IOException, IllegalArgumentException {
+
+    this.checkModel (model);
+
+    List<QryIopTerm> terms = new ArrayList<QryIopTerm> ();
+
+    if ((index.getReader () != this.reader) || ! this.getTerms (q, terms))
+      return null;
+
+    //  Collect the segments of every term.  A term that occurs twice
+    //  contributes twice, as it does in #SUM.
+
+    List<IntBuffer> buffers = new ArrayList<IntBuffer> ();
+    List<int[]> segments = new ArrayList<int[]> ();
+    int maxScore = 0;
+
+    for (QryIopTerm term : terms) {
+      int termId = term.getTermId ();
+
+      if (termId == QryIopTerm.UNKNOWN_TERMID)
+        termId = index.getTermId (term.getField (), term.getTerm ());
+
+      IntBuffer buffer = this.impacts.getSegments (termId);
+
+      if (buffer == null)
+        continue;
+
+      int segmentCount = buffer.get (0);
+      int position = 1;
+
+      for (int s = 0; s < segmentCount; s++) {
+        int impact = buffer.get (position);
+        int count = buffer.get (position + 1);
+
+        //  { impact, buffer, start of the docids, count }
+
+        segments.add (new int[] { impact, buffers.size (), position + 2, count });
+        position += 2 + count;
+
+        if (s == 0)
+          maxScore += impact;
+      }
+
+      buffers.add (buffer);
+    }
+
+    Collections.sort (segments, new Comparator<int[]> () {
+        public int compare (int[] a, int[] b) {
+          return Integer.compare (b[0], a[0]);
+        }
+      });
+
+    //  Process the segments, highest impact first.
+
+    Accumulators acc = this.accumulators.get ();
+    long processed = 0;
+
+    for (int[] segment : segments) {
+      if ((this.postingsBudget > 0) && (processed >= this.postingsBudget))
+        break;
+
+      int impact = segment[0];
+      IntBuffer buffer = buffers.get (segment[1]);
+      int end = segment[2] + segment[3];
+
+      for (int i = segment[2]; i < end; i++) {
+        int docid = buffer.get (i);
+
+        if (acc.scores[docid] < 0) {
+          if (acc.numTouched == acc.touched.length)
+            acc.touched = Arrays.copyOf (acc.touched, 2 * acc.numTouched);
+
+          acc.touched[acc.numTouched ++] = docid;
+          acc.scores[docid] = 0;
+        }
+
+        acc.scores[docid] += impact;
+      }
+
+      processed += segment[3];
+    }
+
+    //  Accumulators are small integers, so the top k threshold is
+    //  found with a histogram instead of a sort.  Ties at the
+    //  threshold are broken by ScoreList.sort.
+
+    int threshold = 0;
+
+    if ((this.topK > 0) && (acc.numTouched > this.topK)) {
+      int[] counts = new int[maxScore + 1];
+      int n = 0;
+
+      for (int i = 0; i < acc.numTouched; i++)
+        counts[acc.scores[acc.touched[i]]] ++;
+
+      for (threshold = maxScore; threshold > 0; threshold--) {
+        n += counts[threshold];
+
+        if (n >= this.topK)
+          break;
+      }
+    }
+
+    ScoreList r = new ScoreList (index);
+    double scoreUnit = this.impacts.getScoreUnit ();
+
+    for (int i = 0; i < acc.numTouched; i++) {
+      int docid = acc.touched[i];
+
+      if (acc.scores[docid] >= threshold)
+        r.add (docid, acc.scores[docid] * scoreUnit);
+
+      acc.scores[docid] = -1;
+    }
+
+    acc.numTouched = 0;
+
+    r.sort ();
+
+    if (this.topK > 0)
+      r.truncate (this.topK);
+
+    return r;
+  }
+
+  /**
+   *  Collect the terms of a query that is a sum of terms.  Nested
+   *  #SUM operators are flattened, because a sum of sums is a sum.
+   *  @param q A query.
+   *  @param terms Returns the terms.
+   *  @return True if the query is supported.
+   */
+  private boolean getTerms (Qry q, List<QryIopTerm> terms) {
+
+    if (q instanceof QrySopSum) {
+      for (Qry q_i : q.args)
+        if (! this.getTerms (q_i, terms))
+          return false;
+
+      return true;
+    }
+
+    if ((q instanceof QrySopScore) &&
+        (q.args.get (0) instanceof QryIopTerm)) {
+      QryIopTerm term = (QryIopTerm) q.args.get (0);
+
+      if (this.impacts.hasField (term.getField ())) {
+        terms.add (term);
+        return true;
+      }
+    }
+
+    return false;
+  }
+}
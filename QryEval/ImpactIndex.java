@@ -0,0 +1,175 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ *  ImpactIndex provides read-only access to an impact-ordered index,
+ *  which is written by IdxImpact.  Each posting stores a quantized
+ *  BM25 score (its impact) instead of a tf, and each term's postings
+ *  are grouped into segments of equal impact, highest impact first,
+ *  so that ImpactEvaluator can process the postings that matter most
+ *  first.
+ *  <p>
+ *  The index has two files.  IMPACTS_FILE has a header (the version;
+ *  the identity of the TermDictionary that it was built with, see
+ *  TermDictionary.getIdentity; numDocs and maxDoc; the BM25 k_1 and b;
+ *  the number of impact
+ *  levels; the score of one impact level; the fields) and then, for
+ *  each term id of the index's TermDictionary, the offset (long) and
+ *  length (int) of its data in POSTINGS_FILE, in ints.  A term's data
+ *  is a segment count followed by the segments, each of which is an
+ *  impact, a posting count, and that many ascending docids.  Terms
+ *  that aren't in an indexed field have length 0.
+ *  </p>
+ */
+public class ImpactIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  public static final int VERSION = 2;
+  public static final String IMPACTS_FILE = "impacts";
+  public static final String POSTINGS_FILE = "impacts.postings";
+
+  private String dictionaryIdentity;
+  private int numDocs;
+  private int maxDoc;
+  private double k_1;
+  private double b;
+  private int levels;
+  private double scoreUnit;
+  private Set<String> fields = new HashSet<String> ();
+  private long[] offsets;
+  private int[] lengths;
+  private IdxNative.MappedFile postings;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open an impact-ordered index.
+   *  @param path The directory that contains the index.
+   *  @throws IOException Error accessing the index.
+   */
+  public ImpactIndex (String path) throws IOException {
+
+    File directory = new File (path);
+    DataInputStream in = new DataInputStream (new BufferedInputStream (
+      new FileInputStream (new File (directory, IMPACTS_FILE)), 1 << 16));
+
+    try {
+      int version = in.readInt ();
+
+      if (version != VERSION) {
+        throw new IOException ("Unsupported impact index version " + version +
+                               " in " + path);
+      }
+
+      this.dictionaryIdentity = IndexIdentity.read (in);
+      this.numDocs = in.readInt ();
+      this.maxDoc = in.readInt ();
+      this.k_1 = in.readDouble ();
+      this.b = in.readDouble ();
+      this.levels = in.readInt ();
+      this.scoreUnit = in.readDouble ();
+
+      int fieldCount = in.readInt ();
+
+      for (int i = 0; i < fieldCount; i++)
+        this.fields.add (in.readUTF ());
+
+      int numTerms = in.readInt ();
+
+      this.offsets = new long[numTerms];
+      this.lengths = new int[numTerms];
+
+      for (int t = 0; t < numTerms; t++) {
+        this.offsets[t] = in.readLong ();
+        this.lengths[t] = in.readInt ();
+      }
+    } finally {
+      in.close ();
+    }
+
+    this.postings = new IdxNative.MappedFile (new File (directory, POSTINGS_FILE));
+  }
+
+  /**
+   *  @return The BM25 b parameter that the impacts were computed with.
+   */
+  public double getB () {
+    return this.b;
+  }
+
+  /**
+   *  @return The identity of the TermDictionary whose term ids the
+   *    index uses (see TermDictionary.getIdentity).
+   */
+  public String getDictionaryIdentity () {
+    return this.dictionaryIdentity;
+  }
+
+  /**
+   *  @return The BM25 k_1 parameter that the impacts were computed with.
+   */
+  public double getK1 () {
+    return this.k_1;
+  }
+
+  /**
+   *  @return The number of impact levels; impacts are 0 to getLevels.
+   */
+  public int getLevels () {
+    return this.levels;
+  }
+
+  /**
+   *  @return The maxDoc of the Lucene index that the index was built from.
+   */
+  public int getMaxDoc () {
+    return this.maxDoc;
+  }
+
+  /**
+   *  @return The numDocs of the Lucene index that the index was built from.
+   */
+  public int getNumDocs () {
+    return this.numDocs;
+  }
+
+  /**
+   *  Get the BM25 score of one impact level.  A posting's score is
+   *  approximately its impact times this value.
+   *  @return The score of one impact level.
+   */
+  public double getScoreUnit () {
+    return this.scoreUnit;
+  }
+
+  /**
+   *  Get the impact segments of a term, as a read-only view of the
+   *  mapped postings file:  the segment count, followed by the
+   *  segments (impact, count, docids), highest impact first.
+   *  @param termId The term's id in the index's TermDictionary.
+   *  @return The term's segments, or null if it has no postings.
+   *  @throws IOException Error accessing the index.
+   */
+  public IntBuffer getSegments (int termId) throws IOException {
+
+    if ((termId < 0) || (termId >= this.lengths.length) ||
+        (this.lengths[termId] == 0))
+      return null;
+
+    return this.postings.region (4L * this.offsets[termId],
+                                 4L * this.lengths[termId]).asIntBuffer ();
+  }
+
+  /**
+   *  @param fieldName A field name.
+   *  @return True if the field's terms have impacts.
+   */
+  public boolean hasField (String fieldName) {
+    return this.fields.contains (fieldName);
+  }
+}
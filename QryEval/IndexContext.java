@@ -0,0 +1,600 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+
+/**
+ *  An IndexContext is everything that query evaluation needs to know
+ *  about one open index:  the Lucene reader, the document length store,
+ *  collection and term statistics, and the optional native index,
+ *  phrase index, inverted list cache and attribute store.
+ *  <p>
+ *  An IndexContext is immutable, so one context can be shared by any
+ *  number of threads, and queries can be evaluated against different
+ *  indexes at the same time.  Changing an option (e.g., opening a
+ *  native index) creates a new context; see the with* methods.  The
+ *  docid table and the term dictionary are built the first time that
+ *  they are needed, and then shared.
+ *  </p>
+ *  <p>
+ *  Query operators receive the context in Qry.initialize.  The static
+ *  Idx methods are a facade over the current context.
+ *  </p>
+ *  <p>
+ *  When the index changes on disk, Idx.refresh creates a context for
+ *  the new version of the index (see withReader) and replaces the old
+ *  one; contexts that are in use keep working on the old version.
+ *  </p>
+ *  <p>
+ *  A segment context (see getSegments) describes one segment of an
+ *  index.  Its reader is the segment's reader and its document ids are
+ *  relative to the segment, but its statistics are those of the whole
+ *  index, so a query scores a document the same way in a segment
+ *  context as in the index's context.
+ *  </p>
+ */
+public class IndexContext {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String EXTERNAL_ID_FIELD = "externalId";
+
+  /**
+   *  Structures that are built from the reader when they are first
+   *  needed.  Contexts that differ only in unrelated options share
+   *  one instance.
+   */
+  private static class LazyTables {
+
+    private final String docidTablePath;
+    private final String termDictionaryPath;
+    private volatile DocidTable docidTable = null;
+    private volatile TermDictionary termDictionary = null;
+
+    LazyTables (String docidTablePath, String termDictionaryPath) {
+      this.docidTablePath = docidTablePath;
+      this.termDictionaryPath = termDictionaryPath;
+    }
+  }
+
+  //  A context is never modified after the with* method that creates
+  //  it returns, so it is safe to share once it is published.
+
+  private IndexReader reader;
+  private IdxNative nativeIndex = null;
+  private IdxNative phraseIndex = null;
+  private DocLengthStore docLengthStore;
+  private LengthNormTables lengthNorms;
+  private IdxStats stats;
+  private TermStatsCache termStats;
+  private InvListCache invListCache = null;
+  private AttributeStore attributeStore = null;
+  private LazyTables tables;
+  private LeafReaderContext segment = null;
+  private int docBase = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create a context for a Lucene index.
+   *  @param reader The Lucene index.
+   *  @throws IOException Error accessing the index.
+   */
+  public IndexContext (IndexReader reader) throws IOException {
+    this.reader = reader;
+    this.docLengthStore = new DocLengthStore (reader);
+    this.lengthNorms = new LengthNormTables (this);
+    this.stats = new IdxStats (reader);
+    this.termStats = new TermStatsCache (reader, null);
+    this.tables = new LazyTables (null, null);
+  }
+
+  /**
+   *  Create a copy of a context, which a with* method then changes.
+   *  @param other The context to copy.
+   */
+  private IndexContext (IndexContext other) {
+    this.reader = other.reader;
+    this.nativeIndex = other.nativeIndex;
+    this.phraseIndex = other.phraseIndex;
+    this.docLengthStore = other.docLengthStore;
+    this.lengthNorms = other.lengthNorms;
+    this.stats = other.stats;
+    this.termStats = other.termStats;
+    this.invListCache = other.invListCache;
+    this.attributeStore = other.attributeStore;
+    this.tables = other.tables;
+    this.segment = other.segment;
+    this.docBase = other.docBase;
+  }
+
+  /**
+   *  Get the specified attribute from the specified document.
+   *  @param attributeName Name of attribute
+   *  @param docid The internal docid in the lucene index.
+   *  @return the attribute value
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getAttribute (String attributeName, int docid)
+    throws IOException {
+
+    Document d = this.getReader ().document (docid);
+    return d.get (attributeName);
+  }
+
+  /**
+   *  Get the columnar attribute store.
+   *  @return the attribute store, or null if there isn't one.
+   */
+  public AttributeStore getAttributeStore () {
+    return this.attributeStore;
+  }
+
+  /**
+   *  Get the average length of the specified field, over the documents
+   *  that contain the field.
+   *  @param fieldName The field name.
+   *  @return The average field length.
+   */
+  public double getAverageFieldLength (String fieldName) {
+    return this.stats.getAverageFieldLength (fieldName);
+  }
+
+  /**
+   *  Get the number of documents that contain the specified field.
+   *  @param fieldName the field name
+   *  @return the number of documents that contain the field
+   */
+  public int getDocCount (String fieldName) {
+    return this.stats.getDocCount (fieldName);
+  }
+
+  /**
+   *  Get the document frequency (df) of a term in a field.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The number of documents that contain the term in the field.
+   *  @throws IOException Error accessing the index.
+   */
+  public int getDocFreq (String fieldName, String term) throws IOException {
+    return this.termStats.get (fieldName, term).df;
+  }
+
+  /**
+   *  Get the docid table, building or loading it if this is the first
+   *  time that it is needed.
+   *  @return the docid table
+   *  @throws IOException Error accessing the index.
+   */
+  private DocidTable getDocidTable () throws IOException {
+
+    //  Every scored document needs its external id ordinal, from every
+    //  segment thread, so once the table is loaded it is read without
+    //  taking the lock.
+
+    DocidTable table = this.tables.docidTable;
+
+    if (table != null)
+      return table;
+
+    synchronized (this.tables) {
+      if (this.tables.docidTable == null) {
+        this.tables.docidTable = DocidTable.open (
+          this.reader, EXTERNAL_ID_FIELD, this.tables.docidTablePath);
+      }
+
+      return this.tables.docidTable;
+    }
+  }
+
+  /**
+   *  Get the external document id of a document.
+   *  @param iid The internal document id of the document.
+   *  @return the external document id
+   *  @throws IOException Error accessing the index.
+   */
+  public String getExternalDocid (int iid) throws IOException {
+    return this.getDocidTable ().getExternalDocid (this.docBase + iid);
+  }
+
+  /**
+   *  Get the rank of a document's external id when the external ids
+   *  of the corpus are sorted.
+   *  @param iid The internal document id of the document.
+   *  @return the external id ordinal
+   *  @throws IOException Error accessing the index.
+   */
+  public int getExternalDocidOrdinal (int iid) throws IOException {
+    return this.getDocidTable ().getExternalDocidOrdinal (this.docBase + iid);
+  }
+
+  /**
+   *  Get the length of the specified field in the specified document.
+   *  @param fieldName Name of field to access lengths.
+   *  @param docid The internal docid in the Lucene index.
+   *  @return the length of the field, including stopword positions.
+   *  @throws IOException Error accessing the index.
+   */
+  public int getFieldLength (String fieldName, int docid) throws IOException {
+    return (int) this.docLengthStore.getDocLength (fieldName, this.docBase + docid);
+  }
+
+  /**
+   *  Get the length of the specified field in the specified document.
+   *  @param fieldOrdinal The ordinal of the field (see getFieldOrdinal).
+   *  @param docid The internal docid in the Lucene index.
+   *  @return the length of the field, including stopword positions.
+   *  @throws IOException Error accessing the index.
+   */
+  public int getFieldLength (int fieldOrdinal, int docid) throws IOException {
+    return (int) this.docLengthStore.getDocLength (fieldOrdinal, this.docBase + docid);
+  }
+
+  /**
+   *  Get the ordinal of a field, which getFieldLength accepts instead
+   *  of the field name.
+   *  @param fieldName The field name.
+   *  @return the field ordinal
+   *  @throws IllegalArgumentException The field isn't indexed.
+   */
+  public int getFieldOrdinal (String fieldName)
+    throws IllegalArgumentException {
+    return this.docLengthStore.getFieldOrdinal (fieldName);
+  }
+
+  /**
+   *  Get the document id base of a segment context.
+   *  @return The whole-index docid of the segment's first document, or
+   *    0 if this isn't a segment context.
+   */
+  public int getDocBase () {
+    return this.docBase;
+  }
+
+  /**
+   *  Get the internal document id of a document.  In a segment context
+   *  the docid is relative to the segment, even if the document is in
+   *  another segment.
+   *  @param externalId The external docid.
+   *  @return the internal docid.
+   *  @throws Exception The external id matches no document, or several.
+   */
+  public int getInternalDocid (String externalId) throws Exception {
+    return this.getDocidTable ().getInternalDocid (externalId) - this.docBase;
+  }
+
+  /**
+   *  Get the inverted list of a term, optionally without positions.
+   *  Inverted lists from a native index or the inverted list cache
+   *  always have positions, because they cost nothing extra there.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldName The field that the term occurs in.
+   *  @param withPositions False if the caller only needs docids and tfs.
+   *  @return The inverted list.
+   *  @throws IOException Error accessing the index.
+   */
+  public InvList getInvList (String term, String fieldName,
+                             boolean withPositions)
+    throws IOException {
+
+    if ((this.nativeIndex != null) && this.nativeIndex.hasField (fieldName))
+      return this.nativeIndex.getInvList (term, fieldName);
+
+    if (this.invListCache != null)
+      return this.invListCache.getInvList (this, term, fieldName);
+
+    return new InvList (this, term, fieldName, withPositions);
+  }
+
+  /**
+   *  Get the inverted list cache.
+   *  @return The cache, or null if there isn't one.
+   */
+  public InvListCache getInvListCache () {
+    return this.invListCache;
+  }
+
+  /**
+   *  Get the length normalization tables of the BM25 and Indri
+   *  retrieval models.  They are shared by the contexts that have the
+   *  same field lengths, including segment contexts, and are indexed
+   *  by whole-index docid.
+   *  @return The tables.
+   */
+  public LengthNormTables getLengthNormTables () {
+    return this.lengthNorms;
+  }
+
+  /**
+   *  Get the native index.
+   *  @return The native index, or null if there isn't one.
+   */
+  public IdxNative getNativeIndex () {
+    return this.nativeIndex;
+  }
+
+  /**
+   *  Get the phrase index, which has the #NEAR/1 inverted lists of
+   *  frequent term pairs (see IdxPhrase).
+   *  @return The phrase index, or null if there isn't one.
+   */
+  public IdxNative getPhraseIndex () {
+    return this.phraseIndex;
+  }
+
+  /**
+   *  Get the total number of documents in the corpus.
+   *  @return The total number of documents.
+   */
+  public long getNumDocs () {
+    return this.stats.getNumDocs ();
+  }
+
+  /**
+   *  Get the Lucene index.
+   *  @return The index reader, or the segment's reader in a segment context.
+   */
+  public IndexReader getReader () {
+    return (this.segment == null) ? this.reader : this.segment.reader ();
+  }
+
+  /**
+   *  Get a context for each segment of the index, so that a query can
+   *  be evaluated on the segments independently.  Segment contexts
+   *  don't have a native index, phrase index, inverted list cache or
+   *  attribute store, because those are addressed by whole-index
+   *  docids.  An index that
+   *  has one segment, a native index or an inverted list cache is
+   *  evaluated as a whole, so its only "segment" is this context.
+   *  @return The segment contexts, in docid order.
+   */
+  public List<IndexContext> getSegments () {
+
+    List<IndexContext> segments = new ArrayList<IndexContext> ();
+    List<LeafReaderContext> leaves = this.reader.leaves ();
+
+    if ((leaves.size () < 2) || (this.segment != null) ||
+        (this.nativeIndex != null) || (this.invListCache != null)) {
+      segments.add (this);
+      return segments;
+    }
+
+    for (LeafReaderContext leaf : leaves) {
+      IndexContext c = new IndexContext (this);
+      c.attributeStore = null;
+      c.phraseIndex = null;
+      c.segment = leaf;
+      c.docBase = leaf.docBase;
+      segments.add (c);
+    }
+
+    return segments;
+  }
+
+  /**
+   *  Get the total number of term occurrences in all instances of the
+   *  specified field in the corpus.
+   *  @param fieldName The field name.
+   *  @return The total number of term occurrences.
+   */
+  public long getSumOfFieldLengths (String fieldName) {
+    return this.stats.getSumOfFieldLengths (fieldName);
+  }
+
+  /**
+   *  Get the term dictionary, building or loading it if this is the
+   *  first time that it is needed.
+   *  @return The term dictionary.
+   *  @throws IOException Error accessing the index.
+   */
+  public TermDictionary getTermDictionary () throws IOException {
+
+    TermDictionary dictionary = this.tables.termDictionary;
+
+    if (dictionary != null)
+      return dictionary;
+
+    synchronized (this.tables) {
+      if (this.tables.termDictionary == null) {
+        this.tables.termDictionary =
+          TermDictionary.open (this.reader, this.tables.termDictionaryPath);
+      }
+
+      return this.tables.termDictionary;
+    }
+  }
+
+  /**
+   *  Get the term id of a term in the term dictionary.
+   *  @param fieldName The field name.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return The term id, or -1 if the term doesn't occur in the field.
+   *  @throws IOException Error accessing the index.
+   */
+  public int getTermId (String fieldName, String term) throws IOException {
+    return this.getTermDictionary ().getTermId (fieldName, term);
+  }
+
+  /**
+   *  Returns true if the term dictionary is available without building
+   *  it just for the caller:  it is already open, or it is saved in
+   *  (or will be saved to) a file.  Code that only needs a few terms'
+   *  statistics can use string lookups when it isn't.
+   *  @return True if the term dictionary is available.
+   */
+  public boolean hasTermDictionary () {
+    return (this.tables.termDictionary != null) ||
+           (this.tables.termDictionaryPath != null);
+  }
+
+  /**
+   *  Get the term id of a query term, if the term dictionary is
+   *  available without building it in memory:  it is already open,
+   *  or it is saved in (or will be saved to) a file.  Parsing a query
+   *  doesn't build the whole dictionary just to resolve a few terms;
+   *  operators that need an unresolved id look it up with getTermId.
+   *  @param fieldName The field name.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return The term id, -1 if the term doesn't occur in the field,
+   *    or QryIopTerm.UNKNOWN_TERMID if it wasn't resolved.
+   *  @throws IOException Error accessing the index.
+   */
+  public int getQueryTermId (String fieldName, String term)
+    throws IOException {
+
+    if (! this.hasTermDictionary ())
+      return QryIopTerm.UNKNOWN_TERMID;
+
+    TermDictionary dictionary = this.getTermDictionary ();
+
+    if (dictionary.getFieldBase (fieldName) < 0)
+      return QryIopTerm.UNKNOWN_TERMID;
+
+    return dictionary.getTermId (fieldName, term);
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of a term in a field.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The total number of term occurrences.
+   *  @throws IOException Error accessing the index.
+   */
+  public long getTotalTermFreq (String fieldName, String term)
+    throws IOException {
+    return this.termStats.get (fieldName, term).ctf;
+  }
+
+  /**
+   *  Get a context that also has a columnar attribute store.
+   *  @param store The attribute store.
+   *  @return The new context.
+   */
+  public IndexContext withAttributeStore (AttributeStore store) {
+    IndexContext c = new IndexContext (this);
+    c.attributeStore = store;
+    return c;
+  }
+
+  /**
+   *  Get a context whose docid table is loaded from (or saved to) a
+   *  sidecar file.
+   *  @param path The sidecar file.
+   *  @return The new context.
+   */
+  public IndexContext withDocidTablePath (String path) {
+    IndexContext c = new IndexContext (this);
+    c.tables = new LazyTables (path, this.tables.termDictionaryPath);
+    return c;
+  }
+
+  /**
+   *  Get a context whose field lengths are memory-mapped from sidecar
+   *  files in a directory.  Fields that the native index has are still
+   *  served from the native index.
+   *  @param path The sidecar directory.
+   *  @return The new context.
+   *  @throws IOException Error accessing the index, or the directory
+   *    can't be created.
+   */
+  public IndexContext withDocLengthsPath (String path) throws IOException {
+    IndexContext c = new IndexContext (this);
+    c.docLengthStore = new DocLengthStore (this.reader, this.nativeIndex);
+    c.docLengthStore.setSidecarDirectory (path);
+    c.lengthNorms = new LengthNormTables (c);
+    return c;
+  }
+
+  /**
+   *  Get a context that caches inverted lists.
+   *  @param cache The cache, or null for no cache.
+   *  @return The new context.
+   */
+  public IndexContext withInvListCache (InvListCache cache) {
+    IndexContext c = new IndexContext (this);
+    c.invListCache = cache;
+    return c;
+  }
+
+  /**
+   *  Get a context that serves inverted lists, field lengths and
+   *  statistics from a native index.
+   *  @param nativeIndex A native index exported from this index.
+   *  @return The new context.
+   *  @throws IOException Error accessing the index.
+   */
+  public IndexContext withNativeIndex (IdxNative nativeIndex)
+    throws IOException {
+    IndexContext c = new IndexContext (this);
+    c.nativeIndex = nativeIndex;
+    c.docLengthStore = new DocLengthStore (this.reader, nativeIndex);
+    c.lengthNorms = new LengthNormTables (c);
+    c.termStats = new TermStatsCache (this.reader, nativeIndex);
+    return c;
+  }
+
+  /**
+   *  Get a context that reads the inverted lists of #NEAR/1 operators
+   *  over frequent term pairs from a phrase index.
+   *  @param phraseIndex A phrase index built from this index.
+   *  @return The new context.
+   */
+  public IndexContext withPhraseIndex (IdxNative phraseIndex) {
+    IndexContext c = new IndexContext (this);
+    c.phraseIndex = phraseIndex;
+    return c;
+  }
+
+  /**
+   *  Get a context for a newer version of this index, e.g., a reader
+   *  from DirectoryReader.openIfChanged.  The new context has the same
+   *  options, but new statistics, an empty term statistics cache and
+   *  an empty inverted list cache, and builds the docid table and the
+   *  term dictionary again when they are needed.  Field lengths are
+   *  carried over for the segments that the versions share (see
+   *  DocLengthStore).  The attribute store is opened again for the new
+   *  version, which rebuilds it (see AttributeStore.open).  The native
+   *  and phrase indexes are addressed by the old version's docids and
+   *  can only be rebuilt offline, so the new context doesn't have them.
+   *  @param reader The newer version of this index.  This context's
+   *    reader must still be open.
+   *  @return The new context.
+   *  @throws IOException Error accessing the index.
+   */
+  public IndexContext withReader (IndexReader reader) throws IOException {
+    IndexContext c = new IndexContext (this);
+    c.reader = reader;
+    c.nativeIndex = null;
+    c.phraseIndex = null;
+    c.docLengthStore = new DocLengthStore (reader, this.docLengthStore);
+    c.lengthNorms = new LengthNormTables (c);
+    c.stats = new IdxStats (reader);
+    c.termStats = new TermStatsCache (reader, null);
+    c.tables = new LazyTables (this.tables.docidTablePath,
+                               this.tables.termDictionaryPath);
+
+    if (this.invListCache != null)
+      c.invListCache = this.invListCache.emptyCopy ();
+
+    if (this.attributeStore != null)
+      c.attributeStore = AttributeStore.open (reader, this.attributeStore.getPath ());
+
+    return c;
+  }
+
+  /**
+   *  Get a context whose term dictionary is mapped from (or saved to)
+   *  a file.
+   *  @param path The dictionary file.
+   *  @return The new context.
+   */
+  public IndexContext withTermDictionaryPath (String path) {
+    IndexContext c = new IndexContext (this);
+    c.tables = new LazyTables (this.tables.docidTablePath, path);
+    return c;
+  }
+}
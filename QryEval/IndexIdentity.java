@@ -0,0 +1,168 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ *  IndexIdentity identifies one version of a Lucene index, so that the
+ *  files that are built from an index (term dictionaries, docid tables,
+ *  field length and attribute sidecars, bitmap and impact indexes) can
+ *  tell whether they were built from the version that is open now.
+ *  Comparing maxDoc isn't enough:  an index that is rebuilt, or that
+ *  has documents deleted and added, can have the same maxDoc.
+ *  <p>
+ *  The identity of an index is its maxDoc and, for each segment, the
+ *  segment's unique id and deletion generation.  Lucene gives every
+ *  segment a new random id when it is written, so two indexes (or two
+ *  versions of one index) have the same identity only if they have the
+ *  same segments with the same deletions.
+ *  </p>
+ *  <p>
+ *  Files that have a header store the identity in it.  Files that are
+ *  plain arrays have a stamp file next to them that holds the identity
+ *  of the index that they were built from.
+ *  </p>
+ */
+public class IndexIdentity {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The suffix of a stamp file.
+   */
+  public static final String STAMP_SUFFIX = ".id";
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Get the identity of an index.
+   *  @param reader The index.
+   *  @return The identity.
+   */
+  public static String of (IndexReader reader) {
+
+    StringBuilder identity = new StringBuilder ();
+
+    identity.append (reader.maxDoc ());
+
+    for (LeafReaderContext leaf : reader.leaves ()) {
+      identity.append (',');
+
+      if (leaf.reader () instanceof SegmentReader) {
+        SegmentCommitInfo info =
+          ((SegmentReader) leaf.reader ()).getSegmentInfo ();
+
+        identity.append (StringHelper.idToString (info.info.getId ()));
+        identity.append ('.');
+        identity.append (info.getDelGen ());
+      } else {
+
+        //  A reader that isn't a segment doesn't have an id, so the
+        //  best that can be done is its size.
+
+        identity.append (leaf.reader ().maxDoc ());
+        identity.append ('/');
+        identity.append (leaf.reader ().numDocs ());
+      }
+    }
+
+    return identity.toString ();
+  }
+
+  /**
+   *  Returns true if a file was built from a version of an index.
+   *  @param file The file.
+   *  @param identity The identity of the index.
+   *  @return True if the file and its stamp file exist, and the stamp
+   *    matches the identity.
+   *  @throws IOException Error reading the stamp file.
+   */
+  public static boolean isStamped (File file, String identity)
+    throws IOException {
+
+    File stamp = new File (file.getPath () + STAMP_SUFFIX);
+
+    if (! file.exists () || ! stamp.exists ())
+      return false;
+
+    DataInputStream in = new DataInputStream (new BufferedInputStream (
+      new FileInputStream (stamp)));
+
+    try {
+      return identity.equals (read (in));
+    } catch (EOFException e) {
+      return false;
+    } finally {
+      in.close ();
+    }
+  }
+
+  /**
+   *  Read an identity that was written by write.
+   *  @param in The input stream.
+   *  @return The identity.
+   *  @throws IOException Error reading the stream.
+   */
+  public static String read (DataInput in) throws IOException {
+
+    byte[] bytes = new byte[in.readInt ()];
+
+    in.readFully (bytes);
+    return new String (bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Record that a file was built from a version of an index, by
+   *  writing its stamp file.  Write the file first, and remove the
+   *  stamp file (see unstamp) before the file is rebuilt, so that a
+   *  partly built file never has a valid stamp.
+   *  @param file The file.
+   *  @param identity The identity of the index.
+   *  @throws IOException Error writing the stamp file.
+   */
+  public static void stamp (File file, String identity) throws IOException {
+
+    File stamp = new File (file.getPath () + STAMP_SUFFIX);
+    File tmp = new File (stamp.getPath () + ".tmp");
+    DataOutputStream out = new DataOutputStream (new BufferedOutputStream (
+      new FileOutputStream (tmp)));
+
+    try {
+      write (out, identity);
+    } finally {
+      out.close ();
+    }
+
+    if (! tmp.renameTo (stamp)) {
+      throw new IOException ("Can't rename " + tmp + " to " + stamp);
+    }
+  }
+
+  /**
+   *  Remove the stamp file of a file, if it has one.
+   *  @param file The file.
+   */
+  public static void unstamp (File file) {
+    new File (file.getPath () + STAMP_SUFFIX).delete ();
+  }
+
+  /**
+   *  Write an identity.  The length is an int, because an index with
+   *  many segments can have an identity that is too long for writeUTF.
+   *  @param out The output stream.
+   *  @param identity The identity.
+   *  @throws IOException Error writing the stream.
+   */
+  public static void write (DataOutput out, String identity)
+    throws IOException {
+
+    byte[] bytes = identity.getBytes (StandardCharsets.UTF_8);
+
+    out.writeInt (bytes.length);
+    out.write (bytes);
+  }
+}
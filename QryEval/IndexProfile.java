@@ -0,0 +1,626 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  IndexProfile reports aggregate statistics of a Lucene index that
+ *  are useful for sizing caches and choosing which terms deserve
+ *  special postings.  InspectIndex runs it (-profile and
+ *  -profile-queries).
+ *  <p>
+ *  Each field (except the external id field) is scanned by its own
+ *  thread.  For each field it reports:
+ *  </p>
+ *  <ul>
+ *  <li>the distribution of posting list lengths (df), in powers of 2,
+ *      as a number of terms and a share of the field's postings;</li>
+ *  <li>the distribution of position counts (tf) over postings;</li>
+ *  <li>the distribution of document lengths, from the norms;</li>
+ *  <li>the share of postings, and the estimated in-memory size of
+ *      their inverted lists (see InvListCache.estimateSize), that the
+ *      top N terms by df hold;</li>
+ *  <li>the terms dense enough for bitmap containers (see DocSet);
+ *      and</li>
+ *  <li>the TOP_TERMS terms with the longest posting lists.</li>
+ *  </ul>
+ *  <p>
+ *  A query log (qid:query lines, as for queryFilePath) adds an estimate
+ *  of the queries' working set:  the size of the inverted lists of
+ *  their distinct terms, per query and in total; how much of the
+ *  log's term occurrences the N most queried terms cover, and their
+ *  size; and the most queried #NEAR/1 term pairs, which are candidates
+ *  for a phrase index (see IdxPhrase).
+ *  </p>
+ */
+public class IndexProfile {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The numbers of top terms whose cumulative shares are reported.
+   */
+  public static final int[] TOP_N = { 10, 100, 1000, 10000, 100000 };
+
+  /**
+   *  The number of terms and phrases that are listed.
+   */
+  public static final int TOP_TERMS = 20;
+
+  private static final String EXTERNAL_ID_FIELD = "externalId";
+
+  /**
+   *  A histogram with a bucket for 0 and for each power of 2.
+   */
+  private static class Histogram {
+
+    private long[] counts = new long[65];
+    private long[] weights = new long[65];
+
+    /**
+     *  @param value A value.
+     *  @param weight The value's weight.
+     */
+    void add (long value, long weight) {
+      int b = 64 - Long.numberOfLeadingZeros (value);
+      this.counts[b] ++;
+      this.weights[b] += weight;
+    }
+
+    /**
+     *  Print the non-empty buckets.
+     *  @param name The name of the values.
+     *  @param countName The name of what is counted.
+     *  @param weightName The name of the weights, or null.
+     */
+    void print (String name, String countName, String weightName) {
+
+      long count = 0;
+      long weight = 0;
+
+      for (int b = 0; b < this.counts.length; b++) {
+        count += this.counts[b];
+        weight += this.weights[b];
+      }
+
+      for (int b = 0; b < this.counts.length; b++) {
+        if (this.counts[b] == 0)
+          continue;
+
+        String range = (b <= 1) ? Integer.toString (b) :
+          (1L << (b - 1)) + "-" + ((1L << b) - 1);
+        StringBuilder line = new StringBuilder (String.format (
+          "      %s %-21s %12d %s (%5.1f%%)", name, range, this.counts[b],
+          countName, percent (this.counts[b], count)));
+
+        if (weightName != null) {
+          line.append (String.format (", %14d %s (%5.1f%%)", this.weights[b],
+                                      weightName,
+                                      percent (this.weights[b], weight)));
+        }
+
+        System.out.println (line);
+      }
+    }
+  }
+
+  /**
+   *  A term and its statistics.
+   */
+  private static class TermStats {
+
+    private final String term;
+    private final int df;
+    private final long ctf;
+
+    TermStats (String term, int df, long ctf) {
+      this.term = term;
+      this.df = df;
+      this.ctf = ctf;
+    }
+  }
+
+  /**
+   *  The profile of one field.
+   */
+  private static class FieldProfile {
+
+    private String field;
+    private int numTerms = 0;
+    private long numPostings = 0;
+    private long numPositions = 0;
+    private Histogram dfs = new Histogram ();
+    private Histogram tfs = new Histogram ();
+    private Histogram lengths = new Histogram ();
+    private int[] sortedLengths = null;
+    private long sumLengths = 0;
+
+    //  The (df, term number) of each term, in descending df order, and
+    //  the ctf of each term number.
+
+    private long[] dfKeys;
+    private long[] ctfs;
+
+    private int numDense = 0;
+    private long densePostings = 0;
+    private List<TermStats> topTerms = new ArrayList<TermStats> ();
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Profile an index, and print a report.
+   *  @param reader The index.
+   *  @param queryFilePath A query log, or null.
+   *  @throws Exception Error accessing the index or the query log.
+   */
+  public static void profile (IndexReader reader, String queryFilePath)
+    throws Exception {
+
+    List<String> fields = new ArrayList<String> ();
+
+    for (String field : MultiFields.getFields (reader)) {
+      if (! EXTERNAL_ID_FIELD.equals (field))
+        fields.add (field);
+    }
+
+    System.out.println ("\nIndex profile:  " + reader.numDocs () +
+                        " documents, maxDoc " + reader.maxDoc () +
+                        ", " + fields.size () + " fields");
+
+    //  Scan the fields in parallel, and report them in order.
+
+    int numThreads =
+      Math.max (1, Math.min (fields.size (),
+                             Runtime.getRuntime ().availableProcessors ()));
+    ExecutorService pool = Executors.newFixedThreadPool (numThreads);
+    List<Future<FieldProfile>> profiles = new ArrayList<Future<FieldProfile>> ();
+
+    try {
+      for (final String field : fields) {
+        profiles.add (pool.submit (new Callable<FieldProfile> () {
+          public FieldProfile call () throws IOException {
+            return profileField (reader, field);
+          }
+        }));
+      }
+
+      for (Future<FieldProfile> profile : profiles)
+        printField (reader, profile.get ());
+    } finally {
+      pool.shutdown ();
+    }
+
+    if (queryFilePath != null)
+      profileQueries (reader, queryFilePath);
+  }
+
+  /**
+   *  @param x A count.
+   *  @param total The total count.
+   *  @return x as a percentage of total.
+   */
+  private static double percent (double x, double total) {
+    return (total == 0) ? 0 : 100 * x / total;
+  }
+
+  /**
+   *  Print a field's profile.
+   *  @param reader The index.
+   *  @param p The field's profile.
+   */
+  private static void printField (IndexReader reader, FieldProfile p) {
+
+    System.out.println ("\nField " + p.field + ":  " + p.numTerms +
+                        " terms, " + p.numPostings + " postings, " +
+                        p.numPositions + " positions");
+
+    if (p.numTerms == 0)
+      return;
+
+    System.out.println ("    Posting list lengths:");
+    p.dfs.print ("df", "terms", "postings");
+
+    System.out.println ("    Positions per posting:");
+    p.tfs.print ("tf", "postings", "positions");
+
+    if (p.sortedLengths != null) {
+      int[] len = p.sortedLengths;
+      int n = len.length;
+
+      System.out.println (String.format (
+        "    Document lengths (%d documents with the field):  mean %.1f," +
+        " median %d, p90 %d, p99 %d, max %d", n,
+        (n == 0) ? 0.0 : p.sumLengths / (double) n,
+        (n == 0) ? 0 : len[n / 2], (n == 0) ? 0 : len[(int) (0.9 * (n - 1))],
+        (n == 0) ? 0 : len[(int) (0.99 * (n - 1))], (n == 0) ? 0 : len[n - 1]));
+      p.lengths.print ("length", "documents", null);
+    } else {
+      System.out.println ("    Document lengths:  the field has no norms");
+    }
+
+    //  Cumulative shares of the top terms.
+
+    System.out.println ("    Top terms by df:");
+
+    long postings = 0;
+    long bytes = 0;
+    int next = 0;
+
+    for (int i = 0; i < p.dfKeys.length; i++) {
+      int df = (int) (p.dfKeys[i] >>> 32);
+      int t = (int) p.dfKeys[i];
+
+      postings += df;
+      bytes += InvListCache.estimateSize (df, p.ctfs[t]);
+
+      boolean last = (i == p.dfKeys.length - 1);
+
+      if (((next < TOP_N.length) && (i + 1 == TOP_N[next])) || last) {
+        System.out.println (String.format (
+          "      top %-9d %5.1f%% of postings, InvLists %s", i + 1,
+          percent (postings, p.numPostings), formatBytes (bytes)));
+
+        while ((next < TOP_N.length) && (TOP_N[next] <= i + 1))
+          next ++;
+      }
+    }
+
+    System.out.println (String.format (
+      "    Bitmap candidates (df > %d):  %d terms, %.1f%% of postings",
+      bitmapThreshold (reader), p.numDense,
+      percent (p.densePostings, p.numPostings)));
+
+    System.out.println ("    Longest posting lists:");
+
+    for (TermStats t : p.topTerms) {
+      System.out.println (String.format (
+        "      %-30s df %10d  ctf %12d  InvList %s", t.term, t.df, t.ctf,
+        formatBytes (InvListCache.estimateSize (t.df, t.ctf))));
+    }
+  }
+
+  /**
+   *  @param reader The index.
+   *  @return The df above which a term's DocSet is mostly bitmaps,
+   *    i.e., above which it averages more than DocSet.ARRAY_MAX docids
+   *    per 65536 documents.
+   */
+  private static long bitmapThreshold (IndexReader reader) {
+    return ((long) reader.maxDoc () * DocSet.ARRAY_MAX) >> 16;
+  }
+
+  /**
+   *  @param bytes A number of bytes.
+   *  @return The number, in readable units.
+   */
+  private static String formatBytes (long bytes) {
+    if (bytes < 1024)
+      return bytes + " B";
+    else if (bytes < 1024L * 1024)
+      return String.format ("%.1f KB", bytes / 1024.0);
+    else if (bytes < 1024L * 1024 * 1024)
+      return String.format ("%.1f MB", bytes / (1024.0 * 1024));
+    else
+      return String.format ("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+  }
+
+  /**
+   *  Scan a field's terms, postings and norms.
+   *  @param reader The index.
+   *  @param field The field.
+   *  @return The field's profile.
+   *  @throws IOException Error accessing the index.
+   */
+  private static FieldProfile profileField (IndexReader reader, String field)
+    throws IOException {
+
+    FieldProfile p = new FieldProfile ();
+    long dense = bitmapThreshold (reader);
+
+    p.field = field;
+
+    //  Terms and postings.
+
+    Terms terms = MultiFields.getTerms (reader, field);
+    long[] dfKeys = new long[1024];
+    long[] ctfs = new long[1024];
+    PriorityQueue<TermStats> top = new PriorityQueue<TermStats> (
+      TOP_TERMS + 1, new Comparator<TermStats> () {
+        public int compare (TermStats a, TermStats b) {
+          return Integer.compare (a.df, b.df);
+        }
+      });
+
+    if (terms != null) {
+      TermsEnum termsEnum = terms.iterator ();
+      PostingsEnum postings = null;
+      BytesRef termBytes;
+
+      while ((termBytes = termsEnum.next ()) != null) {
+        int df = termsEnum.docFreq ();
+        long ctf = termsEnum.totalTermFreq ();
+
+        if (p.numTerms == dfKeys.length) {
+          dfKeys = Arrays.copyOf (dfKeys, 2 * p.numTerms);
+          ctfs = Arrays.copyOf (ctfs, 2 * p.numTerms);
+        }
+
+        dfKeys[p.numTerms] = ((long) df << 32) | p.numTerms;
+        ctfs[p.numTerms] = ctf;
+        p.numTerms ++;
+        p.numPostings += df;
+        p.dfs.add (df, df);
+
+        if (df > dense) {
+          p.numDense ++;
+          p.densePostings += df;
+        }
+
+        if ((top.size () < TOP_TERMS) || (df > top.peek ().df)) {
+          top.add (new TermStats (termBytes.utf8ToString (), df, ctf));
+
+          if (top.size () > TOP_TERMS)
+            top.poll ();
+        }
+
+        postings = termsEnum.postings (postings, PostingsEnum.FREQS);
+
+        while (postings.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+          int tf = postings.freq ();
+
+          p.numPositions += tf;
+          p.tfs.add (tf, tf);
+        }
+      }
+    }
+
+    //  Sort the terms by descending df.
+
+    p.dfKeys = Arrays.copyOf (dfKeys, p.numTerms);
+    p.ctfs = ctfs;
+    Arrays.sort (p.dfKeys);
+
+    for (int i = 0, j = p.numTerms - 1; i < j; i++, j--) {
+      long k = p.dfKeys[i];
+      p.dfKeys[i] = p.dfKeys[j];
+      p.dfKeys[j] = k;
+    }
+
+    p.topTerms.addAll (top);
+    Collections.sort (p.topTerms, new Comparator<TermStats> () {
+      public int compare (TermStats a, TermStats b) {
+        return Integer.compare (b.df, a.df);
+      }
+    });
+
+    //  Document lengths.
+
+    NumericDocValues norms = MultiDocValues.getNormValues (reader, field);
+
+    if (norms != null) {
+      int[] lengths = new int[reader.maxDoc ()];
+      int n = 0;
+
+      for (int docid = 0; docid < lengths.length; docid++) {
+        int length = (int) norms.get (docid);
+
+        if (length > 0) {
+          lengths[n++] = length;
+          p.sumLengths += length;
+          p.lengths.add (length, length);
+        }
+      }
+
+      p.sortedLengths = Arrays.copyOf (lengths, n);
+      Arrays.sort (p.sortedLengths);
+    }
+
+    return p;
+  }
+
+  /**
+   *  Estimate the working set of a query log, and print a report.
+   *  @param reader The index.
+   *  @param queryFilePath The query log.
+   *  @throws Exception Error accessing the index or the query log.
+   */
+  private static void profileQueries (IndexReader reader, String queryFilePath)
+    throws Exception {
+
+    IndexContext index = new IndexContext (reader);
+    final Map<String, Integer> counts = new HashMap<String, Integer> ();
+    final Map<String, Integer> phrases = new HashMap<String, Integer> ();
+    Map<String, Integer> dfs = new HashMap<String, Integer> ();
+    Map<String, Long> sizes = new HashMap<String, Long> ();
+    int numQueries = 0;
+    int numSkipped = 0;
+    long occurrences = 0;
+    long sumQueryBytes = 0;
+    long maxQueryBytes = 0;
+    BufferedReader input = new BufferedReader (new FileReader (queryFilePath));
+
+    boolean showQueries = QryEval.isShowingQueries ();
+
+    QryEval.setShowQueries (false);
+
+    try {
+      String line;
+
+      while ((line = input.readLine ()) != null) {
+        int d = line.indexOf (':');
+
+        if (d < 0)
+          throw new IllegalArgumentException ("Syntax error:  Missing ':' in query line.");
+
+        Qry q;
+
+        try {
+          q = QryParser.getQuery ("#or(" + line.substring (d + 1) + ")", index);
+        } catch (IllegalArgumentException ex) {
+          numSkipped ++;
+          continue;
+        }
+
+        if (q == null)
+          continue;
+
+        Map<String, Integer> queryCounts = new HashMap<String, Integer> ();
+        long queryBytes = 0;
+
+        Warmup.countTerms (q, queryCounts);
+        countPhrases (q, phrases);
+        numQueries ++;
+
+        for (Map.Entry<String, Integer> e : queryCounts.entrySet ()) {
+          String key = e.getKey ();
+          Integer count = counts.get (key);
+
+          counts.put (key, (count == null) ? e.getValue () : count + e.getValue ());
+          occurrences += e.getValue ();
+
+          if (! sizes.containsKey (key)) {
+            int tab = key.indexOf ('\t');
+            String field = key.substring (0, tab);
+            String term = key.substring (tab + 1);
+            int df = index.getDocFreq (field, term);
+
+            dfs.put (key, df);
+            sizes.put (key, (df == 0) ? 0 :
+                       InvListCache.estimateSize (df, index.getTotalTermFreq (field, term)));
+          }
+
+          queryBytes += sizes.get (key);
+        }
+
+        sumQueryBytes += queryBytes;
+        maxQueryBytes = Math.max (maxQueryBytes, queryBytes);
+      }
+    } finally {
+      input.close ();
+      QryEval.setShowQueries (showQueries);
+    }
+
+    long totalBytes = 0;
+
+    for (long size : sizes.values ())
+      totalBytes += size;
+
+    System.out.println ("\nQuery log " + queryFilePath + ":  " + numQueries +
+                        " queries (" + numSkipped + " with syntax errors), " +
+                        counts.size () + " distinct terms, " + occurrences +
+                        " term occurrences");
+    System.out.println (String.format (
+      "    Working set:  InvLists %s in total, %s per query on average," +
+      " %s at most", formatBytes (totalBytes),
+      formatBytes ((numQueries == 0) ? 0 : sumQueryBytes / numQueries),
+      formatBytes (maxQueryBytes)));
+
+    //  Cache coverage of the most queried terms.
+
+    List<String> terms = new ArrayList<String> (counts.keySet ());
+
+    Collections.sort (terms, new Comparator<String> () {
+      public int compare (String a, String b) {
+        int c = counts.get (b).compareTo (counts.get (a));
+        return (c != 0) ? c : a.compareTo (b);
+      }
+    });
+
+    System.out.println ("    Most queried terms:");
+
+    long covered = 0;
+    long bytes = 0;
+    long dense = bitmapThreshold (reader);
+    long denseOccurrences = 0;
+    int numDense = 0;
+    int next = 0;
+
+    for (int i = 0; i < terms.size (); i++) {
+      String key = terms.get (i);
+      long size = sizes.get (key);
+
+      covered += counts.get (key);
+      bytes += size;
+
+      if (dfs.get (key) > dense) {
+        numDense ++;
+        denseOccurrences += counts.get (key);
+      }
+
+      boolean last = (i == terms.size () - 1);
+
+      if (((next < TOP_N.length) && (i + 1 == TOP_N[next])) || last) {
+        System.out.println (String.format (
+          "      top %-9d %5.1f%% of term occurrences, InvLists %s", i + 1,
+          percent (covered, occurrences), formatBytes (bytes)));
+
+        while ((next < TOP_N.length) && (TOP_N[next] <= i + 1))
+          next ++;
+      }
+    }
+
+    System.out.println (String.format (
+      "    Bitmap candidates (df > %d):  %d query terms, %.1f%% of term" +
+      " occurrences", dense, numDense, percent (denseOccurrences, occurrences)));
+
+    //  Phrase index candidates.
+
+    List<String> pairs = new ArrayList<String> (phrases.keySet ());
+
+    Collections.sort (pairs, new Comparator<String> () {
+      public int compare (String a, String b) {
+        int c = phrases.get (b).compareTo (phrases.get (a));
+        return (c != 0) ? c : a.compareTo (b);
+      }
+    });
+
+    System.out.println ("    Most queried #NEAR/1 pairs (" + pairs.size () +
+                        " distinct):");
+
+    for (String pair : pairs.subList (0, Math.min (TOP_TERMS, pairs.size ()))) {
+      String[] parts = pair.split ("\t");
+      int df1 = index.getDocFreq (parts[0], parts[1]);
+      int df2 = index.getDocFreq (parts[0], parts[2]);
+
+      System.out.println (String.format (
+        "      %-40s %6d queries, term dfs %d %d",
+        parts[1] + " " + parts[2] + "." + parts[0], phrases.get (pair),
+        df1, df2));
+    }
+  }
+
+  /**
+   *  Count the adjacent term pairs of the #NEAR/1 operators of a query
+   *  tree.
+   *  @param q The query tree.
+   *  @param counts The counts of "field\tterm\tterm" strings, which are
+   *    updated.
+   */
+  private static void countPhrases (Qry q, Map<String, Integer> counts) {
+
+    if ((q instanceof QryIopNear) && (((QryIopNear) q).distance == 1)) {
+      for (int i = 0; i + 1 < q.args.size (); i++) {
+        Qry a = q.args.get (i);
+        Qry b = q.args.get (i + 1);
+
+        if ((a instanceof QryIopTerm) && (b instanceof QryIopTerm)) {
+          String key = ((QryIopTerm) a).getField () + "\t" +
+            ((QryIopTerm) a).getTerm () + "\t" + ((QryIopTerm) b).getTerm ();
+          Integer count = counts.get (key);
+
+          counts.put (key, (count == null) ? 1 : count + 1);
+        }
+      }
+    }
+
+    for (Qry arg : q.args)
+      countPhrases (arg, counts);
+  }
+}
@@ -0,0 +1,272 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.file.Paths;
+import java.util.*;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.*;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  IndexRewriter writes a new Lucene index from the documents of an
+ *  existing one, in any order, optionally leaving terms out of them.
+ *  IdxReorder and IdxPrune use it.
+ *  <p>
+ *  The text of an index isn't stored, so each document is rebuilt from
+ *  its term vectors (terms at their original positions) and stored
+ *  fields.  Field lengths are unchanged, even when terms are left out,
+ *  and so are external ids.  Every indexed field must therefore have
+ *  term vectors with positions, or be an untokenized stored field
+ *  (e.g., externalId).
+ *  </p>
+ *  <p>
+ *  Documents are written by one thread with a merge policy that only
+ *  merges adjacent segments, and the index is merged to one segment
+ *  when it is closed, so docids follow the order in which documents
+ *  are added.
+ *  </p>
+ */
+public class IndexRewriter implements Closeable {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final FieldType TEXT_TYPE = new FieldType (TextField.TYPE_NOT_STORED);
+
+  static {
+    TEXT_TYPE.setStoreTermVectors (true);
+    TEXT_TYPE.setStoreTermVectorPositions (true);
+    TEXT_TYPE.freeze ();
+  }
+
+  private IndexReader reader;
+  private FieldInfos fieldInfos;
+  private DocLengthStore lengths;
+  private IndexWriter writer;
+
+  //  --------------- Nested classes ---------------------------------
+
+  /**
+   *  A token stream that replays a document's field from its term
+   *  vector.  Stopwords aren't in the term vector, so they are skipped
+   *  with position increments, and trailing stopwords with the final
+   *  position increment, so that the rebuilt field has the original
+   *  length.  Pruned terms are skipped the same way.
+   */
+  private static class TermVectorTokenStream extends TokenStream {
+
+    private final CharTermAttribute termAtt = addAttribute (CharTermAttribute.class);
+    private final PositionIncrementAttribute posIncrAtt =
+      addAttribute (PositionIncrementAttribute.class);
+    private String[] terms;
+    private int[] positions;
+    private long length;
+    private int next = 0;
+
+    /**
+     *  @param vector The term vector, or null if the field has no terms.
+     *  @param length The length of the field.
+     *  @param pruned Terms to leave out, or null.
+     *  @throws IOException Error accessing the index.
+     */
+    TermVectorTokenStream (Terms vector, long length, Set<String> pruned)
+      throws IOException {
+
+      this.length = length;
+
+      List<long[]> tokens = new ArrayList<long[]> ();
+      List<String> termList = new ArrayList<String> ();
+
+      if (vector != null) {
+        TermsEnum termsEnum = vector.iterator ();
+        PostingsEnum postings = null;
+        BytesRef termBytes;
+
+        while ((termBytes = termsEnum.next ()) != null) {
+          String term = termBytes.utf8ToString ();
+          int termIndex = termList.size ();
+
+          if ((pruned != null) && pruned.contains (term))
+            continue;
+
+          termList.add (term);
+          postings = termsEnum.postings (postings, PostingsEnum.POSITIONS);
+          postings.nextDoc ();
+
+          for (int j = 0; j < postings.freq (); j++)
+            tokens.add (new long[] { postings.nextPosition (), termIndex });
+        }
+      }
+
+      Collections.sort (tokens, new Comparator<long[]> () {
+          public int compare (long[] a, long[] b) {
+            return (a[0] != b[0]) ? Long.compare (a[0], b[0]) : Long.compare (a[1], b[1]);
+          }
+        });
+
+      this.terms = new String[tokens.size ()];
+      this.positions = new int[tokens.size ()];
+
+      for (int i = 0; i < this.terms.length; i++) {
+        this.positions[i] = (int) tokens.get (i)[0];
+        this.terms[i] = termList.get ((int) tokens.get (i)[1]);
+      }
+    }
+
+    public boolean incrementToken () {
+
+      if (this.next >= this.terms.length)
+        return false;
+
+      clearAttributes ();
+      this.termAtt.setEmpty ().append (this.terms[this.next]);
+      this.posIncrAtt.setPositionIncrement (
+        this.positions[this.next] -
+        ((this.next == 0) ? -1 : this.positions[this.next - 1]));
+      this.next ++;
+      return true;
+    }
+
+    public void end () throws IOException {
+      super.end ();
+
+      int last = (this.positions.length == 0) ?
+        -1 : this.positions[this.positions.length - 1];
+
+      this.posIncrAtt.setPositionIncrement (
+        (int) Math.max (0, this.length - 1 - last));
+    }
+
+    public void reset () throws IOException {
+      super.reset ();
+      this.next = 0;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create a new index for the documents of an existing index.
+   *  @param reader The existing index.
+   *  @param outputPath The directory of the new index, which is
+   *    overwritten.
+   *  @throws IllegalArgumentException A field of the existing index
+   *    can't be rebuilt.
+   *  @throws IOException Error accessing an index.
+   */
+  public IndexRewriter (IndexReader reader, String outputPath)
+    throws IllegalArgumentException, IOException {
+
+    this.reader = reader;
+    this.fieldInfos = MultiFields.getMergedFieldInfos (reader);
+    checkFields (this.fieldInfos);
+    this.lengths = new DocLengthStore (reader);
+
+    IndexWriterConfig config =
+      new IndexWriterConfig (new EnglishAnalyzerConfigurable ());
+
+    config.setOpenMode (IndexWriterConfig.OpenMode.CREATE);
+    config.setSimilarity (new DocLenStoreSimilarity ());
+    config.setMergePolicy (new LogByteSizeMergePolicy ());
+
+    this.writer =
+      new IndexWriter (FSDirectory.open (Paths.get (outputPath)), config);
+  }
+
+  /**
+   *  Add a document of the old index to the new index.
+   *  @param docid The document's docid in the old index.
+   *  @param pruned Terms to leave out of the document, by field, or
+   *    null to copy the document as it is.
+   *  @throws IOException Error accessing an index.
+   */
+  public void addDocument (int docid, Map<String,Set<String>> pruned)
+    throws IOException {
+
+    IndexReader reader = this.reader;
+    FieldInfos fieldInfos = this.fieldInfos;
+    Document stored = reader.document (docid);
+    Document doc = new Document ();
+
+    for (FieldInfo info : fieldInfos) {
+      if (info.getIndexOptions () == IndexOptions.NONE)
+        continue;
+
+      if (info.hasVectors ()) {
+        Terms vector = reader.getTermVector (docid, info.name);
+        long length = this.lengths.getDocLength (info.name, docid);
+        Set<String> prunedTerms = (pruned == null) ? null : pruned.get (info.name);
+
+        if ((vector != null) || (length > 0))
+          doc.add (new Field (info.name,
+                              new TermVectorTokenStream (vector, length, prunedTerms),
+                              TEXT_TYPE));
+      } else {
+        for (String value : stored.getValues (info.name))
+          doc.add (new StringField (info.name, value, Field.Store.YES));
+      }
+    }
+
+    //  Fields that are only stored are copied as they are.
+
+    for (IndexableField field : stored.getFields ()) {
+      FieldInfo info = fieldInfos.fieldInfo (field.name ());
+
+      if (info.getIndexOptions () != IndexOptions.NONE)
+        continue;
+
+      Number number = field.numericValue ();
+
+      if (number instanceof Integer)
+        doc.add (new StoredField (field.name (), number.intValue ()));
+      else if (number instanceof Long)
+        doc.add (new StoredField (field.name (), number.longValue ()));
+      else if (number instanceof Float)
+        doc.add (new StoredField (field.name (), number.floatValue ()));
+      else if (number instanceof Double)
+        doc.add (new StoredField (field.name (), number.doubleValue ()));
+      else if (field.binaryValue () != null)
+        doc.add (new StoredField (field.name (), BytesRef.deepCopyOf (field.binaryValue ())));
+      else
+        doc.add (new StoredField (field.name (), field.stringValue ()));
+    }
+
+    this.writer.addDocument (doc);
+  }
+
+  /**
+   *  Check that every indexed field can be rebuilt.
+   *  @param fieldInfos The fields of the index.
+   *  @throws IllegalArgumentException A field can't be rebuilt.
+   */
+  private static void checkFields (FieldInfos fieldInfos)
+    throws IllegalArgumentException {
+
+    for (FieldInfo info : fieldInfos) {
+      IndexOptions options = info.getIndexOptions ();
+
+      if ((options == IndexOptions.NONE) ||
+          (info.hasVectors () &&
+           (options.compareTo (IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0)) ||
+          (! info.hasVectors () && (options == IndexOptions.DOCS)))
+        continue;
+
+      throw new IllegalArgumentException (
+        "Field " + info.name + " is indexed without positional term vectors," +
+        " so it can't be rebuilt");
+    }
+  }
+
+  /**
+   *  Merge the new index into one segment and close it.
+   *  @throws IOException Error writing the index.
+   */
+  public void close () throws IOException {
+    this.writer.forceMerge (1);
+    this.writer.close ();
+  }
+}
@@ -53,7 +53,13 @@ public class InspectIndex {
 	"\t\t\twith internal IDOCID\n" +
 	"    -list-termvector-field IDOCID FIELD\n" +
 	"\t\t\tdisplay the term vector for FIELD in the document\n" +
-	"\t\t\twith internal IDOCID\n";
+	"\t\t\twith internal IDOCID\n" +
+	"    -profile\t\tprofile the fields:  posting list, position and\n" +
+	"\t\t\tdocument length distributions, and inverted list\n" +
+	"\t\t\tsizes of the top terms\n" +
+	"    -profile-queries QUERY_FILE\n" +
+	"\t\t\tprofile the fields, and the working set of the\n" +
+	"\t\t\tqueries in QUERY_FILE (qid:query lines)\n";
 
     public static void main(String[] args) throws IOException, Exception {
 
@@ -273,6 +279,20 @@ public class InspectIndex {
 		listTermVectorField (reader, args[i+1], args[i+2]);
 		i += 2;
 
+	    } else if ("-profile".equals(args[i])) {
+
+		IndexProfile.profile (reader, null);
+
+	    } else if ("-profile-queries".equals(args[i])) {
+
+		if ((i+1) >= args.length) {
+		    System.out.println (usage);
+		    break;
+		};
+
+		IndexProfile.profile (reader, args[i+1]);
+		i += 1;
+
 	    } else
 		System.err.println ("\nWarning:  Unknown argument " + args[i]
 				    + " ignored.");
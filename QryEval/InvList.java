@@ -13,11 +13,31 @@ import org.apache.lucene.search.*;
  *  provides methods for accessing and manipulating inverted lists.
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
+ *  <p>
+ *  Postings are stored in packed, parallel arrays of primitive ints
+ *  rather than as one object per posting.  The n'th posting is
+ *  described by docids[n] and tfs[n], and its positions are
+ *  positions[posOffsets[n]] ... positions[posOffsets[n]+tfs[n]-1].
+ *  This avoids per-posting objects and boxed positions, which keeps
+ *  long queries from spending their time in the garbage collector.
+ *  </p>
  */
 public class InvList {
 
   //  --------------- Constants and variables -----------------------
 
+  /**
+   *  The initial capacity of an inverted list that is built one
+   *  posting at a time.
+   */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /**
+   *  The number of postings covered by each entry of the optional skip
+   *  table, or 0 if skip tables are disabled.
+   */
+  private static int skipInterval = 0;
+
   /**
    *  Collection term frequency: The number of times that a term
    *  occurs across all instances of the specified field.
@@ -36,52 +56,38 @@ public class InvList {
   public String field;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  The internal ids of the documents that contain the term in the
+   *  specified field, in increasing order.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-  Map<Integer, Integer> docTf = new HashMap<>();
-
-  //  --------------- Nested classes --------------------------------
+  private int[] docids;
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  Term frequency:  The number of times the term occurs in the
+   *  specified field of each document.
    */
-  public class DocPosting {
-
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
-
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
+  private int[] tfs;
 
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
+  /**
+   *  The index in positions of each document's first location.
+   */
+  private int[] posOffsets;
 
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  /**
+   *  The locations where the term occurs, for all documents.
+   */
+  private int[] positions;
 
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int j = 0; j < locations.size(); j++)
-        this.positions.add(locations.get(j));
-    }
-  }
+  /**
+   *  An optional sparse skip table:  skipDocids[k] is the docid of
+   *  posting k*skipInterval.  It is built by finish, after the last
+   *  posting is appended, and it is never changed afterwards, so a
+   *  finished list can be shared by several threads.  It is ignored if
+   *  postings are appended after it is built.
+   */
+  private int[] skipDocids = null;
+  private int skipDf = 0;
+  private int skipStep = 0;
+  private boolean finished = false;
 
   //  --------------- Methods ---------------------------------------
 
@@ -89,6 +95,7 @@ public class InvList {
    *  Constructor.  An empty inverted list. Useful for some query operators.
    */
   public InvList() {
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
   }
 
   /**
@@ -97,6 +104,21 @@ public class InvList {
    */
   public InvList(String fieldString) {
     this.field = new String (fieldString);
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
+  }
+
+  /**
+   *  Get an empty inverted list for a subclass that stores its postings
+   *  elsewhere, so the packed posting arrays are never allocated.  The
+   *  subclass must override every method that reads them.
+   *  @param fieldString The field that the term occurs in.
+   *  @param allocate False to skip allocating the posting arrays.
+   */
+  protected InvList(String fieldString, boolean allocate) {
+    this.field = new String (fieldString);
+
+    if (allocate)
+      this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
   }
 
   /**
@@ -106,6 +128,37 @@ public class InvList {
    *  @throws IOException Error accessing the Lucene index.
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this (termString, fieldString, true);
+  }
+
+  /**
+   *  Get an inverted list from the index, optionally without
+   *  positions.  An inverted list without positions has docids and
+   *  tfs only; it can't be used for location iteration.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param withPositions True if positions are read from the index.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(String termString, String fieldString, boolean withPositions)
+    throws IOException {
+    this (Idx.getContext(), termString, fieldString, withPositions);
+  }
+
+  /**
+   *  Get an inverted list from a specific index, optionally without
+   *  positions.
+   *  @param index The index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param withPositions True if positions are read from the index.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(IndexContext index, String termString, String fieldString,
+                 boolean withPositions)
+    throws IOException {
+
+    IndexReader reader = index.getReader();
 
     //  Store the field name.  This is used by other query operators.
 
@@ -116,13 +169,26 @@ public class InvList {
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    int termDf = reader.docFreq(term);
+
+    if (termDf < 1) {
+      this.allocate (0, 0);
       return;
+    }
 
-    //  Lookup the inverted list.
+    //  The term statistics are known in advance, so the arrays can be
+    //  allocated at exactly the right size.
 
-    PostingsEnum iList =
-      MultiFields.getTermPositionsEnum (Idx.INDEXREADER, fieldString, termBytes); 
+    this.allocate (termDf,
+                   withPositions ? (int) reader.totalTermFreq(term) : 0);
+
+    //  Lookup the inverted list.  Without positions, Lucene doesn't
+    //  need to decode (or even read) the positions data.
+
+    PostingsEnum iList = (withPositions) ?
+      MultiFields.getTermPositionsEnum (reader, fieldString, termBytes) :
+      MultiFields.getTermDocsEnum (reader, fieldString, termBytes,
+                                   PostingsEnum.FREQS);
 
     //  Copy from Lucene inverted list format to our inverted list
     //  format. This is a little inefficient, but allows query
@@ -132,23 +198,58 @@ public class InvList {
     while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
       int tf = iList.freq();
-      int[] positions = new int[tf];
 
-      for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
-      
-      this.postings.add(new DocPosting(iList.docID(), positions));
-
-      Integer tmp = this.docTf.get(iList.docID());
-      if (tmp == null) {
-        this.docTf.put(iList.docID(), positions.length);
-      } else {
-        this.docTf.put(iList.docID(), tmp + positions.length);
+      if (! withPositions) {
+        this.appendPosting (iList.docID(), tf);
+        continue;
       }
-        
+
+      this.ensureCapacity (this.df + 1, this.ctf + tf);
+      this.docids[this.df] = iList.docID();
+      this.tfs[this.df] = tf;
+      this.posOffsets[this.df] = this.ctf;
+
+      for (int j = 0; j < tf; j++)
+        this.positions[this.ctf + j] = iList.nextPosition();
+
       this.df++;
       this.ctf += tf;
     }
+
+    this.finish ();
+  }
+
+  /**
+   *  Allocate the posting arrays.
+   *  @param docCapacity The number of postings to allocate space for.
+   *  @param posCapacity The number of positions to allocate space for.
+   */
+  private void allocate (int docCapacity, int posCapacity) {
+    this.docids = new int[docCapacity];
+    this.tfs = new int[docCapacity];
+    this.posOffsets = new int[docCapacity];
+    this.positions = new int[posCapacity];
+  }
+
+  /**
+   *  Make sure that the posting arrays can hold the specified number
+   *  of postings and positions, growing them if necessary.
+   *  @param docCapacity The number of postings required.
+   *  @param posCapacity The number of positions required.
+   */
+  private void ensureCapacity (int docCapacity, int posCapacity) {
+
+    if (docCapacity > this.docids.length) {
+      int n = Math.max (docCapacity, 2 * this.docids.length);
+      this.docids = Arrays.copyOf (this.docids, n);
+      this.tfs = Arrays.copyOf (this.tfs, n);
+      this.posOffsets = Arrays.copyOf (this.posOffsets, n);
+    }
+
+    if (posCapacity > this.positions.length) {
+      int n = Math.max (posCapacity, 2 * this.positions.length);
+      this.positions = Arrays.copyOf (this.positions, n);
+    }
   }
 
   /**
@@ -159,36 +260,240 @@ public class InvList {
    *  @return true if the posting was added successfully, otherwise false.
    */
   public boolean appendPosting (int docid, List<Integer> positions) {
-    
+
+    int[] locations = new int[positions.size()];
+
+    for (int j = 0; j < locations.length; j++)
+      locations[j] = positions.get(j);
+
+    return this.appendPosting (docid, locations, locations.length);
+  }
+
+  /**
+   *  Append a posting to the posting list.  Posting must be appended
+   *  in docid order, otherwise this method fails.
+   *  @param docid The internal document id of the posting.
+   *  @param positions An array of positions where the term occurs.
+   *  @param tf The number of valid entries in positions.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int[] positions, int tf) {
+
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    this.ensureCapacity (this.df + 1, this.ctf + tf);
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
+    this.posOffsets[this.df] = this.ctf;
+    System.arraycopy (positions, 0, this.positions, this.ctf, tf);
 
-    this.postings.add (p);
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += tf;
+    return true;
+  }
 
-    Integer tmp = this.docTf.get(docid);
-    if (tmp == null) {
-      this.docTf.put(docid, positions.size());
-    } else {
-      this.docTf.put(docid, tmp + positions.size());
-    }
+  /**
+   *  Append a posting without positions to the posting list.  Posting
+   *  must be appended in docid order, otherwise this method fails.
+   *  Only inverted lists that are never used for location iteration
+   *  should have postings without positions.
+   *  @param docid The internal document id of the posting.
+   *  @param tf The term frequency.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int tf) {
+
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
+      return false;
+
+    this.ensureCapacity (this.df + 1, 0);
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
+    this.posOffsets[this.df] = 0;
+
+    this.df ++;
+    this.ctf += tf;
     return true;
   }
 
+  /**
+   *  Finish the inverted list after the last posting is appended.  This
+   *  builds the skip table, if skip tables are enabled and the inverted
+   *  list is long enough to benefit from one.  Lists read from the index
+   *  are finished when they are constructed; derived lists are finished
+   *  by the query operator that produces them.  A finished list must
+   *  not be changed, and finishing it again does nothing.
+   */
+  public void finish () {
+
+    if (this.finished)
+      return;
+
+    this.finished = true;
+
+    int interval = InvList.skipInterval;
+
+    if ((interval <= 0) || (this.df < 2 * interval))
+      return;
+
+    int count = (this.df + interval - 1) / interval;
+    int[] skips = new int[count];
+
+    for (int k = 0; k < count; k++)
+      skips[k] = this.docids[k * interval];
+
+    this.skipStep = interval;
+    this.skipDf = this.df;
+    this.skipDocids = skips;
+  }
+
+  /**
+   *  Find the first posting at or after index from whose docid is
+   *  greater than or equal to a target docid.  Exponential (galloping)
+   *  search is used, so the cost grows with the logarithm of the
+   *  distance skipped, not with the distance.  If a skip table is
+   *  enabled, the search is done over the skip table first.
+   *  @param from The index of the posting to start at.
+   *  @param target The target docid.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int findDocIndex (int from, int target) {
+
+    if ((from >= this.df) || (this.docids[from] >= target))
+      return from;
+
+    //  The skip table is only read here, never built, because the
+    //  list may be shared by other threads.
+
+    int[] skips = this.skipDocids;
+
+    if ((skips != null) && (this.skipDf == this.df)) {
+
+      int interval = this.skipStep;
+
+      //  skips[k] is the first skip entry that is >= target, so the
+      //  posting is between skip entries k-1 and k.
+
+      int k = gallop (skips, from / interval, skips.length, target);
+      int lo = Math.max (from, (k - 1) * interval);
+      int hi = Math.min (this.df, k * interval);
+
+      return gallop (this.docids, lo, hi, target);
+    }
+
+    return gallop (this.docids, from, this.df, target);
+  }
+
+  /**
+   *  Exponential (galloping) search in a sorted array.
+   *  @param a A sorted array.
+   *  @param from The first index to search.
+   *  @param limit One more than the last index to search.
+   *  @param target The value to search for.
+   *  @return The first index i in [from, limit) such that a[i] &gt;= target,
+   *    or limit if there is none.
+   */
+  static int gallop (int[] a, int from, int limit, int target) {
+
+    if ((from >= limit) || (a[from] >= target))
+      return from;
+
+    //  Double the step until a value >= target is passed.  Then
+    //  a[lo] < target, and the answer is in (lo, hi].
+
+    int lo = from;
+    int hi = from + 1;
+    int step = 1;
+
+    while ((hi < limit) && (a[hi] < target)) {
+      lo = hi;
+      step <<= 1;
+      hi = from + step;
+    }
+
+    if (hi > limit)
+      hi = limit;
+
+    lo ++;
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (a[mid] < target)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+
+    return lo;
+  }
+
+  /**
+   *  Exponential (galloping) search in a sorted buffer, such as the
+   *  docids of an InvListMapped.  This is the same search as
+   *  gallop (int[], int, int, int).
+   *  @param a A sorted buffer.
+   *  @param from The first index to search.
+   *  @param limit One more than the last index to search.
+   *  @param target The value to search for.
+   *  @return The first index i in [from, limit) such that a.get(i) &gt;=
+   *    target, or limit if there is none.
+   */
+  static int gallop (java.nio.IntBuffer a, int from, int limit, int target) {
+
+    if ((from >= limit) || (a.get (from) >= target))
+      return from;
+
+    int lo = from;
+    int hi = from + 1;
+    int step = 1;
+
+    while ((hi < limit) && (a.get (hi) < target)) {
+      lo = hi;
+      step <<= 1;
+      hi = from + step;
+    }
+
+    if (hi > limit)
+      hi = limit;
+
+    lo ++;
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (a.get (mid) < target)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+
+    return lo;
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
    *  @param docid The index of the requested document.
    *  @return The internal document id.
    */
   public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+    return this.docids[docid];
+  }
+
+  /**
+   *  Get the j'th location in the n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @param j The index of the requested location in the document.
+   *  @return The location.
+   */
+  public int getPosition(int n, int j) {
+    return this.positions[this.posOffsets[n] + j];
   }
 
   /**
@@ -197,8 +502,17 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    // System.err.println("n: " + n);
-    return this.postings.get(n).tf;
+    return this.tfs[n];
+  }
+
+  /**
+   *  Set the number of postings covered by each skip table entry.
+   *  Inverted lists that have at least twice this many postings use a
+   *  skip table when they are searched.
+   *  @param interval The skip interval, or 0 to disable skip tables.
+   */
+  public static void setSkipInterval (int interval) {
+    InvList.skipInterval = Math.max (0, interval);
   }
 
   /**
@@ -209,11 +523,11 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.getDocid(i) + ", tf: "
+          + this.getTf(i) + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < this.getTf(i); j++) {
+        System.out.print(this.getPosition(i, j) + " ");
       }
 
       System.out.println();
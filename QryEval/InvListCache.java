@@ -0,0 +1,258 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ *  A cache of inverted lists, keyed by (field, term), that is shared
+ *  by all of the queries evaluated against an index.
+ *  <p>
+ *  The cache has a budget in bytes.  Short inverted lists are cheap to
+ *  read from the index, so only lists whose df is at least minDf are
+ *  admitted; a list larger than the budget is never admitted.  When an
+ *  admitted list doesn't fit, the least recently used lists are
+ *  evicted.
+ *  </p>
+ *  <p>
+ *  If off-heap storage is enabled, cached postings are copied to
+ *  direct ByteBuffers in the packed InvList layout and are served by
+ *  InvListMapped, so they don't add to the garbage collector's work.
+ *  Direct memory is limited by the JVM's -XX:MaxDirectMemorySize.
+ *  </p>
+ *  <p>
+ *  Cached inverted lists are shared, so they must not be modified.
+ *  </p>
+ */
+public class InvListCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  An estimate of the per-list overhead of a cache entry, in bytes.
+   */
+  private static final int ENTRY_OVERHEAD = 128;
+
+  private long budget;
+  private int minDf;
+  private boolean offHeap;
+  private long bytes = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+  private long rejections = 0;
+
+  /**
+   *  The cached lists, in least recently used order.
+   */
+  private LinkedHashMap<String,InvList> lists =
+    new LinkedHashMap<String,InvList> (16, 0.75f, true);
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create an empty cache.
+   *  @param budget The maximum size of the cached lists, in bytes.
+   *  @param minDf The minimum df of a list that is admitted.
+   *  @param offHeap True if cached postings are stored off-heap.
+   */
+  public InvListCache (long budget, int minDf, boolean offHeap) {
+    this.budget = budget;
+    this.minDf = minDf;
+    this.offHeap = offHeap;
+  }
+
+  /**
+   *  Create an empty cache with the same budget and admission policy,
+   *  e.g., for a refreshed index, whose docids may differ.
+   *  @return The new cache.
+   */
+  public InvListCache emptyCopy () {
+    return new InvListCache (this.budget, this.minDf, this.offHeap);
+  }
+
+  /**
+   *  Get the number of bytes used by cached lists.
+   *  @return The number of bytes.
+   */
+  public synchronized long getBytes () {
+    return this.bytes;
+  }
+
+  /**
+   *  Get the number of lists that were evicted to make room for others.
+   *  @return The number of evictions.
+   */
+  public synchronized long getEvictions () {
+    return this.evictions;
+  }
+
+  /**
+   *  Get the number of requests that were satisfied from the cache.
+   *  @return The number of hits.
+   */
+  public synchronized long getHits () {
+    return this.hits;
+  }
+
+  /**
+   *  Get an inverted list, from the cache if possible, otherwise from
+   *  the Lucene index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The inverted list, which must not be modified.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList getInvList (String termString, String fieldString)
+    throws IOException {
+    return this.getInvList (Idx.getContext (), termString, fieldString);
+  }
+
+  /**
+   *  Get an inverted list, from the cache if possible, otherwise from
+   *  the Lucene index of the specified index.  A cache belongs to one
+   *  index, so every call must use the same index.
+   *  @param index The index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The inverted list, which must not be modified.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList getInvList (IndexContext index, String termString,
+                             String fieldString)
+    throws IOException {
+
+    String key = fieldString + '\u0000' + termString;
+
+    synchronized (this) {
+      InvList list = this.lists.get (key);
+
+      if (list != null) {
+        this.hits ++;
+        return list;
+      }
+
+      this.misses ++;
+    }
+
+    //  Read the list without holding the lock, so that other threads
+    //  can use the cache meanwhile.
+
+    InvList list = new InvList (index, termString, fieldString, true);
+    long size = sizeOf (list);
+
+    if ((list.df < this.minDf) || (size > this.budget)) {
+      synchronized (this) {
+        this.rejections ++;
+      }
+      return list;
+    }
+
+    //  A direct buffer holds at most 2GB, so larger lists stay on the
+    //  heap.
+
+    if (this.offHeap && (size - ENTRY_OVERHEAD <= Integer.MAX_VALUE))
+      list = toOffHeap (list);
+
+    synchronized (this) {
+      InvList other = this.lists.get (key);
+
+      if (other != null)
+        return other;
+
+      Iterator<InvList> lru = this.lists.values ().iterator ();
+
+      while ((this.bytes + size > this.budget) && lru.hasNext ()) {
+        this.bytes -= sizeOf (lru.next ());
+        lru.remove ();
+        this.evictions ++;
+      }
+
+      this.lists.put (key, list);
+      this.bytes += size;
+    }
+
+    return list;
+  }
+
+  /**
+   *  Get the number of requests that were not satisfied from the cache.
+   *  @return The number of misses.
+   */
+  public synchronized long getMisses () {
+    return this.misses;
+  }
+
+  /**
+   *  Get the number of lists that were read but not admitted.
+   *  @return The number of rejections.
+   */
+  public synchronized long getRejections () {
+    return this.rejections;
+  }
+
+  /**
+   *  Estimate the number of bytes that an inverted list with positions
+   *  uses in the cache.
+   *  @param df The list's document frequency.
+   *  @param ctf The list's collection term frequency.
+   *  @return The estimated size.
+   */
+  public static long estimateSize (int df, long ctf) {
+    return 4L * (3L * df + ctf) + ENTRY_OVERHEAD;
+  }
+
+  /**
+   *  Estimate the number of bytes that an inverted list uses.
+   *  @param list The inverted list.
+   *  @return The estimated size.
+   */
+  private static long sizeOf (InvList list) {
+    return estimateSize (list.df, list.ctf);
+  }
+
+  /**
+   *  Copy an inverted list to off-heap storage.  The postings must be
+   *  smaller than 2GB.
+   *  @param list The inverted list.
+   *  @return An equivalent inverted list whose postings are off-heap.
+   */
+  private static InvList toOffHeap (InvList list) {
+
+    ByteBuffer postings =
+      ByteBuffer.allocateDirect ((int) (sizeOf (list) - ENTRY_OVERHEAD));
+    int offset = 0;
+
+    for (int i = 0; i < list.df; i++)
+      postings.putInt (list.getDocid (i));
+
+    for (int i = 0; i < list.df; i++)
+      postings.putInt (list.getTf (i));
+
+    for (int i = 0; i < list.df; i++) {
+      postings.putInt (offset);
+      offset += list.getTf (i);
+    }
+
+    for (int i = 0; i < list.df; i++)
+      for (int j = 0; j < list.getTf (i); j++)
+        postings.putInt (list.getPosition (i, j));
+
+    postings.flip ();
+    return new InvListMapped (list.field, list.df, list.ctf, postings);
+  }
+
+  /**
+   *  Summarize the cache's counters.
+   *  @return A description of the cache.
+   */
+  @Override
+  public synchronized String toString () {
+    return "InvList cache:  " + this.lists.size () + " lists, " +
+      this.bytes + " of " + this.budget + " bytes, " +
+      this.hits + " hits, " + this.misses + " misses, " +
+      this.evictions + " evictions, " + this.rejections + " rejections";
+  }
+}
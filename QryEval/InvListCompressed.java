@@ -0,0 +1,508 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.*;
+
+/**
+ *  An inverted list that is stored in compressed blocks.  It is used
+ *  for the inverted lists that query operators such as #SYN, #NEAR/n
+ *  and #WINDOW/n produce, which otherwise stay uncompressed in memory
+ *  for the lifetime of the query.
+ *  <p>
+ *  Postings are grouped into blocks of BLOCK_SIZE documents.  Within a
+ *  block, docids are delta-encoded (relative to the last docid of the
+ *  previous block), positions are delta-encoded within each document,
+ *  and docid gaps, tfs and position gaps are each bit-packed with the
+ *  smallest width that holds the largest value in the block.  The
+ *  block layout is:
+ *  </p>
+ *  <pre>
+ *    count, docidBits, tfBits, positionBits   (1 byte each)
+ *    docid gaps      (count * docidBits bits, byte aligned)
+ *    tfs             (count * tfBits bits, byte aligned)
+ *    position gaps   (sum(tf) * positionBits bits, byte aligned)
+ *  </pre>
+ *  <p>
+ *  A skip entry (the last docid of the block and the byte offset of
+ *  the block) is kept for each block.  Blocks are decoded on demand
+ *  when the iterator reaches them, and the most recently decoded block
+ *  is cached, so sequential iteration decodes each block once.
+ *  Postings are buffered uncompressed until a block is full.
+ *  </p>
+ */
+public class InvListCompressed extends InvList {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The number of postings in a block.
+   */
+  public static final int BLOCK_SIZE = 128;
+
+  private static final int BLOCK_SHIFT = 7;
+  private static final int BLOCK_HEADER_LENGTH = 4;
+
+  /**
+   *  The encoded blocks.
+   */
+  private byte[] data = new byte[256];
+  private int dataLength = 0;
+
+  /**
+   *  Skip data:  The last docid and the byte offset of each block.
+   */
+  private int[] blockLastDocid = new int[4];
+  private int[] blockOffset = new int[4];
+  private int blockCount = 0;
+
+  /**
+   *  Postings that have been appended but not encoded yet, because
+   *  they don't fill a block.
+   */
+  private int[] pendingDocids = new int[BLOCK_SIZE];
+  private int[] pendingTfs = new int[BLOCK_SIZE];
+  private int[] pendingPosOffsets = new int[BLOCK_SIZE + 1];
+  private int[] pendingPositions = new int[BLOCK_SIZE];
+  private int pendingCount = 0;
+
+  /**
+   *  The most recently decoded block.
+   */
+  private int decodedBlock = -1;
+  private int[] decodedDocids = new int[BLOCK_SIZE];
+  private int[] decodedTfs = new int[BLOCK_SIZE];
+  private int[] decodedPosOffsets = new int[BLOCK_SIZE + 1];
+  private int[] decodedPositions = new int[BLOCK_SIZE];
+
+  /**
+   *  Scratch space used while encoding.
+   */
+  private int[] docidGaps = new int[BLOCK_SIZE];
+  private int[] scratch = new int[BLOCK_SIZE];
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Get an empty compressed inverted list.
+   *  @param fieldString The field that the term occurs in.
+   */
+  public InvListCompressed(String fieldString) {
+    super (fieldString, false);
+  }
+
+  /**
+   *  Append a posting to the posting list.  Posting must be appended
+   *  in docid order, otherwise this method fails.
+   *  @param docid The internal document id of the posting.
+   *  @param positions An array of positions where the term occurs.
+   *  @param tf The number of valid entries in positions.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  @Override
+  public boolean appendPosting (int docid, int[] positions, int tf) {
+
+    if ((this.df > 0) &&
+        (this.getLastDocid () >= docid))
+      return false;
+
+    int offset = this.pendingPosOffsets[this.pendingCount];
+
+    if (this.pendingPositions.length < offset + tf) {
+      this.pendingPositions = Arrays.copyOf (
+        this.pendingPositions, Math.max (offset + tf, 2 * this.pendingPositions.length));
+    }
+
+    this.pendingDocids[this.pendingCount] = docid;
+    this.pendingTfs[this.pendingCount] = tf;
+    System.arraycopy (positions, 0, this.pendingPositions, offset, tf);
+    this.pendingCount ++;
+    this.pendingPosOffsets[this.pendingCount] = offset + tf;
+
+    this.df ++;
+    this.ctf += tf;
+
+    if (this.pendingCount == BLOCK_SIZE)
+      this.encodePendingBlock ();
+
+    return true;
+  }
+
+  /**
+   *  Compressed inverted lists always store positions; derived lists
+   *  without positions are plain InvLists (see createDerivedInvList).
+   *  @param docid The internal document id of the posting.
+   *  @param tf The term frequency.
+   *  @return Never returns.
+   *  @throws UnsupportedOperationException Always.
+   */
+  @Override
+  public boolean appendPosting (int docid, int tf) {
+    throw new UnsupportedOperationException (
+      "Compressed inverted lists must have positions.");
+  }
+
+  /**
+   *  Compressed inverted lists don't need a separate skip table,
+   *  because findDocIndex searches the block skip entries.
+   */
+  @Override
+  public void finish () {
+  }
+
+  /**
+   *  Find the first posting at or after index from whose docid is
+   *  greater than or equal to a target docid.  The block skip entries
+   *  are searched first, so blocks that can't contain the target are
+   *  never decoded.
+   *  @param from The index of the posting to start at.
+   *  @param target The target docid.
+   *  @return The index of the posting, or df if there is none.
+   */
+  @Override
+  public int findDocIndex (int from, int target) {
+
+    if (from >= this.df)
+      return from;
+
+    int block = from >>> BLOCK_SHIFT;
+
+    if (block < this.blockCount) {
+      int b = gallop (this.blockLastDocid, block, this.blockCount, target);
+
+      if (b > block) {
+        block = b;
+        from = b << BLOCK_SHIFT;
+      }
+    }
+
+    //  The target, if it exists, is in this block.
+
+    int lo = from;
+    int hi = Math.min (this.df, (block + 1) << BLOCK_SHIFT);
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (this.getDocid (mid) < target)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+
+    return lo;
+  }
+
+  /**
+   *  Get the n'th document id from the inverted list.
+   *  @param n The index of the requested document.
+   *  @return The internal document id.
+   */
+  @Override
+  public int getDocid (int n) {
+    int block = n >>> BLOCK_SHIFT;
+
+    if (block == this.blockCount)
+      return this.pendingDocids[n & (BLOCK_SIZE - 1)];
+
+    this.decodeBlock (block);
+    return this.decodedDocids[n & (BLOCK_SIZE - 1)];
+  }
+
+  /**
+   *  Get the j'th location in the n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @param j The index of the requested location in the document.
+   *  @return The location.
+   */
+  @Override
+  public int getPosition (int n, int j) {
+    int block = n >>> BLOCK_SHIFT;
+    int i = n & (BLOCK_SIZE - 1);
+
+    if (block == this.blockCount)
+      return this.pendingPositions[this.pendingPosOffsets[i] + j];
+
+    this.decodeBlock (block);
+    return this.decodedPositions[this.decodedPosOffsets[i] + j];
+  }
+
+  /**
+   *  Get the term frequency in the n'th document of the inverted list.
+   *  @param n The index of the requested document term frequency.
+   *  @return The document's term frequency.
+   */
+  @Override
+  public int getTf (int n) {
+    int block = n >>> BLOCK_SHIFT;
+
+    if (block == this.blockCount)
+      return this.pendingTfs[n & (BLOCK_SIZE - 1)];
+
+    this.decodeBlock (block);
+    return this.decodedTfs[n & (BLOCK_SIZE - 1)];
+  }
+
+  /**
+   *  Get the number of bytes used by the encoded blocks.  This is
+   *  handy for measuring the compression ratio.
+   *  @return The size of the encoded data, in bytes.
+   */
+  public int getEncodedLength () {
+    return this.dataLength;
+  }
+
+  /**
+   *  Get the docid of the last posting in the list.
+   *  @return The last docid.
+   */
+  private int getLastDocid () {
+    if (this.pendingCount > 0)
+      return this.pendingDocids[this.pendingCount - 1];
+
+    return this.blockLastDocid[this.blockCount - 1];
+  }
+
+  //  --------------- Encoding --------------------------------------
+
+  /**
+   *  Encode the pending postings as a new block and clear the pending
+   *  buffers.
+   */
+  private void encodePendingBlock () {
+
+    int count = this.pendingCount;
+    int numPositions = this.pendingPosOffsets[count];
+    int previousDocid =
+      (this.blockCount == 0) ? -1 : this.blockLastDocid[this.blockCount - 1];
+
+    if (this.scratch.length < numPositions)
+      this.scratch = new int[Math.max (numPositions, 2 * this.scratch.length)];
+
+    //  Docid gaps.
+
+    int maxGap = 0;
+    int maxTf = 0;
+
+    for (int i = 0; i < count; i++) {
+      int gap = this.pendingDocids[i] - previousDocid;
+      previousDocid = this.pendingDocids[i];
+      this.docidGaps[i] = gap;
+      maxGap = Math.max (maxGap, gap);
+      maxTf = Math.max (maxTf, this.pendingTfs[i]);
+    }
+
+    //  Position gaps restart at each document.  They are zig-zag
+    //  encoded so that unsorted positions are still encoded correctly.
+
+    int maxPositionGap = 0;
+
+    for (int i = 0; i < count; i++) {
+      int previous = 0;
+
+      for (int p = this.pendingPosOffsets[i]; p < this.pendingPosOffsets[i + 1]; p++) {
+        int gap = zigZagEncode (this.pendingPositions[p] - previous);
+        previous = this.pendingPositions[p];
+        this.scratch[p] = gap;
+        maxPositionGap = Math.max (maxPositionGap, gap);
+      }
+    }
+
+    int docidBits = bitsRequired (maxGap);
+    int tfBits = bitsRequired (maxTf);
+    int positionBits = bitsRequired (maxPositionGap);
+
+    int blockLength = BLOCK_HEADER_LENGTH +
+      packedLength (count, docidBits) +
+      packedLength (count, tfBits) +
+      packedLength (numPositions, positionBits);
+
+    this.ensureDataCapacity (this.dataLength + blockLength);
+
+    //  Record the skip entry.
+
+    if (this.blockCount == this.blockLastDocid.length) {
+      this.blockLastDocid = Arrays.copyOf (this.blockLastDocid, 2 * this.blockCount);
+      this.blockOffset = Arrays.copyOf (this.blockOffset, 2 * this.blockCount);
+    }
+
+    this.blockLastDocid[this.blockCount] = this.pendingDocids[count - 1];
+    this.blockOffset[this.blockCount] = this.dataLength;
+
+    //  Write the block.
+
+    int offset = this.dataLength;
+
+    this.data[offset++] = (byte) (count - 1);
+    this.data[offset++] = (byte) docidBits;
+    this.data[offset++] = (byte) tfBits;
+    this.data[offset++] = (byte) positionBits;
+
+    offset = pack (this.data, offset, this.docidGaps, count, docidBits);
+    offset = pack (this.data, offset, this.pendingTfs, count, tfBits);
+    offset = pack (this.data, offset, this.scratch, numPositions, positionBits);
+
+    this.dataLength = offset;
+    this.blockCount ++;
+
+    //  Clear the pending buffers.
+
+    this.pendingCount = 0;
+    this.pendingPosOffsets[0] = 0;
+  }
+
+  /**
+   *  Decode a block into the decoded block cache, unless it is already
+   *  there.
+   *  @param block The index of the block.
+   */
+  private void decodeBlock (int block) {
+
+    if (block == this.decodedBlock)
+      return;
+
+    int offset = this.blockOffset[block];
+    int count = (this.data[offset++] & 0xFF) + 1;
+    int docidBits = this.data[offset++];
+    int tfBits = this.data[offset++];
+    int positionBits = this.data[offset++];
+
+    offset = unpack (this.data, offset, this.decodedDocids, count, docidBits);
+    offset = unpack (this.data, offset, this.decodedTfs, count, tfBits);
+
+    int previousDocid = (block == 0) ? -1 : this.blockLastDocid[block - 1];
+
+    this.decodedPosOffsets[0] = 0;
+
+    for (int i = 0; i < count; i++) {
+      previousDocid += this.decodedDocids[i];
+      this.decodedDocids[i] = previousDocid;
+      this.decodedPosOffsets[i + 1] = this.decodedPosOffsets[i] + this.decodedTfs[i];
+    }
+
+    int numPositions = this.decodedPosOffsets[count];
+
+    if (this.decodedPositions.length < numPositions)
+      this.decodedPositions = new int[Math.max (numPositions, 2 * this.decodedPositions.length)];
+
+    unpack (this.data, offset, this.decodedPositions, numPositions, positionBits);
+
+    for (int i = 0; i < count; i++) {
+      int previous = 0;
+
+      for (int p = this.decodedPosOffsets[i]; p < this.decodedPosOffsets[i + 1]; p++) {
+        previous += zigZagDecode (this.decodedPositions[p]);
+        this.decodedPositions[p] = previous;
+      }
+    }
+
+    this.decodedBlock = block;
+  }
+
+  /**
+   *  Make sure that the data array can hold the specified number of bytes.
+   *  @param capacity The number of bytes required.
+   */
+  private void ensureDataCapacity (int capacity) {
+    if (capacity > this.data.length)
+      this.data = Arrays.copyOf (this.data, Math.max (capacity, 2 * this.data.length));
+  }
+
+  //  --------------- Bit packing -----------------------------------
+
+  /**
+   *  The number of bits required to represent a non-negative value.
+   *  @param value The value.
+   *  @return The number of bits.
+   */
+  static int bitsRequired (int value) {
+    return 32 - Integer.numberOfLeadingZeros (value);
+  }
+
+  /**
+   *  The number of bytes that count values of the specified width
+   *  occupy when they are packed.
+   *  @param count The number of values.
+   *  @param bits The width of each value, in bits.
+   *  @return The number of bytes.
+   */
+  static int packedLength (int count, int bits) {
+    return (int) (((long) count * bits + 7) >>> 3);
+  }
+
+  /**
+   *  Pack values into a byte array, starting at a byte offset.
+   *  @param dest The destination array.
+   *  @param offset The byte offset of the first value.
+   *  @param values The values to pack.
+   *  @param count The number of values to pack.
+   *  @param bits The width of each value, in bits.
+   *  @return The byte offset after the last packed value.
+   */
+  static int pack (byte[] dest, int offset, int[] values, int count, int bits) {
+
+    if (bits == 0)
+      return offset;
+
+    long mask = (bits == 32) ? 0xFFFFFFFFL : (1L << bits) - 1;
+    long buffer = 0;
+    int buffered = 0;
+
+    for (int i = 0; i < count; i++) {
+      buffer |= (values[i] & mask) << buffered;
+      buffered += bits;
+
+      while (buffered >= 8) {
+        dest[offset++] = (byte) buffer;
+        buffer >>>= 8;
+        buffered -= 8;
+      }
+    }
+
+    if (buffered > 0)
+      dest[offset++] = (byte) buffer;
+
+    return offset;
+  }
+
+  /**
+   *  Unpack values from a byte array, starting at a byte offset.
+   *  @param src The source array.
+   *  @param offset The byte offset of the first value.
+   *  @param values The array that receives the values.
+   *  @param count The number of values to unpack.
+   *  @param bits The width of each value, in bits.
+   *  @return The byte offset after the last unpacked value.
+   */
+  static int unpack (byte[] src, int offset, int[] values, int count, int bits) {
+
+    if (bits == 0) {
+      Arrays.fill (values, 0, count, 0);
+      return offset;
+    }
+
+    long mask = (bits == 32) ? 0xFFFFFFFFL : (1L << bits) - 1;
+    long buffer = 0;
+    int buffered = 0;
+
+    for (int i = 0; i < count; i++) {
+      while (buffered < bits) {
+        buffer |= (long) (src[offset++] & 0xFF) << buffered;
+        buffered += 8;
+      }
+
+      values[i] = (int) (buffer & mask);
+      buffer >>>= bits;
+      buffered -= bits;
+    }
+
+    return offset;
+  }
+
+  private static int zigZagEncode (int value) {
+    return (value << 1) ^ (value >> 31);
+  }
+
+  private static int zigZagDecode (int value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
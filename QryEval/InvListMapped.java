@@ -0,0 +1,139 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.nio.*;
+
+/**
+ *  An inverted list that is a read-only view of postings in a
+ *  ByteBuffer, such as a memory-mapped native index (see IdxNative) or
+ *  an off-heap InvListCache entry.  The postings use the same packed
+ *  layout as InvList, so nothing is decoded or copied when the inverted
+ *  list is created; each access reads the buffer.
+ */
+public class InvListMapped extends InvList {
+
+  //  --------------- Constants and variables -----------------------
+
+  private IntBuffer docids;
+  private IntBuffer tfs;
+  private IntBuffer posOffsets;
+  private IntBuffer positions;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create an inverted list from a buffer of packed postings.
+   *  @param fieldString The field that the term occurs in.
+   *  @param df The document frequency of the term.
+   *  @param ctf The collection term frequency of the term.
+   *  @param postings The term's postings, or null if df is 0.
+   */
+  public InvListMapped (String fieldString, int df, int ctf, ByteBuffer postings) {
+
+    super (fieldString, false);
+    this.df = df;
+    this.ctf = ctf;
+
+    if (df == 0)
+      return;
+
+    IntBuffer ints = postings.asIntBuffer ();
+
+    this.docids = slice (ints, 0, df);
+    this.tfs = slice (ints, df, df);
+    this.posOffsets = slice (ints, 2 * df, df);
+    this.positions = slice (ints, 3 * df, ctf);
+  }
+
+  /**
+   *  Inverted lists that are views of a buffer can't be changed.
+   *  @param docid The internal document id of the posting.
+   *  @param positions An array of positions where the term occurs.
+   *  @param tf The number of valid entries in positions.
+   *  @return Never returns.
+   *  @throws UnsupportedOperationException Always.
+   */
+  @Override
+  public boolean appendPosting (int docid, int[] positions, int tf) {
+    throw new UnsupportedOperationException (
+      "Inverted lists backed by a buffer are read-only.");
+  }
+
+  /**
+   *  Inverted lists that are views of a buffer can't be changed.
+   *  @param docid The internal document id of the posting.
+   *  @param tf The term frequency.
+   *  @return Never returns.
+   *  @throws UnsupportedOperationException Always.
+   */
+  @Override
+  public boolean appendPosting (int docid, int tf) {
+    throw new UnsupportedOperationException (
+      "Inverted lists backed by a buffer are read-only.");
+  }
+
+  /**
+   *  Inverted lists that are views of a buffer don't have a skip
+   *  table; findDocIndex searches the buffer directly.
+   */
+  @Override
+  public void finish () {
+  }
+
+  /**
+   *  Find the first posting at or after index from whose docid is
+   *  greater than or equal to a target docid, using galloping search.
+   *  @param from The index of the posting to start at.
+   *  @param target The target docid.
+   *  @return The index of the posting, or df if there is none.
+   */
+  @Override
+  public int findDocIndex (int from, int target) {
+    return gallop (this.docids, from, this.df, target);
+  }
+
+  /**
+   *  Get the n'th document id from the inverted list.
+   *  @param n The index of the requested document.
+   *  @return The internal document id.
+   */
+  @Override
+  public int getDocid (int n) {
+    return this.docids.get (n);
+  }
+
+  /**
+   *  Get the j'th location in the n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @param j The index of the requested location in the document.
+   *  @return The location.
+   */
+  @Override
+  public int getPosition (int n, int j) {
+    return this.positions.get (this.posOffsets.get (n) + j);
+  }
+
+  /**
+   *  Get the term frequency in the n'th document of the inverted list.
+   *  @param n The index of the requested document term frequency.
+   *  @return The document's term frequency.
+   */
+  @Override
+  public int getTf (int n) {
+    return this.tfs.get (n);
+  }
+
+  /**
+   *  Get a view of part of an IntBuffer.
+   *  @param b The buffer.
+   *  @param offset The index of the first int.
+   *  @param length The number of ints.
+   *  @return A buffer whose index 0 is b[offset].
+   */
+  private static IntBuffer slice (IntBuffer b, int offset, int length) {
+    IntBuffer s = b.duplicate ();
+    s.position (offset);
+    s.limit (offset + length);
+    return s.slice ();
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Per-document length normalization tables for the BM25 and Indri
+ *  retrieval models, so that scoring a posting is an array lookup
+ *  instead of a field length lookup and a division.  For each field,
+ *  the BM25 table has RetrievalModelBM25.getLengthNorm of each
+ *  document, and the Indri table has RetrievalModelIndri.getLengthNorm.
+ *  <p>
+ *  Tables are indexed by whole-index docid (see
+ *  IndexContext.getDocBase), built when they are first needed, and
+ *  shared by all of the queries that use models with the same
+ *  parameters (BM25:k_1 and BM25:b, or Indri:mu).  Each field keeps
+ *  the MAX_TABLES most recently used tables, so that a few models with
+ *  different parameters (e.g., the configured model and the defaults
+ *  that warmup uses) can alternate without rebuilding a table for
+ *  every query.
+ *  </p>
+ *  <p>
+ *  Tables are floats, to halve their memory and cache footprint.  The
+ *  values are computed as doubles and rounded once, so each has a
+ *  relative error of at most 2^-24 (about 6e-8).  A BM25 tf weight,
+ *  tf / (tf + norm), and an Indri smoothed probability, which is
+ *  proportional to 1 / (lend + mu), have the same relative error, so
+ *  BM25 scores differ by at most about 6e-8 relative, and Indri scores
+ *  (logs) by at most about 6e-8 absolute, from computing the
+ *  normalization for each posting.  Only documents whose scores are
+ *  that close can change order.
+ *  </p>
+ */
+public class LengthNormTables {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The number of tables that each field keeps.
+   */
+  public static final int MAX_TABLES = 4;
+
+  private IndexContext index;
+  private Map<Integer,Map<String,float[]>> tables =
+    new HashMap<Integer,Map<String,float[]>> ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create an empty set of tables.
+   *  @param index The index whose field lengths the tables normalize.
+   *    Only its field lengths and statistics are used.
+   */
+  public LengthNormTables (IndexContext index) {
+    this.index = index;
+  }
+
+  /**
+   *  Get the BM25 length normalization table of a field.
+   *  @param model The BM25 model.
+   *  @param fieldName The field name.
+   *  @return k_1 * ((1 - b) + b * doclen / avglen) for each document.
+   *  @throws IOException Error accessing the index.
+   */
+  public synchronized float[] getBM25 (RetrievalModelBM25 model,
+                                       String fieldName)
+    throws IOException {
+
+    int fieldOrdinal = this.index.getFieldOrdinal (fieldName);
+    Map<String,float[]> fieldTables = this.getFieldTables (fieldOrdinal);
+    String key = "BM25:" + model.getK1 () + ":" + model.getB ();
+    float[] norms = fieldTables.get (key);
+
+    if (norms == null) {
+      double avglen = this.index.getAverageFieldLength (fieldName);
+
+      norms = new float[this.index.getReader ().maxDoc ()];
+
+      for (int docid = 0; docid < norms.length; docid++) {
+        norms[docid] = (float) model.getLengthNorm (
+          this.index.getFieldLength (fieldOrdinal, docid), avglen);
+      }
+
+      fieldTables.put (key, norms);
+    }
+
+    return norms;
+  }
+
+  /**
+   *  Get the Indri length normalization table of a field.
+   *  @param model The Indri model.
+   *  @param fieldName The field name.
+   *  @return 1 / (doclen + mu) for each document.
+   *  @throws IOException Error accessing the index.
+   */
+  public synchronized float[] getIndri (RetrievalModelIndri model,
+                                        String fieldName)
+    throws IOException {
+
+    int fieldOrdinal = this.index.getFieldOrdinal (fieldName);
+    Map<String,float[]> fieldTables = this.getFieldTables (fieldOrdinal);
+    String key = "Indri:" + model.getMu ();
+    float[] norms = fieldTables.get (key);
+
+    if (norms == null) {
+      norms = new float[this.index.getReader ().maxDoc ()];
+
+      for (int docid = 0; docid < norms.length; docid++) {
+        norms[docid] = (float) model.getLengthNorm (
+          this.index.getFieldLength (fieldOrdinal, docid));
+      }
+
+      fieldTables.put (key, norms);
+    }
+
+    return norms;
+  }
+
+  /**
+   *  Get the tables of a field, most recently used last.  Adding a
+   *  table to a field that has MAX_TABLES drops its least recently
+   *  used table.  Queries that already have the table keep using it.
+   *  @param fieldOrdinal The field's ordinal.
+   *  @return The field's tables, keyed by model type and parameters.
+   */
+  private Map<String,float[]> getFieldTables (int fieldOrdinal) {
+
+    Map<String,float[]> fieldTables = this.tables.get (fieldOrdinal);
+
+    if (fieldTables == null) {
+      fieldTables = new LinkedHashMap<String,float[]> (16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry (Map.Entry<String,float[]> eldest) {
+          return size () > MAX_TABLES;
+        }
+      };
+      this.tables.put (fieldOrdinal, fieldTables);
+    }
+
+    return fieldTables;
+  }
+}
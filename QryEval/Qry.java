@@ -84,6 +84,12 @@ public abstract class Qry {
    */
   protected ArrayList<Qry> args = new ArrayList<Qry>();
 
+  /**
+   *  The index that the query operator is evaluated against.  It is
+   *  set when the query operator is initialized.
+   */
+  protected IndexContext index = null;
+
 
   /**
    *  The string to use when the query is displayed.  Some query
@@ -417,7 +423,20 @@ public abstract class Qry {
    *  @param r A retrieval model that guides initialization
    *  @throws IOException Error accessing the Lucene index.
    */
-  public abstract void initialize(RetrievalModel r) throws IOException;
+  public void initialize(RetrievalModel r) throws IOException {
+    this.initialize (r, Idx.getContext ());
+  }
+
+  /**
+   *  Initialize the query operator (and its arguments) to be evaluated
+   *  against a specific index.  Different copies of a query may be
+   *  initialized against different indexes concurrently.
+   *  @param r A retrieval model that guides initialization
+   *  @param index The index.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public abstract void initialize(RetrievalModel r, IndexContext index)
+    throws IOException;
 
   /**
    *  Removes an argument from the list of query operator arguments.
@@ -13,6 +13,7 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 
 /**
@@ -30,6 +31,16 @@ public class QryEval {
 
   private static final String[] TEXT_FIELDS = { "body", "title", "url", "inlink" };
 
+  private static SegmentEvaluator segmentEvaluator = null;
+
+  private static ImpactEvaluator impactEvaluator = null;
+  private static BooleanEvaluator booleanEvaluator = null;
+
+  private static long refreshInterval = 0;
+  private static long lastRefresh = 0;
+
+  private static boolean showQueries = true;
+
   // --------------- Methods ---------------------------------------
 
   /**
@@ -59,8 +70,16 @@ public class QryEval {
     // Open the index and initialize the retrieval model.
 
     Idx.open(parameters.get("indexPath"));
+    initializeEvaluationOptions(parameters);
     RetrievalModel model = initializeRetrievalModel(parameters);
 
+    // warmup:queryFilePath=file warms up the index and the JIT with the
+    // queries in file before the first timed query. See Warmup.
+
+    if (parameters.containsKey("warmup:queryFilePath")) {
+      Warmup.run(parameters, model);
+    }
+
     // Perform experiments.
     if (parameters.containsKey("diversity") && parameters.get("diversity").equals("true")) {
       Diversification diver = new Diversification(parameters);
@@ -73,9 +92,165 @@ public class QryEval {
     // Clean up.
 
     timer.stop();
+    if (Idx.getInvListCache() != null) {
+      System.out.println(Idx.getInvListCache());
+    }
     System.out.println("Time:  " + timer);
   }
 
+  /**
+   * Configure optional query evaluation strategies using parameters from the
+   * parameter file. The defaults reproduce the original behavior.
+   * 
+   * @param parameters The parameters read from the parameter file.
+   * @throws IOException Error opening the native index.
+   */
+  private static void initializeEvaluationOptions(Map<String, String> parameters)
+      throws IOException {
+
+    // index:streamingTerms=true makes TERM operators iterate over Lucene
+    // postings directly instead of copying them into an InvList.
+
+    QryIopTerm.setStreaming("true".equals(parameters.get("index:streamingTerms")));
+
+    // index:compressDerivedLists=true stores the inverted lists produced by
+    // #SYN, #NEAR/n and #WINDOW/n in compressed blocks.
+
+    QryIop.setCompressDerivedLists("true".equals(parameters.get("index:compressDerivedLists")));
+
+    // index:skipInterval=n adds a skip table with one entry per n postings to
+    // long inverted lists, which speeds up docIteratorAdvanceTo.
+
+    if (parameters.containsKey("index:skipInterval")) {
+      InvList.setSkipInterval(Integer.parseInt(parameters.get("index:skipInterval")));
+    }
+
+    // index:nativePath=dir serves inverted lists, field lengths and
+    // statistics from a memory-mapped native index written by IdxExport.
+
+    if (parameters.containsKey("index:nativePath")) {
+      Idx.openNative(parameters.get("indexPath"), parameters.get("index:nativePath"));
+    }
+
+    // index:phrasePath=dir reads #NEAR/1 inverted lists of frequent term
+    // pairs from a phrase index written by IdxPhrase.
+
+    if (parameters.containsKey("index:phrasePath")) {
+      Idx.openPhraseIndex(parameters.get("indexPath"), parameters.get("index:phrasePath"));
+    }
+
+    // index:docLengthsPath=dir memory-maps field lengths from sidecar files
+    // in dir, creating them the first time that they are needed.
+
+    if (parameters.containsKey("index:docLengthsPath")) {
+      Idx.setDocLengthsPath(parameters.get("index:docLengthsPath"));
+    }
+
+    // index:docidTablePath=file saves the external/internal docid table
+    // the first time it is built, and loads it on later runs.
+
+    if (parameters.containsKey("index:docidTablePath")) {
+      Idx.setDocidTablePath(parameters.get("index:docidTablePath"));
+    }
+
+    // index:termDictionaryPath=file saves the (field, term) -> term id
+    // dictionary the first time it is built, and maps it on later runs.
+    // Without it, the parser leaves term ids unresolved rather than
+    // building the dictionary for every run.
+
+    if (parameters.containsKey("index:termDictionaryPath")) {
+      Idx.setTermDictionaryPath(parameters.get("index:termDictionaryPath"));
+    }
+
+    // index:termStatsCacheSize=n bounds the number of terms whose df and
+    // ctf are cached.
+
+    if (parameters.containsKey("index:termStatsCacheSize")) {
+      TermStatsCache.setCapacity(Integer.parseInt(parameters.get("index:termStatsCacheSize")));
+    }
+
+    // index:attributesPath=dir reads spamScore, PageRank and url features
+    // from a columnar attribute store in dir, which is built if necessary.
+
+    if (parameters.containsKey("index:attributesPath")) {
+      Idx.openAttributeStore(parameters.get("index:attributesPath"));
+    }
+
+    // index:invListCacheBytes=n caches inverted lists across queries, up to
+    // n bytes. Only lists with df >= index:invListCacheMinDf are admitted,
+    // and index:invListCacheOffHeap=true stores them in direct buffers.
+
+    if (parameters.containsKey("index:invListCacheBytes")) {
+      int minDf = 100;
+      if (parameters.containsKey("index:invListCacheMinDf")) {
+        minDf = Integer.parseInt(parameters.get("index:invListCacheMinDf"));
+      }
+      Idx.setInvListCache(new InvListCache(Long.parseLong(parameters.get("index:invListCacheBytes")),
+          minDf, "true".equals(parameters.get("index:invListCacheOffHeap"))));
+    }
+
+    // index:segmentThreads=n evaluates each query on the index segments in
+    // parallel, with n threads. Each segment contributes its top
+    // index:segmentTopK results, which defaults to the most that any
+    // consumer of the results uses.
+
+    if (parameters.containsKey("index:segmentThreads")) {
+      int topK = getResultDepth(parameters);
+      if (parameters.containsKey("index:segmentTopK")) {
+        topK = Integer.parseInt(parameters.get("index:segmentTopK"));
+      }
+      segmentEvaluator = new SegmentEvaluator(Integer.parseInt(parameters.get("index:segmentThreads")), topK);
+    }
+
+    // index:impactPath=dir evaluates BM25 #SUM queries score-at-a-time on
+    // an impact-ordered index written by IdxImpact. Once
+    // index:impactPostingsBudget=n postings are processed no more impact
+    // segments are started; the default, 0, processes every posting.
+
+    if (parameters.containsKey("index:impactPath")) {
+      long budget = 0;
+      if (parameters.containsKey("index:impactPostingsBudget")) {
+        budget = Long.parseLong(parameters.get("index:impactPostingsBudget"));
+      }
+      impactEvaluator = new ImpactEvaluator(new ImpactIndex(parameters.get("index:impactPath")), Idx.getContext(),
+          getResultDepth(parameters), budget);
+    }
+
+    // index:refreshSeconds=n checks, between queries, whether the index
+    // has changed on disk (e.g., documents were added), at most every n
+    // seconds, and if so evaluates later queries on the new version.
+
+    if (parameters.containsKey("index:refreshSeconds")) {
+      refreshInterval = (long) (1000 * Double.parseDouble(parameters.get("index:refreshSeconds")));
+      lastRefresh = System.currentTimeMillis();
+    }
+
+    // index:bitmapPath=dir evaluates UnrankedBoolean and RankedBoolean
+    // queries with set operations on a bitmap index written by IdxBitmap.
+
+    if (parameters.containsKey("index:bitmapPath")) {
+      booleanEvaluator = new BooleanEvaluator(new BitmapIndex(parameters.get("index:bitmapPath")), Idx.getContext(),
+          getResultDepth(parameters));
+    }
+  }
+
+  /**
+   * The number of results that any consumer of a query's results uses: the
+   * output, relevance feedback, or diversification.
+   * 
+   * @param parameters The parameters read from the parameter file.
+   * @return The number of results, or 0 if no limit is known.
+   */
+  private static int getResultDepth(Map<String, String> parameters) {
+    int depth = 0;
+    for (String p : new String[] { "trecEvalOutputLength", "fbDocs", "diversity:maxInputRankingsLength" }) {
+      if (parameters.containsKey(p)) {
+        depth = Math.max(depth, Integer.parseInt(parameters.get(p)));
+      }
+    }
+    return depth;
+  }
+
   /**
    * Allocate the retrieval model and initialize it using parameters from the
    * parameter file.
@@ -83,7 +258,7 @@ public class QryEval {
    * @return The initialized retrieval model
    * @throws IOException Error accessing the Lucene index.
    */
-  private static RetrievalModel initializeRetrievalModel(Map<String, String> parameters) throws Exception, IOException {
+  static RetrievalModel initializeRetrievalModel(Map<String, String> parameters) throws Exception, IOException {
 
     RetrievalModel model = null;
     if (!parameters.containsKey("retrievalAlgorithm")) {
@@ -132,6 +307,37 @@ public class QryEval {
     System.out.println("Memory used:  " + ((runtime.totalMemory() - runtime.freeMemory()) / (1024L * 1024L)) + " MB");
   }
 
+  /**
+   * Control whether processQuery prints each query that it evaluates. Warmup
+   * turns this off.
+   * 
+   * @param onOff True to print queries.
+   */
+  static void setShowQueries(boolean onOff) {
+    showQueries = onOff;
+  }
+
+  /**
+   * @return True if queries are printed as they are parsed and evaluated.
+   */
+  static boolean isShowingQueries() {
+    return showQueries;
+  }
+
+  /**
+   * Check that a retrieval model can be used with the configured query
+   * evaluators, e.g., that a BM25 model has the parameters that the impact
+   * index was built with.
+   * 
+   * @param model The retrieval model.
+   * @throws IllegalArgumentException The model doesn't match an evaluator.
+   */
+  static void checkModel(RetrievalModel model) throws IllegalArgumentException {
+    if ((impactEvaluator != null) && (model instanceof RetrievalModelBM25)) {
+      impactEvaluator.checkModel((RetrievalModelBM25) model);
+    }
+  }
+
   /**
    * Process one query.
    * 
@@ -143,23 +349,79 @@ public class QryEval {
    */
   static ScoreList processQuery(String qString, RetrievalModel model) throws IOException {
 
+    // Parse, evaluate and record the results against one snapshot of
+    // the current index, which stays open even if the index is
+    // refreshed meanwhile.
+
+    IndexContext index = Idx.acquireContext();
+    try {
+      return processQuery(defaultOp(qString, model), model, index);
+    } finally {
+      Idx.releaseContext(index);
+    }
+  }
+
+  /**
+   * Wrap a query in the default query operator of a retrieval model.
+   * 
+   * @param qString A string that contains a query.
+   * @param model   The retrieval model.
+   * @return The wrapped query.
+   */
+  private static String defaultOp(String qString, RetrievalModel model) {
     String defaultOp = model.defaultQrySopName();
     // System.out.println("before " + qString);
     qString = defaultOp + "(" + qString + ")";
     // System.out.println("after " + qString);
-    Qry q = QryParser.getQuery(qString);
+    return qString;
+  }
+
+  /**
+   * Process one query against a specific index.
+   * 
+   * @param qString A string that contains a query.
+   * @param model   The retrieval model determines how matching and scoring is
+   *                done.
+   * @param index   The index.
+   * @return Search results
+   * @throws IOException Error accessing the index
+   */
+  private static ScoreList processQuery(String qString, RetrievalModel model, IndexContext index)
+      throws IOException {
+
+    Qry q = QryParser.getQuery(qString, index);
 
     // Show the query that is evaluated
 
-    System.out.println("    --> " + q);
+    if (showQueries) {
+      System.out.println("    --> " + q);
+    }
+
+    if ((q != null) && (impactEvaluator != null) && (model instanceof RetrievalModelBM25)) {
+      ScoreList r = impactEvaluator.evaluate(q, (RetrievalModelBM25) model, index);
+      if (r != null) {
+        return r;
+      }
+    }
+
+    if ((q != null) && (booleanEvaluator != null)) {
+      ScoreList r = booleanEvaluator.evaluate(q, model, index);
+      if (r != null) {
+        return r;
+      }
+    }
+
+    if ((q != null) && (segmentEvaluator != null)) {
+      return segmentEvaluator.evaluate(qString, model, index);
+    }
 
     if (q != null) {
       // System.out.println(q.getClass().getName());
-      ScoreList r = new ScoreList();
+      ScoreList r = new ScoreList(index);
 
       if (q.args.size() > 0) { // Ignore empty queries
 
-        q.initialize(model);
+        q.initialize(model, index);
 
         while (q.docIteratorHasMatch(model)) {
           int docid = q.docIteratorGetMatch();
@@ -183,86 +445,148 @@ public class QryEval {
       return null;
   }
 
-  static String expandQuery(ScoreList list, Map<String, String> parameters) throws IOException {
+  static String expandQuery(ScoreList list, Map<String, String> parameters, IndexContext index)
+      throws IOException {
     int fbDocs = Integer.parseInt(parameters.get("fbDocs"));
     int fbTerms = Integer.parseInt(parameters.get("fbTerms"));
     double fbMu = Double.parseDouble(parameters.get("fbMu"));
-    Map<String, Double> scoreMap = new HashMap<>();
-    Map<Integer, TermVector> cache = new HashMap<>();
-    Map<String, Double> cache2 = new HashMap<>();
+    TermVector[] tvs = new TermVector[fbDocs];
+
+    // Candidates are identified by term id if the term dictionary is
+    // available, and otherwise by string, so that feedback doesn't build
+    // the dictionary. Either way they are sorted in the dictionary's
+    // order (UTF-8 byte order), which breaks score ties.
+
+    TermDictionary dictionary = index.hasTermDictionary() ? index.getTermDictionary() : null;
+    int[] candidates = null;
+    String[] candidateTerms;
+    int numCandidates;
 
     for (int i = 0; i < fbDocs; i++) {
-      int docid = list.getDocid(i);
-      TermVector tv = new TermVector(docid, "body");
-      cache.put(docid, tv);
-      for (int terms = 1; terms < tv.stemsLength(); terms++) {
-        String term = tv.stemString(terms);
+      tvs[i] = new TermVector(index, list.getDocid(i), "body");
+    }
+
+    if (dictionary != null) {
+
+      // Collect the term ids of the candidate expansion terms. Their scores
+      // are kept in arrays that parallel the sorted candidate ids.
+
+      candidates = new int[256];
+      numCandidates = 0;
+
+      for (int i = 0; i < fbDocs; i++) {
+        for (int terms = 1; terms < tvs[i].stemsLength(); terms++) {
+          if (numCandidates == candidates.length) {
+            candidates = Arrays.copyOf(candidates, 2 * numCandidates);
+          }
+          candidates[numCandidates++] = tvs[i].stemTermId(terms);
+        }
+      }
+
+      Arrays.sort(candidates, 0, numCandidates);
+
+      candidateTerms = new String[numCandidates];
+      int n = 0;
+      for (int c = 0; c < numCandidates; c++) {
+        int termId = candidates[c];
+        if ((termId < 0) || ((n > 0) && (candidates[n - 1] == termId))) {
+          continue;
+        }
+        String term = dictionary.getTerm(termId);
         // System.out.println(term);
         if (term.indexOf('.') >= 0 || term.indexOf(',') >= 0) {
           continue;
         }
-        double pMle = 0.0;
-        if (cache2.containsKey(term)) {
-          pMle = cache2.get(term);
-        } else {
-          pMle = (double) Idx.getTotalTermFreq("body", term) / (double) Idx.getSumOfFieldLengths("body");
-          cache2.put(term, pMle);
+        candidateTerms[n] = term;
+        candidates[n++] = termId;
+      }
+      numCandidates = n;
+    } else {
+      TreeMap<BytesRef, String> terms = new TreeMap<BytesRef, String>();
+
+      for (int i = 0; i < fbDocs; i++) {
+        for (int s = 1; s < tvs[i].stemsLength(); s++) {
+          String term = tvs[i].stemString(s);
+          if (term.indexOf('.') >= 0 || term.indexOf(',') >= 0) {
+            continue;
+          }
+          terms.put(new BytesRef(term), term);
         }
-        double score = calScore(pMle, tv.stemFreq(terms), fbMu, list.getDocidScore(i), docid);
+      }
+
+      candidateTerms = terms.values().toArray(new String[0]);
+      numCandidates = candidateTerms.length;
+    }
+
+    Map<String, Integer> candidateIndex = null;
+    if (dictionary == null) {
+      candidateIndex = new HashMap<String, Integer>();
+      for (int c = 0; c < numCandidates; c++) {
+        candidateIndex.put(candidateTerms[c], c);
+      }
+    }
+
+    double[] pMle = new double[numCandidates];
+    double[] scores = new double[numCandidates];
+
+    for (int c = 0; c < numCandidates; c++) {
+      long ctf = (dictionary != null) ? dictionary.getCtf(candidates[c])
+          : index.getTotalTermFreq("body", candidateTerms[c]);
+      pMle[c] = (double) ctf / (double) index.getSumOfFieldLengths("body");
+    }
+
+    // Score each candidate in the documents that contain it, and then in
+    // the documents that don't.
 
-        Double tmp = scoreMap.get(term);
-        if (tmp == null) {
-          scoreMap.put(term, score);
+    for (int i = 0; i < fbDocs; i++) {
+      int docid = list.getDocid(i);
+      TermVector tv = tvs[i];
+      for (int terms = 1; terms < tv.stemsLength(); terms++) {
+        int c;
+        if (dictionary != null) {
+          c = Arrays.binarySearch(candidates, 0, numCandidates, tv.stemTermId(terms));
         } else {
-          scoreMap.put(term, tmp + score);
+          Integer found = candidateIndex.get(tv.stemString(terms));
+          c = (found == null) ? -1 : found;
         }
+        if (c < 0) {
+          continue;
+        }
+        scores[c] += calScore(index, pMle[c], tv.stemFreq(terms), fbMu, list.getDocidScore(i), docid);
       }
     }
 
-    for (Map.Entry<String, Double> entry : scoreMap.entrySet()) {
-      String term = entry.getKey();
+    for (int c = 0; c < numCandidates; c++) {
       for (int i = 0; i < fbDocs; i++) {
         int docid = list.getDocid(i);
-        TermVector tv = cache.get(docid);
-        int index = tv.indexOfStem(term);
-        double pMle = cache2.get(term);
-        double score = 0.0;
-        if (index == -1) {
-          score = calScore(pMle, 0.0, fbMu, list.getDocidScore(i), docid);
-        } else {
-          continue;
-        }
-        Double tmpScore = scoreMap.get(term);
-        if (tmpScore == null) {
-          scoreMap.put(term, score);
-        } else {
-          scoreMap.put(term, tmpScore + score);
+        int s = (dictionary != null) ? tvs[i].indexOfTermId(candidates[c]) : tvs[i].indexOfStem(candidateTerms[c]);
+        if (s == -1) {
+          scores[c] += calScore(index, pMle[c], 0.0, fbMu, list.getDocidScore(i), docid);
         }
       }
     }
 
-    StringBuilder sb = new StringBuilder();
-    sb.append("#wand(");
-    PriorityQueue<Map.Entry<String, Double>> minHeap = new PriorityQueue<>(new Comparator<Map.Entry<String, Double>>() {
+    // Select the fbTerms highest-scoring candidates. Ties prefer the term
+    // that sorts first, so the expansion doesn't depend on hash order.
+
+    final double[] candidateScores = scores;
+    Integer[] order = new Integer[numCandidates];
+    for (int c = 0; c < numCandidates; c++) {
+      order[c] = c;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
       @Override
-      public int compare(Map.Entry<String, Double> e1, Map.Entry<String, Double> e2) {
-        if (e1.getValue() == e2.getValue()) {
-          return 0;
-        }
-        return e1.getValue() < e2.getValue() ? -1 : 1;
+      public int compare(Integer c1, Integer c2) {
+        int cmp = Double.compare(candidateScores[c1], candidateScores[c2]);
+        return (cmp != 0) ? cmp : Integer.compare(c2, c1);
       }
     });
-    for (Map.Entry<String, Double> entry : scoreMap.entrySet()) {
-      minHeap.offer(entry);
-      if (minHeap.size() > fbTerms) {
-        minHeap.poll();
-      }
-    }
 
-    while (!minHeap.isEmpty()) {
-      Map.Entry<String, Double> tmp = minHeap.poll();
-      String round = String.format("%.4f", tmp.getValue());
-      sb.append(" " + round + " " + tmp.getKey());
+    StringBuilder sb = new StringBuilder();
+    sb.append("#wand(");
+    for (int k = Math.max(0, numCandidates - fbTerms); k < numCandidates; k++) {
+      String round = String.format("%.4f", scores[order[k]]);
+      sb.append(" " + round + " " + candidateTerms[order[k]]);
     }
     sb.append(")");
     System.out.println(sb.toString());
@@ -298,9 +622,10 @@ public class QryEval {
     return map;
   }
 
-  private static double calScore(double pMle, double tf, double fbMu, double docScore, int docid) throws IOException {
+  private static double calScore(IndexContext index, double pMle, double tf, double fbMu, double docScore, int docid)
+      throws IOException {
 
-    double td = (tf + (fbMu * pMle)) / (Idx.getFieldLength("body", docid) + fbMu);
+    double td = (tf + (fbMu * pMle)) / (index.getFieldLength("body", docid) + fbMu);
     double idf = Math.log(1 / pMle);
     double score = td * idf * docScore;
     return score;
@@ -341,6 +666,7 @@ public class QryEval {
         }
 
         printMemoryUsage(false);
+        refreshIndex(parameters);
 
         String qid = qLine.substring(0, d);
         String query = qLine.substring(d + 1);
@@ -348,17 +674,26 @@ public class QryEval {
         System.out.println("Query " + qLine);
         // System.out.println(qid);
 
-        ScoreList r = null;
-        if (parameters.get("fb") == null || parameters.get("fb").equals("false")) {
-          r = processQuery(query, model);
-        } else {
-          r = needExpand(model, query, qid, parameters);
-        }
-
-        if (r != null) {
-          r.sort();
-          printResults(qid, outputLength, outputFile, r);
-          System.out.println();
+        // Evaluate the query and print its results against one snapshot
+        // of the current index, so that the internal docids of the
+        // results are still valid if the index is refreshed meanwhile.
+
+        IndexContext index = Idx.acquireContext();
+        try {
+          ScoreList r = null;
+          if (parameters.get("fb") == null || parameters.get("fb").equals("false")) {
+            r = processQuery(defaultOp(query, model), model, index);
+          } else {
+            r = needExpand(model, query, qid, parameters, index);
+          }
+
+          if (r != null) {
+            r.sort();
+            printResults(qid, outputLength, outputFile, r, index);
+            System.out.println();
+          }
+        } finally {
+          Idx.releaseContext(index);
         }
       }
     } catch (IOException ex) {
@@ -368,17 +703,53 @@ public class QryEval {
     }
   }
 
-  private static ScoreList needExpand(RetrievalModel model, String query, String qid, Map<String, String> parameters)
-      throws IOException {
+  /**
+   * Refresh the index if index:refreshSeconds have passed since it was last
+   * checked.
+   * 
+   * @param parameters The parameters read from the parameter file.
+   * @throws IOException Error accessing the index.
+   */
+  private static void refreshIndex(Map<String, String> parameters) throws IOException {
+    if ((refreshInterval <= 0) || (System.currentTimeMillis() - lastRefresh < refreshInterval)) {
+      return;
+    }
+    IndexContext old = Idx.getContext();
+    if (Idx.refresh(parameters.get("indexPath"))) {
+      System.out.println("Refreshed the index:  " + Idx.getNumDocs() + " documents");
+
+      // Accelerators that are built offline from one version of the index
+      // can't be used with the new version.
+
+      if (old.getNativeIndex() != null) {
+        System.out.println("Warning:  index:nativePath is disabled, because it was built from an older version of the index");
+      }
+      if (old.getPhraseIndex() != null) {
+        System.out.println("Warning:  index:phrasePath is disabled, because it was built from an older version of the index");
+      }
+      if (impactEvaluator != null) {
+        System.out.println("Warning:  index:impactPath is disabled, because it was built from an older version of the index");
+        impactEvaluator = null;
+      }
+      if (booleanEvaluator != null) {
+        System.out.println("Warning:  index:bitmapPath is disabled, because it was built from an older version of the index");
+        booleanEvaluator = null;
+      }
+    }
+    lastRefresh = System.currentTimeMillis();
+  }
+
+  private static ScoreList needExpand(RetrievalModel model, String query, String qid, Map<String, String> parameters,
+      IndexContext index) throws IOException {
     ScoreList r = null;
     if (parameters.get("fbInitialRankingFile") != null) {
       Map<Integer, ScoreList> map = readInitialRankingFile(parameters.get("fbInitialRankingFile"));
       r = map.get(Integer.parseInt(qid));
     } else {
-      r = processQuery(query, model);
+      r = processQuery(defaultOp(query, model), model, index);
       r.sort();
     }
-    String learnedQ = expandQuery(r, parameters);
+    String learnedQ = expandQuery(r, parameters, index);
     Double weight = Double.parseDouble(parameters.get("fbOrigWeight"));
     writeLearnedQuery(parameters, learnedQ, qid);
     StringBuilder sb = new StringBuilder();
@@ -386,7 +757,7 @@ public class QryEval {
     sb.append("#wand ( " + parameters.get("fbOrigWeight") + " " + defaultOp + " ( " + query + " ) "
         + String.valueOf(1 - weight) + " " + learnedQ + ")");
     System.out.println(sb.toString());
-    r = processQuery(sb.toString(), model);
+    r = processQuery(defaultOp(sb.toString(), model), model, index);
     return r;
   }
 
@@ -410,6 +781,25 @@ public class QryEval {
    * @throws IOException Error accessing the Lucene index.
    */
   static void printResults(String queryName, int outputLength, File outputFile, ScoreList result) throws IOException {
+    IndexContext index = Idx.acquireContext();
+    try {
+      printResults(queryName, outputLength, outputFile, result, index);
+    } finally {
+      Idx.releaseContext(index);
+    }
+  }
+
+  /**
+   * Print the query results, using the index that they were evaluated
+   * against to look up their external docids.
+   * 
+   * @param queryName Original query.
+   * @param result    A list of document ids and scores
+   * @param index     The index that the results are from.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  static void printResults(String queryName, int outputLength, File outputFile, ScoreList result, IndexContext index)
+      throws IOException {
     FileWriter writer = new FileWriter(outputFile, true);
     if (result.size() < 1) {
       System.out.println(queryName + " Q0 dummy 1 0 fubar");
@@ -423,7 +813,7 @@ public class QryEval {
         // System.out.println(queryName + " Q0 " +
         // Idx.getExternalDocid(result.getDocid(i)) + " " + (i + 1) + " "
         // + result.getDocidScore(i) + " fubar");
-        writer.write(queryName + " Q0 " + Idx.getExternalDocid(result.getDocid(i)) + " " + (i + 1) + " "
+        writer.write(queryName + " Q0 " + index.getExternalDocid(result.getDocid(i)) + " " + (i + 1) + " "
             + result.getDocidScore(i) + " fubar\n");
       }
     }
@@ -437,7 +827,7 @@ public class QryEval {
    * 
    * @return The parameters, in <key, value> format.
    */
-  private static Map<String, String> readParameterFile(String parameterFileName) throws IOException {
+  static Map<String, String> readParameterFile(String parameterFileName) throws IOException {
 
     Map<String, String> parameters = new HashMap<String, String>();
 
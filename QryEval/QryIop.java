@@ -41,18 +41,39 @@ public abstract class QryIop extends Qry {
    */
   private static final int INVALID_ITERATOR_INDEX = -1;
 
+  /**
+   *  When true, the inverted lists that operators such as #SYN and
+   *  #NEAR/n produce are stored in compressed blocks.
+   */
+  private static boolean compressDerivedLists = false;
+
   /**
    *  The document field that the query operator applies to; this is
    *  inferred from query operator arguments.
    */
   protected String field = null;
 
+  /**
+   *  False if nothing reads this operator's locations, so its inverted
+   *  list only needs docids and tfs.  QryParser clears it for operators
+   *  that aren't (directly, or via #SYN) arguments of a proximity
+   *  operator.
+   */
+  protected boolean needsPositions = true;
+
   /**
    *  The inverted list that is produced when the query operator is
    *  initialized; use the docIterator to access this list.
    */
   protected InvList invertedList = null;
 
+  /**
+   *  The df and ctf of the operator in the whole index, if the inverted
+   *  list only covers one segment of it; -1 otherwise.
+   */
+  private int collectionDf = -1;
+  private long collectionCtf = -1;
+
   /**
    *  The index of the document that the docIterator points to now.
    */
@@ -63,6 +84,19 @@ public abstract class QryIop extends Qry {
    */
   private int locIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
 
+  /**
+   *  Create an empty inverted list for the result of a query operator
+   *  that derives its inverted list from its arguments (e.g., #SYN).
+   *  @return An empty inverted list for this operator's field.
+   */
+  protected InvList createDerivedInvList () {
+    if (QryIop.compressDerivedLists && this.needsPositions) {
+      return new InvListCompressed (this.getField ());
+    } else {
+      return new InvList (this.getField ());
+    }
+  }
+
   /**
    *  Advance the query operator's internal iterator beyond the
    *  specified document.
@@ -70,9 +104,11 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
+    if (docid == Integer.MAX_VALUE) {
+      this.docIteratorIndex = Math.max (this.docIteratorIndex, this.invertedList.df);
+    } else {
+      this.docIteratorIndex =
+        this.invertedList.findDocIndex (this.docIteratorIndex, docid + 1);
     }
            
     this.locIteratorIndex = 0;
@@ -85,10 +121,8 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
-    }
+    this.docIteratorIndex =
+      this.invertedList.findDocIndex (this.docIteratorIndex, docid);
            
     this.locIteratorIndex = 0;
   }
@@ -98,7 +132,7 @@ public abstract class QryIop extends Qry {
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    this.docIteratorIndex = this.invertedList.df;
   }
 
   /**
@@ -114,12 +148,13 @@ public abstract class QryIop extends Qry {
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Return the term frequency (tf) of the document that the docIterator
+   *  points to now, or throw an error if the docIterator doesn't point
+   *  at a document.
+   *  @return The term frequency.
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public int docIteratorGetMatchTf () {
+    return this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -138,8 +173,8 @@ public abstract class QryIop extends Qry {
    *  object's initialize method is called.
    *  @return The collection term frequency (ctf).
    */
-  public int getCtf () {
-    return this.invertedList.ctf;
+  public long getCtf () {
+    return (this.collectionCtf >= 0) ? this.collectionCtf : this.invertedList.ctf;
   }
 
   /**
@@ -149,7 +184,7 @@ public abstract class QryIop extends Qry {
    *  @return The document frequency (df).
    */
   public int getDf () {
-    return this.invertedList.df;
+    return (this.collectionDf >= 0) ? this.collectionDf : this.invertedList.df;
   }
 
   /**
@@ -160,6 +195,46 @@ public abstract class QryIop extends Qry {
     return this.field;
   }
 
+  /**
+   *  Returns true if this operator's locations are read, so its
+   *  inverted list must have positions.
+   *  @return True if positions are needed.
+   */
+  public boolean needsPositions () {
+    return this.needsPositions;
+  }
+
+  /**
+   *  Set the df and ctf that getDf and getCtf report, when the
+   *  operator is evaluated on one segment of an index and its scores
+   *  must use the statistics of the whole index.  This must be called
+   *  after the operator is initialized.
+   *  @param df The document frequency in the whole index.
+   *  @param ctf The collection term frequency in the whole index.
+   */
+  public void setCollectionStatistics (int df, long ctf) {
+    this.collectionDf = df;
+    this.collectionCtf = ctf;
+  }
+
+  /**
+   *  Enable or disable block compression of the inverted lists that
+   *  are derived from other inverted lists (e.g., by #SYN and #NEAR/n).
+   *  @param onOff True to compress derived inverted lists.
+   */
+  public static void setCompressDerivedLists (boolean onOff) {
+    QryIop.compressDerivedLists = onOff;
+  }
+
+  /**
+   *  Record whether this operator's locations are read.  This must be
+   *  called before the operator is initialized.
+   *  @param needed True if positions are needed.
+   */
+  public void setNeedsPositions (boolean needed) {
+    this.needsPositions = needed;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
@@ -172,19 +247,29 @@ public abstract class QryIop extends Qry {
    *  internal iterators; this method must be called before iteration
    *  can begin.
    *  @param r A retrieval model (that is ignored)
+   *  @param index The index.
    */
-  public void initialize(RetrievalModel r) throws IOException {
+  public void initialize(RetrievalModel r, IndexContext index)
+    throws IOException {
+
+    this.index = index;
 
     //  Initialize the query arguments (if any).
 
     for (Qry q_i: this.args) {
-      ((QryIop) q_i).initialize (r);
+      ((QryIop) q_i).initialize (r, index);
     }
 
     //  Evaluate the operator.
     
     this.evaluate ();
 
+    //  The inverted list is complete, so it can be finished.  Lists
+    //  from the index (or a cache) are already finished, so this
+    //  doesn't change lists that other threads share.
+
+    this.invertedList.finish ();
+
     //  Initialize the internal iterators.
 
     this.docIteratorIndex = 0;
@@ -205,11 +290,11 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+    int tf = this.invertedList.getTf (this.docIteratorIndex);
 
     while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
+           (this.invertedList.getPosition (this.docIteratorIndex,
+                                           this.locIteratorIndex) <= loc)) {
       locIteratorIndex ++;
     }
     // System.out.println("index: " + this.toString() + " " + this.locIteratorIndex);
@@ -221,7 +306,7 @@ public abstract class QryIop extends Qry {
    */
   public void locIteratorFinish () {
     this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+      this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -232,9 +317,9 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    // System.out.println("location: " + this.getCtf() + " " + locations.size() + " " + this.locIteratorIndex);
-    return locations.get (this.locIteratorIndex);
+    // System.out.println("location: " + this.getCtf() + " " + this.locIteratorIndex);
+    return this.invertedList.getPosition (this.docIteratorIndex,
+                                          this.locIteratorIndex);
   }
 
   /**
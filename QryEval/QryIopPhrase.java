@@ -0,0 +1,65 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A #NEAR/1 operator over two terms whose inverted list is read
+ *  directly from a phrase index (see IdxPhrase) instead of being
+ *  computed from the terms' positional inverted lists.  QryParser
+ *  substitutes it for #NEAR/1 when the index context has a phrase
+ *  index that contains the term pair.  The inverted list is the one
+ *  that QryIopNear produces, so results are unchanged.
+ */
+public class QryIopPhrase extends QryIop {
+
+  //  --------------- Constants and variables ---------------------
+
+  private String left;
+  private String right;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param left The first term.
+   *  @param right The second term.
+   *  @param field The field that both terms match in.
+   */
+  public QryIopPhrase (String left, String right, String field) {
+    this.left = left;
+    this.right = right;
+    this.field = field;
+    this.setDisplayName ("#PHRASE");
+  }
+
+  /**
+   *  Get the key of a term pair in a phrase index.  Terms never
+   *  contain spaces, so the key is unambiguous.
+   *  @param left The first term.
+   *  @param right The second term.
+   *  @return The key.
+   */
+  public static String getPhrase (String left, String right) {
+    return left + " " + right;
+  }
+
+  /**
+   *  Evaluate the query operator; the result is an internal inverted
+   *  list that may be accessed via the internal iterators.
+   *  @throws IOException Error accessing the phrase index.
+   */
+  protected void evaluate () throws IOException {
+    this.invertedList = this.index.getPhraseIndex ().getInvList (
+      getPhrase (this.left, this.right), this.field);
+  }
+
+  /**
+   *  Get a string version of this query operator.
+   *  @return The string version of this query operator.
+   */
+  public String toString () {
+    return (this.getDisplayName () + "( " + this.left + "." + this.field +
+            " " + this.right + "." + this.field + " )");
+  }
+}
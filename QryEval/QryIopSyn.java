@@ -19,7 +19,7 @@ public class QryIopSyn extends QryIop {
     //  Create an empty inverted list.  If there are no query arguments,
     //  that's the final result.
     
-    this.invertedList = new InvList (this.getField());
+    this.invertedList = this.createDerivedInvList ();
 
     if (args.size () == 0) {
       return;
@@ -28,6 +28,8 @@ public class QryIopSyn extends QryIop {
     //  Each pass of the loop adds 1 document to result inverted list
     //  until all of the argument inverted lists are depleted.
 
+    int[] positions = new int[16];	// Reused for each document
+
     while (true) {
 
       //  Find the minimum next document id.  If there is none, we're done.
@@ -53,20 +55,42 @@ public class QryIopSyn extends QryIop {
       //  Note:  This implementation assumes that a location will not appear
       //  in two or more arguments.  #SYN (apple apple) would break it.
 
-      List<Integer> positions = new ArrayList<Integer>();
+      int tf = 0;
 
       for (Qry q_i: this.args) {
         if (q_i.docIteratorHasMatch (null) &&
             (q_i.docIteratorGetMatch () == minDocId)) {
-          Vector<Integer> locations_i =
-            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-	  positions.addAll (locations_i);
+          QryIop q = (QryIop) q_i;
+
+          //  If nothing reads the locations, the tf is just the sum.
+
+          if (! this.needsPositions) {
+            tf += q.docIteratorGetMatchTf ();
+            q_i.docIteratorAdvancePast (minDocId);
+            continue;
+          }
+
+          if (positions.length < tf + q.docIteratorGetMatchTf ()) {
+            positions = Arrays.copyOf (
+              positions, Math.max (2 * positions.length, tf + q.docIteratorGetMatchTf ()));
+          }
+
+          while (q.locIteratorHasMatch ()) {
+            positions[tf++] = q.locIteratorGetMatch ();
+            q.locIteratorAdvance ();
+          }
+
           q_i.docIteratorAdvancePast (minDocId);
 	}
       }
 
-      Collections.sort (positions);
-      this.invertedList.appendPosting (minDocId, positions);
+      if (! this.needsPositions) {
+        this.invertedList.appendPosting (minDocId, tf);
+        continue;
+      }
+
+      Arrays.sort (positions, 0, tf);
+      this.invertedList.appendPosting (minDocId, positions, tf);
     }
   }
   
@@ -4,18 +4,71 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
  *  information about a query term, for example "apple" in the query
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  By default the TERM operator materializes its inverted list when it
+ *  is initialized, like every other QryIop operator.  In streaming
+ *  mode (see setStreaming) it iterates directly over Lucene's
+ *  PostingsEnum instead.  Document iteration uses Lucene's native
+ *  advance (and its skip lists), and positions are decoded only for
+ *  the document that the locIterator is used on, so memory use is
+ *  independent of the length of the inverted list.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  When true, TERM operators iterate over Lucene's postings directly
+   *  instead of materializing an InvList.
+   */
+  private static boolean streaming = false;
+
+  /**
+   *  The termId of a TERM operator whose term id wasn't resolved.
+   */
+  public static final int UNKNOWN_TERMID = -2;
+
   private String term;
 
+  /**
+   *  The term's id in the index's term dictionary, -1 if the term
+   *  doesn't occur in the field, or UNKNOWN_TERMID.
+   */
+  private int termId = UNKNOWN_TERMID;
+
+  /**
+   *  Streaming mode:  The Lucene postings for the term, or null if the
+   *  term does not occur in the field.
+   */
+  private PostingsEnum postings = null;
+
+  /**
+   *  Streaming mode:  Corpus statistics, from the term dictionary.
+   */
+  private int streamingDf = 0;
+  private long streamingCtf = 0;
+
+  /**
+   *  Streaming mode:  The positions of the term in the current document.
+   *  They are decoded the first time that the locIterator needs them.
+   */
+  private int[] positions = new int[16];
+  private int positionsDocid = Qry.INVALID_DOCID;
+  private int locIteratorIndex = 0;
+
+  //  --------------- Methods ---------------------------------------
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -35,13 +88,360 @@ public class QryIopTerm extends QryIop {
     this.field = fieldString;
   }
 
+  /**
+   *  The term matches in the specified field, and its term id was
+   *  resolved by the caller.
+   *  @param termString A term string.
+   *  @param fieldString A field string.
+   *  @param termId The term's id in the term dictionary, or -1 if the
+   *    term doesn't occur in the field.
+   */
+  public QryIopTerm(String termString, String fieldString, int termId) {
+    this.term = termString;
+    this.field = fieldString;
+    this.termId = termId;
+  }
+
+  /**
+   *  Enable or disable streaming mode for TERM operators that are
+   *  initialized after this call.
+   *  @param onOff True to iterate over Lucene postings directly.
+   */
+  public static void setStreaming (boolean onOff) {
+    QryIopTerm.streaming = onOff;
+  }
+
+  /**
+   *  Returns true if TERM operators are initialized in streaming mode.
+   *  @return True if streaming mode is enabled.
+   */
+  public static boolean isStreaming () {
+    return QryIopTerm.streaming;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified document.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvancePast (int docid) {
+    if (this.invertedList != null) {
+      super.docIteratorAdvancePast (docid);
+      return;
+    }
+
+    if (this.postings == null)
+      return;
+
+    int current = this.postings.docID ();
+
+    if ((current <= docid) && (current != DocIdSetIterator.NO_MORE_DOCS)) {
+      try {
+        //  No docid follows NO_MORE_DOCS - 1 (or Integer.MAX_VALUE,
+        //  which is NO_MORE_DOCS), and docid + 1 would overflow.
+
+        if (docid >= DocIdSetIterator.NO_MORE_DOCS - 1) {
+          this.docIteratorFinish ();
+        } else {
+          this.postings.advance (docid + 1);
+        }
+      } catch (IOException ex) {
+        throw new UncheckedIOException (ex);
+      }
+    }
+
+    this.locIteratorIndex = 0;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the specified
+   *  document if it exists, or beyond if it doesn't.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvanceTo (int docid) {
+    if (this.invertedList != null) {
+      super.docIteratorAdvanceTo (docid);
+      return;
+    }
+
+    if (this.postings == null)
+      return;
+
+    if (this.postings.docID () < docid) {
+      try {
+        this.postings.advance (docid);
+      } catch (IOException ex) {
+        throw new UncheckedIOException (ex);
+      }
+    }
+
+    this.locIteratorIndex = 0;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible document.
+   */
+  public void docIteratorFinish () {
+    if (this.invertedList != null) {
+      super.docIteratorFinish ();
+    } else {
+      this.postings = null;
+    }
+  }
+
+  /**
+   *  Return the id of the document that the query operator's internal
+   *  iterator points to now.
+   *  @return The internal id of the current document.
+   */
+  public int docIteratorGetMatch () {
+    if (this.invertedList != null)
+      return super.docIteratorGetMatch ();
+
+    return this.postings.docID ();
+  }
+
+  /**
+   *  Return the term frequency (tf) of the document that the
+   *  docIterator points to now.
+   *  @return The term frequency.
+   */
+  public int docIteratorGetMatchTf () {
+    if (this.invertedList != null)
+      return super.docIteratorGetMatchTf ();
+
+    try {
+      return this.postings.freq ();
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  /**
+   *  Indicates whether the query has a matching document.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the query matches a document, otherwise false.
+   */
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    if (this.invertedList != null)
+      return super.docIteratorHasMatch (r);
+
+    return ((this.postings != null) &&
+            (this.postings.docID () != DocIdSetIterator.NO_MORE_DOCS));
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+    this.invertedList =
+      this.index.getInvList(this.term, this.field, this.needsPositions);
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) associated with this
+   *  query operator.
+   *  @return The collection term frequency (ctf).
+   */
+  public long getCtf () {
+    if (this.invertedList != null)
+      return super.getCtf ();
+
+    return this.streamingCtf;
+  }
+
+  /**
+   *  Get the document frequency (df) associated with this query
+   *  operator.
+   *  @return The document frequency (df).
+   */
+  public int getDf () {
+    if (this.invertedList != null)
+      return super.getDf ();
+
+    return this.streamingDf;
+  }
+
+  /**
+   *  Get the term string.
+   *  @return The processed (stemmed, lower-cased, etc) term.
+   */
+  public String getTerm () {
+    return this.term;
+  }
+
+  /**
+   *  Get the term's id in the index's term dictionary.
+   *  @return The term id, -1 if the term doesn't occur in the field,
+   *    or UNKNOWN_TERMID if it wasn't resolved.
+   */
+  public int getTermId () {
+    return this.termId;
+  }
+
+  /**
+   *  Initialize the query operator, including its internal iterators.
+   *  In streaming mode the Lucene postings are opened and positioned
+   *  on the first document; no inverted list is materialized.
+   *  @param r A retrieval model (that is ignored)
+   *  @param index The index.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void initialize (RetrievalModel r, IndexContext index)
+    throws IOException {
+
+    //  Inverted lists from a native index are views of mapped files,
+    //  and cached inverted lists are shared by all queries, so
+    //  streaming wouldn't save anything.
+
+    if ((! QryIopTerm.streaming) ||
+        (index.getNativeIndex () != null) ||
+        (index.getInvListCache () != null)) {
+      super.initialize (r, index);
+      return;
+    }
+
+    this.index = index;
+    this.invertedList = null;
+    this.postings = null;
+    this.positionsDocid = Qry.INVALID_DOCID;
+    this.locIteratorIndex = 0;
+
+    //  A resolved term id gives the statistics without a lookup.
+
+    if (this.termId == -1) {
+      this.streamingDf = 0;
+      this.streamingCtf = 0;
+      return;
+    } else if (this.termId >= 0) {
+      TermDictionary dictionary = index.getTermDictionary ();
+      this.streamingDf = dictionary.getDf (this.termId);
+      this.streamingCtf = dictionary.getCtf (this.termId);
+    } else {
+      this.streamingDf = index.getDocFreq (this.field, this.term);
+      this.streamingCtf = index.getTotalTermFreq (this.field, this.term);
+    }
+
+    if (this.streamingDf < 1) {
+      this.streamingCtf = 0;
+      return;
+    }
+
+    //  Positions are decoded lazily, and only if they are needed.
+
+    if (this.needsPositions) {
+      this.postings = MultiFields.getTermPositionsEnum (
+        index.getReader (), this.field, new BytesRef (this.term));
+    } else {
+      this.postings = MultiFields.getTermDocsEnum (
+        index.getReader (), this.field, new BytesRef (this.term),
+        PostingsEnum.FREQS);
+    }
+
+    //  A segment may not contain the term, even though the index does.
+
+    if (this.postings != null)
+      this.postings.nextDoc ();
+  }
+
+  /**
+   *  Decode the positions of the current document, if that hasn't
+   *  been done already.  Lucene only allows positions to be read
+   *  once per document, so they are buffered.
+   */
+  private void loadPositions () {
+
+    int docid = this.postings.docID ();
+
+    if (docid == this.positionsDocid)
+      return;
+
+    try {
+      int tf = this.postings.freq ();
+
+      if (this.positions.length < tf)
+        this.positions = new int[Math.max (tf, 2 * this.positions.length)];
+
+      for (int j = 0; j < tf; j++)
+        this.positions[j] = this.postings.nextPosition ();
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+
+    this.positionsDocid = docid;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the
+   *  next location.
+   */
+  public void locIteratorAdvance () {
+    if (this.invertedList != null) {
+      super.locIteratorAdvance ();
+    } else {
+      this.locIteratorIndex ++;
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified location.
+   *  @param loc The location to advance beyond.
+   */
+  public void locIteratorAdvancePast (int loc) {
+    if (this.invertedList != null) {
+      super.locIteratorAdvancePast (loc);
+      return;
+    }
+
+    this.loadPositions ();
+
+    int tf = this.docIteratorGetMatchTf ();
+
+    while ((this.locIteratorIndex < tf) &&
+           (this.positions[this.locIteratorIndex] <= loc)) {
+      this.locIteratorIndex ++;
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond
+   *  any possible location.
+   */
+  public void locIteratorFinish () {
+    if (this.invertedList != null) {
+      super.locIteratorFinish ();
+    } else {
+      this.locIteratorIndex = this.docIteratorGetMatchTf ();
+    }
+  }
+
+  /**
+   *  Return the document location that the query operator's internal
+   *  iterator points to now.
+   *  @return The current document location.
+   */
+  public int locIteratorGetMatch () {
+    if (this.invertedList != null)
+      return super.locIteratorGetMatch ();
+
+    this.loadPositions ();
+    return this.positions[this.locIteratorIndex];
+  }
+
+  /**
+   *  Returns true if the query operator's internal iterator currently
+   *  points to a location.
+   *  @return True if the iterator currently points to a location.
+   */
+  public boolean locIteratorHasMatch () {
+    if (this.invertedList != null)
+      return super.locIteratorHasMatch ();
+
+    return (this.locIteratorIndex < this.docIteratorGetMatchTf ());
   }
 
   /**
@@ -23,7 +23,7 @@ public class QryIopWindow extends QryIop {
     // Create an empty inverted list. If there are no query arguments,
     // that's the final result.
 
-    this.invertedList = new InvList(this.getField());
+    this.invertedList = this.createDerivedInvList();
 
     if (args.size() == 0) {
       return;
@@ -84,7 +84,11 @@ public class QryIopWindow extends QryIop {
       }
 
       for (Map.Entry<Integer, List<Integer>> entries : results.entrySet()) {
-        this.invertedList.appendPosting(entries.getKey(), entries.getValue());
+        if (this.needsPositions) {
+          this.invertedList.appendPosting(entries.getKey(), entries.getValue());
+        } else {
+          this.invertedList.appendPosting(entries.getKey(), entries.getValue().size());
+        }
       }
 
       for (Qry qi : this.args) {
@@ -94,44 +94,36 @@ public class QryParser {
     // System.out.println(operatorName.startsWith("#near"));
     switch (operatorNameLowerCase) {
     case "#or":
-      System.out.println("#or");
       operator = new QrySopOr();
       break;
 
     case "#syn":
-      System.out.println("#syn");
       operator = new QryIopSyn();
       break;
 
     case "#and":
-      System.out.println("#and");
       operator = new QrySopAnd();
       break;
 
     case "#near":
-      System.out.println("#near");
       operator = new QryIopNear();
       ((QryIopNear) operator).distance = operatorDistance;
       break;
 
     case "#sum":
-      System.out.println("#sum");
       operator = new QrySopSum();
       break;
 
     case "#window":
-      System.out.println("#window");
       operator = new QryIopWindow();
       ((QryIopWindow) operator).distance = operatorDistance;
       break;
 
     case "#wsum":
-      System.out.println("#wsum");
       operator = new QrySopWsum();
       break;
     
     case "#wand":
-      System.out.println("#wand");
       operator = new QrySopWand();
       break;
     
@@ -149,9 +141,10 @@ public class QryParser {
    * punctuation b(e.g., near-death) and/or a field name (e.g., apple.title).
    * 
    * @parameter token The token consumed from the query string.
+   * @parameter index The index that term ids are resolved in.
    * @throws IOException Error accessing the Lucene index.
    */
-  private static Qry[] createTerms(String token) throws IOException {
+  private static Qry[] createTerms(String token, IndexContext index) throws IOException {
 
     // Split the token into a term and a field.
 
@@ -182,8 +175,11 @@ public class QryParser {
     String t[] = tokenizeString(term);
     Qry terms[] = new Qry[t.length];
 
+    // Resolve term ids now, if the term dictionary is available, so
+    // that later stages can use them instead of strings.
+
     for (int i = 0; i < t.length; i++) {
-      terms[i] = new QryIopTerm(t[i], field);
+      terms[i] = new QryIopTerm(t[i], field, index.getQueryTermId(field, t[i]));
     }
 
     return terms;
@@ -198,9 +194,30 @@ public class QryParser {
    * @throws IllegalArgumentException Query syntax error.
    */
   public static Qry getQuery(String queryString) throws IOException, IllegalArgumentException {
+    return getQuery(queryString, Idx.getContext());
+  }
+
+  /**
+   * Parse a query string into a query tree for a specific index. Term ids are
+   * resolved in that index, so the query must be evaluated against it.
+   * 
+   * @param queryString The query string, in an Indri-style query language.
+   * @param index       The index that the query will be evaluated against.
+   * @return Qry The query tree for the parsed query.
+   * @throws IOException              Error accessing the Lucene index.
+   * @throws IllegalArgumentException Query syntax error.
+   */
+  public static Qry getQuery(String queryString, IndexContext index)
+      throws IOException, IllegalArgumentException {
     // System.out.println(queryString);
-    Qry q = parseString(queryString); // An exact parse
+    Qry q = parseString(queryString, index); // An exact parse
     q = optimizeQuery(q); // An optimized parse
+    if ((q != null) && (index.getPhraseIndex() != null)) {
+      q = usePhraseIndex(q, index.getPhraseIndex());
+    }
+    if (q != null) {
+      markPositions(q, false);
+    }
     return q;
   }
 
@@ -229,6 +246,58 @@ public class QryParser {
     return -1;
   }
 
+  /**
+   * Replace each #NEAR/1 operator over two terms in the same field with a
+   * direct read of its inverted list, if the phrase index has it. Other
+   * operators are unchanged.
+   * 
+   * @param q           A query tree.
+   * @param phraseIndex The phrase index.
+   * @return The query tree.
+   */
+  private static Qry usePhraseIndex(Qry q, IdxNative phraseIndex) {
+
+    if ((q instanceof QryIopNear) && (((QryIopNear) q).distance == 1) && (q.args.size() == 2)
+        && (q.args.get(0) instanceof QryIopTerm) && (q.args.get(1) instanceof QryIopTerm)) {
+      QryIopTerm left = (QryIopTerm) q.args.get(0);
+      QryIopTerm right = (QryIopTerm) q.args.get(1);
+      String field = left.getField();
+
+      if (field.equals(right.getField())
+          && (phraseIndex.getTermOrdinal(field, QryIopPhrase.getPhrase(left.getTerm(), right.getTerm())) >= 0)) {
+        return new QryIopPhrase(left.getTerm(), right.getTerm(), field);
+      }
+    }
+
+    for (int i = 0; i < q.args.size(); i++) {
+      q.args.set(i, usePhraseIndex(q.args.get(i), phraseIndex));
+    }
+
+    return q;
+  }
+
+  /**
+   * Record which inverted list operators need positions. Proximity
+   * operators read the locations of their arguments, and #SYN passes its
+   * arguments' locations through to its parent. Other operators only need
+   * docids and tfs, which are cheaper to read.
+   * 
+   * @param q      A query tree.
+   * @param needed True if the parent of q reads its locations.
+   */
+  private static void markPositions(Qry q, boolean needed) {
+
+    if (q instanceof QryIop) {
+      ((QryIop) q).setNeedsPositions(needed);
+    }
+
+    boolean argsNeeded = (q instanceof QryIop) && ((!(q instanceof QryIopSyn)) || needed);
+
+    for (Qry q_i : q.args) {
+      markPositions(q_i, argsNeeded);
+    }
+  }
+
   /**
    * Optimize the query by removing degenerate nodes produced during query
    * parsing, for example '#NEAR/1 (of the)' which turns into '#NEAR/1 ()' after
@@ -282,11 +351,13 @@ public class QryParser {
    * Parse a query string into a query tree.
    * 
    * @param queryString The query string, in an Indri-style query language.
+   * @param index       The index that term ids are resolved in.
    * @return Qry The query tree for the parsed query.
    * @throws IOException              Error accessing the Lucene index.
    * @throws IllegalArgumentException Query syntax error.
    */
-  private static Qry parseString(String queryString) throws IOException, IllegalArgumentException {
+  private static Qry parseString(String queryString, IndexContext index)
+      throws IOException, IllegalArgumentException {
 
     // This simple parser is sensitive to parenthensis placement, so
     // check for basic errors first.
@@ -346,12 +417,12 @@ public class QryParser {
         p = popSubquery(queryString);
         // System.out.println("subquery: " + p.getPopped());
         qargs = new Qry[1];
-        qargs[0] = parseString(p.getPopped());
+        qargs[0] = parseString(p.getPopped(), index);
 
       } else { // Term
         p = popTerm(queryString);
         // System.out.println("term: " + p.getPopped());
-        qargs = createTerms(p.getPopped());
+        qargs = createTerms(p.getPopped(), index);
 
       }
 
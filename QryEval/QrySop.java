@@ -31,11 +31,14 @@ public abstract class QrySop extends Qry {
    *  is fully evaluated, and the results are stored in an internal
    *  inverted list that may be accessed via the internal iterator.
    *  @param r A retrieval model that guides initialization
+   *  @param index The index.
    *  @throws IOException Error accessing the Lucene index.
    */
-  public void initialize(RetrievalModel r) throws IOException {
+  public void initialize(RetrievalModel r, IndexContext index)
+    throws IOException {
+    this.index = index;
     for (Qry q_i: this.args) {
-      q_i.initialize (r);
+      q_i.initialize (r, index);
     }
   }
 }
@@ -16,6 +16,25 @@ public class QrySopScore extends QrySop {
    * retrieval models have these, some don't.
    */
 
+  /**
+   * The length normalization table of the argument's field for the retrieval
+   * model (see LengthNormTables), which is indexed by whole-index docid, and
+   * the docid base of the index.
+   */
+  private float[] lengthNorms;
+  private int docBase;
+
+  /**
+   * Values that depend on the argument's df and ctf, which are computed the
+   * first time that a document is scored, because SegmentEvaluator sets the
+   * whole-index df and ctf after initialization. BM25: The RSJ weight. Indri:
+   * mu and lambda times the maximum likelihood estimate.
+   */
+  private boolean hasTermWeights;
+  private double rsjWeight;
+  private double muPmle;
+  private double lambdaPmle;
+
   /**
    * Indicates whether the query has a match.
    * 
@@ -49,16 +68,10 @@ public class QrySopScore extends QrySop {
   }
 
   public double getDefaultScore(RetrievalModelIndri r, int docid) throws IOException {
-    double mu = r.getMu();
-    double lambda = r.getLambda();
-    Qry q = this.args.get(0);
-    double ctf = (double) ((QryIop) q).getCtf();
-    String field = ((QryIop) q).field;
-    int lend = Idx.getFieldLength(field, docid);
-    long lenc = Idx.getSumOfFieldLengths(field);
-    // System.out.println(ctf);
-    double smooth = getSmooth(mu, lambda, lend, lenc, ctf, 0);
-    return smooth;
+    if (!this.hasTermWeights) {
+      this.initializeTermWeights(r);
+    }
+    return getSmooth(r.getLambda(), this.lengthNorms[this.docBase + docid], 0);
   }
 
   /**
@@ -80,8 +93,7 @@ public class QrySopScore extends QrySop {
   public double getScoreRankedBoolean(RetrievalModel r) throws IOException {
     if (this.docIteratorHasMatchCache()) {
       Qry q = this.args.get(0);
-      int docid = ((QryIop) q).docIteratorGetMatch();
-      int score = ((QryIop) q).invertedList.docTf.get(docid);
+      int score = ((QryIop) q).docIteratorGetMatchTf();
       return (double) score;
     } else {
       return 0.0;
@@ -89,67 +101,45 @@ public class QrySopScore extends QrySop {
   }
 
   public double getScoreBM25(RetrievalModelBM25 r) throws IOException {
-    double k_1 = r.getK1();
-    double b = r.getB();
-    double k_3 = r.getK3();
     if (this.docIteratorHasMatchCache()) {
       Qry q = this.args.get(0);
       int docid = ((QryIop) q).docIteratorGetMatch();
-      long N = Idx.getNumDocs();
-      double d = (double) ((QryIop) q).invertedList.df;
-      double RSJ = calRSJWeight(N, d);
-      int tf = ((QryIop) q).invertedList.docTf.get(docid);
-      String f = ((QryIop) q).field;
-      // System.out.println(f);
-      double tfWeights = getTFWeight(b, f, docid, tf, k_1);
-      return RSJ * tfWeights;
+      int tf = ((QryIop) q).docIteratorGetMatchTf();
+      if (!this.hasTermWeights) {
+        this.initializeTermWeights(r);
+      }
+      double tfWeights = r.getTfWeight(tf, this.lengthNorms[this.docBase + docid]);
+      return this.rsjWeight * tfWeights;
     }
     return 0.0;
   }
 
   public double getScoreIndri(RetrievalModelIndri r) throws IOException {
-    double mu = r.getMu();
-    double lambda = r.getLambda();
     if (this.docIteratorHasMatchCache()) {
       Qry q = this.args.get(0);
-      double ctf = (double) ((QryIop) q).getCtf();
       int docid = ((QryIop) q).docIteratorGetMatch();
-      int tf = ((QryIop) q).docIteratorGetMatchPosting().tf;
-      String field = ((QryIop) q).field;
-      int lend = Idx.getFieldLength(field, docid);
-      long lenc = Idx.getSumOfFieldLengths(field);
-      double smooth = getSmooth(mu, lambda, lend, lenc, ctf, tf);
+      int tf = ((QryIop) q).docIteratorGetMatchTf();
+      if (!this.hasTermWeights) {
+        this.initializeTermWeights(r);
+      }
+      double smooth = getSmooth(r.getLambda(), this.lengthNorms[this.docBase + docid], tf);
       // System.out.println(smooth);
       return smooth;
     }
     return 0.0;
   }
 
-  private double getSmooth(double mu, double lambda, int lend, Long lenc, double ctf, int tf) throws IOException {
-    if (ctf == 0.0) {
-      ctf = 0.5;
-    }
-    double PMLE = ctf / (double) lenc;
-    double tmp = (1 - lambda) * (((double) tf + (mu * PMLE)) / ((double) lend + mu));
-    double res = tmp + (lambda * PMLE);
-    if (res > 1) {
-      System.out.println(lambda * PMLE);
-    }
-    return res;
-  }
-
-  private double calRSJWeight(long N, double d) throws IOException {
-    double tmp = N - d + 0.5;
-    tmp = Math.log(tmp / (d + 0.5));
-    return Math.max(0, tmp);
-  }
-
-  private double getTFWeight(double b, String f, int docid, int tf, double k_1) throws IOException {
-    int doclen = Idx.getFieldLength(f, docid);
-    double avglen = Idx.getSumOfFieldLengths(f) / (double) Idx.getDocCount(f);
-    double tmp = (1 - b) + (b * (doclen / avglen));
-    double weight = tf / (tf + (k_1 * (tmp)));
-    return weight;
+  /**
+   * The Indri score of the argument in a document.
+   * 
+   * @param lambda     The Indri lambda.
+   * @param lengthNorm The document's length normalization, 1 / (lend + mu).
+   * @param tf         The argument's frequency in the document.
+   * @return The score.
+   */
+  private double getSmooth(double lambda, double lengthNorm, int tf) {
+    double tmp = (1 - lambda) * (((double) tf + this.muPmle) * lengthNorm);
+    return tmp + this.lambdaPmle;
   }
 
   /**
@@ -159,12 +149,54 @@ public class QrySopScore extends QrySop {
    * via the internal iterator.
    * 
    * @param r A retrieval model that guides initialization
+   * @param index The index.
    * @throws IOException Error accessing the Lucene index.
    */
-  public void initialize(RetrievalModel r) throws IOException {
+  public void initialize(RetrievalModel r, IndexContext index) throws IOException {
+
+    this.index = index;
 
     Qry q = this.args.get(0);
-    q.initialize(r);
+    q.initialize(r, index);
+
+    // Get the model's length normalization table of the field, which is
+    // shared by all queries.
+
+    String field = ((QryIop) q).field;
+    this.docBase = index.getDocBase();
+    this.hasTermWeights = false;
+
+    if (r instanceof RetrievalModelBM25) {
+      this.lengthNorms = index.getLengthNormTables().getBM25((RetrievalModelBM25) r, field);
+    } else if (r instanceof RetrievalModelIndri) {
+      this.lengthNorms = index.getLengthNormTables().getIndri((RetrievalModelIndri) r, field);
+    } else {
+      index.getFieldOrdinal(field); // Check that the field is indexed
+    }
+  }
+
+  /**
+   * Compute the values that depend on the argument's df and ctf, but not on
+   * the document.
+   * 
+   * @param r The retrieval model.
+   */
+  private void initializeTermWeights(RetrievalModel r) {
+    QryIop q = (QryIop) this.args.get(0);
+
+    if (r instanceof RetrievalModelBM25) {
+      this.rsjWeight = ((RetrievalModelBM25) r).getRsjWeight(this.index.getNumDocs(), (double) q.getDf());
+    } else if (r instanceof RetrievalModelIndri) {
+      RetrievalModelIndri indri = (RetrievalModelIndri) r;
+      double ctf = (double) q.getCtf();
+      if (ctf == 0.0) {
+        ctf = 0.5;
+      }
+      double PMLE = ctf / (double) this.index.getSumOfFieldLengths(q.field);
+      this.muPmle = indri.getMu() * PMLE;
+      this.lambdaPmle = indri.getLambda() * PMLE;
+    }
+    this.hasTermWeights = true;
   }
 
 }
@@ -38,6 +38,52 @@ public class RetrievalModelBM25 extends RetrievalModel {
     public double getK3() {
         return this.k_3;
     }
+
+    /**
+     *  The RSJ (idf) weight of a term.
+     *  @param N The number of documents in the index.
+     *  @param d The term's document frequency.
+     *  @return The weight, which is never negative.
+     */
+    public double getRsjWeight(long N, double d) {
+        double tmp = N - d + 0.5;
+        tmp = Math.log(tmp / (d + 0.5));
+        return Math.max(0, tmp);
+    }
+
+    /**
+     *  The tf weight of a term in a document.
+     *  @param tf The term's frequency in the document's field.
+     *  @param doclen The length of the document's field.
+     *  @param avglen The average length of the field.
+     *  @return The weight.
+     */
+    public double getTfWeight(int tf, int doclen, double avglen) {
+        return getTfWeight(tf, getLengthNorm(doclen, avglen));
+    }
+
+    /**
+     *  The tf weight of a term in a document.
+     *  @param tf The term's frequency in the document's field.
+     *  @param lengthNorm The document's length normalization (see
+     *  getLengthNorm).
+     *  @return The weight.
+     */
+    public double getTfWeight(int tf, double lengthNorm) {
+        return tf / (tf + lengthNorm);
+    }
+
+    /**
+     *  The length normalization of a document's field, which doesn't
+     *  depend on the term (see LengthNormTables).
+     *  @param doclen The length of the document's field.
+     *  @param avglen The average length of the field.
+     *  @return k_1 * ((1 - b) + b * doclen / avglen).
+     */
+    public double getLengthNorm(int doclen, double avglen) {
+        double tmp = (1 - this.b) + (this.b * (doclen / avglen));
+        return this.k_1 * (tmp);
+    }
   
   }
   
\ No newline at end of file
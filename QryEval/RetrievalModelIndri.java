@@ -25,6 +25,16 @@ public class RetrievalModelIndri extends RetrievalModel {
       return this.lambda;
     }
 
+    /**
+     *  The length normalization of a document's field, which doesn't
+     *  depend on the term (see LengthNormTables).
+     *  @param lend The length of the document's field.
+     *  @return 1 / (lend + mu).
+     */
+    public double getLengthNorm(int lend) {
+      return 1.0 / ((double) lend + this.mu);
+    }
+
 
 
   public String defaultQrySopName () {
@@ -19,6 +19,7 @@ public class RetrievalModelLetor extends RetrievalModel {
     private Map<String, Float> pageRank = new HashMap<>();
     private Map<Integer, Map<String, Double>> relevanceMap = new HashMap<>();
     private Map<Integer, Map<Integer, minMax>> norm = new HashMap<>();
+    private IndexContext indexContext; // The index that features are extracted from
 
     public RetrievalModelLetor(Map<String, String> parameters) {
         this.parameters = parameters;
@@ -255,6 +256,7 @@ public class RetrievalModelLetor extends RetrievalModel {
         }
         Map<String, Map<Integer, Double>> docFeature = new HashMap<>();
         List<Integer> sort = new ArrayList<>(qry.keySet());
+        this.indexContext = Idx.getContext();
         Collections.sort(sort);
 
         for (int qid : sort) {
@@ -263,137 +265,153 @@ public class RetrievalModelLetor extends RetrievalModel {
             this.norm.put(qid, tmp);
             String q = qry.get(qid);
             String[] terms = QryParser.tokenizeString(q);
+            int[] bodyIds = getTermIds(terms, "body");
+            int[] titleIds = getTermIds(terms, "title");
+            int[] urlIds = getTermIds(terms, "url");
+            int[] inlinkIds = getTermIds(terms, "inlink");
+            AttributeStore attributes = this.indexContext.getAttributeStore();
             for (Map.Entry<String, Double> entry : this.relevanceMap.get(qid).entrySet()) {
                 Map<Integer, Double> map = new HashMap<>();
                 int docid;
                 try {
-                    docid = Idx.getInternalDocid(entry.getKey());
+                    docid = this.indexContext.getInternalDocid(entry.getKey());
                 } catch (Exception e) {
                     continue;
                 }
-                TermVector tv_body = new TermVector(docid, "body");
-                TermVector tv_title = new TermVector(docid, "title");
-                TermVector tv_url = new TermVector(docid, "url");
-                TermVector tv_inlink = new TermVector(docid, "inlink");
+                TermVector tv_body = new TermVector(this.indexContext, docid, "body");
+                TermVector tv_title = new TermVector(this.indexContext, docid, "title");
+                TermVector tv_url = new TermVector(this.indexContext, docid, "url");
+                TermVector tv_inlink = new TermVector(this.indexContext, docid, "inlink");
 
                 // System.out.println(docid);
                 // f1
                 if (this.features[0] == 0) {
                     Double spamScore = Double.MIN_VALUE;
-                    spamScore = Double.parseDouble(Idx.getAttribute("spamScore", docid));
+                    if (attributes != null) {
+                        spamScore = (double) attributes.getSpamScore(docid);
+                    } else {
+                        spamScore = Double.parseDouble(this.indexContext.getAttribute("spamScore", docid));
+                    }
                     // System.out.println(spamScore);
                     map.put(1, spamScore);
                     buildNorm(qid, 1, spamScore);
                 }
                 // f2
                 if (this.features[1] == 0) {
-                    String rawUrl = Idx.getAttribute("rawUrl", docid).replace("http://", "");
                     double count = 0.0;
-                    for (int i = 0; i < rawUrl.length(); i++) {
-                        if (rawUrl.charAt(i) == '/') {
-                            count++;
-                        }
+                    if (attributes != null) {
+                        count = attributes.getUrlDepth(docid);
+                    } else {
+                        count = AttributeStore.getUrlDepth(this.indexContext.getAttribute("rawUrl", docid));
                     }
                     map.put(2, count);
                     buildNorm(qid, 2, count);
                 }
                 // f3
                 if (this.features[2] == 0) {
-                    String rawUrl = Idx.getAttribute("rawUrl", docid);
                     double contains = 0.0;
-                    if (rawUrl.contains("wikipedia.org"))
+                    if (attributes != null) {
+                        if (attributes.isWikipedia(docid))
+                            contains = 1.0;
+                    } else if (this.indexContext.getAttribute("rawUrl", docid).contains("wikipedia.org")) {
                         contains = 1.0;
+                    }
                     map.put(3, contains);
                     buildNorm(qid, 3, contains);
                 }
                 // f4
                 if (this.features[3] == 0) {
-                    double prScore = Double.parseDouble(Idx.getAttribute("PageRank", docid));
+                    double prScore;
+                    if (attributes != null) {
+                        prScore = attributes.getPageRank(docid);
+                    } else {
+                        prScore = Double.parseDouble(this.indexContext.getAttribute("PageRank", docid));
+                    }
                     map.put(4, prScore);
                     buildNorm(qid, 4, prScore);
                 }
                 // f5
                 if (this.features[4] == 0) {
-                    double score = getScoreBM25(terms, docid, "body", tv_body);
+                    double score = getScoreBM25(terms, bodyIds, docid, "body", tv_body);
                     map.put(5, score);
                     buildNorm(qid, 5, score);
                 }
                 // f6
                 if (this.features[5] == 0) {
-                    double score = getScoreIndri(terms, "body", docid, tv_body);
+                    double score = getScoreIndri(terms, bodyIds, "body", docid, tv_body);
                     map.put(6, score);
                     buildNorm(qid, 6, score);
                 }
                 // f7
                 if (this.features[6] == 0) {
-                    double score = getTermOverlap(terms, docid, "body", tv_body);
+                    double score = getTermOverlap(terms, bodyIds, docid, "body", tv_body);
                     map.put(7, score);
                     buildNorm(qid, 7, score);
                 }
                 // f8
                 if (this.features[7] == 0) {
-                    double score = getScoreBM25(terms, docid, "title", tv_title);
+                    double score = getScoreBM25(terms, titleIds, docid, "title", tv_title);
                     map.put(8, score);
                     buildNorm(qid, 8, score);
                 }
                 // f9
                 if (this.features[8] == 0) {
-                    double score = getScoreIndri(terms, "title", docid, tv_title);
+                    double score = getScoreIndri(terms, titleIds, "title", docid, tv_title);
                     map.put(9, score);
                     buildNorm(qid, 9, score);
                 }
                 // f10
                 if (this.features[9] == 0) {
-                    double score = getTermOverlap(terms, docid, "title", tv_title);
+                    double score = getTermOverlap(terms, titleIds, docid, "title", tv_title);
                     map.put(10, score);
                     buildNorm(qid, 10, score);
                 }
                 // f11
                 if (this.features[10] == 0) {
-                    double score = getScoreBM25(terms, docid, "url", tv_url);
+                    double score = getScoreBM25(terms, urlIds, docid, "url", tv_url);
                     map.put(11, score);
                     buildNorm(qid, 11, score);
                 }
                 // f12
                 if (this.features[11] == 0) {
-                    double score = getScoreIndri(terms, "url", docid, tv_url);
+                    double score = getScoreIndri(terms, urlIds, "url", docid, tv_url);
                     map.put(12, score);
                     buildNorm(qid, 12, score);
                 }
                 // f13
                 if (this.features[12] == 0) {
-                    double score = getTermOverlap(terms, docid, "url", tv_url);
+                    double score = getTermOverlap(terms, urlIds, docid, "url", tv_url);
                     map.put(13, score);
                     buildNorm(qid, 13, score);
                 }
                 // f14
                 if (this.features[13] == 0) {
-                    double score = getScoreBM25(terms, docid, "inlink", tv_inlink);
+                    double score = getScoreBM25(terms, inlinkIds, docid, "inlink", tv_inlink);
                     map.put(14, score);
                     buildNorm(qid, 14, score);
 
                 }
                 // f15
                 if (this.features[14] == 0) {
-                    double score = getScoreIndri(terms, "inlink", docid, tv_inlink);
+                    double score = getScoreIndri(terms, inlinkIds, "inlink", docid, tv_inlink);
                     map.put(15, score);
                     buildNorm(qid, 15, score);
                 }
                 // f16
                 if (this.features[15] == 0) {
-                    double score = getTermOverlap(terms, docid, "inlink", tv_inlink);
+                    double score = getTermOverlap(terms, inlinkIds, docid, "inlink", tv_inlink);
                     map.put(16, score);
                     buildNorm(qid, 16, score);
                 }
                 // f17
                 if (this.features[16] == 0) {
-                    double inLink = (double) Idx.getFieldLength("inlink", docid);
+                    double inLink = (double) this.indexContext.getFieldLength("inlink", docid);
                     map.put(17, inLink);
                     buildNorm(qid, 17, inLink);
                 }
                 // f18
                 if (this.features[17] == 0) {
-                    double titleLen = (double) Idx.getFieldLength("title", docid);
+                    double titleLen = (double) this.indexContext.getFieldLength("title", docid);
                     map.put(18, titleLen);
                     buildNorm(qid, 18, titleLen);
                 }
@@ -471,14 +489,34 @@ public class RetrievalModelLetor extends RetrievalModel {
         return new String(" ");
     }
 
-    private double getScoreBM25(String[] terms, int docid, String field, TermVector tv) throws IOException {
+    // Term ids of the query terms in a field; -1 if a term doesn't occur.
+    // Null if the term dictionary isn't available, so that feature
+    // extraction doesn't build it; terms are then looked up by string.
+    private int[] getTermIds(String[] terms, String field) throws IOException {
+        if (!this.indexContext.hasTermDictionary()) {
+            return null;
+        }
+        int[] termIds = new int[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            termIds[i] = this.indexContext.getTermId(field, terms[i]);
+        }
+        return termIds;
+    }
+
+    // The index of the i'th query term in a term vector, or -1.
+    private int indexOfTerm(TermVector tv, String[] terms, int[] termIds, int i) throws IOException {
+        return (termIds != null) ? tv.indexOfTermId(termIds[i]) : tv.indexOfStem(terms[i]);
+    }
+
+    private double getScoreBM25(String[] terms, int[] termIds, int docid, String field, TermVector tv)
+            throws IOException {
         double score = 0.0;
-        long N = Idx.getNumDocs();
+        long N = this.indexContext.getNumDocs();
         if (tv.stemsLength() == 0) {
             return Double.MIN_VALUE;
         }
-        for (String term : terms) {
-            int index = tv.indexOfStem(term);
+        for (int i = 0; i < terms.length; i++) {
+            int index = indexOfTerm(tv, terms, termIds, i);
             if (index == -1) {
                 continue;
             }
@@ -499,29 +537,36 @@ public class RetrievalModelLetor extends RetrievalModel {
     }
 
     private double getTFWeight(String f, int docid, double tf) throws IOException {
-        int doclen = Idx.getFieldLength(f, docid);
-        double avglen = Idx.getSumOfFieldLengths(f) / (double) Idx.getDocCount(f);
+        int doclen = this.indexContext.getFieldLength(f, docid);
+        double avglen = this.indexContext.getAverageFieldLength(f);
         double tmp = (1 - this.bm25[1]) + (this.bm25[1] * (doclen / avglen));
         double weight = tf / (tf + (this.bm25[0] * (tmp)));
         return weight;
     }
 
-    private double getScoreIndri(String[] terms, String field, int docid, TermVector tv) throws IOException {
+    private double getScoreIndri(String[] terms, int[] termIds, String field, int docid, TermVector tv)
+            throws IOException {
         int count = 0;
         double score = 1.0;
         if (tv.stemsLength() == 0) {
             return Double.MIN_VALUE;
         }
-        for (String term : terms) {
-            int index = tv.indexOfStem(term);
+        TermDictionary dictionary = (termIds != null) ? this.indexContext.getTermDictionary() : null;
+        for (int i = 0; i < terms.length; i++) {
+            int index = indexOfTerm(tv, terms, termIds, i);
             double tf = 0.0;
-            double ctf = Idx.getTotalTermFreq(field, term);
+            double ctf;
+            if (dictionary != null) {
+                ctf = (termIds[i] < 0) ? 0.0 : dictionary.getCtf(termIds[i]);
+            } else {
+                ctf = this.indexContext.getTotalTermFreq(field, terms[i]);
+            }
             if (index != -1) {
                 tf = tv.stemFreq(index);
                 count++;
             }
-            int lend = Idx.getFieldLength(field, docid);
-            long lenc = Idx.getSumOfFieldLengths(field);
+            int lend = this.indexContext.getFieldLength(field, docid);
+            long lenc = this.indexContext.getSumOfFieldLengths(field);
             double smooth = getSmooth(lend, lenc, ctf, tf);
             // System.out.println(smooth);
             score *= smooth;
@@ -543,13 +588,14 @@ public class RetrievalModelLetor extends RetrievalModel {
         return res;
     }
 
-    private double getTermOverlap(String[] terms, int docid, String field, TermVector tv) throws IOException {
+    private double getTermOverlap(String[] terms, int[] termIds, int docid, String field, TermVector tv)
+            throws IOException {
         int count = 0;
         if (tv.stemsLength() == 0) {
             return Double.MIN_VALUE;
         }
-        for (String term : terms) {
-            int index = tv.indexOfStem(term);
+        for (int i = 0; i < terms.length; i++) {
+            int index = indexOfTerm(tv, terms, termIds, i);
             if (index != -1) {
                 count++;
             }
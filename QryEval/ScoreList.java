@@ -15,15 +15,18 @@ public class ScoreList {
 
   private class ScoreListEntry {
     private int docid;
-    private String externalId;
+    private int externalIdOrdinal;
     private double score;
 
     private ScoreListEntry(int internalDocid, double score) {
       this.docid = internalDocid;
       this.score = score;
 
+      //  The ordinal sorts like the external id, but is an int, so
+      //  ties are cheap to break.
+
       try {
-	this.externalId = Idx.getExternalDocid (this.docid);
+	this.externalIdOrdinal = index.getExternalDocidOrdinal (this.docid);
       }
       catch (IOException ex){
 	ex.printStackTrace();
@@ -36,6 +39,26 @@ public class ScoreList {
    */
   private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
 
+  /**
+   *  The index that the internal document ids refer to.
+   */
+  private IndexContext index;
+
+  /**
+   *  Create an empty score list for the current index.
+   */
+  public ScoreList() {
+    this(Idx.getContext());
+  }
+
+  /**
+   *  Create an empty score list for a specific index.
+   *  @param index The index that the internal document ids refer to.
+   */
+  public ScoreList(IndexContext index) {
+    this.index = index;
+  }
+
   /**
    *  Append a document score to a score list.
    *  @param docid An internal document id.
@@ -82,7 +105,7 @@ public class ScoreList {
 
   /*
    *  Compare two ScoreListEntry objects.  Sort by score, then
-   *  internal docid.
+   *  external docid.
    */
   public class ScoreListComparator implements Comparator<ScoreListEntry> {
 
@@ -94,7 +117,7 @@ public class ScoreList {
 	      if (s1.score < s2.score) 
 	        return 1;
         else 
-	        return s1.externalId.compareTo(s2.externalId);
+	        return Integer.compare(s1.externalIdOrdinal, s2.externalIdOrdinal);
         
     }
   }
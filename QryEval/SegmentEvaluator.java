@@ -0,0 +1,248 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *  SegmentEvaluator evaluates a query on each segment of an index in
+ *  parallel, and merges the per-segment results.
+ *  <p>
+ *  Each segment gets its own copy of the query tree, initialized
+ *  against a segment context (see IndexContext.getSegments), so the
+ *  query operators read the segment's postings directly instead of
+ *  through a merged view of the index, and the threads share nothing
+ *  but read-only statistics.  Each segment's results are sorted and
+ *  truncated to the top k before they are merged; the ScoreList sort
+ *  order is total, so the merged top k are the same as the top k of
+ *  evaluating the whole index.
+ *  </p>
+ */
+public class SegmentEvaluator {
+
+  //  --------------- Constants and variables ---------------------
+
+  private ForkJoinPool pool;
+  private int topK;
+
+  //  --------------- Nested classes ---------------------------------
+
+  /**
+   *  Initialize a query tree on one segment, which evaluates its QryIop
+   *  operators.
+   */
+  private static class InitializeTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private Qry q;
+    private RetrievalModel model;
+    private IndexContext segment;
+
+    InitializeTask (Qry q, RetrievalModel model, IndexContext segment) {
+      this.q = q;
+      this.model = model;
+      this.segment = segment;
+    }
+
+    /**
+     *  Initialize the query tree.
+     */
+    protected void compute () {
+      try {
+        this.q.initialize (this.model, this.segment);
+      } catch (IOException ex) {
+        throw new UncheckedIOException (ex);
+      }
+    }
+  }
+
+  /**
+   *  Score the documents that an initialized query tree matches in one
+   *  segment.
+   */
+  private static class ScoreTask extends RecursiveTask<ScoreList> {
+
+    private static final long serialVersionUID = 1L;
+
+    private Qry q;
+    private RetrievalModel model;
+    private IndexContext index;
+    private IndexContext segment;
+    private int topK;
+
+    ScoreTask (Qry q, RetrievalModel model, IndexContext index,
+               IndexContext segment, int topK) {
+      this.q = q;
+      this.model = model;
+      this.index = index;
+      this.segment = segment;
+      this.topK = topK;
+    }
+
+    /**
+     *  Score the documents.
+     *  @return The top k results, with whole-index docids.
+     */
+    protected ScoreList compute () {
+
+      //  Results are recorded with whole-index docids, so that lists
+      //  from different segments can be merged.
+
+      ScoreList r = new ScoreList (this.index);
+      int docBase = this.segment.getDocBase ();
+
+      try {
+        while (this.q.docIteratorHasMatch (this.model)) {
+          int docid = this.q.docIteratorGetMatch ();
+          double score = ((QrySop) this.q).getScore (this.model);
+
+          r.add (docBase + docid, score);
+          this.q.docIteratorAdvancePast (docid);
+        }
+      } catch (IOException ex) {
+        throw new UncheckedIOException (ex);
+      }
+
+      r.sort ();
+
+      if (this.topK > 0)
+        r.truncate (this.topK);
+
+      return r;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create an evaluator.
+   *  @param threads The number of threads that evaluate segments.
+   *  @param topK The number of results kept from each segment, or 0
+   *    to keep every result.
+   */
+  public SegmentEvaluator (int threads, int topK) {
+    this.pool = new ForkJoinPool (threads);
+    this.topK = topK;
+  }
+
+  /**
+   *  Evaluate a query on each segment of an index, and merge the
+   *  results.
+   *  @param qString The query string, in an Indri-style query language.
+   *  @param model The retrieval model.
+   *  @param index The index.
+   *  @return The sorted results, with whole-index docids.
+   *  @throws IOException Error accessing the index.
+   */
+  public ScoreList evaluate (String qString, RetrievalModel model,
+                             IndexContext index)
+    throws IOException {
+
+    //  Query trees hold iteration state, so each segment is given its
+    //  own parse of the query.
+
+    List<IndexContext> segments = index.getSegments ();
+    List<Qry> trees = new ArrayList<Qry> ();
+
+    for (IndexContext segment : segments) {
+      Qry q = QryParser.getQuery (qString, segment);
+
+      if ((q == null) || (q.args.size () == 0))
+        return new ScoreList (index);
+
+      trees.add (q);
+    }
+
+    ScoreList merged = new ScoreList (index);
+
+    try {
+
+      //  Scores need whole-index statistics, which aren't known until
+      //  every segment has evaluated its inverted lists.
+
+      List<ForkJoinTask<Void>> initializeTasks = new ArrayList<ForkJoinTask<Void>> ();
+
+      for (int i = 0; i < trees.size (); i++)
+        initializeTasks.add (this.pool.submit (
+          new InitializeTask (trees.get (i), model, segments.get (i))));
+
+      for (ForkJoinTask<Void> task : initializeTasks)
+        task.join ();
+
+      if (segments.size () > 1)
+        setCollectionStatistics (trees, index);
+
+      List<ForkJoinTask<ScoreList>> scoreTasks = new ArrayList<ForkJoinTask<ScoreList>> ();
+
+      for (int i = 0; i < trees.size (); i++)
+        scoreTasks.add (this.pool.submit (
+          new ScoreTask (trees.get (i), model, index, segments.get (i), this.topK)));
+
+      for (ForkJoinTask<ScoreList> task : scoreTasks) {
+        ScoreList r = task.join ();
+
+        for (int i = 0; i < r.size (); i++)
+          merged.add (r.getDocid (i), r.getDocidScore (i));
+      }
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause ();
+    }
+
+    merged.sort ();
+
+    if (this.topK > 0)
+      merged.truncate (this.topK);
+
+    return merged;
+  }
+
+  /**
+   *  Give the QryIop operators of each segment's query tree the df and
+   *  ctf of the whole index.  A term's statistics come from the index;
+   *  a derived operator's (e.g., #NEAR/n) are the sums of its
+   *  per-segment statistics.
+   *  @param trees The initialized query trees, one per segment.
+   *  @param index The index.
+   *  @throws IOException Error accessing the index.
+   */
+  private static void setCollectionStatistics (List<Qry> trees,
+                                               IndexContext index)
+    throws IOException {
+
+    Qry first = trees.get (0);
+
+    if (first instanceof QryIop) {
+      int df = 0;
+      long ctf = 0;
+
+      if (first instanceof QryIopTerm) {
+        QryIopTerm term = (QryIopTerm) first;
+
+        df = index.getDocFreq (term.getField (), term.getTerm ());
+        ctf = index.getTotalTermFreq (term.getField (), term.getTerm ());
+      } else {
+        for (Qry q : trees) {
+          df += ((QryIop) q).getDf ();
+          ctf += ((QryIop) q).getCtf ();
+        }
+      }
+
+      for (Qry q : trees)
+        ((QryIop) q).setCollectionStatistics (df, ctf);
+    }
+
+    //  The trees are parses of the same query, so their arguments
+    //  correspond.
+
+    for (int i = 0; i < first.args.size (); i++) {
+      List<Qry> args = new ArrayList<Qry> ();
+
+      for (Qry q : trees)
+        args.add (q.args.get (i));
+
+      setCollectionStatistics (args, index);
+    }
+  }
+}
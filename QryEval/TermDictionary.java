@@ -0,0 +1,435 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  TermDictionary maps each (field, term) pair of an index to a dense
+ *  integer term id, and stores the df and ctf of each term id.  Term
+ *  ids let the parser, query expansion and feature extraction use
+ *  int-keyed arrays instead of string-keyed maps.
+ *  <p>
+ *  The terms of a field have consecutive term ids, in the same order
+ *  as the Lucene term dictionary (UTF-8 byte order), starting at the
+ *  field's base id.  A term's id is therefore its field's base id plus
+ *  its ordinal in the field, which is also its ordinal in a native
+ *  index that was exported from the same Lucene index.
+ *  </p>
+ *  <p>
+ *  The dictionary is built once from the Lucene index.  The
+ *  externalId field has one term per document and is never a query
+ *  term, so it isn't in the dictionary.  The dictionary is stored in
+ *  one file (a temporary file, if it isn't saved), which is
+ *  memory-mapped (see IdxNative.MappedFile, so it may be larger than
+ *  2GB).  All numbers are big-endian.
+ *  </p>
+ *  <pre>
+ *    header    VERSION (int), index identity (int length, UTF-8
+ *              bytes; see IndexIdentity), maxDoc, numFields, numTerms
+ *              (ints)
+ *    fields    for each field:  name length (int), UTF-8 name,
+ *              base id (int)
+ *    entries   for each term id, and a sentinel:  lexOffset (int),
+ *              df (int), ctf (long)
+ *    lex       the UTF-8 bytes of the terms, concatenated
+ *  </pre>
+ */
+public class TermDictionary {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int VERSION = 3;
+  private static final int ENTRY_LENGTH = 16;
+  private static final String EXTERNAL_ID_FIELD = "externalId";
+
+  private String indexIdentity;
+  private int maxDoc;
+  private int numTerms;
+  private HashMap<String,Integer> fieldBases = new HashMap<String,Integer> ();
+  private HashMap<String,Integer> fieldSizes = new HashMap<String,Integer> ();
+  private IdxNative.MappedFile file;
+  private long entriesStart;
+  private long lexStart;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Read a dictionary from a file that holds the dictionary format.
+   *  @param file The dictionary.
+   *  @throws IOException The file doesn't contain a dictionary.
+   */
+  private TermDictionary (IdxNative.MappedFile file) throws IOException {
+
+    //  The header is read sequentially; it is at the start of the file,
+    //  so it is inside the first window.
+
+    ByteBuffer buffer =
+      file.region (0, Math.min (file.size (), IdxNative.MappedFile.CHUNK));
+
+    if (buffer.getInt () != VERSION)
+      throw new IOException ("Unsupported term dictionary version");
+
+    byte[] identity = new byte[buffer.getInt ()];
+
+    buffer.get (identity);
+    this.indexIdentity = new String (identity, StandardCharsets.UTF_8);
+    this.maxDoc = buffer.getInt ();
+
+    int numFields = buffer.getInt ();
+
+    this.numTerms = buffer.getInt ();
+
+    String[] names = new String[numFields];
+    int[] bases = new int[numFields + 1];
+
+    for (int i = 0; i < numFields; i++) {
+      byte[] name = new byte[buffer.getInt ()];
+
+      buffer.get (name);
+      names[i] = new String (name, StandardCharsets.UTF_8);
+      bases[i] = buffer.getInt ();
+    }
+
+    bases[numFields] = this.numTerms;
+
+    for (int i = 0; i < numFields; i++) {
+      this.fieldBases.put (names[i], bases[i]);
+      this.fieldSizes.put (names[i], bases[i + 1] - bases[i]);
+    }
+
+    this.file = file;
+    this.entriesStart = buffer.position ();
+    this.lexStart = this.entriesStart + (long) ENTRY_LENGTH * (this.numTerms + 1);
+  }
+
+  /**
+   *  Get the file offset of a term's entry.
+   *  @param termId The term id, or numTerms for the sentinel.
+   *  @return The offset.
+   */
+  private long entry (int termId) {
+    return this.entriesStart + (long) termId * ENTRY_LENGTH;
+  }
+
+  /**
+   *  Write the dictionary of a Lucene index.
+   *  @param reader The Lucene index.
+   *  @param out The output stream.
+   *  @throws IOException Error accessing the index or writing the output.
+   */
+  private static void build (IndexReader reader, DataOutputStream out)
+    throws IOException {
+
+    //  The header precedes the entries, so the terms are enumerated
+    //  once to count them, and again to write them.
+
+    TreeSet<String> fieldSet =
+      new TreeSet<String> (MultiFields.getIndexedFields (reader));
+
+    fieldSet.remove (EXTERNAL_ID_FIELD);
+
+    String[] fields = fieldSet.toArray (new String[0]);
+    int[] bases = new int[fields.length];
+    long numTerms = 0;
+
+    for (int i = 0; i < fields.length; i++) {
+      bases[i] = (int) numTerms;
+
+      Terms terms = MultiFields.getTerms (reader, fields[i]);
+
+      if (terms == null)
+        continue;
+
+      TermsEnum termsEnum = terms.iterator ();
+
+      while (termsEnum.next () != null)
+        numTerms ++;
+    }
+
+    if (numTerms >= Integer.MAX_VALUE) {
+      throw new IOException ("The index has too many terms for a term dictionary");
+    }
+
+    out.writeInt (VERSION);
+    IndexIdentity.write (out, IndexIdentity.of (reader));
+    out.writeInt (reader.maxDoc ());
+    out.writeInt (fields.length);
+    out.writeInt ((int) numTerms);
+
+    for (int i = 0; i < fields.length; i++) {
+      byte[] name = fields[i].getBytes (StandardCharsets.UTF_8);
+
+      out.writeInt (name.length);
+      out.write (name);
+      out.writeInt (bases[i]);
+    }
+
+    //  Entries are written as they are enumerated.  The lex is written
+    //  to a temporary file, and copied after the entries.
+
+    File lexFile = File.createTempFile ("lex", ".tmp");
+
+    try {
+      DataOutputStream lex = new DataOutputStream (new BufferedOutputStream (
+        new FileOutputStream (lexFile), 1 << 16));
+
+      try {
+        for (String field : fields) {
+          Terms terms = MultiFields.getTerms (reader, field);
+
+          if (terms == null)
+            continue;
+
+          TermsEnum termsEnum = terms.iterator ();
+          BytesRef termBytes;
+
+          while ((termBytes = termsEnum.next ()) != null) {
+            out.writeInt (lex.size ());
+            out.writeInt (termsEnum.docFreq ());
+            out.writeLong (termsEnum.totalTermFreq ());
+            lex.write (termBytes.bytes, termBytes.offset, termBytes.length);
+          }
+        }
+
+        if (lex.size () == Integer.MAX_VALUE) {
+          throw new IOException ("The index's terms are too long for a term dictionary");
+        }
+
+        out.writeInt (lex.size ());
+        out.writeInt (0);
+        out.writeLong (0);
+      } finally {
+        lex.close ();
+      }
+
+      InputStream in = new FileInputStream (lexFile);
+      byte[] buffer = new byte[1 << 16];
+      int n;
+
+      try {
+        while ((n = in.read (buffer)) > 0)
+          out.write (buffer, 0, n);
+      } finally {
+        in.close ();
+      }
+    } finally {
+      lexFile.delete ();
+    }
+  }
+
+  /**
+   *  Compare the term with the specified id to another term.
+   *  @param termId The term id.
+   *  @param term The UTF-8 bytes of the other term.
+   *  @return A negative, zero, or positive number.
+   */
+  private int compareTerm (int termId, byte[] term) {
+
+    int start = this.file.getInt (this.entry (termId));
+    int end = this.file.getInt (this.entry (termId + 1));
+    int length = Math.min (end - start, term.length);
+
+    for (int i = 0; i < length; i++) {
+      int cmp = (this.file.get (this.lexStart + start + i) & 0xff) - (term[i] & 0xff);
+
+      if (cmp != 0)
+        return cmp;
+    }
+
+    return (end - start) - term.length;
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of a term.
+   *  @param termId The term id.
+   *  @return The ctf.
+   */
+  public long getCtf (int termId) {
+    return this.file.getLong (this.entry (termId) + 8);
+  }
+
+  /**
+   *  Get the document frequency (df) of a term.
+   *  @param termId The term id.
+   *  @return The df.
+   */
+  public int getDf (int termId) {
+    return this.file.getInt (this.entry (termId) + 4);
+  }
+
+  /**
+   *  Get the term id of the first term of a field.  The field's terms
+   *  have ids getFieldBase to getFieldBase + getNumTerms - 1.
+   *  @param fieldName The field name.
+   *  @return The base id, or -1 if the field isn't indexed.
+   */
+  public int getFieldBase (String fieldName) {
+    Integer base = this.fieldBases.get (fieldName);
+    return (base == null) ? -1 : base;
+  }
+
+  /**
+   *  Get the identity of the index that the dictionary was built from
+   *  (see IndexIdentity).
+   *  @return The identity.
+   */
+  public String getIndexIdentity () {
+    return this.indexIdentity;
+  }
+
+  /**
+   *  Get the identity of the term ids.  Files that are keyed by term
+   *  id (e.g., bitmap and impact indexes) store it, so that they can
+   *  tell whether they match this dictionary.
+   *  @return The dictionary version and the identity of the index
+   *    that it was built from.
+   */
+  public String getIdentity () {
+    return VERSION + ":" + this.indexIdentity;
+  }
+
+  /**
+   *  Get the number of terms in the dictionary.
+   *  @return The number of term ids.
+   */
+  public int getNumTerms () {
+    return this.numTerms;
+  }
+
+  /**
+   *  Get the number of terms in a field.
+   *  @param fieldName The field name.
+   *  @return The number of terms, or 0 if the field isn't indexed.
+   */
+  public int getNumTerms (String fieldName) {
+    Integer size = this.fieldSizes.get (fieldName);
+    return (size == null) ? 0 : size;
+  }
+
+  /**
+   *  Get the string of a term.
+   *  @param termId The term id.
+   *  @return The term string.
+   */
+  public String getTerm (int termId) {
+
+    int start = this.file.getInt (this.entry (termId));
+    int end = this.file.getInt (this.entry (termId + 1));
+    byte[] bytes = new byte[end - start];
+
+    for (int i = 0; i < bytes.length; i++)
+      bytes[i] = this.file.get (this.lexStart + start + i);
+
+    return new String (bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Get the term id of a term by binary search.
+   *  @param fieldName The field name.
+   *  @param termString The term.
+   *  @return The term id, or -1 if the term isn't in the field.
+   */
+  public int getTermId (String fieldName, String termString) {
+
+    Integer base = this.fieldBases.get (fieldName);
+
+    if (base == null)
+      return -1;
+
+    byte[] term = termString.getBytes (StandardCharsets.UTF_8);
+    int lo = base;
+    int hi = base + this.fieldSizes.get (fieldName) - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int cmp = this.compareTerm (mid, term);
+
+      if (cmp < 0)
+        lo = mid + 1;
+      else if (cmp > 0)
+        hi = mid - 1;
+      else
+        return mid;
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Open the term dictionary of an index.  If path names a file that
+   *  holds the dictionary of this version of this index (see
+   *  IndexIdentity), it is memory-mapped;
+   *  otherwise the dictionary is built from the index, and saved to
+   *  path if it isn't null.
+   *  @param reader The Lucene index.
+   *  @param path The dictionary file, or null to build the dictionary
+   *    in a temporary file that is deleted once it is mapped.
+   *  @return The term dictionary.
+   *  @throws IOException Error accessing the index or the file.
+   */
+  public static TermDictionary open (IndexReader reader, String path)
+    throws IOException {
+
+    if (path == null) {
+      File tmp = File.createTempFile ("termdict", ".tmp");
+
+      try {
+        DataOutputStream out = new DataOutputStream (new BufferedOutputStream (
+          new FileOutputStream (tmp), 1 << 16));
+
+        try {
+          build (reader, out);
+        } finally {
+          out.close ();
+        }
+
+        //  A mapping remains valid after its file is deleted.
+
+        return new TermDictionary (new IdxNative.MappedFile (tmp));
+      } finally {
+        tmp.delete ();
+      }
+    }
+
+    File file = new File (path);
+
+    if (file.exists ()) {
+      IdxNative.MappedFile mapped = new IdxNative.MappedFile (file);
+
+      //  A dictionary written by an older version of QryEval, or built
+      //  from another version of the index, is rebuilt.
+
+      if ((mapped.size () >= 4) && (mapped.getInt (0) == VERSION)) {
+        TermDictionary dictionary = new TermDictionary (mapped);
+
+        if (dictionary.indexIdentity.equals (IndexIdentity.of (reader)))
+          return dictionary;
+      }
+    }
+
+    //  Write under a temporary name and rename, so that other processes
+    //  never see a partial file.
+
+    File tmp = new File (path + ".tmp");
+    DataOutputStream out = new DataOutputStream (new BufferedOutputStream (
+      new FileOutputStream (tmp), 1 << 16));
+
+    try {
+      build (reader, out);
+    } finally {
+      out.close ();
+    }
+
+    if (! tmp.renameTo (file)) {
+      throw new IOException ("Can't rename " + tmp + " to " + file);
+    }
+
+    return new TermDictionary (new IdxNative.MappedFile (file));
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  A bounded, thread-safe cache of term statistics (df and ctf).  A
+ *  miss looks the term up once, in the native index if the field was
+ *  exported to one, otherwise in the Lucene term dictionary.  When the
+ *  cache is full, about a quarter of its entries are discarded.
+ */
+public class TermStatsCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The statistics of one term.
+   */
+  public static class TermStats {
+
+    /**
+     *  Document frequency: The number of documents that have the term
+     *  in the field.
+     */
+    public final int df;
+
+    /**
+     *  Collection term frequency: The number of times that the term
+     *  occurs in the field.
+     */
+    public final long ctf;
+
+    TermStats (int df, long ctf) {
+      this.df = df;
+      this.ctf = ctf;
+    }
+  }
+
+  private static int capacity = 100000;
+
+  private IndexReader reader;
+  private IdxNative nativeIndex;
+  private ConcurrentHashMap<String,TermStats> cache =
+    new ConcurrentHashMap<String,TermStats> ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create an empty cache.
+   *  @param reader The Lucene index.
+   *  @param nativeIndex The native index exported from reader, or null.
+   */
+  public TermStatsCache (IndexReader reader, IdxNative nativeIndex) {
+    this.reader = reader;
+    this.nativeIndex = nativeIndex;
+  }
+
+  /**
+   *  Discard entries until the cache is at most three quarters full.
+   */
+  private void evict () {
+
+    int target = (3 * TermStatsCache.capacity) / 4;
+    Iterator<String> it = this.cache.keySet ().iterator ();
+
+    while (it.hasNext () && (this.cache.size () > target)) {
+      it.next ();
+      it.remove ();
+    }
+  }
+
+  /**
+   *  Get the statistics of a term.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The term statistics, which are zero if the term doesn't occur.
+   *  @throws IOException Error accessing the index.
+   */
+  public TermStats get (String fieldName, String term) throws IOException {
+
+    String key = fieldName + '\u0000' + term;
+    TermStats stats = this.cache.get (key);
+
+    if (stats != null)
+      return stats;
+
+    stats = this.lookup (fieldName, term);
+
+    if (this.cache.size () >= TermStatsCache.capacity)
+      this.evict ();
+
+    this.cache.put (key, stats);
+    return stats;
+  }
+
+  /**
+   *  Look a term up in the index.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The term statistics.
+   *  @throws IOException Error accessing the index.
+   */
+  private TermStats lookup (String fieldName, String term) throws IOException {
+
+    if ((this.nativeIndex != null) && this.nativeIndex.hasField (fieldName)) {
+      int ord = this.nativeIndex.getTermOrdinal (fieldName, term);
+
+      if (ord < 0)
+        return new TermStats (0, 0);
+
+      return new TermStats (this.nativeIndex.getDf (fieldName, ord),
+                            this.nativeIndex.getCtf (fieldName, ord));
+    }
+
+    Terms terms = MultiFields.getTerms (this.reader, fieldName);
+
+    if (terms == null)
+      return new TermStats (0, 0);
+
+    TermsEnum termsEnum = terms.iterator ();
+
+    if (! termsEnum.seekExact (new BytesRef (term)))
+      return new TermStats (0, 0);
+
+    return new TermStats (termsEnum.docFreq (), termsEnum.totalTermFreq ());
+  }
+
+  /**
+   *  Set the maximum number of terms that a cache holds.
+   *  @param n The capacity.
+   */
+  public static void setCapacity (int n) {
+    TermStatsCache.capacity = Math.max (1, n);
+  }
+}
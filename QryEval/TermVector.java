@@ -3,6 +3,8 @@
  */
 
 import java.io.*;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.Term;
@@ -18,6 +20,17 @@ import org.apache.lucene.index.TermsEnum;
  *    stemsFreq:  The frequency (tf) of each entry in stems.
  *    positions:  The index of the stem that occurred at this position. 
  *  </pre>
+ *  <p>
+ *  If the current index has a native index with a forward index for
+ *  the field, the TermVector is read from the forward index instead
+ *  of from Lucene.  Stems are then identified by term ids, and their
+ *  strings are only looked up when stemString is called.
+ *  </p>
+ *  <p>
+ *  Stems can also be identified by their ids in the index's term
+ *  dictionary (see stemTermId and indexOfTermId), which are sorted in
+ *  the same order as the stems.
+ *  </p>
  */
 public class TermVector {
 
@@ -34,11 +47,16 @@ public class TermVector {
   public String fieldName;
 
   private int fieldLength;
+  private int positionsLength;	// The last position + 1
   private Terms luceneTerms;
   private int[] positions;	// Index of the stem that at this position
   private String[] stems;	// The vocabulary. 0 indicates a stopword
   private int[] stemsFreq;	// The frequency (tf) of each entry in stems
   private Term[] terms;
+  private int[] termIds;	// Term ids of the stems, from a forward index
+  private IdxNative nativeIndex;
+  private int[] dictionaryIds;	// Term dictionary ids of the stems
+  private IndexContext index;
 
   //  --------------- Methods ---------------------------------------
 
@@ -48,13 +66,35 @@ public class TermVector {
    *  @throws IOException Error accessing the Lucene index
    **/
   public TermVector(int docId, String fieldName) throws IOException {
+    this(Idx.getContext(), docId, fieldName);
+  }
+
+  /**
+   *  @param index The index that the document is in.
+   *  @param docId An internal document id
+   *  @param fieldName The name of a document field.
+   *  @throws IOException Error accessing the Lucene index
+   **/
+  public TermVector(IndexContext index, int docId, String fieldName)
+    throws IOException {
+    this.index = index;
     this.docId = docId;
     this.fieldName = fieldName;
     this.fieldLength = 0;
 
+    //  Use the forward index, if there is one.
+
+    IdxNative nativeIndex = index.getNativeIndex();
+
+    if ((nativeIndex != null) &&
+        (nativeIndex.getForwardIndex(fieldName) != null)) {
+      this.readForwardIndex(nativeIndex);
+      return;
+    }
+
     //  Fetch the term vector, if one exists.
 
-    this.luceneTerms = Idx.INDEXREADER.getTermVector(docId, fieldName);
+    this.luceneTerms = index.getReader().getTermVector(docId, fieldName);
 
     //  If Lucene doesn't have a term vector, our TermVector is empty.
     
@@ -98,7 +138,8 @@ public class TermVector {
 
     // Create and fill the positions array. Since we have position indexes, the array's size needs 
     // to be one bigger than the biggest position.
-    positions = new int[lastPosition + 1];
+    positionsLength = lastPosition + 1;
+    positions = new int[positionsLength];
 
     ithTerm = this.luceneTerms.iterator();
 
@@ -119,6 +160,18 @@ public class TermVector {
    *  @return the index of the stem in the stems vector, or -1 if it does not occur.
    */
   public int indexOfStem (String stem) {
+
+    //  Term ids are sorted, so a forward index can be binary searched.
+
+    if (this.termIds != null) {
+      int termId = this.nativeIndex.getTermOrdinal(this.fieldName, stem);
+
+      if (termId < 0)
+        return -1;
+
+      int s = Arrays.binarySearch(this.termIds, 1, this.termIds.length, termId);
+      return (s > 0) ? s : -1;
+    }
     
     for (int s=1; s<this.stems.length; s++)
       if (stem.equals (this.stems [s]))
@@ -127,16 +180,99 @@ public class TermVector {
     return -1;
   }
 
+  /**
+   *  Get the index of a term in the stems vector, or -1 if the stems
+   *  vector does not contain the term.
+   *  @param termId The term's id in the term dictionary.
+   *  @return the index of the stem in the stems vector, or -1 if it does not occur.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public int indexOfTermId (int termId) throws IOException {
+    if ((termId < 0) || (this.stemsLength() == 0))
+      return -1;
+
+    int[] ids = this.getDictionaryIds();
+    int s = Arrays.binarySearch(ids, 1, ids.length, termId);
+    return (s > 0) ? s : -1;
+  }
+
+  /**
+   *  Get the term dictionary ids of the stems, finding them if this is
+   *  the first time that they are needed.  A native index and the term
+   *  dictionary that were built from the same version of an index
+   *  enumerate a field's terms in the same order, so forward index
+   *  term ids are converted by adding the field's base id.
+   *  @return The term ids.  Entry 0 (stopwords) is -1.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  private int[] getDictionaryIds () throws IOException {
+    if (this.dictionaryIds != null)
+      return this.dictionaryIds;
+
+    TermDictionary dictionary = this.index.getTermDictionary();
+    int[] ids = new int[this.stems.length];
+    int base = dictionary.getFieldBase(this.fieldName);
+    boolean sameOrdinals = (this.termIds != null) &&
+      dictionary.getIndexIdentity().equals(this.nativeIndex.getIdentity());
+
+    ids[0] = -1;
+
+    for (int i = 1; i < ids.length; i++) {
+      if (sameOrdinals)
+        ids[i] = base + this.termIds[i];
+      else
+        ids[i] = dictionary.getTermId(this.fieldName, this.stemString(i));
+    }
+
+    this.dictionaryIds = ids;
+    return ids;
+  }
+
+  /**
+   *  Fill in the TermVector from the native index's forward index.
+   *  @param nativeIndex The native index.
+   *  @throws IOException Error accessing the native index
+   */
+  private void readForwardIndex(IdxNative nativeIndex) throws IOException {
+
+    IntBuffer record =
+      nativeIndex.getForwardIndex(this.fieldName).getDocument(this.docId);
+    int stemsLength = record.get(0);
+
+    if (stemsLength == 0)
+      return;
+
+    //  A forward index that was built without positions still has the
+    //  positions length, but the record ends after the frequencies.
+
+    this.nativeIndex = nativeIndex;
+    this.positionsLength = record.get(1);
+    this.termIds = new int[stemsLength + 1];
+    this.stems = new String[stemsLength + 1];
+    this.stemsFreq = new int[stemsLength + 1];
+
+    record.position(2);
+    record.get(this.termIds, 1, stemsLength);
+    record.get(this.stemsFreq, 1, stemsLength);
+
+    this.positions = new int[record.remaining()];
+    record.get(this.positions);
+
+    for (int i = 1; i <= stemsLength; i++)
+      this.fieldLength += this.stemsFreq[i];
+  }
+
   /**
    *  Get the number of positions in this field (the length of the
-   *  field). If positions are not stored, it returns 0.
+   *  field), including positions of stopwords.  This is available
+   *  even if positions are not stored.
    *  @return The number of positionsin this field (the field length).
    */
   public int positionsLength() {
     if (this.fieldLength == 0)
       return 0;
 
-    return this.positions.length;
+    return this.positionsLength;
   }
 
   /**
@@ -172,12 +308,26 @@ public class TermVector {
    *  @return The stem string.
    */
   public String stemString(int i) {
+    if ((this.termIds != null) && (i > 0) && (i < stems.length) &&
+        (stems[i] == null))
+      stems[i] = this.nativeIndex.getTerm(this.fieldName, this.termIds[i]);
+
     if (i < stems.length)
       return stems[i];
     else
       return null;
   }
 
+  /**
+   *  Get the term dictionary id of the i'th stem.
+   *  @param i Index of the stem.
+   *  @return The term id.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public int stemTermId(int i) throws IOException {
+    return this.getDictionaryIds()[i];
+  }
+
   /**
    *  The number of unique stems in this field.
    *  @return The number of unique stems in this field.
@@ -196,7 +346,10 @@ public class TermVector {
    * @throws IOException  Error accessing the Lucene index
    */
   public long totalStemFreq(int i) throws IOException {
-    return Idx.INDEXREADER.totalTermFreq(terms[i]);
+    if (this.termIds != null)
+      return this.nativeIndex.getCtf(this.fieldName, this.termIds[i]);
+
+    return this.index.getTotalTermFreq(this.fieldName, stems[i]);
   }
   
   /**
@@ -206,7 +359,10 @@ public class TermVector {
    * @throws IOException Error accessing the Lucene index
    */
   public int stemDf(int i) throws IOException {
-    return Idx.INDEXREADER.docFreq(terms[i]);
+    if (this.termIds != null)
+      return this.nativeIndex.getDf(this.fieldName, this.termIds[i]);
+
+    return this.index.getDocFreq(this.fieldName, stems[i]);
   }
   
 }
@@ -0,0 +1,443 @@
+/*
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Warmup prepares the index and the JVM for query evaluation, so that
+ *  the first timed query runs at steady-state speed instead of paying
+ *  for a cold page cache, unloaded lookup tables and interpreted code.
+ *  It is driven by a query log in the same format as queryFilePath
+ *  (qid:query on each line).
+ *  <p>
+ *  Warmup has two stages.  First it touches the data that the log's
+ *  most frequent terms use: their term dictionary entries and
+ *  statistics, their inverted lists (through the same path as query
+ *  evaluation, so the native index and inverted list cache are warmed
+ *  too), the lengths of their fields, and the docid table.  Then, for
+ *  each retrieval model, it evaluates queries from the log through
+ *  QryEval.processQuery in rounds, and stops when the mean latency of
+ *  the last few rounds has stabilized or the evaluation budget is
+ *  spent.  The results are discarded.
+ *  </p>
+ *  <p>
+ *  The parameters are:
+ *  </p>
+ *  <ul>
+ *  <li>warmup:queryFilePath=file: The query log.</li>
+ *  <li>warmup:terms=n: The number of frequent terms to touch (1000).</li>
+ *  <li>warmup:models=m,m,...: The retrieval models to warm up (the
+ *      retrievalAlgorithm).  Models that aren't configured in the
+ *      parameter file use their usual default parameters.</li>
+ *  <li>warmup:evaluations=n: The most queries to evaluate per model
+ *      (1000).</li>
+ *  <li>warmup:roundSize=n: The number of queries in a round (50, or
+ *      the size of the log if it is smaller).  Every round evaluates
+ *      the same queries, so that rounds are comparable.  Queries
+ *      that a model doesn't support are skipped for that model, and
+ *      the rest are repeated to fill the round.</li>
+ *  <li>warmup:tolerance=x: Latency has stabilized when the mean
+ *      latencies of the last STABLE_ROUNDS rounds are within a factor
+ *      of 1+x of each other (0.1).</li>
+ *  </ul>
+ */
+public class Warmup {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The number of consecutive rounds that must agree for latency to
+   *  be considered stable.
+   */
+  public static final int STABLE_ROUNDS = 3;
+
+  private static final String[][] MODEL_DEFAULTS = {
+    { "BM25:k_1", "1.2" }, { "BM25:b", "0.75" }, { "BM25:k_3", "0" },
+    { "Indri:mu", "2500" }, { "Indri:lambda", "0.4" } };
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Warm up the index and the query evaluation code, and print a
+   *  report of what was done.
+   *  @param parameters The parameters read from the parameter file.
+   *  @param model The configured retrieval model, or null.
+   *  @throws Exception Error accessing the index or configuring a model.
+   */
+  public static void run (Map<String, String> parameters, RetrievalModel model)
+    throws Exception {
+
+    List<String> queries = readQueries (parameters.get ("warmup:queryFilePath"));
+
+    if (queries.isEmpty ())
+      return;
+
+    int numTerms = getInt (parameters, "warmup:terms", 1000);
+    int maxEvaluations = getInt (parameters, "warmup:evaluations", 1000);
+    int roundSize = Math.min (getInt (parameters, "warmup:roundSize", 50),
+                              queries.size ());
+    double tolerance = 0.1;
+
+    if (parameters.containsKey ("warmup:tolerance"))
+      tolerance = Double.parseDouble (parameters.get ("warmup:tolerance"));
+
+    boolean showQueries = QryEval.isShowingQueries ();
+
+    QryEval.setShowQueries (false);
+
+    try {
+      //  Stage 1:  Touch the index data of the most frequent terms.
+
+      Timer timer = new Timer ();
+      timer.start ();
+
+      IndexContext index = Idx.acquireContext ();
+      List<String> terms;
+      long numPostings;
+      Set<String> fields = new TreeSet<String> ();
+
+      try {
+        terms = getFrequentTerms (index, queries, numTerms);
+        numPostings = touchTerms (index, terms, fields);
+      } finally {
+        Idx.releaseContext (index);
+      }
+
+      timer.stop ();
+      System.out.println ("Warmup:  touched " + terms.size () + " terms, " +
+                          numPostings + " postings, fields " + fields +
+                          " in " + timer);
+
+      //  Stage 2:  Evaluate queries with each retrieval model until
+      //  latency stabilizes.
+
+      List<String> rounds = queries.subList (0, roundSize);
+
+      for (RetrievalModel m : getModels (parameters, model))
+        warmModel (m, rounds, maxEvaluations, tolerance);
+    } finally {
+      QryEval.setShowQueries (showQueries);
+    }
+
+    //  Don't leave the warmup's garbage for the first query to collect.
+
+    QryEval.printMemoryUsage (true);
+  }
+
+  /**
+   *  Find the most frequent terms of a query log.  Queries are parsed
+   *  the way that they are for evaluation, so terms are stemmed and
+   *  have their fields.
+   *  @param index The index.
+   *  @param queries Query strings.
+   *  @param n The number of terms to return.
+   *  @return "field\tterm" strings, most frequent first.
+   *  @throws IOException Error accessing the index.
+   */
+  private static List<String> getFrequentTerms (IndexContext index,
+                                                List<String> queries, int n)
+    throws IOException {
+
+    final Map<String, Integer> counts = new HashMap<String, Integer> ();
+
+    for (String query : queries) {
+      Qry q;
+
+      try {
+        q = QryParser.getQuery ("#or(" + query + ")", index);
+      } catch (IllegalArgumentException ex) {
+        continue;                         // Evaluation reports it
+      }
+
+      if (q != null)
+        countTerms (q, counts);
+    }
+
+    List<String> terms = new ArrayList<String> (counts.keySet ());
+
+    Collections.sort (terms, new Comparator<String> () {
+      public int compare (String a, String b) {
+        int c = counts.get (b).compareTo (counts.get (a));
+        return (c != 0) ? c : a.compareTo (b);
+      }
+    });
+
+    return terms.subList (0, Math.min (n, terms.size ()));
+  }
+
+  /**
+   *  Count the terms of a query tree.
+   *  @param q The query tree.
+   *  @param counts The counts of "field\tterm" strings, which are updated.
+   */
+  static void countTerms (Qry q, Map<String, Integer> counts) {
+
+    if (q instanceof QryIopTerm) {
+      QryIopTerm t = (QryIopTerm) q;
+      String key = t.getField () + "\t" + t.getTerm ();
+      Integer count = counts.get (key);
+
+      counts.put (key, (count == null) ? 1 : count + 1);
+    }
+
+    for (Qry arg : q.args)
+      countTerms (arg, counts);
+  }
+
+  /**
+   *  Touch the index data that evaluating queries with some terms uses.
+   *  @param index The index.
+   *  @param terms "field\tterm" strings.
+   *  @param fields The fields of the terms, which are added.
+   *  @return The number of postings that were read.
+   *  @throws IOException Error accessing the index.
+   */
+  private static long touchTerms (IndexContext index, List<String> terms,
+                                  Set<String> fields)
+    throws IOException {
+
+    long numPostings = 0;
+
+    for (String key : terms) {
+      int tab = key.indexOf ('\t');
+      String field = key.substring (0, tab);
+      String term = key.substring (tab + 1);
+
+      index.getQueryTermId (field, term);
+      index.getDocFreq (field, term);
+      index.getTotalTermFreq (field, term);
+      numPostings += index.getInvList (term, field, true).df;
+      fields.add (field);
+    }
+
+    //  Read every field length, which loads (or pages in) the fields'
+    //  lengths.  The sum keeps the loop from being optimized away.
+
+    long sum = 0;
+    int maxDoc = index.getReader ().maxDoc ();
+
+    for (String field : fields) {
+      for (int docid = 0; docid < maxDoc; docid++)
+        sum += index.getFieldLength (field, docid);
+    }
+
+    if (sum < 0)
+      System.out.println ("Warmup:  negative field lengths");
+
+    //  Load the docid table, which is used to print results.
+
+    if (maxDoc > 0)
+      index.getExternalDocid (0);
+
+    return numPostings;
+  }
+
+  /**
+   *  Allocate the retrieval models to warm up.
+   *  @param parameters The parameters read from the parameter file.
+   *  @param model The configured retrieval model, or null.
+   *  @return The retrieval models.
+   *  @throws Exception Error configuring a model.
+   */
+  private static List<RetrievalModel> getModels (Map<String, String> parameters,
+                                                 RetrievalModel model)
+    throws Exception {
+
+    List<RetrievalModel> models = new ArrayList<RetrievalModel> ();
+
+    if (! parameters.containsKey ("warmup:models")) {
+      if ((model != null) && ! (model instanceof RetrievalModelLetor))
+        models.add (model);
+      return models;
+    }
+
+    for (String name : parameters.get ("warmup:models").split (",")) {
+      name = name.trim ();
+
+      if (name.equalsIgnoreCase ("letor"))
+        throw new IllegalArgumentException ("warmup:models can't include letor");
+
+      if ((model != null) &&
+          name.equalsIgnoreCase (parameters.get ("retrievalAlgorithm"))) {
+        models.add (model);
+        continue;
+      }
+
+      Map<String, String> p = new HashMap<String, String> (parameters);
+
+      p.put ("retrievalAlgorithm", name);
+
+      for (String[] d : MODEL_DEFAULTS) {
+        if (! p.containsKey (d[0]))
+          p.put (d[0], d[1]);
+      }
+
+      models.add (QryEval.initializeRetrievalModel (p));
+    }
+
+    return models;
+  }
+
+  /**
+   *  Evaluate rounds of queries with one retrieval model until latency
+   *  stabilizes or the evaluation budget is spent, and print a report.
+   *  @param model The retrieval model.
+   *  @param queries The queries of a round.
+   *  @param maxEvaluations The most queries to evaluate.
+   *  @param tolerance The relative latency difference that is stable.
+   *  @throws IOException Error accessing the index.
+   *  @throws IllegalArgumentException The model doesn't match the
+   *    configured query evaluators.
+   */
+  private static void warmModel (RetrievalModel model, List<String> queries,
+                                 int maxEvaluations, double tolerance)
+    throws IOException, IllegalArgumentException {
+
+    String name = model.getClass ().getSimpleName ().replace ("RetrievalModel", "");
+    List<String> valid = new ArrayList<String> ();
+    List<Double> means = new ArrayList<Double> ();
+    int evaluations = 0;
+    int stableAt = -1;
+    long time = 0;
+
+    //  A model that doesn't match the configuration (e.g., a BM25 model
+    //  whose parameters aren't the impact index's) is an error, not a
+    //  model that can't evaluate the queries.
+
+    QryEval.checkModel (model);
+
+    //  The first round also finds the queries that the model can
+    //  evaluate.  A query log may use operators that only some of the
+    //  models support.
+
+    for (String query : queries) {
+      long start = System.nanoTime ();
+
+      try {
+        QryEval.processQuery (query, model);
+        time += System.nanoTime () - start;
+        valid.add (query);
+      } catch (IllegalArgumentException ex) {
+        //  The query has a syntax error, or the model doesn't support
+        //  its operators.
+      }
+    }
+
+    evaluations += queries.size ();
+
+    if (valid.isEmpty ()) {
+      System.out.println ("Warmup:  " + name + " can't evaluate any of the queries");
+      return;
+    }
+
+    means.add (time / 1e6 / valid.size ());
+
+    //  Later rounds repeat the valid queries to fill the round, so that
+    //  a few fast queries don't make the means noisy.
+
+    List<String> round = new ArrayList<String> ();
+
+    while (round.size () < queries.size ())
+      round.addAll (valid);
+
+    while ((stableAt < 0) && (evaluations + round.size () <= maxEvaluations)) {
+      long start = System.nanoTime ();
+
+      for (String query : round)
+        QryEval.processQuery (query, model);
+
+      evaluations += round.size ();
+      means.add ((System.nanoTime () - start) / 1e6 / round.size ());
+
+      if (isStable (means, tolerance))
+        stableAt = evaluations;
+    }
+
+    StringBuilder report = new StringBuilder ();
+
+    report.append ("Warmup:  ").append (name).append (" evaluated ")
+      .append (valid.size ()).append (" of ").append (queries.size ())
+      .append (" queries; ms/query by round:");
+
+    for (double mean : means)
+      report.append (String.format (" %.3f", mean));
+
+    System.out.println (report);
+
+    if (stableAt >= 0) {
+      System.out.println (String.format (
+        "Warmup:  %s latency stabilized after %d evaluations at %.3f ms/query" +
+        " (first round %.3f ms/query)", name, stableAt,
+        means.get (means.size () - 1), means.get (0)));
+    } else {
+      System.out.println (String.format (
+        "Warmup:  %s latency did not stabilize within %d evaluations" +
+        " (first round %.3f ms/query, last %.3f ms/query)", name, evaluations,
+        means.get (0), means.get (means.size () - 1)));
+    }
+  }
+
+  /**
+   *  @param means The mean latency of each round so far.
+   *  @param tolerance The relative latency difference that is stable.
+   *  @return True if the last STABLE_ROUNDS means are within a factor
+   *  of 1+tolerance of each other.
+   */
+  private static boolean isStable (List<Double> means, double tolerance) {
+
+    if (means.size () < STABLE_ROUNDS)
+      return false;
+
+    double min = Double.MAX_VALUE;
+    double max = 0;
+
+    for (double mean : means.subList (means.size () - STABLE_ROUNDS, means.size ())) {
+      min = Math.min (min, mean);
+      max = Math.max (max, mean);
+    }
+
+    return max <= (1 + tolerance) * min;
+  }
+
+  /**
+   *  @param parameters The parameters read from the parameter file.
+   *  @param name A parameter name.
+   *  @param defaultValue The value to use if the parameter isn't set.
+   *  @return The parameter's integer value.
+   */
+  private static int getInt (Map<String, String> parameters, String name,
+                             int defaultValue) {
+    return parameters.containsKey (name) ?
+      Integer.parseInt (parameters.get (name)) : defaultValue;
+  }
+
+  /**
+   *  Read the queries of a query log.
+   *  @param path A file of qid:query lines.
+   *  @return The query strings, in order.
+   *  @throws IOException Error reading the file.
+   */
+  private static List<String> readQueries (String path) throws IOException {
+
+    List<String> queries = new ArrayList<String> ();
+    BufferedReader input = new BufferedReader (new FileReader (path));
+
+    try {
+      String line;
+
+      while ((line = input.readLine ()) != null) {
+        int d = line.indexOf (':');
+
+        if (d < 0)
+          throw new IllegalArgumentException ("Syntax error:  Missing ':' in query line.");
+
+        queries.add (line.substring (d + 1));
+      }
+    } finally {
+      input.close ();
+    }
+
+    return queries;
+  }
+}